@@ -138,6 +138,7 @@ public class AppConfig extends AppProperties<ImageViewerExtension> {
     private FontProperty thumbPanelFontProp;
     private FontProperty statusPanelFontProp;
     private BooleanProperty statusPanelBorderProp;
+    private BooleanProperty watchDirectoryProp;
 
     private IntegerProperty toolbarIconSizeProp;
     private IntegerProperty toolbarIconMarginProp;
@@ -153,9 +154,14 @@ public class AppConfig extends AppProperties<ImageViewerExtension> {
     private BooleanProperty preserveDateTimeProp;
 
     private EnumProperty<ThumbSize> thumbSizeProp;
-    private EnumProperty<ThumbPageSize> thumbPageSizeProp;
     private BooleanProperty thumbCacheEnabledProp;
-    private IntegerProperty thumbCacheSizeWarningProp;
+    private BooleanProperty thumbCacheWarmingEnabledProp;
+    private BooleanProperty desktopThumbReadProp;
+    private BooleanProperty desktopThumbWriteProp;
+    private EnumProperty<ThumbCachePolicy> thumbCachePolicyProp;
+    private EnumProperty<ThumbCacheBackend> thumbCacheBackendProp;
+    private IntegerProperty thumbCacheMaxSizeProp;
+    private IntegerProperty thumbMemoryCacheSizeProp;
 
     private ComboProperty<String> imageSetSaveLocation;
     private DirectoryProperty imageSetSaveLocationOverride;
@@ -293,6 +299,14 @@ public class AppConfig extends AppProperties<ImageViewerExtension> {
         return imagePanelZoomIncrementProp.getValue();
     }
 
+    /**
+     * Determines whether the current directory is watched for changes, so that files
+     * added, removed, or modified by other programs show up without a reload.
+     */
+    public boolean isWatchDirectoryEnabled() {
+        return watchDirectoryProp.getValue();
+    }
+
     public String getLookAndFeelClassname() {
         return lookAndFeelProp.getSelectedLafClass();
     }
@@ -433,21 +447,64 @@ public class AppConfig extends AppProperties<ImageViewerExtension> {
         return thumbSizeProp.getSelectedItem().getDimensions();
     }
 
-    public int getThumbnailPageSize() {
-        return thumbPageSizeProp.getSelectedItem().getSize();
-    }
-
     public boolean isThumbCacheEnabled() {
         return thumbCacheEnabledProp.getValue();
     }
 
     /**
-     * Gets the size (in bytes) at which a log warning should be emitted
-     * because the thumbnail cache is getting too large. A value
-     * of zero disables the warning.
+     * Determines whether thumbnails for nearby directories are cached in the
+     * background while the application is idle (see ThumbCacheWarmer).
+     */
+    public boolean isThumbCacheWarmingEnabled() {
+        return thumbCacheWarmingEnabledProp.getValue();
+    }
+
+    /**
+     * Determines whether thumbnails from the freedesktop.org shared thumbnail cache
+     * (~/.cache/thumbnails) are used when available (see FreedesktopThumbnails).
+     */
+    public boolean isDesktopThumbnailReadEnabled() {
+        return desktopThumbReadProp.getValue();
+    }
+
+    /**
+     * Determines whether thumbnails we generate are also written to the freedesktop.org
+     * shared thumbnail cache, for the benefit of other applications.
+     */
+    public boolean isDesktopThumbnailWriteEnabled() {
+        return desktopThumbWriteProp.getValue();
+    }
+
+    /**
+     * Determines which thumbnail sizes are generated and cached when a thumbnail
+     * is added to the cache.
      */
-    public long getThumbCacheSizeWarningThreshold() {
-        return thumbCacheSizeWarningProp.getValue() * 1024L * 1024L; // convert from MB to bytes
+    public ThumbCachePolicy getThumbCachePolicy() {
+        return thumbCachePolicyProp.getSelectedItem();
+    }
+
+    /**
+     * Determines how cached thumbnails are laid out on disk.
+     */
+    public ThumbCacheBackend getThumbCacheBackend() {
+        return thumbCacheBackendProp.getSelectedItem();
+    }
+
+    /**
+     * Gets the maximum size (in bytes) of the thumbnail cache on disk. Once the cache
+     * grows past this, the least recently used thumbnails are evicted. A value
+     * of zero means no limit.
+     */
+    public long getThumbCacheMaxBytes() {
+        return thumbCacheMaxSizeProp.getValue() * 1024L * 1024L; // convert from MB to bytes
+    }
+
+    /**
+     * Gets the maximum size (in bytes) of the in-memory thumbnail cache. A value
+     * of zero disables the in-memory cache.
+     */
+    public long getThumbMemoryCacheBytes() {
+        return thumbMemoryCacheSizeProp.getValue() * 1024L * 1024L; // convert from MB to bytes
     }
 
     public File getImageSetSaveLocation() {
@@ -635,6 +692,14 @@ public class AppConfig extends AppProperties<ImageViewerExtension> {
                                                     true);
         list.add(statusPanelBorderProp);
 
+        watchDirectoryProp = new BooleanProperty("UI.General options.watchDirectory",
+                                                 "Show changes to the current directory as they happen",
+                                                 true);
+        watchDirectoryProp.setHelpText("<html>Images added, removed, or modified by other programs are shown"
+                                               + " without having to reload.<br>On systems without native file"
+                                               + " change notification, this means polling the directory.</html>");
+        list.add(watchDirectoryProp);
+
         return list;
     }
 
@@ -913,10 +978,6 @@ public class AppConfig extends AppProperties<ImageViewerExtension> {
         thumbSizeProp = new EnumProperty<>("Thumbnails.Thumbnail options.thumbSize", "Thumb size:", ThumbSize.Normal);
         list.add(thumbSizeProp);
 
-        thumbPageSizeProp = new EnumProperty<>("Thumbnails.Thumbnail options.pageSize", "Page size:",
-                                               ThumbPageSize.Normal);
-        list.add(thumbPageSizeProp);
-
         thumbCacheEnabledProp = new BooleanProperty("Thumbnails.Thumbnail caching.enableThumbCache",
                                                     "Enable automatic caching of thumbnails",
                                                     true);
@@ -925,19 +986,66 @@ public class AppConfig extends AppProperties<ImageViewerExtension> {
                                                   + "<br>Any existing thumbnails will still be used when browsing images.</html>");
         list.add(thumbCacheEnabledProp);
 
+        thumbCacheWarmingEnabledProp = new BooleanProperty("Thumbnails.Thumbnail caching.warmNearby",
+                                                           "Cache nearby directories in the background when idle",
+                                                           true);
+        thumbCacheWarmingEnabledProp.setHelpText("<html>While you aren't doing anything, thumbnails are cached for the rest"
+                                                         + "<br>of the current directory, the directories next to it, and the"
+                                                         + "<br>directories inside it, so that they load quickly when you get there."
+                                                         + "<br>This stops short of the maximum cache size.</html>");
+        list.add(thumbCacheWarmingEnabledProp);
+
+        desktopThumbReadProp = new BooleanProperty("Thumbnails.Thumbnail caching.desktopThumbRead",
+                                                   "Use thumbnails made by the desktop file manager",
+                                                   true);
+        desktopThumbReadProp.setHelpText("<html>On Linux, file managers keep thumbnails in ~/.cache/thumbnails."
+                                                 + "<br>Where one of those is up to date, it's used instead of"
+                                                 + "<br>decoding the image again.</html>");
+        list.add(desktopThumbReadProp);
+
+        desktopThumbWriteProp = new BooleanProperty("Thumbnails.Thumbnail caching.desktopThumbWrite",
+                                                    "Share generated thumbnails with the desktop file manager",
+                                                    false);
+        desktopThumbWriteProp.setHelpText("<html>Thumbnails generated here are also saved to ~/.cache/thumbnails,"
+                                                  + "<br>so that file managers and other applications can use them."
+                                                  + "<br>Nothing is saved if that directory doesn't exist.</html>");
+        list.add(desktopThumbWriteProp);
+
+        thumbCachePolicyProp = new EnumProperty<>("Thumbnails.Thumbnail caching.pregenPolicy", "Generate:",
+                                                  ThumbCachePolicy.CurrentSizeOnly);
+        thumbCachePolicyProp.setHelpText("<html>Which thumbnail sizes to generate when an image is added to the cache."
+                                                 + "<br>Sizes that aren't generated up front are created the first time"
+                                                 + "<br>they are needed, from a larger cached thumbnail if there is one.</html>");
+        list.add(thumbCachePolicyProp);
+
+        thumbCacheBackendProp = new EnumProperty<>("Thumbnails.Thumbnail caching.backend", "Storage:",
+                                                   ThumbCacheBackend.FileTree);
+        thumbCacheBackendProp.setHelpText("<html>A single pack file per directory is much faster to browse, copy,"
+                                                  + "<br>and move than many small files. Existing cached thumbnails"
+                                                  + "<br>are moved into the pack file the first time each directory is viewed."
+                                                  + "<br>Sharing stores one set of thumbnails for all copies of the same image,"
+                                                  + "<br>which saves space if you keep the same images in several places.</html>");
+        list.add(thumbCacheBackendProp);
+
         // Not currently configurable, but we can at least show the user where the cache is located:
         LabelProperty label = new LabelProperty("Thumbnails.Thumbnail caching.infoLabel",
                                                 ThumbCacheManager.CACHE_DIR.getAbsolutePath());
         label.setFieldLabelText("Cache dir:");
         list.add(label);
 
-        // There is currently no automatic cache eviction mechanism or max size limit,
-        // but we can at least offer a warning option if it starts to get too large:
-        thumbCacheSizeWarningProp = new IntegerProperty("Thumbnails.Thumbnail caching.sizeWarningThreshold",
-                                                        "Warning (MB):", 128, 0, 4096, 32);
-        thumbCacheSizeWarningProp.setHelpText("<html>If the cache exceeds this size, a warning will be logged. " +
-                                                      "<br>Set to 0 to disable the warning.</html>");
-        list.add(thumbCacheSizeWarningProp);
+        thumbCacheMaxSizeProp = new IntegerProperty("Thumbnails.Thumbnail caching.maxSize",
+                                                    "Max size (MB):", 1024, 0, 65536, 256);
+        thumbCacheMaxSizeProp.setHelpText("<html>If the cache grows past this size, thumbnails for the least" +
+                                                  "<br>recently viewed images are removed to make room." +
+                                                  "<br>Set to 0 for no limit.</html>");
+        list.add(thumbCacheMaxSizeProp);
+
+        thumbMemoryCacheSizeProp = new IntegerProperty("Thumbnails.Thumbnail caching.memoryCacheSize",
+                                                       "Memory (MB):", 64, 0, 1024, 16);
+        thumbMemoryCacheSizeProp.setHelpText("<html>Recently viewed thumbnails are kept in memory, up to this size," +
+                                                     "<br>so that revisiting a directory doesn't reload them from disk." +
+                                                     "<br>Set to 0 to disable.</html>");
+        list.add(thumbMemoryCacheSizeProp);
 
         return list;
     }
@@ -967,6 +1075,40 @@ public class AppConfig extends AppProperties<ImageViewerExtension> {
         return messageUtil;
     }
 
+    public enum ThumbCachePolicy {
+        CurrentSizeOnly("Current size only"),
+        AllSizes("All sizes"),
+        LargestPlusDerive("Largest size, derive others on demand");
+
+        private final String label;
+
+        ThumbCachePolicy(String label) {
+            this.label = label;
+        }
+
+        @Override
+        public String toString() {
+            return label;
+        }
+    }
+
+    public enum ThumbCacheBackend {
+        FileTree("One file per thumbnail"),
+        Packed("One pack file per directory"),
+        Shared("Shared between identical images");
+
+        private final String label;
+
+        ThumbCacheBackend(String label) {
+            this.label = label;
+        }
+
+        @Override
+        public String toString() {
+            return label;
+        }
+    }
+
     public enum ThumbSize {
         VerySmall("32x32", 32),
         Small("64x64", 64),
@@ -992,29 +1134,4 @@ public class AppConfig extends AppProperties<ImageViewerExtension> {
             return label;
         }
     }
-
-    public enum ThumbPageSize {
-        Unlimited(0),
-        VerySmall(5),
-        Small(10),
-        Normal(20),
-        Large(50),
-        VeryLarge(100),
-        FriggingHuge(200);
-
-        private final int size;
-
-        ThumbPageSize(int size) {
-            this.size = size;
-        }
-
-        public int getSize() {
-            return size;
-        }
-
-        @Override
-        public String toString() {
-            return Integer.toString(size);
-        }
-    }
 }
@@ -323,8 +323,8 @@ public final class ImageOperationHandler {
             }
         }
 
-        // Reload the thumbnails:
-        MainWindow.getInstance().reload();
+        // Update the thumbnails (only the ones that actually moved):
+        MainWindow.getInstance().filesChanged(imageFiles);
     }
 
     /**
@@ -823,7 +823,7 @@ public final class ImageOperationHandler {
      */
     public static void deleteAllImagesCallback(boolean allDeletedOkay) {
         MainWindow.getInstance().enableDirTree();
-        MainWindow.getInstance().reload();
+        MainWindow.getInstance().filesChanged(MainWindow.getInstance().getCurrentFileList());
 
         if (!allDeletedOkay) {
             getMessageUtil().info("Deletion problem",
@@ -0,0 +1,397 @@
+package ca.corbett.imageviewer.extensions;
+
+import ca.corbett.extras.image.ImageUtil;
+
+import java.io.File;
+import java.nio.file.FileSystems;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+import java.util.logging.Logger;
+
+/**
+ * Sorts files into the four types that ImageViewer deals with: images, companion files,
+ * known files, and aliens (see ImageViewerExtension.isCompanionFile() for what those mean).
+ * Every directory scan classifies every file it finds, so this has to be quick.
+ * <p>
+ * Whether a file is an image is decided by its file extension, so that decision is made
+ * once per extension (".jpg", ".txt", and so on) and remembered. Extensions can declare
+ * their companion and known files as name patterns (see getCompanionFilePatterns() and
+ * getKnownFilePatterns() in ImageViewerExtension). Those patterns are compiled once: plain
+ * names and simple "*.ext" patterns become hash lookups, and only anything fancier needs
+ * an actual pattern match. Extensions that don't declare patterns are asked about each
+ * directory's undecided files in one batch (see findCompanionFiles() and findKnownFiles()),
+ * rather than being asked about each file on its own.
+ * </p>
+ * <p>
+ * The compiled rules are rebuilt automatically whenever the set of enabled extensions
+ * changes. Hit counts are kept, and are available from getStatistics(). This class is thread safe.
+ * </p>
+ *
+ * @author <a href="https://github.com/scorbo2">scorbo2</a>
+ * @since ImageViewer 3.3
+ */
+public final class FileClassifier {
+
+    private static final Logger logger = Logger.getLogger(FileClassifier.class.getName());
+
+    public enum Type {
+        IMAGE, COMPANION, KNOWN, ALIEN
+    }
+
+    /**
+     * Known to the application itself, whatever extensions are enabled.
+     */
+    private static final List<String> BUILT_IN_KNOWN_PATTERNS = List.of(".00darwin-metadata");
+
+    private final Supplier<List<ImageViewerExtension>> extensionSupplier;
+    private final Map<String, Boolean> imageTypes;
+    private final AtomicLong imageLookups;
+    private final AtomicLong imageTypeHits;
+    private final AtomicLong otherLookups;
+    private final AtomicLong patternHits;
+    private final AtomicLong batchCalls;
+    private final AtomicLong batchCandidates;
+    private volatile Rules rules;
+
+    /**
+     * The results of classifying a batch of files.
+     */
+    public static final class Result {
+        private final Map<File, Type> types;
+
+        private Result(Map<File, Type> types) {
+            this.types = types;
+        }
+
+        /**
+         * Returns the type of the given file, or null if it wasn't part of this batch.
+         */
+        public Type getType(File file) {
+            return types.get(file);
+        }
+
+        public List<File> getImages() {
+            return getFiles(Type.IMAGE);
+        }
+
+        public List<File> getCompanions() {
+            return getFiles(Type.COMPANION);
+        }
+
+        public List<File> getKnown() {
+            return getFiles(Type.KNOWN);
+        }
+
+        public List<File> getAliens() {
+            return getFiles(Type.ALIEN);
+        }
+
+        /**
+         * Returns the files of the given type, in the order they were supplied.
+         */
+        public List<File> getFiles(Type type) {
+            List<File> files = new ArrayList<>();
+            for (Map.Entry<File, Type> entry : types.entrySet()) {
+                if (entry.getValue() == type) {
+                    files.add(entry.getKey());
+                }
+            }
+            return files;
+        }
+    }
+
+    FileClassifier(Supplier<List<ImageViewerExtension>> extensionSupplier) {
+        this.extensionSupplier = extensionSupplier;
+        this.imageTypes = new ConcurrentHashMap<>();
+        this.imageLookups = new AtomicLong();
+        this.imageTypeHits = new AtomicLong();
+        this.otherLookups = new AtomicLong();
+        this.patternHits = new AtomicLong();
+        this.batchCalls = new AtomicLong();
+        this.batchCandidates = new AtomicLong();
+    }
+
+    /**
+     * Classifies the given files. Files from any number of directories can be supplied;
+     * extensions that decide file by file are asked once per directory.
+     *
+     * @param files The files to classify. Assumed to be files and not directories.
+     * @return The type of each file.
+     */
+    public Result classify(List<File> files) {
+        Rules currentRules = getRules();
+        Map<File, Type> types = new LinkedHashMap<>();
+        Map<File, List<File>> undecided = new LinkedHashMap<>(); // by directory
+
+        for (File file : files) {
+            if (isImageFile(file)) {
+                types.put(file, Type.IMAGE);
+                continue;
+            }
+            otherLookups.incrementAndGet();
+            Type type = currentRules.match(file);
+            if (type != null) {
+                patternHits.incrementAndGet();
+            }
+            types.put(file, type == null ? Type.ALIEN : type);
+
+            // Anything that isn't a companion yet may still be claimed by an extension that
+            // decides file by file (companion files win out over known files):
+            boolean isCompanionPossible = type != Type.COMPANION && !currentRules.companionDeciders.isEmpty();
+            boolean isKnownPossible = type == null && !currentRules.knownDeciders.isEmpty();
+            if (isCompanionPossible || isKnownPossible) {
+                undecided.computeIfAbsent(file.getParentFile(), dir -> new ArrayList<>()).add(file);
+            }
+        }
+
+        for (Map.Entry<File, List<File>> entry : undecided.entrySet()) {
+            File dir = entry.getKey();
+            List<File> candidates = entry.getValue();
+            for (ImageViewerExtension extension : currentRules.companionDeciders) {
+                candidates = claim(candidates, extension.findCompanionFiles(dir, candidates), Type.COMPANION, types);
+            }
+            candidates.removeIf(file -> types.get(file) != Type.ALIEN);
+            for (ImageViewerExtension extension : currentRules.knownDeciders) {
+                candidates = claim(candidates, extension.findKnownFiles(dir, candidates), Type.KNOWN, types);
+            }
+        }
+
+        return new Result(types);
+    }
+
+    /**
+     * Classifies a single file. Where possible, prefer classify(List) for batches of files.
+     */
+    public Type classify(File file) {
+        return classify(List.of(file)).getType(file);
+    }
+
+    /**
+     * Reports whether the given file is an image. The answer is remembered for the
+     * file's extension, so this only consults ImageUtil once per extension.
+     */
+    public boolean isImageFile(File file) {
+        imageLookups.incrementAndGet();
+        String extension = getExtension(file.getName());
+        Boolean isImage = imageTypes.get(extension);
+        if (isImage != null) {
+            imageTypeHits.incrementAndGet();
+            return isImage;
+        }
+        isImage = ImageUtil.isImageFile(file);
+        imageTypes.put(extension, isImage);
+        return isImage;
+    }
+
+    /**
+     * Reports whether any enabled extension considers the given file a companion file,
+     * regardless of whether it's an image.
+     */
+    public boolean isCompanionFile(File file) {
+        Rules currentRules = getRules();
+        if (currentRules.companionPatterns.matches(file)) {
+            return true;
+        }
+        for (ImageViewerExtension extension : currentRules.companionDeciders) {
+            if (extension.isCompanionFile(file)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Reports whether any enabled extension (or the application itself) considers the
+     * given file a known file, regardless of whether it's an image or a companion file.
+     */
+    public boolean isKnownFile(File file) {
+        Rules currentRules = getRules();
+        if (currentRules.knownPatterns.matches(file)) {
+            return true;
+        }
+        for (ImageViewerExtension extension : currentRules.knownDeciders) {
+            if (extension.isKnownFile(file)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns a human-readable summary of how classification decisions have been made so far.
+     */
+    public String getStatistics() {
+        return String.format("image types: %d of %d from cache (%s); other files: %d of %d by pattern (%s);"
+                                     + " %d batch calls to extensions covering %d files",
+                             imageTypeHits.get(), imageLookups.get(), percent(imageTypeHits.get(), imageLookups.get()),
+                             patternHits.get(), otherLookups.get(), percent(patternHits.get(), otherLookups.get()),
+                             batchCalls.get(), batchCandidates.get());
+    }
+
+    /**
+     * Marks the candidates found by an extension as being of the given type, and returns
+     * the candidates that remain.
+     */
+    private List<File> claim(List<File> candidates, Set<File> found, Type type, Map<File, Type> types) {
+        batchCalls.incrementAndGet();
+        batchCandidates.addAndGet(candidates.size());
+        if (found == null || found.isEmpty()) {
+            return candidates;
+        }
+        List<File> remaining = new ArrayList<>();
+        for (File candidate : candidates) {
+            if (found.contains(candidate)) {
+                types.put(candidate, type);
+            }
+            else {
+                remaining.add(candidate);
+            }
+        }
+        return remaining;
+    }
+
+    /**
+     * Returns our compiled rules, rebuilding them first if the enabled extensions have changed.
+     */
+    private Rules getRules() {
+        List<ImageViewerExtension> extensions = extensionSupplier.get();
+        Rules currentRules = rules;
+        if (currentRules == null || !currentRules.extensions.equals(extensions)) {
+            currentRules = new Rules(extensions);
+            rules = currentRules;
+        }
+        return currentRules;
+    }
+
+    private static String getExtension(String name) {
+        int dot = name.lastIndexOf('.');
+        return dot < 0 ? "" : name.substring(dot + 1).toLowerCase(Locale.ROOT);
+    }
+
+    private static String percent(long count, long total) {
+        return total == 0 ? "n/a" : String.format("%.1f%%", count * 100.0 / total);
+    }
+
+    /**
+     * The compiled form of every pattern declared by the given extensions, along with the
+     * extensions that didn't declare any, and so have to be asked.
+     */
+    private static final class Rules {
+        private final List<ImageViewerExtension> extensions;
+        private final PatternSet companionPatterns;
+        private final PatternSet knownPatterns;
+        private final List<ImageViewerExtension> companionDeciders;
+        private final List<ImageViewerExtension> knownDeciders;
+
+        private Rules(List<ImageViewerExtension> extensions) {
+            this.extensions = new ArrayList<>(extensions);
+            companionPatterns = new PatternSet();
+            knownPatterns = new PatternSet();
+            companionDeciders = new ArrayList<>();
+            knownDeciders = new ArrayList<>();
+            knownPatterns.addAll(BUILT_IN_KNOWN_PATTERNS);
+            for (ImageViewerExtension extension : extensions) {
+                List<String> patterns = extension.getCompanionFilePatterns();
+                if (patterns == null) {
+                    companionDeciders.add(extension);
+                }
+                else {
+                    companionPatterns.addAll(patterns);
+                }
+                patterns = extension.getKnownFilePatterns();
+                if (patterns == null) {
+                    knownDeciders.add(extension);
+                }
+                else {
+                    knownPatterns.addAll(patterns);
+                }
+            }
+        }
+
+        /**
+         * Returns the type the given file has according to our patterns, or null if no
+         * pattern matches it. Companion patterns take precedence over known patterns.
+         */
+        private Type match(File file) {
+            if (companionPatterns.matches(file)) {
+                return Type.COMPANION;
+            }
+            return knownPatterns.matches(file) ? Type.KNOWN : null;
+        }
+    }
+
+    /**
+     * A set of case-insensitive file name patterns, sorted by how cheaply they can be matched.
+     */
+    private static final class PatternSet {
+        private final Set<String> names = new HashSet<>();
+        private final Set<String> extensions = new HashSet<>();
+        private final List<PathMatcher> matchers = new ArrayList<>();
+
+        private void addAll(List<String> patterns) {
+            for (String pattern : patterns) {
+                String lowerPattern = pattern.toLowerCase(Locale.ROOT);
+                if (!hasWildcards(lowerPattern)) {
+                    names.add(lowerPattern);
+                }
+                else if (lowerPattern.startsWith("*.") && isPlainExtension(lowerPattern.substring(2))) {
+                    extensions.add(lowerPattern.substring(2));
+                }
+                else {
+                    try {
+                        matchers.add(FileSystems.getDefault().getPathMatcher("glob:" + lowerPattern));
+                    }
+                    catch (IllegalArgumentException e) {
+                        logger.warning("Ignoring invalid file pattern \"" + pattern + "\": " + e.getMessage());
+                    }
+                }
+            }
+        }
+
+        private boolean matches(File file) {
+            String lowerName = file.getName().toLowerCase(Locale.ROOT);
+            if (names.contains(lowerName) || extensions.contains(getExtension(lowerName))) {
+                return true;
+            }
+            if (matchers.isEmpty()) {
+                return false;
+            }
+            try {
+                Path name = Path.of(lowerName);
+                for (PathMatcher matcher : matchers) {
+                    if (matcher.matches(name)) {
+                        return true;
+                    }
+                }
+            }
+            catch (InvalidPathException ignored) {
+                // Can't be matched, so it doesn't match.
+            }
+            return false;
+        }
+
+        private static boolean hasWildcards(String pattern) {
+            for (char c : pattern.toCharArray()) {
+                if ("*?[]{}\\".indexOf(c) >= 0) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private static boolean isPlainExtension(String extension) {
+            return !extension.isEmpty() && !hasWildcards(extension) && extension.indexOf('.') < 0;
+        }
+    }
+}
@@ -13,7 +13,9 @@ import javax.swing.JComponent;
 import javax.swing.JPanel;
 import java.awt.image.BufferedImage;
 import java.io.File;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 
 /**
  * The starting point for ImageViewer extensions. Extend this adapter class and place the
@@ -201,6 +203,17 @@ public abstract class ImageViewerExtension extends AppExtension {
     public void thumbPanelCreated(ThumbPanel thumbPanel) {
     }
 
+    /**
+     * Informational message sent out when a ThumbPanel is about to be discarded, for example
+     * because it has scrolled well out of view. Extensions can use this to let go of anything
+     * they were keeping for it. If its image scrolls back into view, a new ThumbPanel is
+     * created for it, and thumbPanelCreated() is sent out again.
+     *
+     * @param thumbPanel The ThumbPanel that's being discarded.
+     */
+    public void thumbPanelDisposed(ThumbPanel thumbPanel) {
+    }
+
     /**
      * Invoked when a ThumbPanel is selected or deselected. This method is invoked after
      * the selection is changed, so isSelected describes the new state.
@@ -280,6 +293,77 @@ public abstract class ImageViewerExtension extends AppExtension {
         return false;
     }
 
+    /**
+     * Optionally, declares which files this extension considers to be companion files, as a
+     * list of file name patterns in glob syntax (for example "*.json", or "*.meta.txt").
+     * Patterns are matched against the file name only, ignoring case.
+     * <p>
+     * This is much faster than deciding one file at a time, because the application can
+     * then classify most files without consulting extensions at all (see FileClassifier).
+     * If patterns are declared, they are taken to be the complete rule, and isCompanionFile()
+     * and findCompanionFiles() will not be invoked to classify files. The default return is
+     * null, meaning that no patterns are declared, and findCompanionFiles() is used instead.
+     * </p>
+     *
+     * @return A list of glob patterns (may be empty), or null to decide file by file.
+     */
+    public List<String> getCompanionFilePatterns() {
+        return null;
+    }
+
+    /**
+     * Optionally, declares which files this extension considers to be known files, as a list
+     * of file name patterns. This works just like getCompanionFilePatterns(), except that
+     * isKnownFile() and findKnownFiles() are the methods that are no longer needed.
+     *
+     * @return A list of glob patterns (may be empty), or null to decide file by file.
+     */
+    public List<String> getKnownFilePatterns() {
+        return null;
+    }
+
+    /**
+     * Given a batch of candidate files from a single directory, returns the ones that this
+     * extension considers to be companion files. Extensions that can't express their rules
+     * as patterns, but that can do the work more efficiently for a whole directory at once
+     * (reading a manifest file once instead of once per candidate, say), can override this.
+     * The default implementation invokes isCompanionFile() for each candidate. This is not
+     * invoked if getCompanionFilePatterns() returns non-null.
+     *
+     * @param directory  The directory containing the candidates.
+     * @param candidates Files from that directory, none of which are images.
+     * @return The candidates that are companion files (may be empty).
+     */
+    public Set<File> findCompanionFiles(File directory, List<File> candidates) {
+        Set<File> companions = new HashSet<>();
+        for (File candidate : candidates) {
+            if (isCompanionFile(candidate)) {
+                companions.add(candidate);
+            }
+        }
+        return companions;
+    }
+
+    /**
+     * Given a batch of candidate files from a single directory, returns the ones that this
+     * extension considers to be known files. This works just like findCompanionFiles(), and
+     * the default implementation invokes isKnownFile() for each candidate. This is not
+     * invoked if getKnownFilePatterns() returns non-null.
+     *
+     * @param directory  The directory containing the candidates.
+     * @param candidates Files from that directory, none of which are images or companion files.
+     * @return The candidates that are known files (may be empty).
+     */
+    public Set<File> findKnownFiles(File directory, List<File> candidates) {
+        Set<File> known = new HashSet<>();
+        for (File candidate : candidates) {
+            if (isKnownFile(candidate)) {
+                known.add(candidate);
+            }
+        }
+        return known;
+    }
+
     /**
      * Invoked when the application is building the main ImagePanel display - there are four
      * positions for extra components that can go around the main image panel, indicated by the
@@ -9,6 +9,8 @@ import ca.corbett.imageviewer.ImageOperation;
 import ca.corbett.imageviewer.Version;
 import ca.corbett.imageviewer.ui.ImageInstance;
 import ca.corbett.imageviewer.ui.MainWindow;
+import ca.corbett.imageviewer.ui.ThumbCacheManager;
+import ca.corbett.imageviewer.ui.ThumbMemoryCache;
 import ca.corbett.imageviewer.ui.ThumbPanel;
 
 import javax.swing.AbstractAction;
@@ -31,7 +33,10 @@ public class ImageViewerExtensionManager extends ExtensionManager<ImageViewerExt
 
     private static ImageViewerExtensionManager instance;
 
+    private final FileClassifier fileClassifier;
+
     private ImageViewerExtensionManager() {
+        fileClassifier = new FileClassifier(this::getEnabledLoadedExtensions);
     }
 
     public static ImageViewerExtensionManager getInstance() {
@@ -130,11 +135,15 @@ public class ImageViewerExtensionManager extends ExtensionManager<ImageViewerExt
     /**
      * Any extension that had cached a thumbnail for the given image file should discard it.
      * This is invoked in cases where the image has changed in-place, so any cached thumbnail
-     * is no longer valid.
+     * is no longer valid. The application's own thumbnail caches (in memory and on disk)
+     * are invalidated here as well. They would notice the change on their own, but only
+     * if the image's modification time or length actually changed.
      *
      * @param imageFile The image file in question.
      */
     public void removeThumbnail(File imageFile) {
+        ThumbMemoryCache.getInstance().remove(imageFile);
+        ThumbCacheManager.remove(imageFile);
         for (ImageViewerExtension extension : getEnabledLoadedExtensions()) {
             extension.removeThumbnail(imageFile);
         }
@@ -332,6 +341,20 @@ public class ImageViewerExtensionManager extends ExtensionManager<ImageViewerExt
         }
     }
 
+    /**
+     * Informational message sent out when a ThumbPanel is about to be discarded, for example
+     * because it has scrolled well out of view. Extensions can use this to let go of anything
+     * they were keeping for it. If its image scrolls back into view, a new ThumbPanel is
+     * created for it, and thumbPanelCreated() is sent out again.
+     *
+     * @param thumbPanel The ThumbPanel that's being discarded.
+     */
+    public void thumbPanelDisposed(ThumbPanel thumbPanel) {
+        for (ImageViewerExtension extension : getEnabledLoadedExtensions()) {
+            extension.thumbPanelDisposed(thumbPanel);
+        }
+    }
+
     /**
      * Invoked when a ThumbPanel is selected or deselected. This method is invoked after
      * the selection is changed, so isSelected describes the new state.
@@ -383,12 +406,7 @@ public class ImageViewerExtensionManager extends ExtensionManager<ImageViewerExt
      * @return true if the extension recognizes the file, false otherwise (default false).
      */
     public boolean isCompanionFile(File candidateFile) {
-        for (ImageViewerExtension extension : getEnabledLoadedExtensions()) {
-            if (extension.isCompanionFile(candidateFile)) {
-                return true; // first extension that says yes, we're done
-            }
-        }
-        return false;
+        return fileClassifier.isCompanionFile(candidateFile);
     }
 
     /**
@@ -425,19 +443,20 @@ public class ImageViewerExtensionManager extends ExtensionManager<ImageViewerExt
      * @return true if any extension recognizes the file, false otherwise (default false).
      */
     public boolean isKnownFile(File candidateFile) {
-        // We'll hard-code one application-level "known" file, at least
+        // This includes one application-level "known" file (.00darwin-metadata), at least
         // until Darwin has its own ImageViewer extension...
-        if (".00darwin-metadata".equals(candidateFile.getName())) {
-            return true;
-        }
+        return fileClassifier.isKnownFile(candidateFile);
+    }
 
-        // For everything else, we'll defer to our enabled extensions:
-        for (ImageViewerExtension extension : getEnabledLoadedExtensions()) {
-            if (extension.isKnownFile(candidateFile)) {
-                return true; // first extension that says yes, we're done
-            }
-        }
-        return false;
+    /**
+     * Returns the FileClassifier, which sorts files into images, companion files, known files,
+     * and aliens, according to our enabled extensions. When classifying many files, this is
+     * much faster than asking isCompanionFile() and isKnownFile() about each one.
+     *
+     * @return The FileClassifier.
+     */
+    public FileClassifier getFileClassifier() {
+        return fileClassifier;
     }
 
     /**
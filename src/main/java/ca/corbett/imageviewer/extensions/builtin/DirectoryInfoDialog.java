@@ -1,6 +1,5 @@
 package ca.corbett.imageviewer.extensions.builtin;
 
-import ca.corbett.extras.image.ImageUtil;
 import ca.corbett.extras.io.FileSystemUtil;
 import ca.corbett.extras.progress.MultiProgressDialog;
 import ca.corbett.extras.progress.SimpleProgressWorker;
@@ -8,7 +7,9 @@ import ca.corbett.forms.Alignment;
 import ca.corbett.forms.FormPanel;
 import ca.corbett.forms.fields.CheckBoxField;
 import ca.corbett.forms.fields.LabelField;
+import ca.corbett.imageviewer.extensions.FileClassifier;
 import ca.corbett.imageviewer.extensions.ImageViewerExtensionManager;
+import ca.corbett.imageviewer.ui.DirectorySnapshot;
 
 import javax.swing.BorderFactory;
 import javax.swing.JButton;
@@ -20,7 +21,10 @@ import java.awt.Dimension;
 import java.awt.FlowLayout;
 import java.awt.Frame;
 import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
@@ -145,27 +149,40 @@ public class DirectoryInfoDialog extends JDialog {
             companionSizeTotal = 0;
             alienSizeTotal = 0;
 
-            ImageViewerExtensionManager extManager = ImageViewerExtensionManager.getInstance();
-            List<File> allFiles = FileSystemUtil.findFiles(dir, recursive);
+            // The sizes come back with the directory listing, so each file is only visited once:
+            List<DirectorySnapshot.Entry> allFiles;
+            try {
+                allFiles = DirectorySnapshot.scan(dir, recursive).getEntries();
+            }
+            catch (IOException ioe) {
+                log.log(Level.WARNING, "Unable to scan " + dir.getAbsolutePath() + ": " + ioe.getMessage(), ioe);
+                allFiles = new ArrayList<>();
+            }
             fireProgressBegins(allFiles.size());
 
             try {
+                // Figure out what everything is in one go, so extensions are only asked once per directory:
+                FileClassifier classifier = ImageViewerExtensionManager.getInstance().getFileClassifier();
+                FileClassifier.Result types = classifier.classify(allFiles.stream()
+                                                                          .map(DirectorySnapshot.Entry::getFile)
+                                                                          .toList());
                 for (int i = 0; i < allFiles.size(); i++) {
-                    File candidate = allFiles.get(i);
+                    FileClassifier.Type type = types.getType(allFiles.get(i).getFile());
+                    long candidateSize = allFiles.get(i).getSize();
 
-                    // Figure out what it is and how big it is:
-                    if (ImageUtil.isImageFile(candidate)) { // it's an image, we're fine
+                    // Figure out how big it is:
+                    if (type == FileClassifier.Type.IMAGE) { // it's an image, we're fine
                         imageCount++;
-                        imageSizeTotal += candidate.length();
+                        imageSizeTotal += candidateSize;
                     }
-                    else if (extManager.isCompanionFile(candidate)) { // companion files are also fine
+                    else if (type == FileClassifier.Type.COMPANION) { // companion files are also fine
                         companionCount++;
-                        companionSizeTotal += candidate.length();
+                        companionSizeTotal += candidateSize;
                     }
-                    else if (!extManager.isKnownFile(candidate)) { // ignore known files
+                    else if (type == FileClassifier.Type.ALIEN) { // ignore known files
                         // If we get here, we don't know what it is, so count it as an "alien" file:
                         alienCount++;
-                        alienSizeTotal += candidate.length();
+                        alienSizeTotal += candidateSize;
                     }
 
                     // Update progress
@@ -0,0 +1,494 @@
+package ca.corbett.imageviewer.ui;
+
+import ca.corbett.extras.io.FileSystemUtil;
+import ca.corbett.imageviewer.AppConfig;
+import org.apache.commons.io.FileUtils;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A thumbnail cache backend that stores thumbnails by the content of the source image
+ * rather than by its location, so that identical images anywhere in the library share
+ * one set of thumbnails. This is a big saving for libraries that keep copies of the
+ * same images in several curated directories.
+ * <p>
+ * Thumbnails themselves live in a content store under the cache dir, named for a hash
+ * of the source image contents and the thumbnail size:
+ * <blockquote>
+ * CACHE_DIR/.shared/3f/3f7a...c2_80.thumb
+ * </blockquote>
+ * <p>
+ * Each source directory then gets a small index file in the usual mirrored directory
+ * hierarchy, which maps the name of each image in that directory to its content hash,
+ * along with the SourceStamp of the image at the time it was hashed:
+ * <blockquote>
+ * CACHE_DIR/some/path/thumbnails.idx
+ * </blockquote>
+ * <p>
+ * Alongside the thumbnails for each hash is a list of every source image that refers
+ * to it. That list serves as the reference count: when the last image referring to a
+ * hash is removed, its thumbnails are deleted. Copying, moving, or symlinking an image
+ * (or a whole directory of them) is then just a matter of updating index entries and
+ * reference lists; no thumbnail data is copied. The source image is only hashed when
+ * a thumbnail is written for a version of it that we haven't hashed before. The whole
+ * of the image goes into its hash (see hash()), since uncompressed formats like BMP or
+ * TIFF can easily have images of the same size that differ only in the middle.
+ * </p>
+ * <p>
+ * Cache size and statistics are still counted per source image, so a thumbnail shared
+ * by several images is counted once for each of them. The maximum cache size is
+ * therefore a conservative limit with this backend; the actual usage on disk is lower.
+ * </p>
+ *
+ * @author <a href="https://github.com/scorbo2">scorbo2</a>
+ * @since ImageViewer 3.3
+ */
+final class ContentAddressedThumbStore implements ThumbStore {
+
+    private static final Logger logger = Logger.getLogger(ContentAddressedThumbStore.class.getName());
+
+    static final String INDEX_FILENAME = "thumbnails.idx";
+    static final String CONTENT_DIRNAME = ".shared";
+    private static final String THUMB_EXTENSION = ".thumb";
+    private static final String REFS_EXTENSION = ".refs";
+
+    /**
+     * We keep this many directory indexes in memory; the least recently used is dropped after that.
+     */
+    private static final int MAX_LOADED_INDEXES = 32;
+
+    private final File cacheDir;
+    private final File contentDir;
+    private final FileTreeThumbStore mirror;
+    private final LinkedHashMap<File, Map<String, IndexEntry>> loadedIndexes;
+
+    ContentAddressedThumbStore(File cacheDir, FileTreeThumbStore mirror) {
+        this.cacheDir = cacheDir;
+        this.contentDir = new File(cacheDir, CONTENT_DIRNAME);
+        this.mirror = mirror;
+        this.loadedIndexes = new LinkedHashMap<>(MAX_LOADED_INDEXES * 2, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<File, Map<String, IndexEntry>> eldest) {
+                return size() > MAX_LOADED_INDEXES; // they're saved on every change, so just drop it
+            }
+        };
+    }
+
+    @Override
+    public Entry read(File srcFile, int size) throws IOException {
+        IndexEntry entry;
+        synchronized (this) {
+            entry = getIndex(getParentDir(srcFile)).get(srcFile.getName());
+        }
+        if (entry == null) {
+            return null;
+        }
+        File thumbFile = getThumbFile(entry.hash, size);
+        if (!thumbFile.exists()) {
+            return null;
+        }
+        BufferedImage thumb = ImageIO.read(thumbFile);
+        return thumb == null ? null : new Entry(thumb, entry.stamp);
+    }
+
+    @Override
+    public SourceStamp readStamp(File srcFile, int size) {
+        IndexEntry entry;
+        synchronized (this) {
+            entry = getIndex(getParentDir(srcFile)).get(srcFile.getName());
+        }
+        return entry != null && getThumbFile(entry.hash, size).exists() ? entry.stamp : null;
+    }
+
+    /**
+     * If some other image with the same contents already has a thumbnail at this size,
+     * the given thumbnail is discarded and that one is shared instead.
+     */
+    @Override
+    public long write(File srcFile, int size, BufferedImage thumb, SourceStamp stamp) throws IOException {
+        File srcDir = getParentDir(srcFile);
+        IndexEntry entry;
+        synchronized (this) {
+            entry = getIndex(srcDir).get(srcFile.getName());
+        }
+        if (entry == null || !entry.stamp.equals(stamp)) {
+            // Hash outside of the lock; this reads the whole source image:
+            entry = new IndexEntry(hash(srcFile), stamp);
+            if (!stamp.equals(SourceStamp.of(srcFile))) {
+                throw new IOException("Image changed while its thumbnail was being cached: "
+                                              + srcFile.getAbsolutePath());
+            }
+        }
+
+        // Encode and write outside of the lock too, unless it's already there to be shared.
+        // Only putting the finished file in place has to be done under the lock, since that
+        // has to agree with the reference list:
+        File thumbFile = getThumbFile(entry.hash, size);
+        File tempFile = new File(thumbFile.getParentFile(),
+                                 thumbFile.getName() + "." + Thread.currentThread().getId() + ".tmp");
+        try {
+            if (!thumbFile.exists()) {
+                writeTempFile(tempFile, thumb);
+            }
+            synchronized (this) {
+                putEntry(srcDir, srcFile.getName(), entry);
+                if (!thumbFile.exists()) {
+                    if (!tempFile.exists()) {
+                        writeTempFile(tempFile, thumb); // the last image sharing it went away just now
+                    }
+                    Files.move(tempFile.toPath(), thumbFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                }
+                return thumbFile.length();
+            }
+        }
+        finally {
+            FileUtils.deleteQuietly(tempFile); // if it turned out not to be needed
+        }
+    }
+
+    @Override
+    public long sizeOf(File srcFile, int size) {
+        IndexEntry entry;
+        synchronized (this) {
+            entry = getIndex(getParentDir(srcFile)).get(srcFile.getName());
+        }
+        return entry == null ? 0 : getThumbFile(entry.hash, size).length(); // zero if it doesn't exist
+    }
+
+    @Override
+    public synchronized void remove(File srcFile) {
+        File srcDir = getParentDir(srcFile);
+        Map<String, IndexEntry> index = getIndex(srcDir);
+        IndexEntry entry = index.remove(srcFile.getName());
+        if (entry != null) {
+            saveIndex(srcDir, index);
+            removeReference(entry.hash, srcFile);
+        }
+    }
+
+    @Override
+    public synchronized void copy(File srcFile, File destFile, SourceStamp destStamp, boolean removeOriginal) {
+        IndexEntry entry = getIndex(getParentDir(srcFile)).get(srcFile.getName());
+        if (entry == null) {
+            return;
+        }
+        if (destStamp != null) {
+            entry = new IndexEntry(entry.hash, destStamp);
+        }
+        putEntry(getParentDir(destFile), destFile.getName(), entry);
+        if (removeOriginal) {
+            remove(srcFile);
+        }
+    }
+
+    /**
+     * Only the index files are copied or moved here. The reference list for every
+     * image they mention is updated to match.
+     */
+    @Override
+    public synchronized void copyDirectory(File srcDir, File destDir, boolean removeOriginal) {
+        File mirrorSrcDir = mirror.getMirrorDirectory(srcDir);
+        if (!mirrorSrcDir.exists()) {
+            return;
+        }
+        String mirrorSrcPath = mirrorSrcDir.getAbsolutePath();
+        for (File indexFile : FileSystemUtil.findFiles(mirrorSrcDir, true, "idx")) {
+            File fromDir = mirror.getSourceDirectory(indexFile.getParentFile());
+            if (fromDir == null) {
+                continue;
+            }
+            String relativePath = indexFile.getParentFile().getAbsolutePath().substring(mirrorSrcPath.length());
+            File toDir = new File(destDir.getAbsolutePath() + relativePath);
+            for (Map.Entry<String, IndexEntry> entry : new ArrayList<>(getIndex(fromDir).entrySet())) {
+                putEntry(toDir, entry.getKey(), entry.getValue());
+                if (removeOriginal) {
+                    remove(new File(fromDir, entry.getKey()));
+                }
+            }
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        loadedIndexes.clear();
+    }
+
+    /**
+     * Every image in every index is reported with the size of each of its thumbnails,
+     * whether or not those thumbnails are shared with other images.
+     */
+    @Override
+    public void forEachThumbnail(Visitor visitor) {
+        visitThumbnails(cacheDir, true, visitor);
+    }
+
+    @Override
+    public void forEachThumbnail(File srcDir, boolean isRecursive, Visitor visitor) {
+        visitThumbnails(mirror.getMirrorDirectory(srcDir), isRecursive, visitor);
+    }
+
+    private void visitThumbnails(File dir, boolean isRecursive, Visitor visitor) {
+        if (!dir.isDirectory()) {
+            return;
+        }
+        for (File indexFile : FileSystemUtil.findFiles(dir, isRecursive, "idx")) {
+            File srcDir = mirror.getSourceDirectory(indexFile.getParentFile());
+            if (srcDir == null) {
+                continue;
+            }
+            Map<String, IndexEntry> index;
+            synchronized (this) {
+                index = new LinkedHashMap<>(getIndex(srcDir));
+            }
+            for (Map.Entry<String, IndexEntry> entry : index.entrySet()) {
+                for (AppConfig.ThumbSize size : AppConfig.ThumbSize.values()) {
+                    File thumbFile = getThumbFile(entry.getValue().hash, size.getDimensions());
+                    long bytes = thumbFile.length(); // zero if it doesn't exist
+                    if (bytes > 0) {
+                        visitor.visit(new File(srcDir, entry.getKey()), size.getDimensions(), bytes,
+                                      indexFile.lastModified());
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Adds or replaces the index entry for the given image, and updates reference lists
+     * to match. Must be invoked while holding our lock.
+     */
+    private void putEntry(File srcDir, String name, IndexEntry entry) {
+        Map<String, IndexEntry> index = getIndex(srcDir);
+        IndexEntry previous = index.put(name, entry);
+        if (entry.equals(previous)) {
+            return;
+        }
+        saveIndex(srcDir, index);
+        File srcFile = new File(srcDir, name);
+        if (previous != null && !previous.hash.equals(entry.hash)) {
+            removeReference(previous.hash, srcFile);
+        }
+        addReference(entry.hash, srcFile);
+    }
+
+    /**
+     * Returns the index for the given source directory, loading it if needed. The returned
+     * map is live; changes must be followed by saveIndex(). Must be invoked while holding our lock.
+     */
+    private Map<String, IndexEntry> getIndex(File srcDir) {
+        Map<String, IndexEntry> index = loadedIndexes.get(srcDir);
+        if (index != null) {
+            return index;
+        }
+        index = new LinkedHashMap<>();
+        File indexFile = getIndexFile(srcDir);
+        if (indexFile.exists()) {
+            Properties props = new Properties();
+            try (InputStream in = new FileInputStream(indexFile)) {
+                props.load(in);
+                for (String name : props.stringPropertyNames()) {
+                    IndexEntry entry = IndexEntry.parse(props.getProperty(name));
+                    if (entry != null) {
+                        index.put(name, entry);
+                    }
+                }
+            }
+            catch (IOException | IllegalArgumentException e) {
+                logger.log(Level.WARNING, "Unable to read thumbnail index " + indexFile.getAbsolutePath(), e);
+            }
+        }
+        loadedIndexes.put(srcDir, index);
+        return index;
+    }
+
+    private void saveIndex(File srcDir, Map<String, IndexEntry> index) {
+        File indexFile = getIndexFile(srcDir);
+        if (index.isEmpty()) {
+            FileUtils.deleteQuietly(indexFile);
+            return;
+        }
+        Properties props = new Properties();
+        for (Map.Entry<String, IndexEntry> entry : index.entrySet()) {
+            props.setProperty(entry.getKey(), entry.getValue().toString());
+        }
+        indexFile.getParentFile().mkdirs();
+        try (OutputStream out = new FileOutputStream(indexFile)) {
+            props.store(out, null);
+        }
+        catch (IOException ioe) {
+            logger.log(Level.SEVERE, "Unable to write thumbnail index " + indexFile.getAbsolutePath(), ioe);
+        }
+    }
+
+    private void addReference(String hash, File srcFile) {
+        Set<String> refs = loadReferences(hash);
+        if (refs.add(srcFile.getAbsolutePath())) {
+            saveReferences(hash, refs);
+        }
+    }
+
+    /**
+     * Drops the given image from the reference list for the given hash. If nothing
+     * refers to that hash any more, its thumbnails are deleted.
+     */
+    private void removeReference(String hash, File srcFile) {
+        Set<String> refs = loadReferences(hash);
+        if (!refs.remove(srcFile.getAbsolutePath())) {
+            return;
+        }
+        if (!refs.isEmpty()) {
+            saveReferences(hash, refs);
+            return;
+        }
+        logger.log(Level.FINE, "Deleting shared thumbnails {0}; nothing refers to them any more.", hash);
+        for (AppConfig.ThumbSize size : AppConfig.ThumbSize.values()) {
+            FileUtils.deleteQuietly(getThumbFile(hash, size.getDimensions()));
+        }
+        FileUtils.deleteQuietly(getReferencesFile(hash));
+    }
+
+    private Set<String> loadReferences(String hash) {
+        Set<String> refs = new LinkedHashSet<>();
+        File refsFile = getReferencesFile(hash);
+        if (refsFile.exists()) {
+            try {
+                for (String line : Files.readAllLines(refsFile.toPath(), StandardCharsets.UTF_8)) {
+                    if (!line.isEmpty()) {
+                        refs.add(line);
+                    }
+                }
+            }
+            catch (IOException ioe) {
+                logger.log(Level.WARNING, "Unable to read thumbnail references " + refsFile.getAbsolutePath(), ioe);
+            }
+        }
+        return refs;
+    }
+
+    private void saveReferences(String hash, Set<String> refs) {
+        File refsFile = getReferencesFile(hash);
+        refsFile.getParentFile().mkdirs();
+        try {
+            Files.write(refsFile.toPath(), refs, StandardCharsets.UTF_8);
+        }
+        catch (IOException ioe) {
+            logger.log(Level.SEVERE, "Unable to write thumbnail references " + refsFile.getAbsolutePath(), ioe);
+        }
+    }
+
+    private File getIndexFile(File srcDir) {
+        return new File(mirror.getMirrorDirectory(srcDir), INDEX_FILENAME);
+    }
+
+    private File getThumbFile(String hash, int size) {
+        return new File(new File(contentDir, hash.substring(0, 2)), hash + "_" + size + THUMB_EXTENSION);
+    }
+
+    private File getReferencesFile(String hash) {
+        return new File(new File(contentDir, hash.substring(0, 2)), hash + REFS_EXTENSION);
+    }
+
+    private static void writeTempFile(File tempFile, BufferedImage thumb) throws IOException {
+        tempFile.getParentFile().mkdirs();
+        Files.write(tempFile.toPath(), ThumbStore.encodeJpeg(thumb));
+    }
+
+    private static File getParentDir(File srcFile) {
+        return srcFile.getAbsoluteFile().getParentFile();
+    }
+
+    /**
+     * Hashes the entire contents of the given file. This is only done when a thumbnail is
+     * being written, which has just read and decoded the whole image anyway, so the read
+     * is usually served from the operating system's file cache.
+     *
+     * @param file The file to hash.
+     * @return The hash as a hex string.
+     * @throws IOException If the file can't be read.
+     */
+    static String hash(File file) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-1");
+        }
+        catch (NoSuchAlgorithmException e) {
+            throw new IOException("No SHA-1 support", e); // every JRE is required to have it
+        }
+        try (InputStream in = new FileInputStream(file)) {
+            byte[] buffer = new byte[64 * 1024];
+            int count;
+            while ((count = in.read(buffer)) > 0) {
+                digest.update(buffer, 0, count);
+            }
+        }
+        StringBuilder sb = new StringBuilder();
+        for (byte b : digest.digest()) {
+            sb.append(String.format("%02x", b));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * An index entry: the content hash of a source image, and the stamp of the version
+     * of the image that was hashed.
+     */
+    private static final class IndexEntry {
+        final String hash;
+        final SourceStamp stamp;
+
+        IndexEntry(String hash, SourceStamp stamp) {
+            this.hash = hash;
+            this.stamp = stamp;
+        }
+
+        /**
+         * Parses an entry as written by toString(), or returns null if it's malformed.
+         */
+        static IndexEntry parse(String value) {
+            String[] parts = value.split(",");
+            if (parts.length != 3 || parts[0].length() < 2) {
+                return null;
+            }
+            return new IndexEntry(parts[0], new SourceStamp(Long.parseLong(parts[1]), Long.parseLong(parts[2])));
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof IndexEntry)) {
+                return false;
+            }
+            IndexEntry other = (IndexEntry)o;
+            return hash.equals(other.hash) && stamp.equals(other.stamp);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * hash.hashCode() + stamp.hashCode();
+        }
+
+        @Override
+        public String toString() {
+            return hash + "," + stamp.getLastModified() + "," + stamp.getLength();
+        }
+    }
+}
@@ -0,0 +1,180 @@
+package ca.corbett.imageviewer.ui;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+
+/**
+ * Remembers the results of the last few directory scans, so that going back to a directory
+ * we've just looked at doesn't mean scanning it all over again. Each listing holds the
+ * sorted images, the aliens, and the DirectorySnapshot from the scan.
+ * <p>
+ * A listing is only handed out if the directory's last modified time is still what it was
+ * when the directory was scanned. Adding, removing, or renaming a file changes that time,
+ * so this is a single stat that tells us whether the listing is still accurate. There's a
+ * catch: file systems only record that time to a certain granularity (two seconds, for FAT),
+ * so a change made very shortly before the scan might not have moved it. A listing whose
+ * directory was modified within RACY_WINDOW_MS of the scan is therefore not trusted.
+ * </p>
+ * <p>
+ * Note that modifying a file in place doesn't change the directory's last modified time,
+ * so the attributes in a cached snapshot can be out of date even when the listing isn't.
+ * Thumbnails are unaffected by this, as they are validated against the files themselves.
+ * </p>
+ * <p>
+ * The cache is bounded both by directory count and by the total number of files held,
+ * and the least recently used listings are discarded first. This class is thread safe.
+ * </p>
+ *
+ * @author <a href="https://github.com/scorbo2">scorbo2</a>
+ * @since ImageViewer 3.3
+ */
+public final class DirectoryListingCache {
+
+    private static final Logger logger = Logger.getLogger(DirectoryListingCache.class.getName());
+
+    /**
+     * A directory modified this close to (or after) the start of its scan may have changed
+     * without its last modified time showing it, so its listing isn't trusted.
+     */
+    static final long RACY_WINDOW_MS = 2000;
+
+    private static final int MAX_DIRECTORIES = 16;
+    private static final int MAX_TOTAL_FILES = 100_000;
+
+    private static DirectoryListingCache instance;
+
+    private final int maxDirectories;
+    private final int maxTotalFiles;
+    private final LinkedHashMap<File, Listing> listings;
+    private int totalFiles;
+
+    /**
+     * The results of a single directory scan.
+     */
+    public static final class Listing {
+        private final DirectorySnapshot snapshot;
+        private final List<File> images;
+        private final List<File> aliens;
+
+        private Listing(DirectorySnapshot snapshot, List<File> images, List<File> aliens) {
+            this.snapshot = snapshot;
+            this.images = Collections.unmodifiableList(new ArrayList<>(images));
+            this.aliens = Collections.unmodifiableList(new ArrayList<>(aliens));
+        }
+
+        public DirectorySnapshot getSnapshot() {
+            return snapshot;
+        }
+
+        /**
+         * Returns the images in this directory, sorted. This list is unmodifiable.
+         */
+        public List<File> getImages() {
+            return images;
+        }
+
+        /**
+         * Returns the alien files in this directory, sorted. This list is unmodifiable.
+         */
+        public List<File> getAliens() {
+            return aliens;
+        }
+    }
+
+    DirectoryListingCache(int maxDirectories, int maxTotalFiles) {
+        this.maxDirectories = maxDirectories;
+        this.maxTotalFiles = maxTotalFiles;
+        this.listings = new LinkedHashMap<>(maxDirectories * 2, 0.75f, true); // access-order, for LRU
+    }
+
+    public static DirectoryListingCache getInstance() {
+        if (instance == null) {
+            instance = new DirectoryListingCache(MAX_DIRECTORIES, MAX_TOTAL_FILES);
+        }
+        return instance;
+    }
+
+    /**
+     * Returns the cached listing for the given directory, provided the directory hasn't
+     * changed since it was scanned. A stale listing is discarded.
+     *
+     * @param dir The directory in question.
+     * @return The listing for that directory, or null if we don't have a current one.
+     */
+    public synchronized Listing get(File dir) {
+        File key = dir.getAbsoluteFile();
+        Listing listing = listings.get(key);
+        if (listing == null) {
+            return null;
+        }
+        if (dir.lastModified() != listing.getSnapshot().getDirectoryLastModified()) {
+            logger.fine("Directory listing is stale: " + key.getAbsolutePath());
+            remove(key);
+            return null;
+        }
+        return listing;
+    }
+
+    /**
+     * Remembers the results of a completed, non-recursive directory scan. Listings that
+     * can't be trusted later (see class comment), or that are too large for the cache,
+     * are quietly ignored.
+     *
+     * @param snapshot The snapshot taken during the scan.
+     * @param images   The images found, sorted.
+     * @param aliens   The alien files found, sorted.
+     */
+    public synchronized void put(DirectorySnapshot snapshot, List<File> images, List<File> aliens) {
+        File key = snapshot.getDirectory().getAbsoluteFile();
+        remove(key);
+        if (snapshot.isRecursive()
+                || snapshot.size() > maxTotalFiles
+                || snapshot.getDirectoryLastModified() > snapshot.getScanTime() - RACY_WINDOW_MS) {
+            return;
+        }
+
+        listings.put(key, new Listing(snapshot, images, aliens));
+        totalFiles += snapshot.size();
+
+        // Discard the least recently used listings until we're back within our limits:
+        Iterator<Map.Entry<File, Listing>> iterator = listings.entrySet().iterator();
+        while (listings.size() > maxDirectories || totalFiles > maxTotalFiles) {
+            totalFiles -= iterator.next().getValue().getSnapshot().size();
+            iterator.remove();
+        }
+    }
+
+    /**
+     * Discards the listing for the given directory, if we have one.
+     */
+    public synchronized void invalidate(File dir) {
+        remove(dir.getAbsoluteFile());
+    }
+
+    /**
+     * Discards all listings. This is needed whenever the rules for what counts as an image,
+     * a companion file, or a known file may have changed (when extensions are enabled or
+     * disabled, for example).
+     */
+    public synchronized void clear() {
+        listings.clear();
+        totalFiles = 0;
+    }
+
+    synchronized int size() {
+        return listings.size();
+    }
+
+    private void remove(File key) {
+        Listing listing = listings.remove(key);
+        if (listing != null) {
+            totalFiles -= listing.getSnapshot().size();
+        }
+    }
+}
@@ -0,0 +1,285 @@
+package ca.corbett.imageviewer.ui;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileVisitOption;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * An immutable record of the files in a directory, along with the basic attributes of each
+ * one (size, last modified time, type, and file key), as of when the directory was scanned.
+ * <p>
+ * The point is to touch each file only once. A scan is a single walk of the directory,
+ * during which the attributes of each entry come back with the entry itself, so no
+ * separate stat is needed for any of them. Anything that later wants to know how big
+ * a file is, or when it was last modified, can look it up here instead of going back to
+ * the file system. ThumbContainerPanel keeps the snapshot for the directory being browsed
+ * (see ThumbContainerPanel.getSnapshot()).
+ * </p>
+ * <p>
+ * Since it's a snapshot, it can go stale: a file changed after the scan will still be
+ * reported with the attributes it had at the time. Use Entry.of() for a fresh look at
+ * a single file.
+ * </p>
+ *
+ * @author <a href="https://github.com/scorbo2">scorbo2</a>
+ * @since ImageViewer 3.3
+ */
+public final class DirectorySnapshot {
+
+    private static final Logger logger = Logger.getLogger(DirectorySnapshot.class.getName());
+
+    @FunctionalInterface
+    public interface EntryListener {
+        /**
+         * Invoked once for each file found during a scan, as it's found.
+         *
+         * @param entry The file and its attributes.
+         * @return true to continue with the scan, false to abort it.
+         */
+        boolean entryFound(Entry entry);
+    }
+
+    /**
+     * A single file and its attributes, as of when it was scanned.
+     */
+    public static final class Entry {
+        private final File file;
+        private final long size;
+        private final long lastModified;
+        private final boolean isRegularFile;
+        private final boolean isDirectory;
+        private final boolean isSymbolicLink;
+        private final Object fileKey;
+
+        private Entry(File file, BasicFileAttributes attributes) {
+            this.file = file;
+            this.size = attributes.size();
+            this.lastModified = attributes.lastModifiedTime().toMillis();
+            this.isRegularFile = attributes.isRegularFile();
+            this.isDirectory = attributes.isDirectory();
+            this.isSymbolicLink = attributes.isSymbolicLink();
+            this.fileKey = attributes.fileKey();
+        }
+
+        /**
+         * Stats the given file and returns an Entry for it. Useful for files that aren't
+         * in any snapshot we have.
+         *
+         * @param file Any file.
+         * @return An Entry, or null if the file doesn't exist or can't be read.
+         */
+        public static Entry of(File file) {
+            try {
+                return new Entry(file, Files.readAttributes(file.toPath(), BasicFileAttributes.class));
+            }
+            catch (IOException | SecurityException e) {
+                return null;
+            }
+        }
+
+        public File getFile() {
+            return file;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        public long getLastModified() {
+            return lastModified;
+        }
+
+        public boolean isRegularFile() {
+            return isRegularFile;
+        }
+
+        /**
+         * Scans never include directories, but an Entry from of() may be one.
+         */
+        public boolean isDirectory() {
+            return isDirectory;
+        }
+
+        public boolean isSymbolicLink() {
+            return isSymbolicLink;
+        }
+
+        /**
+         * Returns an object that uniquely identifies the file on its file system (the device
+         * and inode, on Unix-like systems), or null if the file system doesn't provide one.
+         * Two entries with equal keys are the same file, reached by different paths.
+         */
+        public Object getFileKey() {
+            return fileKey;
+        }
+
+        /**
+         * Returns the stamp the thumbnail cache would record for this file, without a stat.
+         */
+        public SourceStamp toSourceStamp() {
+            return new SourceStamp(lastModified, size);
+        }
+    }
+
+    private final File directory;
+    private final boolean isRecursive;
+    private final long scanTime;
+    private final long directoryLastModified;
+    private final Map<File, Entry> entries;
+
+    private DirectorySnapshot(File directory, boolean isRecursive, long scanTime, long directoryLastModified,
+                              Map<File, Entry> entries) {
+        this.directory = directory;
+        this.isRecursive = isRecursive;
+        this.scanTime = scanTime;
+        this.directoryLastModified = directoryLastModified;
+        this.entries = Collections.unmodifiableMap(entries);
+    }
+
+    /**
+     * Scans the given directory and returns a snapshot of the files in it.
+     *
+     * @param dir       The directory to scan.
+     * @param recursive True to include files in all subdirectories, false for just this directory.
+     * @return A snapshot of the files found (directories themselves are not included).
+     * @throws IOException If the directory itself can't be read.
+     */
+    public static DirectorySnapshot scan(File dir, boolean recursive) throws IOException {
+        return scan(dir, recursive, null);
+    }
+
+    /**
+     * Scans the given directory and returns a snapshot of the files in it, notifying the
+     * given listener of each file as it's found. If the listener aborts the scan, the
+     * snapshot contains whatever was found up to that point.
+     *
+     * @param dir       The directory to scan.
+     * @param recursive True to include files in all subdirectories, false for just this directory.
+     * @param listener  Notified of each file as it's found. May be null.
+     * @return A snapshot of the files found (directories themselves are not included).
+     * @throws IOException If the directory itself can't be read.
+     */
+    public static DirectorySnapshot scan(File dir, boolean recursive, EntryListener listener) throws IOException {
+        long scanTime = System.currentTimeMillis();
+        Map<File, Entry> entries = new LinkedHashMap<>();
+        Path root = dir.toPath();
+        long[] directoryLastModified = {0};
+
+        // With FOLLOW_LINKS, a link to a file is reported with the attributes of that file,
+        // in the same way that File.length() and File.lastModified() would see it:
+        Files.walkFileTree(root, EnumSet.of(FileVisitOption.FOLLOW_LINKS), recursive ? Integer.MAX_VALUE : 1,
+                           new SimpleFileVisitor<>() {
+                               @Override
+                               public FileVisitResult preVisitDirectory(Path path, BasicFileAttributes attributes) {
+                                   if (path.equals(root)) {
+                                       // Taken before the listing is read, so a change made during the scan
+                                       // will still show up as a different time afterwards:
+                                       directoryLastModified[0] = attributes.lastModifiedTime().toMillis();
+                                   }
+                                   return FileVisitResult.CONTINUE;
+                               }
+
+                               @Override
+                               public FileVisitResult visitFile(Path path, BasicFileAttributes attributes) {
+                                   if (attributes.isDirectory()) {
+                                       return FileVisitResult.CONTINUE; // a subdirectory, at our max depth
+                                   }
+                                   Entry entry = new Entry(path.toFile(), attributes);
+                                   entries.put(entry.getFile(), entry);
+                                   return listener == null || listener.entryFound(entry)
+                                           ? FileVisitResult.CONTINUE
+                                           : FileVisitResult.TERMINATE;
+                               }
+
+                               @Override
+                               public FileVisitResult visitFileFailed(Path path, IOException exc) throws IOException {
+                                   if (path.equals(root)) {
+                                       throw exc;
+                                   }
+                                   logger.log(Level.FINE, "Skipping unreadable entry {0}: {1}",
+                                              new Object[]{path, exc.toString()});
+                                   return FileVisitResult.CONTINUE;
+                               }
+                           });
+        return new DirectorySnapshot(dir, recursive, scanTime, directoryLastModified[0], entries);
+    }
+
+    public File getDirectory() {
+        return directory;
+    }
+
+    public boolean isRecursive() {
+        return isRecursive;
+    }
+
+    /**
+     * Returns when the scan that produced this snapshot started, in epoch millis.
+     */
+    public long getScanTime() {
+        return scanTime;
+    }
+
+    /**
+     * Returns the last modified time of the scanned directory itself, as of just before
+     * its contents were listed. Adding, removing, or renaming a file in a directory
+     * changes its last modified time, so if this still matches the directory, the list
+     * of files here is still accurate (though the files themselves may have been modified).
+     * Subdirectories of a recursive scan are not covered by this.
+     */
+    public long getDirectoryLastModified() {
+        return directoryLastModified;
+    }
+
+    /**
+     * Returns the entry for the given file, or null if it isn't in this snapshot.
+     */
+    public Entry get(File file) {
+        return entries.get(file);
+    }
+
+    /**
+     * Returns every entry in this snapshot, in the order they were found.
+     */
+    public List<Entry> getEntries() {
+        return new ArrayList<>(entries.values());
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    /**
+     * Returns a copy of this snapshot with the given entries added (or replacing what we had
+     * for those files), and the given files removed. This is how a snapshot is kept up to
+     * date as changes to the directory are observed, without scanning it again. The scan time
+     * and directory time of this snapshot are carried over, so they describe the original scan.
+     *
+     * @param updated Entries for files that were added or modified. May be empty.
+     * @param removed Files that no longer exist. May be empty.
+     * @return A new snapshot. This one is unchanged.
+     */
+    public DirectorySnapshot withChanges(Collection<Entry> updated, Collection<File> removed) {
+        Map<File, Entry> changed = new LinkedHashMap<>(entries);
+        for (File file : removed) {
+            changed.remove(file);
+        }
+        for (Entry entry : updated) {
+            changed.put(entry.getFile(), entry);
+        }
+        return new DirectorySnapshot(directory, isRecursive, scanTime, directoryLastModified, changed);
+    }
+}
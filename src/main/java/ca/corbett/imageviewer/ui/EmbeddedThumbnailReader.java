@@ -0,0 +1,234 @@
+package ca.corbett.imageviewer.ui;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Extracts the preview image that most cameras embed in the EXIF (APP1) block
+ * of the JPEGs they produce. Only the file header is read: we walk the JPEG markers
+ * up to the APP1 segment, pull out the IFD1 preview, and decode just that. This
+ * is dramatically cheaper than decoding the image itself, even subsampled.
+ * <p>
+ * Some cameras pad a 4:3 preview with black bars for a 3:2 image. To avoid
+ * showing those, a preview is rejected if its aspect ratio doesn't match the
+ * image dimensions recorded in the EXIF data.
+ * </p>
+ * <p>
+ * Only JPEG files are handled. For anything else, or for any JPEG without a
+ * suitable preview, we return null and the caller should generate a thumbnail
+ * the usual way.
+ * </p>
+ *
+ * @author <a href="https://github.com/scorbo2">scorbo2</a>
+ * @since ImageViewer 3.3
+ */
+public final class EmbeddedThumbnailReader {
+
+    private static final Logger logger = Logger.getLogger(EmbeddedThumbnailReader.class.getName());
+
+    private static final int MARKER_SOI = 0xFFD8;
+    private static final int MARKER_APP1 = 0xE1;
+    private static final int MARKER_SOS = 0xDA;
+
+    private static final int TAG_EXIF_IFD = 0x8769;
+    private static final int TAG_PIXEL_X = 0xA002;
+    private static final int TAG_PIXEL_Y = 0xA003;
+    private static final int TAG_THUMB_OFFSET = 0x0201;
+    private static final int TAG_THUMB_LENGTH = 0x0202;
+
+    /**
+     * Previews whose aspect ratio differs from the image's by more than this are rejected.
+     */
+    private static final double ASPECT_TOLERANCE = 0.05;
+
+    private EmbeddedThumbnailReader() {
+    }
+
+    /**
+     * Returns the embedded preview image from the given file, provided that one exists and
+     * that its longer edge is at least minSize pixels. Otherwise, returns null.
+     *
+     * @param file    The image file in question.
+     * @param minSize The minimum acceptable size of the preview's longer edge.
+     * @return The embedded preview, decoded, or null.
+     */
+    public static BufferedImage read(File file, int minSize) {
+        if (!isJpeg(file)) {
+            return null;
+        }
+        try {
+            byte[] exif = readExifSegment(file);
+            if (exif == null) {
+                return null;
+            }
+            BufferedImage preview = extractPreview(exif);
+            if (preview == null || Math.max(preview.getWidth(), preview.getHeight()) < minSize) {
+                return null;
+            }
+            int[] dimensions = readImageDimensions(exif);
+            if (dimensions != null && !isSameAspect(preview, dimensions[0], dimensions[1])) {
+                logger.log(Level.FINE, "Ignoring letterboxed embedded preview in {0}", file.getName());
+                return null;
+            }
+            return preview;
+        }
+        catch (IOException | RuntimeException e) {
+            // Malformed EXIF data is common enough that it's not worth shouting about:
+            logger.log(Level.FINE, "Unable to read embedded preview from {0}: {1}",
+                       new Object[]{file.getName(), e.getMessage()});
+            return null;
+        }
+    }
+
+    private static boolean isJpeg(File file) {
+        String name = file.getName().toLowerCase();
+        return name.endsWith(".jpg") || name.endsWith(".jpeg") || name.endsWith(".jpe");
+    }
+
+    /**
+     * Walks the JPEG markers at the head of the file and returns the body of the EXIF
+     * APP1 segment (starting at the TIFF header), or null if there isn't one.
+     */
+    private static byte[] readExifSegment(File file) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readUnsignedShort() != MARKER_SOI) {
+                return null;
+            }
+            while (true) {
+                int marker = in.readUnsignedByte();
+                if (marker != 0xFF) {
+                    return null; // not where we expect a marker to be; give up
+                }
+                int type = in.readUnsignedByte();
+                while (type == 0xFF) {
+                    type = in.readUnsignedByte(); // fill bytes
+                }
+                if (type == MARKER_SOS) {
+                    return null; // image data starts here; there's no EXIF block
+                }
+                int length = in.readUnsignedShort() - 2;
+                if (type == MARKER_APP1 && length > 6) {
+                    byte[] segment = new byte[length];
+                    in.readFully(segment);
+                    if (segment[0] == 'E' && segment[1] == 'x' && segment[2] == 'i' && segment[3] == 'f'
+                            && segment[4] == 0 && segment[5] == 0) {
+                        byte[] tiff = new byte[length - 6];
+                        System.arraycopy(segment, 6, tiff, 0, tiff.length);
+                        return tiff;
+                    }
+                }
+                else {
+                    skipFully(in, length);
+                }
+            }
+        }
+        catch (EOFException eof) {
+            return null;
+        }
+    }
+
+    /**
+     * Finds the IFD1 preview in the given TIFF-structured EXIF data and decodes it.
+     */
+    private static BufferedImage extractPreview(byte[] tiff) throws IOException {
+        TiffReader reader = new TiffReader(tiff);
+        int ifd0 = reader.getInt(4);
+        int ifd1 = reader.getInt(ifd0 + 2 + 12 * reader.getShort(ifd0));
+        if (ifd1 <= 0) {
+            return null;
+        }
+        int offset = reader.findTag(ifd1, TAG_THUMB_OFFSET);
+        int length = reader.findTag(ifd1, TAG_THUMB_LENGTH);
+        if (offset <= 0 || length <= 0 || offset + length > tiff.length) {
+            return null;
+        }
+        return ImageIO.read(new ByteArrayInputStream(tiff, offset, length));
+    }
+
+    /**
+     * Returns the width and height of the main image as recorded in the EXIF sub-IFD,
+     * or null if they aren't recorded.
+     */
+    private static int[] readImageDimensions(byte[] tiff) {
+        TiffReader reader = new TiffReader(tiff);
+        int exifIfd = reader.findTag(reader.getInt(4), TAG_EXIF_IFD);
+        if (exifIfd <= 0) {
+            return null;
+        }
+        int width = reader.findTag(exifIfd, TAG_PIXEL_X);
+        int height = reader.findTag(exifIfd, TAG_PIXEL_Y);
+        return (width > 0 && height > 0) ? new int[]{width, height} : null;
+    }
+
+    /**
+     * Reports whether the given preview has (roughly) the same aspect ratio as the main image.
+     * EXIF orientation may or may not have been applied to the preview, so either orientation
+     * of the main image is accepted.
+     */
+    static boolean isSameAspect(BufferedImage preview, int width, int height) {
+        double previewAspect = (double)preview.getWidth() / preview.getHeight();
+        double imageAspect = (double)width / height;
+        return Math.abs(previewAspect - imageAspect) / imageAspect <= ASPECT_TOLERANCE
+                || Math.abs(previewAspect - 1 / imageAspect) * imageAspect <= ASPECT_TOLERANCE;
+    }
+
+    private static void skipFully(DataInputStream in, int count) throws IOException {
+        while (count > 0) {
+            int skipped = in.skipBytes(count);
+            if (skipped <= 0) {
+                throw new EOFException();
+            }
+            count -= skipped;
+        }
+    }
+
+    /**
+     * Minimal reader for the handful of TIFF structures we need out of an EXIF block.
+     */
+    private static final class TiffReader {
+        private final byte[] data;
+        private final boolean isLittleEndian;
+
+        TiffReader(byte[] data) {
+            this.data = data;
+            this.isLittleEndian = data.length > 1 && data[0] == 'I' && data[1] == 'I';
+        }
+
+        int getShort(int offset) {
+            int b0 = data[offset] & 0xFF;
+            int b1 = data[offset + 1] & 0xFF;
+            return isLittleEndian ? (b1 << 8) | b0 : (b0 << 8) | b1;
+        }
+
+        int getInt(int offset) {
+            int s0 = getShort(offset);
+            int s1 = getShort(offset + 2);
+            return isLittleEndian ? (s1 << 16) | s0 : (s0 << 16) | s1;
+        }
+
+        /**
+         * Returns the (integer) value of the given tag in the IFD at the given offset,
+         * or -1 if it isn't there. Handles SHORT and LONG values only, which is all we need.
+         */
+        int findTag(int ifdOffset, int tag) {
+            int count = getShort(ifdOffset);
+            for (int i = 0; i < count; i++) {
+                int entry = ifdOffset + 2 + i * 12;
+                if (getShort(entry) == tag) {
+                    int type = getShort(entry + 2);
+                    return type == 3 ? getShort(entry + 8) : getInt(entry + 8);
+                }
+            }
+            return -1;
+        }
+    }
+}
@@ -0,0 +1,328 @@
+package ca.corbett.imageviewer.ui;
+
+import ca.corbett.extras.io.FileSystemUtil;
+import ca.corbett.imageviewer.AppConfig;
+import org.apache.commons.io.FileUtils;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The original thumbnail cache layout: one jpeg file per thumbnail per size, in a
+ * directory hierarchy under the cache dir that mirrors the file system, almost like
+ * a chroot situation. For example:
+ * <blockquote>
+ * CACHE_DIR/some/path/image.jpg_32.jpg
+ * </blockquote>
+ * <p>
+ * The above represents the 32x32 thumbnail for /some/path/image.jpg.
+ * </p>
+ * <p>
+ * The SourceStamp for each thumbnail is stored in a small trailer after the end of
+ * the jpeg data, where image viewers (and ImageIO) will ignore it. Thumbnails written
+ * before stamps were introduced have no trailer.
+ * </p>
+ *
+ * @author <a href="https://github.com/scorbo2">scorbo2</a>
+ * @since ImageViewer 3.3 (extracted from ThumbCacheManager)
+ */
+final class FileTreeThumbStore implements ThumbStore {
+
+    private static final Logger logger = Logger.getLogger(FileTreeThumbStore.class.getName());
+
+    private static final int TRAILER_MAGIC = 0x49565453; // "IVTS"
+    static final int TRAILER_SIZE = 20; // long lastModified, long length, int magic
+
+    private final File cacheDir;
+
+    FileTreeThumbStore(File cacheDir) {
+        this.cacheDir = cacheDir;
+    }
+
+    @Override
+    public Entry read(File srcFile, int size) throws IOException {
+        File thumbFile = generateThumbnailPath(srcFile, size);
+        byte[] data;
+        try {
+            data = Files.readAllBytes(thumbFile.toPath());
+        }
+        catch (NoSuchFileException e) {
+            return null;
+        }
+        SourceStamp stamp = readTrailer(data);
+        int length = data.length;
+        if (stamp == null) {
+            stamp = SourceStamp.asOf(thumbFile.lastModified()); // written before we had stamps
+        }
+        else {
+            length -= TRAILER_SIZE;
+        }
+        BufferedImage thumb = ImageIO.read(new ByteArrayInputStream(data, 0, length));
+        return thumb == null ? null : new Entry(thumb, stamp);
+    }
+
+    @Override
+    public SourceStamp readStamp(File srcFile, int size) throws IOException {
+        File thumbFile = generateThumbnailPath(srcFile, size);
+        byte[] trailer = new byte[TRAILER_SIZE];
+        try (RandomAccessFile file = new RandomAccessFile(thumbFile, "r")) {
+            if (file.length() >= TRAILER_SIZE) {
+                file.seek(file.length() - TRAILER_SIZE);
+                file.readFully(trailer);
+            }
+        }
+        catch (FileNotFoundException e) {
+            return null;
+        }
+        SourceStamp stamp = readTrailer(trailer);
+        return stamp != null ? stamp : SourceStamp.asOf(thumbFile.lastModified());
+    }
+
+    @Override
+    public long write(File srcFile, int size, BufferedImage thumb, SourceStamp stamp) throws IOException {
+        File thumbFile = generateThumbnailPath(srcFile, size);
+        thumbFile.getParentFile().mkdirs();
+        byte[] jpeg = ThumbStore.encodeJpeg(thumb);
+        byte[] data = ByteBuffer.allocate(jpeg.length + TRAILER_SIZE)
+                                .put(jpeg)
+                                .putLong(stamp.getLastModified())
+                                .putLong(stamp.getLength())
+                                .putInt(TRAILER_MAGIC)
+                                .array();
+        Files.write(thumbFile.toPath(), data);
+        return data.length;
+    }
+
+    @Override
+    public long sizeOf(File srcFile, int size) {
+        return generateThumbnailPath(srcFile, size).length(); // zero if it doesn't exist
+    }
+
+    @Override
+    public void remove(File srcFile) {
+        for (AppConfig.ThumbSize size : AppConfig.ThumbSize.values()) {
+            File thumbFile = generateThumbnailPath(srcFile, size.getDimensions());
+            if (thumbFile.exists()) {
+                FileUtils.deleteQuietly(thumbFile);
+            }
+        }
+    }
+
+    @Override
+    public void copy(File srcFile, File destFile, SourceStamp destStamp, boolean removeOriginal) {
+        String action = removeOriginal ? "move" : "copy";
+        for (AppConfig.ThumbSize size : AppConfig.ThumbSize.values()) {
+            File srcThumb = generateThumbnailPath(srcFile, size.getDimensions());
+            if (srcThumb.exists()) {
+                File destThumb = generateThumbnailPath(destFile, size.getDimensions());
+                destThumb.getParentFile().mkdirs();
+                if (destThumb.exists()) {
+                    FileUtils.deleteQuietly(destThumb);
+                }
+                try {
+                    if (removeOriginal) {
+                        FileUtils.moveFile(srcThumb, destThumb);
+                    }
+                    else {
+                        FileUtils.copyFile(srcThumb, destThumb);
+                    }
+                    if (destStamp != null) {
+                        writeTrailer(destThumb, destStamp);
+                    }
+                }
+                catch (IOException ioe) {
+                    logger.log(Level.SEVERE, "Unable to " + action + " associated image thumbnail.", ioe);
+                    if (removeOriginal) {
+                        FileUtils.deleteQuietly(srcThumb);
+                    }
+                }
+            }
+        }
+    }
+
+    @Override
+    public void copyDirectory(File srcDir, File destDir, boolean removeOriginal) {
+        File thumbSrcDir = getMirrorDirectory(srcDir);
+        if (thumbSrcDir.exists()) {
+            File thumbDestDir = getMirrorDirectory(destDir);
+            thumbDestDir.getParentFile().mkdirs();
+            try {
+                if (removeOriginal) {
+                    FileUtils.moveDirectory(thumbSrcDir, thumbDestDir);
+                }
+                else {
+                    FileUtils.copyDirectory(thumbSrcDir, thumbDestDir);
+                }
+            }
+            catch (IOException ioe) {
+                logger.log(Level.SEVERE, "Unable to relocate associated thumbnail directory.", ioe);
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        // Nothing is held open between calls.
+    }
+
+    @Override
+    public void forEachThumbnail(Visitor visitor) {
+        visitThumbnails(cacheDir, true, visitor);
+    }
+
+    @Override
+    public void forEachThumbnail(File srcDir, boolean isRecursive, Visitor visitor) {
+        visitThumbnails(getMirrorDirectory(srcDir), isRecursive, visitor);
+    }
+
+    private void visitThumbnails(File dir, boolean isRecursive, Visitor visitor) {
+        if (!dir.isDirectory()) {
+            return;
+        }
+        for (File thumbFile : FileSystemUtil.findFiles(dir, isRecursive, "jpg")) {
+            String name = thumbFile.getName();
+            visitThumbnail(visitor, thumbFile.getParentFile(), name.substring(0, name.length() - ".jpg".length()),
+                           thumbFile.length(), thumbFile.lastModified());
+        }
+    }
+
+    /**
+     * Works backward from a thumbnail's location in the cache to the source image and size
+     * it belongs to, and reports it to the given Visitor. Anything that doesn't look like
+     * one of our thumbnails is ignored.
+     *
+     * @param visitor      The Visitor to notify.
+     * @param mirrorDir    The directory in the cache that holds the thumbnail.
+     * @param key          The thumbnail filename, without the .jpg extension.
+     * @param bytes        The size of the thumbnail in the store.
+     * @param lastModified When the thumbnail was last written.
+     */
+    void visitThumbnail(Visitor visitor, File mirrorDir, String key, long bytes, long lastModified) {
+        int sizeMarker = key.lastIndexOf('_');
+        File srcDir = getSourceDirectory(mirrorDir);
+        if (sizeMarker <= 0 || srcDir == null) {
+            return;
+        }
+        try {
+            int size = Integer.parseInt(key.substring(sizeMarker + 1));
+            visitor.visit(new File(srcDir, key.substring(0, sizeMarker)), size, bytes, lastModified);
+        }
+        catch (NumberFormatException ignored) {
+            // Not one of ours.
+        }
+    }
+
+    /**
+     * Returns the SourceStamp from the trailer at the end of the given thumbnail file
+     * contents, or null if there's no trailer.
+     *
+     * @param data The entire contents of a thumbnail file.
+     * @return The stamp, or null.
+     */
+    static SourceStamp readTrailer(byte[] data) {
+        if (data.length < TRAILER_SIZE) {
+            return null;
+        }
+        ByteBuffer trailer = ByteBuffer.wrap(data, data.length - TRAILER_SIZE, TRAILER_SIZE);
+        long lastModified = trailer.getLong();
+        long length = trailer.getLong();
+        return trailer.getInt() == TRAILER_MAGIC ? new SourceStamp(lastModified, length) : null;
+    }
+
+    /**
+     * Replaces the trailer at the end of the given thumbnail file with one for the given
+     * stamp, or appends one if the thumbnail was written before we had stamps.
+     *
+     * @param thumbFile The thumbnail file to update.
+     * @param stamp     The stamp to record.
+     * @throws IOException If the file can't be updated.
+     */
+    static void writeTrailer(File thumbFile, SourceStamp stamp) throws IOException {
+        try (RandomAccessFile file = new RandomAccessFile(thumbFile, "rw")) {
+            long offset = file.length();
+            if (offset >= TRAILER_SIZE) {
+                byte[] trailer = new byte[TRAILER_SIZE];
+                file.seek(offset - TRAILER_SIZE);
+                file.readFully(trailer);
+                if (readTrailer(trailer) != null) {
+                    offset -= TRAILER_SIZE;
+                }
+            }
+            file.seek(offset);
+            file.write(ByteBuffer.allocate(TRAILER_SIZE)
+                                 .putLong(stamp.getLastModified())
+                                 .putLong(stamp.getLength())
+                                 .putInt(TRAILER_MAGIC)
+                                 .array());
+        }
+    }
+
+    /**
+     * Returns the directory under the cache dir that mirrors the given source directory.
+     *
+     * @param srcDir Any directory on the file system.
+     * @return The equivalent directory in the cache.
+     */
+    File getMirrorDirectory(File srcDir) {
+        return new File(cacheDir.getAbsolutePath() + srcDir.getAbsolutePath());
+    }
+
+    /**
+     * The reverse of getMirrorDirectory(): returns the source directory that the given
+     * directory under the cache dir mirrors.
+     *
+     * @param mirrorDir A directory under the cache dir.
+     * @return The source directory it mirrors, or null if it's not under the cache dir.
+     */
+    File getSourceDirectory(File mirrorDir) {
+        String cachePath = cacheDir.getAbsolutePath();
+        String mirrorPath = mirrorDir.getAbsolutePath();
+        if (!mirrorPath.startsWith(cachePath) || mirrorPath.length() == cachePath.length()) {
+            return null;
+        }
+        return new File(mirrorPath.substring(cachePath.length()));
+    }
+
+    /**
+     * For a given file, generate A File reference which represents the full path
+     * of the equivalent thumbnail file in the cache directory. For example, given
+     * a source file of /some/path/image.bmp, and a size of 50, this method would return
+     * CACHE_DIR/some/path/image.bmp_50.jpg. Note that all thumbnails
+     * will have the ".jpg" extension regardless of source file extension.
+     *
+     * @param srcFile The source file on the file system somewhere.
+     * @param size    The desired thumbnail size.
+     * @return A File object representing the equivalent thumbnail for the given srcFile and size.
+     */
+    File generateThumbnailPath(File srcFile, int size) {
+        return new File(getMirrorDirectory(srcFile.getAbsoluteFile().getParentFile()),
+                        generateThumbnailFilename(srcFile, size));
+    }
+
+    /**
+     * For a given file, generate a filename suitable for thumbnail representation.
+     * For example, given a file with name "someImage.jpeg", and given a thumbnail
+     * size of 150, this image will return "someImage.jpeg_150.jpg".
+     * Yes, we keep the entire original filename including extension, and append the
+     * size and an unconditional ".jpg" extension on top of that. This is to avoid the case
+     * where you have "someImage.jpeg" and "someImage.png" in the same directory, in which
+     * case their thumbnails would conflict if we stripped the original extension.
+     *
+     * @param file The source image file.
+     * @param size The size string to embed in the filename.
+     * @return A filename suitable for thumbnail representation at the given size.
+     */
+    static String generateThumbnailFilename(File file, int size) {
+        return file.getName() + "_" + size + ".jpg";
+    }
+}
@@ -0,0 +1,362 @@
+package ca.corbett.imageviewer.ui;
+
+import ca.corbett.extras.image.ImageUtil;
+import ca.corbett.imageviewer.Version;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.metadata.IIOMetadata;
+import javax.imageio.metadata.IIOMetadataNode;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.ImageOutputStream;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Reads and (optionally) writes thumbnails in the shared thumbnail cache described by the
+ * freedesktop.org Thumbnail Managing Standard. Linux file managers and image tools keep
+ * PNG thumbnails for everything they've shown under ~/.cache/thumbnails (or
+ * $XDG_CACHE_HOME/thumbnails), in one directory per size. Each one is named for the MD5 of
+ * the source file's URI, and records the source's last modified time in a Thumb::MTime text
+ * chunk. If a file manager has already been through a directory, we can use its thumbnails
+ * instead of decoding every image ourselves.
+ * <p>
+ * A shared thumbnail is only used if its Thumb::URI and Thumb::MTime (and Thumb::Size, if
+ * present) match the source image's current SourceStamp. We look in the smallest size
+ * directory that is at least as large as the requested thumbnail size.
+ * </p>
+ * <p>
+ * Writing back is done in the background by a single thread, with a bounded queue; if it
+ * falls behind, thumbnails are simply not written back. Files are written to a temporary
+ * name and then renamed, as the standard requires, so that other applications never see
+ * a partial thumbnail.
+ * </p>
+ * <p>
+ * Both reading and writing can be enabled or disabled in preferences. If the shared cache
+ * directory doesn't exist (as on Windows or macOS), reading does nothing, and writing
+ * does nothing either rather than create it.
+ * </p>
+ *
+ * @author <a href="https://github.com/scorbo2">scorbo2</a>
+ * @since ImageViewer 3.3
+ */
+public final class FreedesktopThumbnails {
+
+    private static final Logger logger = Logger.getLogger(FreedesktopThumbnails.class.getName());
+
+    /**
+     * The size directories we read and write, smallest first, with their maximum dimensions.
+     * The standard also defines x-large and xx-large, but our thumbnails are never that big.
+     */
+    private static final String[] SIZE_DIRS = {"normal", "large"};
+    private static final int[] SIZE_DIMENSIONS = {128, 256};
+
+    private static final String PNG_FORMAT = "javax_imageio_png_1.0";
+    private static final String KEY_URI = "Thumb::URI";
+    private static final String KEY_MTIME = "Thumb::MTime";
+    private static final String KEY_SIZE = "Thumb::Size";
+    private static final String KEY_SOFTWARE = "Software";
+
+    private static final int WRITE_QUEUE_SIZE = 64;
+
+    private static FreedesktopThumbnails instance;
+
+    private final File thumbnailDir;
+    private ThreadPoolExecutor writeExecutor;
+
+    /**
+     * Creates an instance for the shared thumbnail cache in the given directory.
+     * Normally you want getInstance() instead.
+     *
+     * @param thumbnailDir The shared thumbnail cache directory (the parent of "normal", "large" and so on).
+     */
+    FreedesktopThumbnails(File thumbnailDir) {
+        this.thumbnailDir = thumbnailDir;
+    }
+
+    public static synchronized FreedesktopThumbnails getInstance() {
+        if (instance == null) {
+            String cacheHome = System.getenv("XDG_CACHE_HOME");
+            File cacheDir = (cacheHome == null || cacheHome.isBlank())
+                    ? new File(System.getProperty("user.home"), ".cache")
+                    : new File(cacheHome);
+            instance = new FreedesktopThumbnails(new File(cacheDir, "thumbnails"));
+        }
+        return instance;
+    }
+
+    /**
+     * Looks for a current shared thumbnail for the given source image, at least as large as
+     * the given size.
+     *
+     * @param srcFile The source image file.
+     * @param stamp   The source image's current stamp.
+     * @param minSize The size of thumbnail we're after.
+     * @return The shared thumbnail, which will need scaling down to minSize, or null if there isn't a current one.
+     */
+    public BufferedImage read(File srcFile, SourceStamp stamp, int minSize) {
+        if (!thumbnailDir.isDirectory()) {
+            return null;
+        }
+        String uri = getUri(srcFile);
+        String name = getThumbnailName(uri);
+        for (int i = 0; i < SIZE_DIRS.length; i++) {
+            if (SIZE_DIMENSIONS[i] < minSize) {
+                continue;
+            }
+            File thumbFile = new File(new File(thumbnailDir, SIZE_DIRS[i]), name);
+            if (!thumbFile.isFile()) {
+                continue;
+            }
+            try {
+                BufferedImage thumb = readIfCurrent(thumbFile, uri, stamp);
+                if (thumb != null) {
+                    return thumb;
+                }
+            }
+            catch (IOException | RuntimeException e) {
+                logger.log(Level.FINE, "Unable to read shared thumbnail " + thumbFile.getAbsolutePath(), e);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Queues a shared thumbnail to be written for the given source image, scaled from the
+     * given image, in the background. The scaling happens right here, so the caller is free
+     * to discard srcImage as soon as this returns. If srcImage is too small for even the
+     * smallest size directory, or the write queue is full, nothing is written.
+     *
+     * @param srcFile  The source image file.
+     * @param stamp    The stamp of the source image that srcImage was decoded from.
+     * @param srcImage The decoded source image (it needn't be full resolution).
+     */
+    public void writeDeferred(File srcFile, SourceStamp stamp, BufferedImage srcImage) {
+        if (!thumbnailDir.isDirectory() || isInside(srcFile, thumbnailDir)) {
+            return; // the standard says not to thumbnail the thumbnails
+        }
+        int longerEdge = Math.max(srcImage.getWidth(), srcImage.getHeight());
+        int index = SIZE_DIMENSIONS.length - 1;
+        while (index >= 0 && SIZE_DIMENSIONS[index] > longerEdge) {
+            index--;
+        }
+        if (index < 0) {
+            return;
+        }
+        int dimensions = SIZE_DIMENSIONS[index];
+        File sizeDir = new File(thumbnailDir, SIZE_DIRS[index]);
+        BufferedImage thumb = ImageUtil.generateThumbnail(srcImage, dimensions, dimensions);
+        getWriteExecutor().execute(() -> {
+            try {
+                write(srcFile, stamp, thumb, sizeDir);
+            }
+            catch (IOException | RuntimeException e) {
+                logger.log(Level.FINE, "Unable to write shared thumbnail for " + srcFile.getAbsolutePath(), e);
+            }
+            finally {
+                thumb.flush();
+            }
+        });
+    }
+
+    /**
+     * Writes the given thumbnail for the given source image into the given size directory.
+     */
+    void write(File srcFile, SourceStamp stamp, BufferedImage thumb, File sizeDir) throws IOException {
+        String uri = getUri(srcFile);
+        File thumbFile = new File(sizeDir, getThumbnailName(uri));
+        if (!sizeDir.isDirectory() && !sizeDir.mkdirs()) {
+            throw new IOException("Unable to create " + sizeDir.getAbsolutePath());
+        }
+
+        Map<String, String> text = new HashMap<>();
+        text.put(KEY_URI, uri);
+        text.put(KEY_MTIME, Long.toString(stamp.getLastModified() / 1000));
+        text.put(KEY_SIZE, Long.toString(stamp.getLength()));
+        text.put(KEY_SOFTWARE, Version.NAME);
+
+        File tempFile = File.createTempFile("imageviewer-", ".png", sizeDir);
+        try {
+            restrictPermissions(tempFile);
+            writePng(thumb, text, tempFile);
+            Files.move(tempFile.toPath(), thumbFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                       StandardCopyOption.ATOMIC_MOVE);
+        }
+        finally {
+            Files.deleteIfExists(tempFile.toPath());
+        }
+    }
+
+    /**
+     * Returns the URI of the given file, as the standard wants it: an absolute file:// URI,
+     * with anything outside of plain ASCII escaped.
+     */
+    static String getUri(File file) {
+        return file.getAbsoluteFile().toPath().toUri().toASCIIString();
+    }
+
+    /**
+     * Returns the name the standard gives to the thumbnail for the given URI: the MD5 hash of
+     * the URI, in lowercase hex, with a .png extension.
+     */
+    static String getThumbnailName(String uri) {
+        try {
+            byte[] digest = MessageDigest.getInstance("MD5").digest(uri.getBytes(StandardCharsets.UTF_8));
+            StringBuilder sb = new StringBuilder(digest.length * 2 + 4);
+            for (byte b : digest) {
+                sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+            }
+            return sb.append(".png").toString();
+        }
+        catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("MD5 is not available", e); // every JRE is required to have it
+        }
+    }
+
+    /**
+     * Reads the given shared thumbnail, but only if its metadata says it's current for the
+     * given source image. The image data isn't decoded at all otherwise.
+     */
+    private static BufferedImage readIfCurrent(File thumbFile, String uri, SourceStamp stamp) throws IOException {
+        try (ImageInputStream in = ImageIO.createImageInputStream(thumbFile)) {
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(in);
+            if (!readers.hasNext()) {
+                return null;
+            }
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(in, true, false);
+                Map<String, String> text = readText(reader.getImageMetadata(0));
+                if (!isCurrent(text, uri, stamp)) {
+                    return null;
+                }
+                return reader.read(0);
+            }
+            finally {
+                reader.dispose();
+            }
+        }
+    }
+
+    private static boolean isCurrent(Map<String, String> text, String uri, SourceStamp stamp) {
+        if (!uri.equals(text.get(KEY_URI))) {
+            return false; // an MD5 collision, or written by something that encodes URIs differently
+        }
+        try {
+            String mtime = text.get(KEY_MTIME);
+            if (mtime == null || Long.parseLong(mtime.trim()) != stamp.getLastModified() / 1000) {
+                return false;
+            }
+            String size = text.get(KEY_SIZE);
+            return size == null || Long.parseLong(size.trim()) == stamp.getLength();
+        }
+        catch (NumberFormatException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Collects the keyword/value pairs from all tEXt, zTXt and iTXt chunks in the given PNG metadata.
+     */
+    private static Map<String, String> readText(IIOMetadata metadata) {
+        Map<String, String> text = new HashMap<>();
+        if (metadata == null || !PNG_FORMAT.equals(metadata.getNativeMetadataFormatName())) {
+            return text;
+        }
+        Node root = metadata.getAsTree(PNG_FORMAT);
+        for (Node chunk = root.getFirstChild(); chunk != null; chunk = chunk.getNextSibling()) {
+            String valueName = switch (chunk.getNodeName()) {
+                case "tEXt" -> "value";
+                case "zTXt", "iTXt" -> "text";
+                default -> null;
+            };
+            if (valueName == null) {
+                continue;
+            }
+            for (Node entry = chunk.getFirstChild(); entry != null; entry = entry.getNextSibling()) {
+                NamedNodeMap attributes = entry.getAttributes();
+                Node keyword = attributes == null ? null : attributes.getNamedItem("keyword");
+                Node value = attributes == null ? null : attributes.getNamedItem(valueName);
+                if (keyword != null && value != null) {
+                    text.put(keyword.getNodeValue(), value.getNodeValue());
+                }
+            }
+        }
+        return text;
+    }
+
+    private static void writePng(BufferedImage thumb, Map<String, String> text, File file) throws IOException {
+        ImageWriter writer = ImageIO.getImageWritersByFormatName("png").next();
+        try (ImageOutputStream out = ImageIO.createImageOutputStream(file)) {
+            ImageWriteParam param = writer.getDefaultWriteParam();
+            IIOMetadata metadata = writer.getDefaultImageMetadata(ImageTypeSpecifier.createFromRenderedImage(thumb),
+                                                                  param);
+            IIOMetadataNode textNode = new IIOMetadataNode("tEXt");
+            for (Map.Entry<String, String> entry : text.entrySet()) {
+                IIOMetadataNode textEntry = new IIOMetadataNode("tEXtEntry");
+                textEntry.setAttribute("keyword", entry.getKey());
+                textEntry.setAttribute("value", entry.getValue());
+                textNode.appendChild(textEntry);
+            }
+            IIOMetadataNode root = new IIOMetadataNode(PNG_FORMAT);
+            root.appendChild(textNode);
+            metadata.mergeTree(PNG_FORMAT, root);
+
+            writer.setOutput(out);
+            writer.write(null, new IIOImage(thumb, null, metadata), param);
+        }
+        finally {
+            writer.dispose();
+        }
+    }
+
+    /**
+     * Thumbnails can reveal what's in private files, so the standard says only the owner may read them.
+     */
+    private static void restrictPermissions(File file) {
+        try {
+            Files.setPosixFilePermissions(file.toPath(), PosixFilePermissions.fromString("rw-------"));
+        }
+        catch (UnsupportedOperationException | IOException ignored) {
+            // Not a POSIX file system; nothing we can do.
+        }
+    }
+
+    private static boolean isInside(File file, File dir) {
+        return file.getAbsoluteFile().toPath().startsWith(dir.getAbsoluteFile().toPath());
+    }
+
+    private synchronized ThreadPoolExecutor getWriteExecutor() {
+        if (writeExecutor == null) {
+            writeExecutor = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS,
+                                                   new ArrayBlockingQueue<>(WRITE_QUEUE_SIZE), r -> {
+                Thread thread = new Thread(r, "FreedesktopThumbnailWriter");
+                thread.setDaemon(true);
+                thread.setPriority(Thread.MIN_PRIORITY);
+                return thread;
+            }, new ThreadPoolExecutor.DiscardPolicy());
+        }
+        return writeExecutor;
+    }
+}
@@ -23,6 +23,7 @@ public class ImageInstance {
     private final File imageFile;
     private final BufferedImage regularImage;
     private final ImageIcon gifImage;
+    private DirectorySnapshot.Entry fileAttributes;
 
     /**
      * Package access constructor as this will generally only be created by MainWindow.
@@ -33,9 +34,25 @@ public class ImageInstance {
      * @param gifImage Optionally, an ImageIcon containing an animated GIF image.
      */
     ImageInstance(File srcFile, BufferedImage image, ImageIcon gifImage) {
+        this(srcFile, image, gifImage, null);
+    }
+
+    /**
+     * Package access constructor as this will generally only be created by MainWindow.
+     * If the attributes of the image file are already known (from a DirectorySnapshot),
+     * they can be supplied here, and the file size and date will be reported from them.
+     * Otherwise, the file is examined on first request.
+     *
+     * @param srcFile        The File from which the image was loaded.
+     * @param image          Optionally, a BufferedImage containing a static image.
+     * @param gifImage       Optionally, an ImageIcon containing an animated GIF image.
+     * @param fileAttributes Optionally, the already-known attributes of srcFile.
+     */
+    ImageInstance(File srcFile, BufferedImage image, ImageIcon gifImage, DirectorySnapshot.Entry fileAttributes) {
         this.imageFile = srcFile;
         this.regularImage = image;
         this.gifImage = gifImage;
+        this.fileAttributes = fileAttributes;
     }
 
     /**
@@ -130,7 +147,8 @@ public class ImageInstance {
      * @return A file size, or 0 if there is no image here.
      */
     public long getFileSize() {
-        return imageFile != null ? imageFile.length() : 0;
+        DirectorySnapshot.Entry attributes = getFileAttributes();
+        return attributes != null ? attributes.getSize() : 0;
     }
 
     /**
@@ -140,7 +158,7 @@ public class ImageInstance {
      * @return A human-readable representation of the file size, complete with units.
      */
     public String getFileSizePrintable() {
-        return imageFile == null ? "n/a" : FileUtils.byteCountToDisplaySize(imageFile.length());
+        return imageFile == null ? "n/a" : FileUtils.byteCountToDisplaySize(getFileSize());
     }
 
     /**
@@ -151,7 +169,24 @@ public class ImageInstance {
      * @return The formatted date of the image file, or "n/a" if no image is contained here.
      */
     public String getFileDatePrintable(SimpleDateFormat format) {
-        return imageFile == null ? "n/a" : format.format(new Date(imageFile.lastModified()));
+        if (imageFile == null) {
+            return "n/a";
+        }
+        DirectorySnapshot.Entry attributes = getFileAttributes();
+        return format.format(new Date(attributes != null ? attributes.getLastModified() : 0));
+    }
+
+    /**
+     * Returns the attributes of the image file, examining the file only if they weren't
+     * supplied to the constructor and we haven't already done so.
+     *
+     * @return The file attributes, or null if there is no image file or it can't be read.
+     */
+    private DirectorySnapshot.Entry getFileAttributes() {
+        if (fileAttributes == null && imageFile != null) {
+            fileAttributes = DirectorySnapshot.Entry.of(imageFile);
+        }
+        return fileAttributes;
     }
 
     /**
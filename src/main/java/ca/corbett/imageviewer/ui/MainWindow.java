@@ -22,6 +22,7 @@ import ca.corbett.imageviewer.ui.actions.ReloadUIAction;
 import ca.corbett.imageviewer.ui.imagesets.ImageSet;
 import ca.corbett.imageviewer.ui.imagesets.ImageSetManager;
 import ca.corbett.imageviewer.ui.imagesets.ImageSetPanel;
+import ca.corbett.imageviewer.ui.threads.ThumbCacheWarmer;
 import ca.corbett.updates.UpdateManager;
 import ca.corbett.updates.UpdateSources;
 import org.apache.commons.io.FileUtils;
@@ -50,6 +51,7 @@ import java.awt.image.BufferedImage;
 import java.io.File;
 import java.io.IOException;
 import java.text.SimpleDateFormat;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -184,7 +186,8 @@ public final class MainWindow extends JFrame implements UIReloadable {
             LogConsoleManager.setCustomTheme();
 
             instance.imageSetManager.load();
-            ThumbCacheManager.emitWarningIfNecessary(); // starts a background thread to check cache size
+            ThumbCacheManager.startSizeTracking(); // walks the cache once in the background
+            ThumbCacheWarmer.getInstance().start();
 
             ReloadUIAction.getInstance().registerReloadable(instance);
         }
@@ -321,6 +324,23 @@ public final class MainWindow extends JFrame implements UIReloadable {
         updateStatusBar();
     }
 
+    /**
+     * Invoke this to inform the MainWindow that the given files have been moved, deleted,
+     * or otherwise changed. In file system mode, only those files are re-examined, and the
+     * thumbnails of everything else are kept. In image set mode, this is the same as reload().
+     *
+     * @param files The files that were changed.
+     */
+    public void filesChanged(Collection<File> files) {
+        if (getBrowseMode() == BrowseMode.FILE_SYSTEM) {
+            thumbContainerPanelMap.get(BrowseMode.FILE_SYSTEM).refreshFiles(files);
+            updateStatusBar();
+        }
+        else {
+            reload();
+        }
+    }
+
     /**
      * Invoke this to inform the MainWindow when the currently selected image file has
      * been renamed. The thumbpanel will be updated.
@@ -407,6 +427,8 @@ public final class MainWindow extends JFrame implements UIReloadable {
         if (instance != null) {
             instance.imageSetManager.save();
         }
+        ThumbCacheWarmer.getInstance().stop();
+        ThumbCacheManager.flushPendingWrites();
     }
 
     /**
@@ -788,7 +810,15 @@ public final class MainWindow extends JFrame implements UIReloadable {
         BrowseMode oldBrowseMode = browseMode;
 
         if (browseMode == BrowseMode.FILE_SYSTEM || force) {
-            thumbContainerPanelMap.get(BrowseMode.FILE_SYSTEM).removeAll();
+            // A reload means a fresh scan. A forced reload may be due to extension changes,
+            // which can change what we consider to be an alien, so forget everything in that case:
+            if (force) {
+                DirectoryListingCache.getInstance().clear();
+            }
+            else if (dirTree.getCurrentDir() != null) {
+                DirectoryListingCache.getInstance().invalidate(dirTree.getCurrentDir());
+            }
+            thumbContainerPanelMap.get(BrowseMode.FILE_SYSTEM).clear();
             thumbContainerPanelMap.get(BrowseMode.FILE_SYSTEM).reloadThumbSizePreference();
             if (dirTree.getCurrentDir() != null) {
                 dirTreeChangeListener.selectionChanged(dirTree, dirTree.getCurrentDir());
@@ -796,7 +826,7 @@ public final class MainWindow extends JFrame implements UIReloadable {
         }
 
         if (browseMode == BrowseMode.IMAGE_SET || force) {
-            thumbContainerPanelMap.get(BrowseMode.IMAGE_SET).removeAll();
+            thumbContainerPanelMap.get(BrowseMode.IMAGE_SET).clear();
             thumbContainerPanelMap.get(BrowseMode.IMAGE_SET).reloadThumbSizePreference();
             setImageSet(imageSetPanel.getSelectedImageSet().orElse(null));
         }
@@ -956,9 +986,28 @@ public final class MainWindow extends JFrame implements UIReloadable {
      * @return An ImageInstance object containing information about the current image.
      */
     public ImageInstance getSelectedImage() {
-        return new ImageInstance((File)imagePanel.getExtraAttribute("srcFile"),
+        File srcFile = (File)imagePanel.getExtraAttribute("srcFile");
+        return new ImageInstance(srcFile,
                                  imagePanel.getImage(),
-                                 imagePanel.getImageIcon());
+                                 imagePanel.getImageIcon(),
+                                 getFileAttributes(srcFile));
+    }
+
+    /**
+     * Returns the attributes of the given file as they were recorded when the current
+     * directory was scanned. If the file isn't in that snapshot (we're browsing an image
+     * set, say, or the file has been renamed since), we go to the disk for them instead.
+     *
+     * @param file Any file. May be null.
+     * @return The attributes of that file, or null if there aren't any to be had.
+     */
+    private DirectorySnapshot.Entry getFileAttributes(File file) {
+        if (file == null) {
+            return null;
+        }
+        DirectorySnapshot snapshot = thumbContainerPanelMap.get(getBrowseMode()).getSnapshot();
+        DirectorySnapshot.Entry entry = snapshot == null ? null : snapshot.get(file);
+        return entry != null ? entry : DirectorySnapshot.Entry.of(file);
     }
 
     private void configureKeyStrokes() {
@@ -986,8 +1035,8 @@ public final class MainWindow extends JFrame implements UIReloadable {
             int size = thumbContainerPanelMap.get(getBrowseMode()).getCount();
             status2 = (index + 1) + " of " + size + "    ";
 
-            File srcFile = ((File)imagePanel.getExtraAttribute("srcFile"));
-            long fileSize = srcFile.length();
+            DirectorySnapshot.Entry attributes = getFileAttributes((File)imagePanel.getExtraAttribute("srcFile"));
+            long fileSize = attributes != null ? attributes.getSize() : 0;
             status1 = FileUtils.byteCountToDisplaySize(fileSize);
 
             long memorySize = (long)imagePanel.getImageWidth()
@@ -997,7 +1046,7 @@ public final class MainWindow extends JFrame implements UIReloadable {
             status1 += imagePanel.getImageWidth() + "x" + imagePanel.getImageHeight();
 
             SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd");
-            status1 += ", " + format.format(new java.util.Date(srcFile.lastModified()));
+            status1 += ", " + format.format(new java.util.Date(attributes != null ? attributes.getLastModified() : 0));
         }
 
         statusPanel.setLeftText(status1);
@@ -1028,6 +1077,7 @@ public final class MainWindow extends JFrame implements UIReloadable {
         }
 
         thumbContainerPanelMap.get(getBrowseMode()).setDirectory(selectedDir); // handles nulls
+        ThumbCacheWarmer.getInstance().setDirectory(selectedDir, dirTree.getLockDir());
     }
 
     /**
@@ -1182,12 +1232,12 @@ public final class MainWindow extends JFrame implements UIReloadable {
 
         @Override
         public void loadStarting(ThumbContainerPanel source) {
-            MainWindow.getInstance().disableUI();
+            // Thumbnails now load on demand as they scroll into view, and a directory change
+            // cancels any load in progress, so there's no need to lock the UI while loading.
         }
 
         @Override
         public void loadCompleted(ThumbContainerPanel source) {
-            MainWindow.getInstance().enableUI();
         }
     }
 }
@@ -0,0 +1,779 @@
+package ca.corbett.imageviewer.ui;
+
+import ca.corbett.extras.io.FileSystemUtil;
+import ca.corbett.imageviewer.AppConfig;
+import org.apache.commons.io.FileUtils;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A thumbnail cache backend that stores all thumbnails for a given source directory
+ * in a single pack file, instead of one small file per thumbnail per size. The pack
+ * file lives in the same mirrored directory hierarchy as FileTreeThumbStore uses:
+ * <blockquote>
+ * CACHE_DIR/some/path/thumbnails.pack
+ * </blockquote>
+ * <p>
+ * The above holds every cached thumbnail (at every size) for images in /some/path.
+ * </p>
+ * <p>
+ * <b>Pack format</b> - a pack file is a short header followed by a sequence of records.
+ * Each record is a key (the same name FileTreeThumbStore would use for the thumbnail
+ * file, like "image.jpg_80"), followed by the SourceStamp of the source image (its last
+ * modified time and length, 16 bytes) and then the jpeg-encoded thumbnail. The file is
+ * append-only: replacing a thumbnail appends a new record, and removing one appends a
+ * "tombstone" record with no data. The index of key to record offset is rebuilt in
+ * memory by scanning the record headers when the pack is opened. Once more than half
+ * of a pack is taken up by dead records, it is compacted by rewriting the live records
+ * to a new file. Reads go through a memory-mapped view of the pack, which is only
+ * extended once enough has been appended to make it worthwhile; records appended since
+ * are read through the file channel. On Windows, where a file can't be replaced or
+ * deleted while any mapping of it is still alive (and there's no way to drop one short
+ * of garbage collection), packs aren't memory-mapped at all. A pack can't grow past 2GB,
+ * which is far more than any one directory's thumbnails should need. A pack written in
+ * an older format is simply discarded and started over; it's only a cache.
+ * </p>
+ * <p>
+ * <b>Open packs</b> - up to MAX_OPEN_PACKS packs are kept open, and the least recently used
+ * is closed after that. A pack is pinned for as long as an operation is using it, and is
+ * never closed out from under one; if every open pack is busy, we go over the limit for a
+ * moment rather than wait. This matters because the loader pool, the writer thread, the
+ * cache warmer and thumbnail pregeneration can all be in different packs at once.
+ * </p>
+ * <p>
+ * <b>Migration</b> - the first time we open the pack for a directory, any thumbnails
+ * that FileTreeThumbStore had written for that directory are imported into the pack
+ * and then deleted. So switching backends in preferences doesn't throw away the cache;
+ * each directory is migrated as it is browsed.
+ * </p>
+ *
+ * @author <a href="https://github.com/scorbo2">scorbo2</a>
+ * @since ImageViewer 3.3
+ */
+final class PackedThumbStore implements ThumbStore {
+
+    private static final Logger logger = Logger.getLogger(PackedThumbStore.class.getName());
+
+    static final String PACK_FILENAME = "thumbnails.pack";
+
+    /**
+     * Each record's data starts with the source image's stamp: last modified time and length.
+     */
+    private static final int STAMP_SIZE = 16;
+
+    /**
+     * We keep this many packs open at once; the least recently used idle pack is closed after that.
+     */
+    static final int MAX_OPEN_PACKS = 16;
+
+    private final File cacheDir;
+    private final FileTreeThumbStore legacyStore;
+    private final LinkedHashMap<File, PackFile> openPacks;
+
+    /**
+     * Directories that we know have no pack, so we don't have to keep checking.
+     */
+    private final Set<File> missingPacks;
+
+    PackedThumbStore(File cacheDir, FileTreeThumbStore legacyStore) {
+        this.cacheDir = cacheDir;
+        this.legacyStore = legacyStore;
+        this.missingPacks = new HashSet<>();
+        this.openPacks = new LinkedHashMap<>(MAX_OPEN_PACKS * 2, 0.75f, true); // access-order, for LRU
+    }
+
+    @Override
+    public Entry read(File srcFile, int size) throws IOException {
+        PackFile pack = getPack(getParentDir(srcFile), false);
+        if (pack == null) {
+            return null;
+        }
+        byte[] data;
+        try {
+            data = pack.read(getKey(srcFile, size));
+        }
+        finally {
+            releasePack(pack);
+        }
+        if (data == null || data.length < STAMP_SIZE) {
+            return null;
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(data);
+        SourceStamp stamp = new SourceStamp(buffer.getLong(), buffer.getLong());
+        BufferedImage thumb = ImageIO.read(new ByteArrayInputStream(data, STAMP_SIZE, data.length - STAMP_SIZE));
+        return thumb == null ? null : new Entry(thumb, stamp);
+    }
+
+    @Override
+    public SourceStamp readStamp(File srcFile, int size) throws IOException {
+        PackFile pack = getPack(getParentDir(srcFile), false);
+        if (pack == null) {
+            return null;
+        }
+        byte[] data;
+        try {
+            data = pack.read(getKey(srcFile, size), STAMP_SIZE);
+        }
+        finally {
+            releasePack(pack);
+        }
+        if (data == null || data.length < STAMP_SIZE) {
+            return null;
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(data);
+        return new SourceStamp(buffer.getLong(), buffer.getLong());
+    }
+
+    @Override
+    public long write(File srcFile, int size, BufferedImage thumb, SourceStamp stamp) throws IOException {
+        byte[] data = toRecordData(stamp, ThumbStore.encodeJpeg(thumb), 0);
+        PackFile pack = getPack(getParentDir(srcFile), true);
+        if (pack == null) {
+            throw new IOException("Unable to open thumbnail pack for " + srcFile.getAbsolutePath());
+        }
+        try {
+            pack.write(getKey(srcFile, size), data);
+        }
+        finally {
+            releasePack(pack);
+        }
+        return data.length;
+    }
+
+    @Override
+    public long sizeOf(File srcFile, int size) {
+        PackFile pack = getPack(getParentDir(srcFile), false);
+        if (pack == null) {
+            return 0;
+        }
+        try {
+            return pack.sizeOf(getKey(srcFile, size));
+        }
+        finally {
+            releasePack(pack);
+        }
+    }
+
+    @Override
+    public void remove(File srcFile) {
+        PackFile pack = getPack(getParentDir(srcFile), false);
+        if (pack == null) {
+            return;
+        }
+        try {
+            for (AppConfig.ThumbSize size : AppConfig.ThumbSize.values()) {
+                pack.delete(getKey(srcFile, size.getDimensions()));
+            }
+        }
+        catch (IOException ioe) {
+            logger.log(Level.SEVERE, "Unable to remove thumbnails for " + srcFile.getAbsolutePath(), ioe);
+        }
+        finally {
+            releasePack(pack);
+        }
+    }
+
+    @Override
+    public void copy(File srcFile, File destFile, SourceStamp destStamp, boolean removeOriginal) {
+        PackFile srcPack = getPack(getParentDir(srcFile), false);
+        if (srcPack == null) {
+            return;
+        }
+        PackFile destPack = null;
+        try {
+            for (AppConfig.ThumbSize size : AppConfig.ThumbSize.values()) {
+                byte[] data = srcPack.read(getKey(srcFile, size.getDimensions()));
+                if (data != null) {
+                    if (destPack == null) {
+                        destPack = getPack(getParentDir(destFile), true);
+                        if (destPack == null) {
+                            return; // already logged
+                        }
+                    }
+                    if (destStamp != null && data.length >= STAMP_SIZE) {
+                        ByteBuffer.wrap(data).putLong(destStamp.getLastModified()).putLong(destStamp.getLength());
+                    }
+                    destPack.write(getKey(destFile, size.getDimensions()), data);
+                    if (removeOriginal) {
+                        srcPack.delete(getKey(srcFile, size.getDimensions()));
+                    }
+                }
+            }
+        }
+        catch (IOException ioe) {
+            String action = removeOriginal ? "move" : "copy";
+            logger.log(Level.SEVERE, "Unable to " + action + " associated image thumbnail.", ioe);
+        }
+        finally {
+            releasePack(srcPack);
+            if (destPack != null) {
+                releasePack(destPack);
+            }
+        }
+    }
+
+    /**
+     * Each directory's thumbnails are in a single pack file, so relocating a directory
+     * means relocating one file per directory (and the directory structure above it).
+     */
+    @Override
+    public void copyDirectory(File srcDir, File destDir, boolean removeOriginal) {
+        // Release anything we have open in either location before touching the files:
+        closePacksUnder(srcDir);
+        closePacksUnder(destDir);
+        legacyStore.copyDirectory(srcDir, destDir, removeOriginal);
+    }
+
+    @Override
+    public void close() {
+        synchronized (openPacks) {
+            for (PackFile pack : openPacks.values()) {
+                retire(pack);
+            }
+            openPacks.clear();
+            missingPacks.clear();
+        }
+    }
+
+    /**
+     * Sizes reported here are the size of each thumbnail's data within its pack. Dead
+     * space in a pack (not yet compacted away) isn't counted.
+     */
+    @Override
+    public void forEachThumbnail(Visitor visitor) {
+        visitThumbnails(cacheDir, true, visitor);
+    }
+
+    @Override
+    public void forEachThumbnail(File srcDir, boolean isRecursive, Visitor visitor) {
+        visitThumbnails(legacyStore.getMirrorDirectory(srcDir), isRecursive, visitor);
+    }
+
+    private void visitThumbnails(File dir, boolean isRecursive, Visitor visitor) {
+        if (!dir.isDirectory()) {
+            return;
+        }
+        // Writes go straight to the channel, so packs that are open for writing can safely be read here:
+        for (File packFile : FileSystemUtil.findFiles(dir, isRecursive, "pack")) {
+            PackFile pack = new PackFile(packFile);
+            try {
+                pack.open(false);
+                for (Map.Entry<String, Long> entry : pack.getEntrySizes().entrySet()) {
+                    legacyStore.visitThumbnail(visitor, packFile.getParentFile(), entry.getKey(), entry.getValue(),
+                                               packFile.lastModified());
+                }
+            }
+            catch (IOException ioe) {
+                logger.log(Level.WARNING, "Unable to read thumbnail pack " + packFile.getAbsolutePath(), ioe);
+            }
+            finally {
+                pack.close();
+            }
+        }
+    }
+
+    /**
+     * Returns the pack for the given source directory, opening it if needed.
+     * If there's no pack yet, one is created only if create is true. Any thumbnails
+     * for this directory in the old one-file-per-thumbnail layout are migrated into the
+     * pack as it is opened. The pack is pinned open until it is handed back to releasePack(),
+     * which must be done (in a finally block) once the caller is finished with it.
+     *
+     * @param srcDir The source directory in question.
+     * @param create Whether to create the pack if it doesn't exist yet.
+     * @return The open pack, or null if there isn't one and create was false (or it can't be opened).
+     */
+    private PackFile getPack(File srcDir, boolean create) {
+        PackFile pack;
+        synchronized (openPacks) {
+            pack = openPacks.get(srcDir);
+            if (pack == null) {
+                if (!create && missingPacks.contains(srcDir)) {
+                    return null;
+                }
+
+                File mirrorDir = legacyStore.getMirrorDirectory(srcDir);
+                File packFile = new File(mirrorDir, PACK_FILENAME);
+                File[] legacyThumbs = mirrorDir.listFiles((dir, name) -> name.endsWith(".jpg"));
+                boolean hasLegacyThumbs = legacyThumbs != null && legacyThumbs.length > 0;
+                if (!create && !packFile.exists() && !hasLegacyThumbs) {
+                    missingPacks.add(srcDir);
+                    return null;
+                }
+
+                pack = new PackFile(packFile);
+                pack.legacyThumbs = hasLegacyThumbs ? legacyThumbs : null;
+                missingPacks.remove(srcDir);
+                openPacks.put(srcDir, pack);
+            }
+            pack.users++;
+            closeIdlePacks();
+        }
+
+        // Opening a pack, and especially migrating legacy thumbnails into it, happens outside
+        // of the openPacks lock. Anyone else who wants this pack in the meantime waits on the
+        // pack itself, and every other directory carries on as normal.
+        if (!openPack(pack)) {
+            synchronized (openPacks) {
+                openPacks.remove(srcDir, pack);
+                missingPacks.add(srcDir);
+            }
+            releasePack(pack);
+            return null;
+        }
+        return pack;
+    }
+
+    /**
+     * Opens the given pack and migrates any legacy thumbnails into it, if that hasn't been done
+     * yet. Only the first caller does the work; the rest wait for it to finish.
+     *
+     * @return True if the pack is ready to use, false if it couldn't be opened.
+     */
+    private boolean openPack(PackFile pack) {
+        synchronized (pack) {
+            if (pack.isOpened) {
+                return !pack.isBroken;
+            }
+            pack.isOpened = true;
+            try {
+                pack.open(true);
+                if (pack.legacyThumbs != null) {
+                    migrate(pack, pack.legacyThumbs);
+                    pack.legacyThumbs = null;
+                }
+                return true;
+            }
+            catch (IOException ioe) {
+                logger.log(Level.SEVERE, "Unable to open thumbnail pack " + pack.file.getAbsolutePath(), ioe);
+                pack.close();
+                pack.isBroken = true;
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Unpins a pack obtained from getPack(). It may be closed from here on, if it's idle
+     * and we have too many packs open.
+     */
+    private void releasePack(PackFile pack) {
+        synchronized (openPacks) {
+            pack.users--;
+            if (pack.users == 0 && pack.isRetired) {
+                pack.close();
+            }
+            closeIdlePacks();
+        }
+    }
+
+    /**
+     * Closes the least recently used idle packs until we're back within MAX_OPEN_PACKS,
+     * or until only busy packs are left. The caller must hold the openPacks lock.
+     */
+    private void closeIdlePacks() {
+        Iterator<PackFile> iterator = openPacks.values().iterator();
+        while (openPacks.size() > MAX_OPEN_PACKS && iterator.hasNext()) {
+            PackFile pack = iterator.next();
+            if (pack.users == 0) {
+                pack.close();
+                iterator.remove();
+            }
+        }
+    }
+
+    /**
+     * Closes the given pack, which the caller is removing from openPacks, as soon as no
+     * one is using it. The caller must hold the openPacks lock.
+     */
+    private void retire(PackFile pack) {
+        if (pack.users == 0) {
+            pack.close();
+        }
+        else {
+            pack.isRetired = true;
+        }
+    }
+
+    /**
+     * Returns how many packs are open right now. Used by unit tests.
+     */
+    int getOpenPackCount() {
+        synchronized (openPacks) {
+            return openPacks.size();
+        }
+    }
+
+    /**
+     * Imports the given legacy thumbnail files into the given pack, deleting each one
+     * once it has been imported.
+     */
+    private void migrate(PackFile pack, File[] legacyThumbs) throws IOException {
+        logger.log(Level.INFO, "Migrating {0} cached thumbnails into {1}",
+                   new Object[]{legacyThumbs.length, pack.file.getAbsolutePath()});
+        for (File legacyThumb : legacyThumbs) {
+            String name = legacyThumb.getName();
+            String key = name.substring(0, name.length() - ".jpg".length());
+            byte[] legacyData = Files.readAllBytes(legacyThumb.toPath());
+            SourceStamp stamp = FileTreeThumbStore.readTrailer(legacyData);
+            int trailerSize = FileTreeThumbStore.TRAILER_SIZE;
+            if (stamp == null) {
+                stamp = SourceStamp.asOf(legacyThumb.lastModified());
+                trailerSize = 0;
+            }
+            pack.write(key, toRecordData(stamp, legacyData, trailerSize));
+            FileUtils.deleteQuietly(legacyThumb);
+        }
+    }
+
+    /**
+     * Builds the data for a pack record: the given stamp, followed by the given jpeg data,
+     * minus the given number of trailing bytes.
+     */
+    private static byte[] toRecordData(SourceStamp stamp, byte[] jpeg, int trailingBytesToDrop) {
+        int jpegLength = jpeg.length - trailingBytesToDrop;
+        return ByteBuffer.allocate(STAMP_SIZE + jpegLength)
+                         .putLong(stamp.getLastModified())
+                         .putLong(stamp.getLength())
+                         .put(jpeg, 0, jpegLength)
+                         .array();
+    }
+
+    private void closePacksUnder(File dir) {
+        String prefix = dir.getAbsolutePath();
+        synchronized (openPacks) {
+            Iterator<Map.Entry<File, PackFile>> iterator = openPacks.entrySet().iterator();
+            while (iterator.hasNext()) {
+                Map.Entry<File, PackFile> entry = iterator.next();
+                if (entry.getKey().getAbsolutePath().startsWith(prefix)) {
+                    retire(entry.getValue());
+                    iterator.remove();
+                }
+            }
+            missingPacks.clear();
+        }
+    }
+
+    private static File getParentDir(File srcFile) {
+        return srcFile.getAbsoluteFile().getParentFile();
+    }
+
+    private static String getKey(File srcFile, int size) {
+        String filename = FileTreeThumbStore.generateThumbnailFilename(srcFile, size);
+        return filename.substring(0, filename.length() - ".jpg".length());
+    }
+
+    /**
+     * A single pack file and its in-memory index.
+     */
+    private static final class PackFile {
+        private static final int MAGIC = 0x49565450; // "IVTP"
+        private static final int VERSION = 2;
+        private static final int HEADER_SIZE = 8;
+        private static final int TOMBSTONE = -1;
+
+        /**
+         * Packs smaller than this are never compacted; it's not worth the bother.
+         */
+        private static final long MIN_COMPACT_SIZE = 256 * 1024;
+
+        /**
+         * Offsets within a pack have to fit in an int, for reading from a mapped buffer.
+         */
+        private static final long MAX_PACK_SIZE = Integer.MAX_VALUE;
+
+        /**
+         * The mapped view of a pack is extended once at least this much, or half as much
+         * again as is already mapped, has been appended past the end of it.
+         */
+        private static final long MIN_REMAP_SIZE = 64 * 1024;
+
+        private static final boolean IS_MMAP_SUPPORTED = !System.getProperty("os.name", "")
+                                                                 .toLowerCase().startsWith("windows");
+
+        private final File file;
+        private final Map<String, long[]> index; // key -> {data offset, data length}
+        private FileChannel channel;
+        private MappedByteBuffer mappedBuffer;
+        private long fileSize;
+        private long liveBytes;
+        private long minCompactSize = MIN_COMPACT_SIZE;
+
+        // These are set up by openPack(), while it holds this pack's lock:
+        private File[] legacyThumbs; // still to be migrated in, or null
+        private boolean isOpened; // open() has been attempted
+        private boolean isBroken; // ...and failed
+
+        // These two are guarded by the openPacks lock, not by this pack:
+        private int users; // how many operations have this pack pinned
+        private boolean isRetired; // no longer in openPacks; close once users drops to 0
+
+        PackFile(File file) {
+            this.file = file;
+            this.index = new HashMap<>();
+        }
+
+        /**
+         * Opens this pack and builds its index, creating the file first if needed.
+         * A partial record at the end of the file (from a crash mid-write) is truncated.
+         */
+        synchronized void open(boolean writable) throws IOException {
+            if (writable) {
+                file.getParentFile().mkdirs();
+                channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ,
+                                           StandardOpenOption.WRITE);
+            }
+            else {
+                channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+            }
+            fileSize = channel.size();
+            if (fileSize == 0 && writable) {
+                ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).putInt(MAGIC).putInt(VERSION);
+                header.flip();
+                channel.write(header, 0);
+                fileSize = HEADER_SIZE;
+                return;
+            }
+
+            ByteBuffer buffer = readRegion(0, fileSize);
+            if (fileSize < HEADER_SIZE || buffer.getInt() != MAGIC) {
+                throw new IOException("Not a thumbnail pack: " + file.getAbsolutePath());
+            }
+            int version = buffer.getInt();
+            if (version != VERSION) {
+                // An older format: treat it as empty, and start it over the next time it's written.
+                fileSize = HEADER_SIZE;
+                if (writable) {
+                    logger.log(Level.INFO, "Discarding thumbnail pack {0} written in an older format.",
+                               file.getAbsolutePath());
+                    ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).putInt(MAGIC).putInt(VERSION);
+                    header.flip();
+                    channel.truncate(0);
+                    channel.write(header, 0);
+                }
+                return;
+            }
+            long validEnd = HEADER_SIZE;
+            while (buffer.remaining() >= 8) {
+                int keyLength = buffer.getInt();
+                if (keyLength <= 0 || keyLength > buffer.remaining() - 4) {
+                    break;
+                }
+                byte[] keyBytes = new byte[keyLength];
+                buffer.get(keyBytes);
+                int dataLength = buffer.getInt();
+                if (dataLength > buffer.remaining()) {
+                    break;
+                }
+                String key = new String(keyBytes, StandardCharsets.UTF_8);
+                removeFromIndex(key);
+                if (dataLength != TOMBSTONE) {
+                    index.put(key, new long[]{buffer.position(), dataLength});
+                    liveBytes += dataLength;
+                    buffer.position(buffer.position() + dataLength);
+                }
+                validEnd = buffer.position();
+            }
+            if (validEnd < fileSize && writable) {
+                logger.log(Level.WARNING, "Truncating damaged thumbnail pack {0} from {1} to {2} bytes",
+                           new Object[]{file.getAbsolutePath(), fileSize, validEnd});
+                channel.truncate(validEnd);
+            }
+            fileSize = validEnd;
+        }
+
+        /**
+         * Returns the data length of every live record in this pack, by key.
+         */
+        synchronized Map<String, Long> getEntrySizes() {
+            Map<String, Long> sizes = new HashMap<>();
+            for (Map.Entry<String, long[]> entry : index.entrySet()) {
+                sizes.put(entry.getKey(), entry.getValue()[1]);
+            }
+            return sizes;
+        }
+
+        synchronized long sizeOf(String key) {
+            long[] entry = index.get(key);
+            return entry == null ? 0 : entry[1];
+        }
+
+        synchronized byte[] read(String key) throws IOException {
+            return read(key, Integer.MAX_VALUE);
+        }
+
+        /**
+         * Returns the data for the given key, or just the first maxLength bytes of it.
+         */
+        synchronized byte[] read(String key, int maxLength) throws IOException {
+            long[] entry = index.get(key);
+            if (entry == null || channel == null) {
+                return null;
+            }
+            byte[] data = new byte[(int)Math.min(entry[1], maxLength)];
+            long end = entry[0] + data.length;
+            long mappedSize = mappedBuffer == null ? 0 : mappedBuffer.capacity();
+            if (IS_MMAP_SUPPORTED && end > mappedSize
+                    && fileSize - mappedSize >= Math.max(MIN_REMAP_SIZE, mappedSize / 2)) {
+                mappedBuffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, fileSize);
+                mappedSize = fileSize;
+            }
+            if (end <= mappedSize) {
+                mappedBuffer.get((int)entry[0], data);
+            }
+            else {
+                readFully(ByteBuffer.wrap(data), entry[0]);
+            }
+            return data;
+        }
+
+        /**
+         * Returns the given region of the pack: mapped, if we can, or otherwise read into memory.
+         */
+        private ByteBuffer readRegion(long position, long length) throws IOException {
+            if (IS_MMAP_SUPPORTED) {
+                return channel.map(FileChannel.MapMode.READ_ONLY, position, length);
+            }
+            ByteBuffer buffer = ByteBuffer.allocate((int)length);
+            readFully(buffer, position);
+            buffer.flip();
+            return buffer;
+        }
+
+        private void readFully(ByteBuffer buffer, long position) throws IOException {
+            while (buffer.hasRemaining()) {
+                int count = channel.read(buffer, position);
+                if (count < 0) {
+                    throw new IOException("Unexpected end of thumbnail pack " + file.getAbsolutePath());
+                }
+                position += count;
+            }
+        }
+
+        synchronized void write(String key, byte[] data) throws IOException {
+            append(key, data);
+            maybeCompact();
+        }
+
+        synchronized void delete(String key) throws IOException {
+            if (index.containsKey(key)) {
+                append(key, null);
+                maybeCompact();
+            }
+        }
+
+        synchronized void close() {
+            if (channel == null) {
+                return;
+            }
+            try {
+                channel.close();
+            }
+            catch (IOException ioe) {
+                logger.log(Level.WARNING, "Error closing thumbnail pack " + file.getAbsolutePath(), ioe);
+            }
+            channel = null;
+            mappedBuffer = null;
+        }
+
+        /**
+         * Appends a record to the end of the pack. A null data array appends a tombstone.
+         */
+        private void append(String key, byte[] data) throws IOException {
+            if (channel == null) {
+                throw new IOException("Thumbnail pack is closed: " + file.getAbsolutePath());
+            }
+            byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+            int dataLength = data == null ? TOMBSTONE : data.length;
+            if (fileSize + 8 + keyBytes.length + Math.max(dataLength, 0) > MAX_PACK_SIZE) {
+                throw new IOException("Thumbnail pack is full: " + file.getAbsolutePath());
+            }
+            ByteBuffer record = ByteBuffer.allocate(8 + keyBytes.length + (data == null ? 0 : data.length));
+            record.putInt(keyBytes.length).put(keyBytes).putInt(dataLength);
+            if (data != null) {
+                record.put(data);
+            }
+            record.flip();
+            long offset = fileSize;
+            while (record.hasRemaining()) {
+                offset += channel.write(record, offset);
+            }
+
+            removeFromIndex(key);
+            if (data != null) {
+                index.put(key, new long[]{fileSize + 8 + keyBytes.length, dataLength});
+                liveBytes += dataLength;
+            }
+            fileSize = offset;
+        }
+
+        private void removeFromIndex(String key) {
+            long[] previous = index.remove(key);
+            if (previous != null) {
+                liveBytes -= previous[1];
+            }
+        }
+
+        /**
+         * Rewrites this pack with only its live records, if enough of it is dead weight.
+         */
+        private void maybeCompact() throws IOException {
+            if (fileSize < minCompactSize || liveBytes * 2 > fileSize) {
+                return;
+            }
+            logger.log(Level.FINE, "Compacting thumbnail pack {0} ({1} of {2} bytes live)",
+                       new Object[]{file.getAbsolutePath(), liveBytes, fileSize});
+
+            // Read everything that's still live before we close the old file:
+            Map<String, byte[]> live = new LinkedHashMap<>();
+            for (String key : index.keySet()) {
+                live.put(key, read(key));
+            }
+            File tempFile = new File(file.getParentFile(), file.getName() + ".tmp");
+            PackFile compacted = new PackFile(tempFile);
+            FileUtils.deleteQuietly(tempFile);
+            compacted.open(true);
+            for (Map.Entry<String, byte[]> entry : live.entrySet()) {
+                compacted.append(entry.getKey(), entry.getValue());
+            }
+            compacted.channel.force(true);
+            compacted.close();
+
+            close(); // drops our mapping of the old file, too
+            try {
+                Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                           StandardCopyOption.ATOMIC_MOVE);
+                minCompactSize = MIN_COMPACT_SIZE;
+            }
+            catch (IOException ioe) {
+                // Something still has the old file open or mapped. Carry on with it as it is,
+                // and don't try again until it has grown quite a bit more:
+                logger.log(Level.WARNING, "Unable to compact thumbnail pack " + file.getAbsolutePath(), ioe);
+                FileUtils.deleteQuietly(tempFile);
+                minCompactSize = fileSize * 2;
+            }
+            index.clear();
+            liveBytes = 0;
+            open(true);
+        }
+    }
+}
@@ -0,0 +1,101 @@
+package ca.corbett.imageviewer.ui;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.attribute.BasicFileAttributes;
+
+/**
+ * Identifies a particular version of a source image by its last modified time and length.
+ * A stamp is recorded alongside each cached thumbnail, so that if the source image is
+ * later edited in place, the cached thumbnail can be recognized as stale.
+ * <p>
+ * Both values come from a single stat of the source file (see of()). Thumbnails cached
+ * before stamps were recorded have no stamp; for those we fall back to comparing the
+ * source's last modified time against the time the thumbnail was written (see asOf()).
+ * </p>
+ *
+ * @author <a href="https://github.com/scorbo2">scorbo2</a>
+ * @since ImageViewer 3.3
+ */
+public final class SourceStamp {
+
+    private static final long UNKNOWN_LENGTH = -1;
+
+    private final long lastModified;
+    private final long length;
+
+    public SourceStamp(long lastModified, long length) {
+        this.lastModified = lastModified;
+        this.length = length;
+    }
+
+    /**
+     * Stats the given file and returns its current stamp.
+     *
+     * @param file The source image file.
+     * @return The file's current stamp, or null if the file doesn't exist or can't be read.
+     */
+    public static SourceStamp of(File file) {
+        try {
+            BasicFileAttributes attributes = Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+            return new SourceStamp(attributes.lastModifiedTime().toMillis(), attributes.size());
+        }
+        catch (IOException | SecurityException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Returns a stand-in stamp for a thumbnail that was cached without one. It will be
+     * considered valid for any version of the source that was last modified no later
+     * than the given time.
+     *
+     * @param thumbWrittenTime When the thumbnail was written.
+     * @return A stand-in stamp.
+     */
+    static SourceStamp asOf(long thumbWrittenTime) {
+        return new SourceStamp(thumbWrittenTime, UNKNOWN_LENGTH);
+    }
+
+    public long getLastModified() {
+        return lastModified;
+    }
+
+    public long getLength() {
+        return length;
+    }
+
+    /**
+     * Reports whether a thumbnail recorded with this stamp is still valid for a source
+     * image whose current stamp is the one given.
+     *
+     * @param current The source image's current stamp.
+     * @return True if the thumbnail is still good.
+     */
+    public boolean isValidFor(SourceStamp current) {
+        if (length == UNKNOWN_LENGTH) {
+            return current.lastModified <= lastModified;
+        }
+        return lastModified == current.lastModified && length == current.length;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof SourceStamp)) {
+            return false;
+        }
+        SourceStamp other = (SourceStamp)o;
+        return lastModified == other.lastModified && length == other.length;
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * Long.hashCode(lastModified) + Long.hashCode(length);
+    }
+
+    @Override
+    public String toString() {
+        return length == UNKNOWN_LENGTH ? "(as of " + lastModified + ")" : lastModified + "/" + length;
+    }
+}
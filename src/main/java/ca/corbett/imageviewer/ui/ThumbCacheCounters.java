@@ -0,0 +1,270 @@
+package ca.corbett.imageviewer.ui;
+
+import ca.corbett.imageviewer.AppConfig;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Running totals of what's in the thumbnail cache: how many thumbnails and how many bytes,
+ * in total, per thumbnail size, and per top-level directory of the source images. These
+ * are updated incrementally as thumbnails are written and removed, so reporting cache
+ * statistics never requires a walk of the cache.
+ * <p>
+ * The counters are persisted to a small properties file in the cache directory, so that
+ * they're available immediately on startup. They can drift from reality over time (for
+ * example, if thumbnails are removed by hand, or the application crashes before saving),
+ * so they are periodically reconciled against the actual cache contents by an audit
+ * (see ThumbCacheEvictor). The time of the last audit is recorded, along with whether
+ * the counters were saved on a clean shutdown, so that we can tell when one is due.
+ * </p>
+ *
+ * @author <a href="https://github.com/scorbo2">scorbo2</a>
+ * @since ImageViewer 3.3
+ */
+final class ThumbCacheCounters {
+
+    private static final Logger logger = Logger.getLogger(ThumbCacheCounters.class.getName());
+
+    private static final String PROP_AUDIT_TIME = "lastAudit";
+    private static final String PROP_CLEAN = "cleanShutdown";
+    private static final String PREFIX_SIZE = "size.";
+    private static final String PREFIX_ROOT = "root.";
+    private static final String SUFFIX_COUNT = ".count";
+    private static final String SUFFIX_BYTES = ".bytes";
+
+    private final File file;
+    private final long[] countBySize = new long[AppConfig.ThumbSize.values().length];
+    private final long[] bytesBySize = new long[AppConfig.ThumbSize.values().length];
+    private final Map<String, long[]> byRoot = new TreeMap<>(); // root -> {count, bytes}
+    private long lastAuditTime;
+    private boolean wasCleanShutdown;
+
+    /**
+     * Creates a new, empty set of counters.
+     *
+     * @param file The file in which to persist the counters (need not exist yet).
+     */
+    ThumbCacheCounters(File file) {
+        this.file = file;
+    }
+
+    /**
+     * Adjusts the counters for a thumbnail of the given size, belonging to the given source image.
+     *
+     * @param srcFile    The source image.
+     * @param size       The thumbnail size.
+     * @param countDelta +1 for a new thumbnail, -1 for a removed one, or 0 if it was replaced.
+     * @param bytesDelta The change in bytes on disk.
+     */
+    synchronized void adjust(File srcFile, int size, int countDelta, long bytesDelta) {
+        adjust(getRoot(srcFile), size, countDelta, bytesDelta);
+    }
+
+    /**
+     * As adjust(File,int,int,long), but for any number of thumbnails under the given root (see getRoot()).
+     */
+    synchronized void adjust(String rootName, int size, long countDelta, long bytesDelta) {
+        int slot = getSlot(size);
+        if (slot < 0) {
+            return;
+        }
+        countBySize[slot] += countDelta;
+        bytesBySize[slot] += bytesDelta;
+        long[] root = byRoot.computeIfAbsent(rootName, r -> new long[2]);
+        root[0] += countDelta;
+        root[1] += bytesDelta;
+        if (root[0] <= 0) {
+            byRoot.remove(rootName);
+        }
+    }
+
+    /**
+     * Zeroes all counters. If this is in preparation for an audit, follow up with auditCompleted().
+     */
+    synchronized void reset() {
+        for (int i = 0; i < countBySize.length; i++) {
+            countBySize[i] = 0;
+            bytesBySize[i] = 0;
+        }
+        byRoot.clear();
+    }
+
+    /**
+     * Replaces all counters with those of the given set, which is typically a tally
+     * built up by an audit. Follow up with auditCompleted().
+     */
+    synchronized void copyFrom(ThumbCacheCounters other) {
+        synchronized (other) {
+            System.arraycopy(other.countBySize, 0, countBySize, 0, countBySize.length);
+            System.arraycopy(other.bytesBySize, 0, bytesBySize, 0, bytesBySize.length);
+            byRoot.clear();
+            for (Map.Entry<String, long[]> entry : other.byRoot.entrySet()) {
+                byRoot.put(entry.getKey(), entry.getValue().clone());
+            }
+        }
+    }
+
+    /**
+     * Records that the counters have just been reconciled with the actual cache contents.
+     */
+    synchronized void auditCompleted() {
+        lastAuditTime = System.currentTimeMillis();
+    }
+
+    synchronized long getLastAuditTime() {
+        return lastAuditTime;
+    }
+
+    /**
+     * Reports whether the counters were last saved on a clean shutdown. If not, they may be stale.
+     */
+    synchronized boolean wasCleanShutdown() {
+        return wasCleanShutdown;
+    }
+
+    synchronized long getTotalBytes() {
+        long total = 0;
+        for (long bytes : bytesBySize) {
+            total += bytes;
+        }
+        return total;
+    }
+
+    synchronized ThumbCacheManager.CacheStats getStats() {
+        long totalCount = 0;
+        long totalBytes = 0;
+        Map<Integer, long[]> sizes = new LinkedHashMap<>();
+        AppConfig.ThumbSize[] thumbSizes = AppConfig.ThumbSize.values();
+        for (int i = 0; i < thumbSizes.length; i++) {
+            totalCount += countBySize[i];
+            totalBytes += bytesBySize[i];
+            if (countBySize[i] > 0) {
+                sizes.put(thumbSizes[i].getDimensions(), new long[]{countBySize[i], bytesBySize[i]});
+            }
+        }
+        Map<String, long[]> roots = new LinkedHashMap<>();
+        for (Map.Entry<String, long[]> entry : byRoot.entrySet()) {
+            roots.put(entry.getKey(), entry.getValue().clone());
+        }
+        return new ThumbCacheManager.CacheStats(totalCount, totalBytes, sizes, roots, lastAuditTime);
+    }
+
+    /**
+     * Loads the counters from disk, if they've been saved before. Afterward, the file is
+     * immediately marked as not cleanly shut down, so that if we crash before the next
+     * save(), we'll know on the next startup that the counters can't be trusted.
+     *
+     * @return True if counters were loaded, false if there were none (or they were unreadable).
+     */
+    synchronized boolean load() {
+        reset();
+        lastAuditTime = 0;
+        wasCleanShutdown = false;
+        if (!file.exists()) {
+            return false;
+        }
+        Properties props = new Properties();
+        try (InputStream in = new FileInputStream(file)) {
+            props.load(in);
+            lastAuditTime = Long.parseLong(props.getProperty(PROP_AUDIT_TIME, "0"));
+            wasCleanShutdown = Boolean.parseBoolean(props.getProperty(PROP_CLEAN, "false"));
+            AppConfig.ThumbSize[] thumbSizes = AppConfig.ThumbSize.values();
+            for (int i = 0; i < thumbSizes.length; i++) {
+                String prefix = PREFIX_SIZE + thumbSizes[i].getDimensions();
+                countBySize[i] = Long.parseLong(props.getProperty(prefix + SUFFIX_COUNT, "0"));
+                bytesBySize[i] = Long.parseLong(props.getProperty(prefix + SUFFIX_BYTES, "0"));
+            }
+            for (String name : props.stringPropertyNames()) {
+                if (name.startsWith(PREFIX_ROOT) && name.endsWith(SUFFIX_COUNT)) {
+                    String root = name.substring(PREFIX_ROOT.length(), name.length() - SUFFIX_COUNT.length());
+                    byRoot.put(root, new long[]{
+                            Long.parseLong(props.getProperty(name)),
+                            Long.parseLong(props.getProperty(PREFIX_ROOT + root + SUFFIX_BYTES, "0"))});
+                }
+            }
+        }
+        catch (IOException | NumberFormatException e) {
+            logger.log(Level.WARNING, "Unable to load thumbnail cache statistics; they will be rebuilt.", e);
+            reset();
+            lastAuditTime = 0;
+            return false;
+        }
+        checkpoint();
+        return true;
+    }
+
+    /**
+     * Saves the counters to disk, marking them as trustworthy for the next startup.
+     * Intended to be invoked on shutdown.
+     */
+    synchronized void save() {
+        write(true);
+    }
+
+    /**
+     * Saves the counters to disk, but without marking them as trustworthy, since
+     * they'll keep changing after this. If we don't get as far as save(), the next
+     * startup will know to audit them.
+     */
+    synchronized void checkpoint() {
+        write(false);
+    }
+
+    private void write(boolean isClean) {
+        Properties props = new Properties();
+        props.setProperty(PROP_AUDIT_TIME, Long.toString(lastAuditTime));
+        props.setProperty(PROP_CLEAN, Boolean.toString(isClean));
+        AppConfig.ThumbSize[] thumbSizes = AppConfig.ThumbSize.values();
+        for (int i = 0; i < thumbSizes.length; i++) {
+            String prefix = PREFIX_SIZE + thumbSizes[i].getDimensions();
+            props.setProperty(prefix + SUFFIX_COUNT, Long.toString(countBySize[i]));
+            props.setProperty(prefix + SUFFIX_BYTES, Long.toString(bytesBySize[i]));
+        }
+        for (Map.Entry<String, long[]> entry : byRoot.entrySet()) {
+            props.setProperty(PREFIX_ROOT + entry.getKey() + SUFFIX_COUNT, Long.toString(entry.getValue()[0]));
+            props.setProperty(PREFIX_ROOT + entry.getKey() + SUFFIX_BYTES, Long.toString(entry.getValue()[1]));
+        }
+        file.getParentFile().mkdirs();
+        try (OutputStream out = new FileOutputStream(file)) {
+            props.store(out, "Thumbnail cache statistics");
+        }
+        catch (IOException ioe) {
+            logger.log(Level.WARNING, "Unable to save thumbnail cache statistics.", ioe);
+        }
+    }
+
+    /**
+     * Returns the top-level directory that the given source image lives under, for
+     * the per-root breakdown. For example, /home/user/image.jpg is under /home.
+     */
+    static String getRoot(File srcFile) {
+        Path path = srcFile.getAbsoluteFile().toPath();
+        Path root = path.getRoot();
+        if (root == null) {
+            return "";
+        }
+        return path.getNameCount() > 1 ? root.resolve(path.getName(0)).toString() : root.toString();
+    }
+
+    static int getSlot(int size) {
+        AppConfig.ThumbSize[] sizes = AppConfig.ThumbSize.values();
+        for (int i = 0; i < sizes.length; i++) {
+            if (sizes[i].getDimensions() == size) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
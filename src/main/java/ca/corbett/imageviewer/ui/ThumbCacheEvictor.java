@@ -0,0 +1,486 @@
+package ca.corbett.imageviewer.ui;
+
+import ca.corbett.extras.io.FileSystemUtil;
+import ca.corbett.imageviewer.AppConfig;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Keeps the thumbnail cache within its configured maximum size by evicting the
+ * thumbnails of the least recently used source images, and keeps the cache
+ * statistics (see ThumbCacheCounters) up to date as it goes.
+ * <p>
+ * ThumbCacheManager tells us about every write, access, copy, move and removal as it
+ * happens, and every change is applied to the counters. So checking the size against
+ * the limit, or reporting statistics, never needs a walk of the cache.
+ * </p>
+ * <p>
+ * The counters are only ever adjusted by what the store itself says a thumbnail occupies,
+ * measured before and after each change (see measure() and recordChange()). When the
+ * persisted counters are trusted on startup, we know nothing yet about thumbnails written
+ * in earlier sessions, and they still have to be counted correctly when they are removed,
+ * replaced, copied or moved.
+ * </p>
+ * <p>
+ * On startup, the counters are loaded from disk and used as-is, provided they were
+ * saved on a clean shutdown and were audited recently (AUDIT_INTERVAL_MS). Otherwise,
+ * an audit is started: a background walk of the cache, one mirror directory at a time,
+ * that tallies up the counters from scratch. Changes made while an audit is underway may
+ * be miscounted, if they happen in a directory the walk has already passed; the next
+ * audit straightens that out.
+ * </p>
+ * <p>
+ * When a write takes us over the limit, eviction is scheduled on a background thread, and
+ * proceeds until we're comfortably (LOW_WATER_RATIO) below the limit, so that we aren't
+ * evicting something on every single write once the cache is full. Nothing that happens
+ * here ever blocks a thumbnail load.
+ * </p>
+ * <p>
+ * Recency is tracked per source directory rather than per image, and it's kept on disk
+ * rather than in memory: the last modified time of each mirror directory in the cache is
+ * bumped whenever a thumbnail in it is written or accessed (at most once per
+ * TOUCH_INTERVAL_MS). Eviction lists the mirror directories, oldest first, and evicts the
+ * images in each, oldest thumbnail first, until we're below the low water mark. That's an
+ * approximation of least recently used, but it costs nothing per image, however large the
+ * cache grows, and it survives a restart.
+ * </p>
+ *
+ * @author <a href="https://github.com/scorbo2">scorbo2</a>
+ * @since ImageViewer 3.3
+ */
+final class ThumbCacheEvictor {
+
+    private static final Logger logger = Logger.getLogger(ThumbCacheEvictor.class.getName());
+
+    /**
+     * Once eviction starts, it continues until the cache is down to this fraction of the limit.
+     */
+    static final double LOW_WATER_RATIO = 0.9;
+
+    /**
+     * Persisted counters older than this are reconciled with the cache contents on startup.
+     */
+    static final long AUDIT_INTERVAL_MS = 7L * 24 * 60 * 60 * 1000;
+
+    /**
+     * A mirror directory is marked as used at most this often, no matter how often its thumbnails are.
+     */
+    static final long TOUCH_INTERVAL_MS = 60L * 1000;
+
+    /**
+     * If an eviction can't get us below the limit, we don't try again for this long.
+     */
+    private static final long EVICTION_BACKOFF_MS = 10L * 60 * 1000;
+
+    private static final int MAX_RECENT_TOUCHES = 256;
+
+    private final LongSupplier maxBytesSupplier;
+    private final File cacheDir;
+    private final FileTreeThumbStore mirror;
+    private final Supplier<ThumbStore> storeSupplier;
+    private final Consumer<File> remover;
+    private final ThumbCacheCounters counters;
+    private final ExecutorService executor;
+
+    /**
+     * Source directory -> when we last marked its mirror directory as used.
+     * Only the most recent few are kept; it's just there to save on touching the disk.
+     */
+    private final Map<File, Long> recentTouches = new LinkedHashMap<>(MAX_RECENT_TOUCHES, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<File, Long> eldest) {
+            return size() > MAX_RECENT_TOUCHES;
+        }
+    };
+    private long evictionCount;
+    private long nextEvictionTime;
+    private boolean isAudited;
+    private boolean isAuditScheduled;
+    private boolean isEvictionScheduled;
+    private int auditGeneration;
+
+    /**
+     * Creates a new evictor.
+     *
+     * @param maxBytesSupplier Supplies the maximum cache size in bytes. Zero or less means unlimited.
+     * @param cacheDir         The top-level cache directory.
+     * @param mirror           Maps source directories to and from their mirror directories in the cache.
+     * @param storeSupplier    Supplies the store to measure and walk.
+     * @param remover          Invoked (on our background thread) to remove all thumbnails for a source image.
+     * @param counters         The cache statistics to keep up to date.
+     */
+    ThumbCacheEvictor(LongSupplier maxBytesSupplier, File cacheDir, FileTreeThumbStore mirror,
+                      Supplier<ThumbStore> storeSupplier, Consumer<File> remover, ThumbCacheCounters counters) {
+        this.maxBytesSupplier = maxBytesSupplier;
+        this.cacheDir = cacheDir;
+        this.mirror = mirror;
+        this.storeSupplier = storeSupplier;
+        this.remover = remover;
+        this.counters = counters;
+        this.executor = Executors.newSingleThreadExecutor(r -> {
+            Thread thread = new Thread(r, "ThumbCacheEvictor");
+            thread.setDaemon(true);
+            thread.setPriority(Thread.MIN_PRIORITY);
+            return thread;
+        });
+    }
+
+    /**
+     * Loads the persisted counters, and starts an audit if they can't be trusted.
+     * Intended to be invoked once on startup.
+     */
+    void start() {
+        boolean isLoaded = counters.load();
+        long age = System.currentTimeMillis() - counters.getLastAuditTime();
+        if (!isLoaded || !counters.wasCleanShutdown() || age > AUDIT_INTERVAL_MS) {
+            audit();
+        }
+        else {
+            scheduleEvictionIfNeeded();
+        }
+    }
+
+    /**
+     * Saves the counters. Intended to be invoked on shutdown.
+     */
+    void stop() {
+        counters.save();
+    }
+
+    /**
+     * Walks the store, in the background, to find out what's actually in the cache, and
+     * replaces the counters with what was found.
+     */
+    void audit() {
+        final int generation;
+        synchronized (this) {
+            auditGeneration++;
+            generation = auditGeneration;
+            isAudited = false;
+            isAuditScheduled = true;
+        }
+        executor.submit(() -> {
+            long startTime = System.currentTimeMillis();
+            ThumbCacheCounters found = new ThumbCacheCounters(null); // just a tally; never saved
+            ThumbStore store = storeSupplier.get();
+            forEachSourceDirectory(cacheDir, (mirrorDir, srcDir) ->
+                    store.forEachThumbnail(srcDir, false, (srcFile, size, bytes, lastModified) ->
+                            found.adjust(srcFile, size, 1, bytes)));
+
+            synchronized (this) {
+                if (generation != auditGeneration) {
+                    return; // reset or re-audited while we were walking; this is stale
+                }
+                counters.copyFrom(found);
+                counters.auditCompleted();
+                counters.checkpoint();
+                isAudited = true;
+                isAuditScheduled = false;
+                nextEvictionTime = 0;
+            }
+            logger.log(Level.INFO, "Thumbnail cache holds {0} in {1} thumbnails (audited in {2}ms).",
+                       new Object[]{FileSystemUtil.getPrintableSize(found.getTotalBytes()),
+                               found.getStats().getThumbnailCount(), System.currentTimeMillis() - startTime});
+            scheduleEvictionIfNeeded();
+        });
+    }
+
+    /**
+     * Forgets everything. Invoke this if the cache has been cleared out from under us.
+     * Since an empty cache is trivially known, this counts as an audit.
+     */
+    synchronized void reset() {
+        counters.reset();
+        counters.auditCompleted();
+        counters.checkpoint();
+        auditGeneration++;
+        isAudited = true;
+        isAuditScheduled = false;
+        nextEvictionTime = 0;
+        synchronized (recentTouches) {
+            recentTouches.clear();
+        }
+    }
+
+    /**
+     * Marks the given source image as recently used.
+     */
+    void recordAccess(File srcFile) {
+        touch(srcFile.getAbsoluteFile().getParentFile());
+    }
+
+    /**
+     * Records that a thumbnail of the given size has been written for the given source image.
+     *
+     * @param srcFile       The source image.
+     * @param size          The thumbnail size.
+     * @param previousBytes What the store said the thumbnail it replaced occupied (0 if none),
+     *                      measured before the write (see ThumbStore.sizeOf()).
+     * @param bytes         What the store says the new thumbnail occupies.
+     */
+    void recordWrite(File srcFile, int size, long previousBytes, long bytes) {
+        int slot = ThumbCacheCounters.getSlot(size);
+        if (slot < 0) {
+            return;
+        }
+        File key = srcFile.getAbsoluteFile();
+        adjust(key, slot, previousBytes, bytes);
+        touch(key.getParentFile());
+        scheduleEvictionIfNeeded();
+    }
+
+    /**
+     * Returns how many bytes the store holds for the given source image right now, per
+     * ThumbSize (by ordinal). Take this before removing, copying over, or moving the
+     * image's thumbnails, and hand it to recordChange() afterward.
+     */
+    long[] measure(File srcFile) {
+        ThumbStore store = storeSupplier.get();
+        AppConfig.ThumbSize[] thumbSizes = AppConfig.ThumbSize.values();
+        long[] sizes = new long[thumbSizes.length];
+        for (int i = 0; i < thumbSizes.length; i++) {
+            sizes[i] = store.sizeOf(srcFile, thumbSizes[i].getDimensions());
+        }
+        return sizes;
+    }
+
+    /**
+     * Records that the thumbnails for the given source image have been removed, copied over,
+     * or otherwise changed, given what the store held for it beforehand (see measure()).
+     */
+    void recordChange(File srcFile, long[] before) {
+        applyChange(srcFile.getAbsoluteFile(), before, measure(srcFile));
+        scheduleEvictionIfNeeded();
+    }
+
+    /**
+     * Returns the number and total size of the thumbnails the store holds for everything
+     * in the given directory and below, by root (see ThumbCacheCounters.getRoot()) and
+     * then by ThumbSize (by ordinal). Take this before copying or moving a directory, and
+     * hand it to recordDirectoryChange() afterward.
+     */
+    Map<String, long[][]> measureDirectory(File dir) {
+        int slotCount = AppConfig.ThumbSize.values().length;
+        Map<String, long[][]> totals = new HashMap<>();
+        storeSupplier.get().forEachThumbnail(dir, true, (srcFile, size, bytes, lastModified) -> {
+            int slot = ThumbCacheCounters.getSlot(size);
+            if (slot < 0) {
+                return;
+            }
+            long[] total = totals.computeIfAbsent(ThumbCacheCounters.getRoot(srcFile),
+                                                  r -> new long[slotCount][2])[slot];
+            total[0]++;
+            total[1] += bytes;
+        });
+        return totals;
+    }
+
+    /**
+     * Records that the thumbnails for everything in the given directory (and below) have been
+     * changed by copying or moving a directory, given what the store held beforehand
+     * (see measureDirectory()).
+     */
+    void recordDirectoryChange(File dir, Map<String, long[][]> before) {
+        Map<String, long[][]> after = measureDirectory(dir);
+        AppConfig.ThumbSize[] thumbSizes = AppConfig.ThumbSize.values();
+        Set<String> roots = new HashSet<>(before.keySet());
+        roots.addAll(after.keySet());
+        for (String root : roots) {
+            long[][] rootBefore = before.getOrDefault(root, new long[thumbSizes.length][2]);
+            long[][] rootAfter = after.getOrDefault(root, new long[thumbSizes.length][2]);
+            for (int i = 0; i < thumbSizes.length; i++) {
+                counters.adjust(root, thumbSizes[i].getDimensions(), rootAfter[i][0] - rootBefore[i][0],
+                                rootAfter[i][1] - rootBefore[i][1]);
+            }
+        }
+        scheduleEvictionIfNeeded();
+    }
+
+    long getTotalBytes() {
+        return counters.getTotalBytes();
+    }
+
+    ThumbCacheManager.CacheStats getStats() {
+        return counters.getStats();
+    }
+
+    synchronized long getEvictionCount() {
+        return evictionCount;
+    }
+
+    synchronized boolean isAudited() {
+        return isAudited;
+    }
+
+    /**
+     * Blocks until any scheduled audit or eviction has finished.
+     */
+    void awaitIdle() throws Exception {
+        executor.submit(() -> {
+        }).get();
+    }
+
+    private void scheduleEvictionIfNeeded() {
+        long maxBytes = maxBytesSupplier.getAsLong();
+        synchronized (this) {
+            if (maxBytes <= 0 || counters.getTotalBytes() <= maxBytes || isAuditScheduled || isEvictionScheduled
+                    || System.currentTimeMillis() < nextEvictionTime) {
+                return;
+            }
+            isEvictionScheduled = true;
+        }
+        executor.submit(this::evict);
+    }
+
+    /**
+     * Invoked on our background thread to evict the least recently used source images until
+     * we're below the low water mark.
+     */
+    private void evict() {
+        long lowWater = (long)(maxBytesSupplier.getAsLong() * LOW_WATER_RATIO);
+        List<UsedDirectory> directories = new ArrayList<>();
+        forEachSourceDirectory(cacheDir, (mirrorDir, srcDir) ->
+                directories.add(new UsedDirectory(srcDir, mirrorDir, mirrorDir.lastModified())));
+        directories.sort((a, b) -> Long.compare(a.lastUsed, b.lastUsed));
+
+        int count = 0;
+        for (UsedDirectory directory : directories) {
+            if (counters.getTotalBytes() <= lowWater) {
+                break;
+            }
+            count += evictFrom(directory, lowWater);
+        }
+        synchronized (this) {
+            isEvictionScheduled = false;
+            if (counters.getTotalBytes() > lowWater) {
+                logger.log(Level.WARNING, "Unable to bring the thumbnail cache below its limit; "
+                        + "will try again later.");
+                nextEvictionTime = System.currentTimeMillis() + EVICTION_BACKOFF_MS;
+            }
+        }
+        logger.log(Level.FINE, "Evicted thumbnails for {0} images from the thumbnail cache.", count);
+    }
+
+    /**
+     * Evicts images from the given directory, oldest thumbnails first, until we're below the
+     * given low water mark or the directory is empty. A directory that has been used since we
+     * listed it is left alone.
+     *
+     * @return How many images were evicted.
+     */
+    private int evictFrom(UsedDirectory directory, long lowWater) {
+        if (directory.mirrorDir.lastModified() != directory.lastUsed) {
+            return 0;
+        }
+        Map<File, Long> images = new HashMap<>(); // source image -> when its newest thumbnail was written
+        storeSupplier.get().forEachThumbnail(directory.srcDir, false, (srcFile, size, bytes, lastModified) ->
+                images.merge(srcFile.getAbsoluteFile(), lastModified, Math::max));
+        List<Map.Entry<File, Long>> oldestFirst = new ArrayList<>(images.entrySet());
+        oldestFirst.sort(Map.Entry.comparingByValue());
+
+        int count = 0;
+        for (Map.Entry<File, Long> image : oldestFirst) {
+            if (counters.getTotalBytes() <= lowWater) {
+                break;
+            }
+            File victim = image.getKey();
+            long[] before = measure(victim);
+            remover.accept(victim);
+            applyChange(victim, before, measure(victim));
+            synchronized (this) {
+                evictionCount++;
+            }
+            count++;
+        }
+
+        // Removing thumbnails shouldn't make what's left look recently used:
+        directory.mirrorDir.setLastModified(directory.lastUsed);
+        return count;
+    }
+
+    /**
+     * Marks the mirror directory of the given source directory as used just now,
+     * unless we've already done so within the last TOUCH_INTERVAL_MS.
+     */
+    private void touch(File srcDir) {
+        if (srcDir == null) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        synchronized (recentTouches) {
+            Long lastTouch = recentTouches.get(srcDir);
+            if (lastTouch != null && now - lastTouch < TOUCH_INTERVAL_MS) {
+                return;
+            }
+            recentTouches.put(srcDir, now);
+        }
+        mirror.getMirrorDirectory(srcDir).setLastModified(now); // no harm done if there isn't one
+    }
+
+    /**
+     * Recursively visits every mirror directory under the given directory in the cache, along
+     * with the source directory it mirrors.
+     */
+    private void forEachSourceDirectory(File dir, BiConsumer<File, File> visitor) {
+        for (File subdir : FileSystemUtil.findSubdirectories(dir, false)) {
+            if (dir.equals(cacheDir) && subdir.getName().equals(ContentAddressedThumbStore.CONTENT_DIRNAME)) {
+                continue; // that's not a mirror of anything
+            }
+            File srcDir = mirror.getSourceDirectory(subdir);
+            if (srcDir != null) {
+                visitor.accept(subdir, srcDir);
+            }
+            forEachSourceDirectory(subdir, visitor);
+        }
+    }
+
+    /**
+     * Adjusts the counters for a change in what's cached for the given source image.
+     */
+    private void applyChange(File srcFile, long[] before, long[] after) {
+        for (int i = 0; i < after.length; i++) {
+            adjust(srcFile, i, before[i], after[i]);
+        }
+    }
+
+    /**
+     * Adjusts the counters for one thumbnail that went from occupying before bytes to after
+     * bytes (either of which may be 0, for none).
+     */
+    private void adjust(File srcFile, int slot, long before, long after) {
+        if (before != after) {
+            counters.adjust(srcFile, AppConfig.ThumbSize.values()[slot].getDimensions(),
+                            (after > 0 ? 1 : 0) - (before > 0 ? 1 : 0), after - before);
+        }
+    }
+
+    /**
+     * A mirror directory found while looking for something to evict.
+     */
+    private static final class UsedDirectory {
+        final File srcDir;
+        final File mirrorDir;
+        final long lastUsed;
+
+        UsedDirectory(File srcDir, File mirrorDir, long lastUsed) {
+            this.srcDir = srcDir;
+            this.mirrorDir = mirrorDir;
+            this.lastUsed = lastUsed;
+        }
+    }
+}
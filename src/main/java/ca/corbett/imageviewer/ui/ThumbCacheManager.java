@@ -5,12 +5,17 @@ import ca.corbett.extras.io.FileSystemUtil;
 import ca.corbett.imageviewer.AppConfig;
 import ca.corbett.imageviewer.ImageOperation;
 import ca.corbett.imageviewer.Version;
+import ca.corbett.imageviewer.ui.threads.ThumbLoader;
 import org.apache.commons.io.FileUtils;
 
 import java.awt.image.BufferedImage;
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -20,13 +25,10 @@ import java.util.logging.Logger;
  * <p>
  * The cache is kept in the SETTINGS_DIR/thumbnails directory, and the
  * directory hierarchy matches the file system, almost like a chroot situation.
- * For example:
- * </p>
- * <blockquote>
- * SETTINGS_DIR/thumbnails/some/path/image_thumb32.jpg
- * </blockquote>
- * <p>
- * The above represents the 32x32 thumbnail for /some/path/image.jpg.
+ * How thumbnails are stored within that hierarchy depends on the cache backend
+ * selected in preferences: one jpeg file per thumbnail per size (see FileTreeThumbStore),
+ * a single pack file per directory (see PackedThumbStore), or one set of thumbnails per
+ * distinct image content, shared by all copies of that image (see ContentAddressedThumbStore).
  * </p>
  * <p>
  *     Caching can be enabled or disabled in the application preferences
@@ -39,6 +41,34 @@ import java.util.logging.Logger;
  *     prevent us from adding new thumbnails to the cache. Existing cached
  *     thumbnails will still be returned by get() if they exist.
  * </p>
+ * <p>
+ *     Thumbnails that are generated on the fly for display can be handed to
+ *     addDeferred(), which queues them to be written to the cache by a background
+ *     thread (see ThumbCacheWriter). Anything still queued is written out by
+ *     flushPendingWrites() on application shutdown.
+ * </p>
+ * <p>
+ *     Not every thumbnail size is necessarily cached for every image. The thumbnail
+ *     caching policy in preferences decides which sizes are generated up front, and
+ *     get() will derive any other size on demand from a larger cached one.
+ * </p>
+ * <p>
+ *     The cache is kept within the maximum size configured in preferences by evicting
+ *     the thumbnails of the least recently used images in the background (see ThumbCacheEvictor).
+ *     Every write, access and removal here is reported to the evictor as it happens, which
+ *     also keeps the cache statistics current, so gatherCacheStats() is instantaneous.
+ * </p>
+ * <p>
+ *     Each cached thumbnail records the last modified time and length of the source image
+ *     it was generated from (see SourceStamp). If the source image has since been edited
+ *     in place, get() recognizes the cached thumbnail as stale, removes it, and returns
+ *     null so that a fresh one is generated. Only that one image is affected.
+ * </p>
+ * <p>
+ *     Images that are deleted or moved outside of ImageViewer leave orphaned thumbnails
+ *     behind. These are cleaned up by a rate limited background sweep (see ThumbCacheSweeper),
+ *     which runs once a day, or on demand via sweepOrphans().
+ * </p>
  *
  * @author <a href="https://github.com/scorbo2">scorbo2</a>
  * @since ImageViewer 1.1
@@ -48,40 +78,186 @@ public final class ThumbCacheManager {
     public static final File CACHE_DIR = new File(Version.SETTINGS_DIR, "thumbnails");
     private static final Logger logger = Logger.getLogger(ThumbCacheManager.class.getName());
 
+    /**
+     * How long we're willing to hold up application shutdown to finish writing queued thumbnails.
+     */
+    private static final long SHUTDOWN_FLUSH_TIMEOUT_MS = 10000;
+
+    /**
+     * How long we'll wait for queued thumbnails to be written before relocating a directory.
+     */
+    private static final long DIRECTORY_FLUSH_TIMEOUT_MS = 2000;
+
+    private static final ThumbCacheWriter<ThumbKey> writer = new ThumbCacheWriter<>(ThumbCacheManager::writeThumbnail);
+    private static final FileTreeThumbStore fileTreeStore = new FileTreeThumbStore(CACHE_DIR);
+    private static final PackedThumbStore packedStore = new PackedThumbStore(CACHE_DIR, fileTreeStore);
+    private static final ContentAddressedThumbStore sharedStore = new ContentAddressedThumbStore(CACHE_DIR,
+                                                                                                 fileTreeStore);
+    private static final ThumbCacheEvictor evictor = new ThumbCacheEvictor(
+            () -> AppConfig.getInstance().getThumbCacheMaxBytes(), CACHE_DIR, fileTreeStore,
+            ThumbCacheManager::getStore, ThumbCacheManager::evict,
+            new ThumbCacheCounters(new File(CACHE_DIR, "cache-stats.properties")));
+    private static final ThumbCacheSweeper sweeper = new ThumbCacheSweeper(
+            CACHE_DIR, fileTreeStore, ThumbCacheManager::getStore, ThumbCacheManager::remove, ThumbLoader::isBusy);
+    private static ThumbStore currentStore;
+
+    /**
+     * The size of a write-behind entry that holds a source image rather than a thumbnail.
+     * Whatever other sizes the thumbnail caching policy calls for are scaled from it on the
+     * writer thread (see addDeferred()).
+     */
+    private static final int OTHER_SIZES = 0;
+
+    /**
+     * Identifies a single cached thumbnail: a source file at a given size. The stamp of the
+     * source image the thumbnail was generated from rides along, but isn't part of the identity.
+     * An OTHER_SIZES key also carries the thumbnail that was generated for display, so that
+     * it can be reused rather than scaled again.
+     */
+    private static final class ThumbKey {
+        final File srcFile;
+        final int size;
+        final SourceStamp stamp;
+        final int shownSize;
+        final BufferedImage shownThumb;
+
+        ThumbKey(File srcFile, int size) {
+            this(srcFile, size, null);
+        }
+
+        ThumbKey(File srcFile, int size, SourceStamp stamp) {
+            this(srcFile, size, stamp, 0, null);
+        }
+
+        ThumbKey(File srcFile, int size, SourceStamp stamp, int shownSize, BufferedImage shownThumb) {
+            this.srcFile = srcFile.getAbsoluteFile();
+            this.size = size;
+            this.stamp = stamp;
+            this.shownSize = shownSize;
+            this.shownThumb = shownThumb;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof ThumbKey)) {
+                return false;
+            }
+            ThumbKey other = (ThumbKey)o;
+            return size == other.size && srcFile.equals(other.srcFile);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * srcFile.hashCode() + size;
+        }
+
+        @Override
+        public String toString() {
+            return srcFile.getAbsolutePath() + " @ " + size;
+        }
+    }
+
     static {
         CACHE_DIR.mkdirs();
     }
 
     /**
-     * An immutable data class to represent thumbnail cache statistics.
+     * An immutable data class to represent thumbnail cache statistics, with breakdowns
+     * per thumbnail size and per top-level source directory.
      */
     public static class CacheStats {
-        private final int thumbnailCount;
-        private final int fileCount;
+        private final long thumbnailCount;
         private final long totalSize;
+        private final Map<Integer, long[]> bySize;
+        private final Map<String, long[]> byRoot;
+        private final long lastAuditTime;
 
-        public CacheStats(int thumbCount, int fileCount, long totalSize) {
-            this.thumbnailCount = thumbCount;
-            this.fileCount = fileCount;
+        public CacheStats(long thumbnailCount, long totalSize, Map<Integer, long[]> bySize,
+                          Map<String, long[]> byRoot, long lastAuditTime) {
+            this.thumbnailCount = thumbnailCount;
             this.totalSize = totalSize;
+            this.bySize = Collections.unmodifiableMap(bySize);
+            this.byRoot = Collections.unmodifiableMap(byRoot);
+            this.lastAuditTime = lastAuditTime;
         }
 
-        public int getThumbnailCount() {
+        public long getThumbnailCount() {
             return thumbnailCount;
         }
 
-        public int getFileCount() {
-            return fileCount;
-        }
-
         public long getTotalSize() {
             return totalSize;
         }
 
+        /**
+         * Returns {thumbnail count, total bytes} for each thumbnail size present in the cache.
+         */
+        public Map<Integer, long[]> getBySize() {
+            return bySize;
+        }
+
+        /**
+         * Returns {thumbnail count, total bytes} for each top-level source directory
+         * (for example, /home) that has thumbnails in the cache.
+         */
+        public Map<String, long[]> getByRoot() {
+            return byRoot;
+        }
+
+        /**
+         * Returns when these statistics were last reconciled with the actual cache contents,
+         * in epoch millis, or 0 if never.
+         */
+        public long getLastAuditTime() {
+            return lastAuditTime;
+        }
+
         @Override
         public String toString() {
-            return thumbnailCount + " thumbnails in " + fileCount + " files, "
-                    + FileSystemUtil.getPrintableSize(totalSize) + " total.";
+            return thumbnailCount + " thumbnails, " + FileSystemUtil.getPrintableSize(totalSize) + " total.";
+        }
+    }
+
+    /**
+     * An immutable data class describing what a sweep for orphaned thumbnails removed.
+     */
+    public static class SweepResult {
+        private final int orphanCount;
+        private final long thumbnailCount;
+        private final long reclaimedBytes;
+        private final int removedDirectoryCount;
+
+        public SweepResult(int orphanCount, long thumbnailCount, long reclaimedBytes, int removedDirectoryCount) {
+            this.orphanCount = orphanCount;
+            this.thumbnailCount = thumbnailCount;
+            this.reclaimedBytes = reclaimedBytes;
+            this.removedDirectoryCount = removedDirectoryCount;
+        }
+
+        /**
+         * Returns how many source images no longer existed and had their thumbnails removed.
+         */
+        public int getOrphanCount() {
+            return orphanCount;
+        }
+
+        public long getThumbnailCount() {
+            return thumbnailCount;
+        }
+
+        public long getReclaimedBytes() {
+            return reclaimedBytes;
+        }
+
+        public int getRemovedDirectoryCount() {
+            return removedDirectoryCount;
+        }
+
+        @Override
+        public String toString() {
+            return thumbnailCount + " orphaned thumbnails for " + orphanCount + " images removed, "
+                    + FileSystemUtil.getPrintableSize(reclaimedBytes) + " reclaimed, "
+                    + removedDirectoryCount + " empty directories removed.";
         }
     }
 
@@ -90,52 +266,156 @@ public final class ThumbCacheManager {
 
     /**
      * Creates and returns a CacheStats object describing current cache statistics.
+     * These are maintained as the cache changes, so this returns immediately.
+     * They are reconciled with the actual cache contents from time to time; use
+     * auditCache() to force that.
+     *
+     * @return A populated CacheStats object.
+     */
+    public static CacheStats gatherCacheStats() {
+        return evictor.getStats();
+    }
+
+    /**
+     * Reports whether the cache has grown to within sight of its configured maximum size,
+     * that is, to the point the evictor trims it back down to. Optional work such as
+     * background warming should stop adding to the cache once this returns true, so as not
+     * to evict thumbnails the user has actually looked at in favour of ones they might.
+     *
+     * @return True if the cache is near its size limit. Always false if there is no limit.
+     */
+    public static boolean isNearSizeLimit() {
+        long maxBytes = AppConfig.getInstance().getThumbCacheMaxBytes();
+        return maxBytes > 0 && evictor.getTotalBytes() >= (long)(maxBytes * ThumbCacheEvictor.LOW_WATER_RATIO);
+    }
+
+    /**
+     * Walks the cache and reconciles the cache statistics with what's actually there.
      * This may take a while to execute depending on cache size, so you likely want
      * to invoke this method from a worker thread.
      *
      * @return A populated CacheStats object.
      */
-    public static CacheStats gatherCacheStats() {
-        List<File> list = FileSystemUtil.findFiles(CACHE_DIR, true, "jpg");
-        int fileCount = list.size();
-        int thumbnailCount = list.size() / AppConfig.ThumbSize.values().length;
-        long totalSize = 0;
-        for (File f : list) {
-            totalSize += f.length();
+    public static CacheStats auditCache() {
+        evictor.audit();
+        try {
+            evictor.awaitIdle();
+        }
+        catch (Exception e) {
+            logger.log(Level.WARNING, "Thumbnail cache audit did not complete.", e);
         }
-        return new CacheStats(thumbnailCount, fileCount, totalSize);
+        return evictor.getStats();
+    }
+
+    /**
+     * Finds cached thumbnails whose source images no longer exist, and removes them along
+     * with any cache directories that are left empty. This is throttled so as not to slow
+     * down browsing, which means it can take a long time on a large cache, so you'll want
+     * to invoke it from a worker thread. A sweep also runs on its own once a day.
+     *
+     * @return What was removed.
+     * @throws InterruptedException If interrupted partway through.
+     */
+    public static SweepResult sweepOrphans() throws InterruptedException {
+        return sweeper.sweep();
     }
 
     /**
      * Attempts to find and load a thumbnail matching the given file and the given thumbnail
-     * dimensions.
+     * dimensions. If there's no cached thumbnail at that size, but there is one at a larger
+     * size, the requested size is derived from the larger one (and cached, if caching is
+     * enabled). This is much cheaper than going back to the source image.
+     * <p>
+     *     If you've already stat'ed the source file, use get(File,int,SourceStamp) instead.
+     * </p>
      *
      * @param srcFile The image file for which we want to find a thumbnail.
      * @param size    The desired thumbnail size.
      * @return If found, the image is loaded and returned. otherwise, null.
      */
     public static BufferedImage get(File srcFile, int size) {
-        File thumbFile = generateThumbnailPath(srcFile, size);
-        if (thumbFile.exists()) {
-            try {
-                logger.log(Level.FINE, "Returning thumbnail {1} from cache for {0}",
-                           new Object[]{srcFile.getAbsolutePath(), size});
-                return ImageUtil.loadImage(thumbFile);
+        return get(srcFile, size, SourceStamp.of(srcFile));
+    }
+
+    /**
+     * Attempts to find and load a thumbnail matching the given file and the given thumbnail
+     * dimensions, as with get(File,int). Cached thumbnails that were generated from a
+     * different version of the source image than the one described by the given stamp
+     * are stale; they are removed, and not returned.
+     *
+     * @param srcFile The image file for which we want to find a thumbnail.
+     * @param size    The desired thumbnail size.
+     * @param stamp   The current stamp of srcFile (see SourceStamp.of()).
+     * @return If found, the image is loaded and returned. otherwise, null.
+     */
+    public static BufferedImage get(File srcFile, int size, SourceStamp stamp) {
+        if (stamp == null) {
+            return null; // source image is gone or unreadable
+        }
+        BufferedImage thumb = load(srcFile, size, stamp);
+        if (thumb != null) {
+            evictor.recordAccess(srcFile);
+            return thumb;
+        }
+
+        // See if we can derive this size from a larger one:
+        for (AppConfig.ThumbSize largerSize : AppConfig.ThumbSize.values()) {
+            if (largerSize.getDimensions() <= size) {
+                continue;
             }
-            catch (IOException | ArrayIndexOutOfBoundsException ioe) {
-                logger.log(Level.SEVERE, "Unable to load thumbnail from cache for " + srcFile.getAbsolutePath(), ioe);
+            BufferedImage largerThumb = load(srcFile, largerSize.getDimensions(), stamp);
+            if (largerThumb != null) {
+                logger.log(Level.FINE, "Deriving thumbnail {1} from cached thumbnail {2} for {0}",
+                           new Object[]{srcFile.getAbsolutePath(), size, largerSize.getDimensions()});
+                thumb = ImageUtil.generateThumbnail(largerThumb, size, size);
+                evictor.recordAccess(srcFile);
+                if (AppConfig.getInstance().isThumbCacheEnabled()) {
+                    writer.offer(new ThumbKey(srcFile, size, stamp), thumb);
+                }
+                return thumb;
             }
         }
+
         logger.log(Level.FINE, "No thumbnail in cache for {0}", srcFile.getAbsolutePath());
         return null;
     }
 
+    /**
+     * Reports whether the cache already holds current thumbnails for the given source image,
+     * at every size that the thumbnail caching policy would generate for it. Only the stamps
+     * stored with the thumbnails are checked; nothing is decoded, so this is cheap enough to
+     * check for every image before deciding whether to regenerate its thumbnails.
+     *
+     * @param srcFile The source image file.
+     * @param stamp   The current stamp of srcFile.
+     * @return True if there's nothing to regenerate for this image.
+     */
+    public static boolean isCached(File srcFile, SourceStamp stamp) {
+        if (stamp == null) {
+            return false;
+        }
+        ThumbStore store = getStore();
+        try {
+            for (int size : getPolicySizes()) {
+                SourceStamp cached = store.readStamp(srcFile, size);
+                if (cached == null || !cached.isValidFor(stamp)) {
+                    return false;
+                }
+            }
+        }
+        catch (IOException ioe) {
+            logger.log(Level.FINE, "Unable to check cached thumbnails for " + srcFile.getAbsolutePath(), ioe);
+            return false;
+        }
+        return true;
+    }
+
     /**
      * Loads an image from the given srcFile, generates thumbnails from it, and
      * stores them into the cache. If thumbnails already existed for the given file,
-     * they will be overwritten. Note that a thumbnail will be pregenerated at each
-     * supported thumbnail size. Rather than throw an exception on I/O error, the
-     * method simply returns false. Thumbnails are a fire-and-forget situation.
+     * they will be overwritten. Which thumbnail sizes are generated depends on the
+     * thumbnail caching policy in preferences. Rather than throw an exception on I/O error,
+     * the method simply returns false. Thumbnails are a fire-and-forget situation.
      * All errors will be logged here.
      *
      * @param srcFile The source file for which thumbnails should be generated.
@@ -148,7 +428,9 @@ public final class ThumbCacheManager {
     /**
      * Generates thumbnails for the given source image and stores them in the cache.
      * If thumbnails already existed for the given image, they will be overwritten.
-     * Note that a thumbnail will be pregenerated at each supported thumbnail size.
+     * Which thumbnail sizes are generated depends on the thumbnail caching policy in
+     * preferences. Where more than one size is generated, only the largest is scaled
+     * from the source image; the others are derived from it.
      * Rather than throw an exception on I/O error, the method simply returns false.
      * Thumbnails are a fire-and-forget situation. All errors will be logged here.
      * <p>
@@ -164,36 +446,360 @@ public final class ThumbCacheManager {
             return true;
         }
 
-        for (AppConfig.ThumbSize size : AppConfig.ThumbSize.values()) {
-            File thumbFile = generateThumbnailPath(srcFile, size.getDimensions());
-            logger.log(Level.FINE, "Generating thumbnail for {0} in {1}",
-                       new Object[]{srcFile.getAbsolutePath(), thumbFile.getAbsolutePath()});
-            try {
-                boolean cleanupRequired = false;
-                if (srcImage == null) {
-                    srcImage = ImageUtil.loadImage(srcFile);
-                    cleanupRequired = true;
-                }
+        // Stat the source before decoding it, so that if it changes underneath us,
+        // the thumbnail we store will be considered stale rather than current:
+        SourceStamp stamp = SourceStamp.of(srcFile);
+        if (stamp == null) {
+            return false;
+        }
 
-                // If the image is still null, it's not a valid image file:
-                if (srcImage == null) {
-                    return false;
-                }
+        boolean cleanupRequired = false;
+        try {
+            if (srcImage == null) {
+                srcImage = ThumbnailDecoder.load(srcFile, getSourceDecodeSize(AppConfig.getInstance().getThumbnailSize()));
+                cleanupRequired = true;
+            }
 
-                BufferedImage thumb = ImageUtil.generateThumbnail(srcImage, size.getDimensions(), size.getDimensions());
-                thumbFile.getParentFile().mkdirs();
-                ImageUtil.saveImage(thumb, thumbFile);
+            // If the image is still null, it's not a valid image file:
+            if (srcImage == null) {
+                return false;
+            }
+
+            return addThumbnails(srcFile, stamp, generateThumbnails(srcImage));
+        }
+        catch (IOException | ArrayIndexOutOfBoundsException ioe) {
+            logger.log(Level.SEVERE, "Error adding thumbnail for " + srcFile.getAbsolutePath() + " to cache.", ioe);
+            return false;
+        }
+        finally {
+            if (cleanupRequired && srcImage != null) {
+                srcImage.flush();
+            }
+        }
+    }
+
+    /**
+     * Stores thumbnails that have already been generated for the given source image (see
+     * generateThumbnails()), replacing any existing ones, and flushes them afterward. This
+     * is the last step of add(), split out so that callers processing many images can
+     * decode and scale on some threads, and encode and write on others.
+     * <p>
+     *     Does nothing if thumbnail caching is disabled in preferences.
+     * </p>
+     *
+     * @param srcFile The source image file.
+     * @param stamp   The stamp of srcFile, taken before it was decoded.
+     * @param thumbs  A map of thumbnail size to thumbnail image.
+     * @return Returns true if all went well, or false if images couldn't be stored.
+     */
+    public static boolean addThumbnails(File srcFile, SourceStamp stamp, Map<Integer, BufferedImage> thumbs) {
+        if (!AppConfig.getInstance().isThumbCacheEnabled()) {
+            return true;
+        }
+        try {
+            for (Map.Entry<Integer, BufferedImage> entry : thumbs.entrySet()) {
+                logger.log(Level.FINE, "Generating thumbnail {1} for {0}",
+                           new Object[]{srcFile.getAbsolutePath(), entry.getKey()});
+                writer.discard(new ThumbKey(srcFile, entry.getKey())); // about to be superseded
+                write(srcFile, entry.getKey(), entry.getValue(), stamp);
+            }
+            writer.discard(new ThumbKey(srcFile, OTHER_SIZES));
+        }
+        catch (IOException | ArrayIndexOutOfBoundsException ioe) {
+            logger.log(Level.SEVERE, "Error adding thumbnail for " + srcFile.getAbsolutePath() + " to cache.", ioe);
+            return false;
+        }
+        finally {
+            for (BufferedImage thumb : thumbs.values()) {
                 thumb.flush();
-                if (cleanupRequired) {
-                    srcImage.flush();
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Queues thumbnails for the given source image to be written to the cache by a background
+     * thread, and returns immediately. Use this when a thumbnail has just been generated for
+     * display and the caller shouldn't have to wait for the cache to be written. The thumbnail
+     * that was generated for display is cached as-is. Any other sizes required by the thumbnail
+     * caching policy are scaled from srcImage later, on the writer thread, so the caller must
+     * not modify either image after this (flushing them is fine).
+     * <p>
+     *     Does nothing if thumbnail caching is disabled in preferences. If the write-behind
+     *     queue is full, the image is simply not cached this time.
+     * </p>
+     *
+     * @param srcFile  The File from which srcImage was loaded.
+     * @param stamp    The stamp of srcFile, taken before srcImage was loaded.
+     * @param srcImage The full-size image loaded from srcFile.
+     * @param thumb    The thumbnail that was generated from srcImage for display.
+     * @param size     The size of that thumbnail.
+     */
+    public static void addDeferred(File srcFile, SourceStamp stamp, BufferedImage srcImage, BufferedImage thumb,
+                                   int size) {
+        if (!AppConfig.getInstance().isThumbCacheEnabled() || srcImage == null || stamp == null) {
+            return;
+        }
+        writer.offer(new ThumbKey(srcFile, size, stamp), thumb);
+        if (AppConfig.getInstance().getThumbCachePolicy() == AppConfig.ThumbCachePolicy.CurrentSizeOnly) {
+            return;
+        }
+        writer.offer(new ThumbKey(srcFile, OTHER_SIZES, stamp, size, thumb), srcImage);
+    }
+
+    /**
+     * Returns the size that a source image must be decoded at (see ThumbnailDecoder) so that
+     * a thumbnail of the given size can be generated from it, along with whatever other sizes
+     * the thumbnail caching policy will want to generate from that same source image.
+     *
+     * @param requestedSize The size of thumbnail the caller needs.
+     * @return The minimum size the source image should be decoded at.
+     */
+    public static int getSourceDecodeSize(int requestedSize) {
+        AppConfig config = AppConfig.getInstance();
+        if (!config.isThumbCacheEnabled() || config.getThumbCachePolicy() == AppConfig.ThumbCachePolicy.CurrentSizeOnly) {
+            return Math.max(requestedSize, config.getThumbnailSize());
+        }
+        return Math.max(requestedSize, getLargestThumbSize());
+    }
+
+    /**
+     * Loads the persisted cache statistics, and starts a background audit of the cache if
+     * they are stale. From then on, the cache is kept within its configured maximum size
+     * incrementally, as thumbnails are written. Also schedules the daily sweep for orphaned
+     * thumbnails. Intended to be invoked once on application startup.
+     */
+    public static void startSizeTracking() {
+        evictor.start();
+        sweeper.start();
+    }
+
+    /**
+     * Blocks until all thumbnails queued by addDeferred() have been written to the cache,
+     * or until a reasonable timeout elapses. Intended to be invoked on application shutdown.
+     */
+    public static void flushPendingWrites() {
+        int count = writer.getPendingCount();
+        if (count > 0) {
+            logger.log(Level.INFO, "Writing {0} queued thumbnails to cache.", count);
+        }
+        sweeper.stop();
+        writer.flushAll(SHUTDOWN_FLUSH_TIMEOUT_MS);
+        getStore().close();
+        evictor.stop();
+    }
+
+    /**
+     * Generates thumbnails from the given source image at whichever sizes the thumbnail
+     * caching policy calls for. Only the largest size is scaled from the source image; any
+     * smaller sizes are derived from that. Nothing is cached here; see addThumbnails().
+     *
+     * @param srcImage The source image, decoded at getSourceDecodeSize() or larger.
+     * @return A map of thumbnail size to thumbnail image.
+     */
+    public static Map<Integer, BufferedImage> generateThumbnails(BufferedImage srcImage) {
+        return generateThumbnails(srcImage, 0, null);
+    }
+
+    /**
+     * As generateThumbnails(BufferedImage), but reuses a thumbnail that has already been
+     * generated from srcImage at the given size, rather than scaling that size again. The
+     * returned map includes it, if the policy calls for that size.
+     */
+    private static Map<Integer, BufferedImage> generateThumbnails(BufferedImage srcImage, int knownSize,
+                                                                  BufferedImage knownThumb) {
+        Map<Integer, BufferedImage> thumbs = new LinkedHashMap<>();
+        int largest = getLargestThumbSize();
+        switch (AppConfig.getInstance().getThumbCachePolicy()) {
+            case CurrentSizeOnly:
+                int size = AppConfig.getInstance().getThumbnailSize();
+                thumbs.put(size, scale(srcImage, size, knownSize, knownThumb));
+                break;
+
+            case LargestPlusDerive:
+                thumbs.put(largest, scale(srcImage, largest, knownSize, knownThumb));
+                break;
+
+            case AllSizes:
+                BufferedImage master = scale(srcImage, largest, knownSize, knownThumb);
+                thumbs.put(largest, master);
+                for (AppConfig.ThumbSize thumbSize : AppConfig.ThumbSize.values()) {
+                    int dimensions = thumbSize.getDimensions();
+                    if (dimensions != largest) {
+                        thumbs.put(dimensions, scale(master, dimensions, knownSize, knownThumb));
+                    }
                 }
+                break;
+        }
+        return thumbs;
+    }
+
+    private static BufferedImage scale(BufferedImage image, int size, int knownSize, BufferedImage knownThumb) {
+        return size == knownSize && knownThumb != null ? knownThumb : ImageUtil.generateThumbnail(image, size, size);
+    }
+
+    /**
+     * Loads the cached thumbnail for the given file at exactly the given size, from the
+     * write-behind queue if it's waiting there, or from disk. Returns null if not found.
+     * A thumbnail that doesn't match the given stamp is stale: if it's on disk, it's removed,
+     * and if it's still in the queue, it's dropped from there.
+     */
+    private static BufferedImage load(File srcFile, int size, SourceStamp stamp) {
+        BufferedImage pendingThumb = writer.peek(new ThumbKey(srcFile, size),
+                                                 queued -> queued.stamp.isValidFor(stamp));
+        if (pendingThumb != null) {
+            logger.log(Level.FINE, "Returning thumbnail {1} from write-behind queue for {0}",
+                       new Object[]{srcFile.getAbsolutePath(), size});
+            return pendingThumb;
+        }
+        try {
+            ThumbStore.Entry entry = getStore().read(srcFile, size);
+            if (entry == null) {
+                return null;
             }
-            catch (IOException | ArrayIndexOutOfBoundsException ioe) {
-                logger.log(Level.SEVERE, "Error adding thumbnail for " + srcFile.getAbsolutePath() + " to cache.", ioe);
-                return false;
+            if (!entry.stamp.isValidFor(stamp)) {
+                logger.log(Level.FINE, "Discarding stale thumbnails for {0} (cached {1}, now {2})",
+                           new Object[]{srcFile.getAbsolutePath(), entry.stamp, stamp});
+                entry.thumb.flush();
+                // Every size on disk was generated from the same old version. Anything still
+                // queued for writing was generated more recently, so leave that alone:
+                long[] before = evictor.measure(srcFile);
+                getStore().remove(srcFile);
+                evictor.recordChange(srcFile, before);
+                return null;
             }
+            logger.log(Level.FINE, "Returning thumbnail {1} from cache for {0}",
+                       new Object[]{srcFile.getAbsolutePath(), size});
+            return entry.thumb;
         }
-        return true;
+        catch (IOException | ArrayIndexOutOfBoundsException ioe) {
+            logger.log(Level.SEVERE, "Unable to load thumbnail from cache for " + srcFile.getAbsolutePath(), ioe);
+        }
+        return null;
+    }
+
+    /**
+     * Invoked from our write-behind queue to persist a queued thumbnail.
+     *
+     * @param key   Identifies the thumbnail.
+     * @param thumb The thumbnail image.
+     */
+    private static void writeThumbnail(ThumbKey key, BufferedImage thumb) {
+        if (key.size == OTHER_SIZES) {
+            writeOtherSizes(key, thumb);
+            return;
+        }
+        logger.log(Level.FINE, "Writing queued thumbnail {0}", key);
+        try {
+            write(key.srcFile, key.size, thumb, key.stamp);
+        }
+        catch (IOException ioe) {
+            logger.log(Level.SEVERE, "Error writing thumbnail " + key + " to cache.", ioe);
+        }
+    }
+
+    /**
+     * Invoked from our write-behind queue to scale and persist whatever sizes the thumbnail
+     * caching policy calls for, other than the one that was queued for display (see addDeferred()).
+     *
+     * @param key      Identifies the source image, and the thumbnail that was shown for it.
+     * @param srcImage The source image.
+     */
+    private static void writeOtherSizes(ThumbKey key, BufferedImage srcImage) {
+        logger.log(Level.FINE, "Generating queued thumbnails for {0}", key.srcFile.getAbsolutePath());
+        for (Map.Entry<Integer, BufferedImage> entry
+                : generateThumbnails(srcImage, key.shownSize, key.shownThumb).entrySet()) {
+            if (entry.getKey() == key.shownSize) {
+                continue; // queued separately, and still on display
+            }
+            try {
+                write(key.srcFile, entry.getKey(), entry.getValue(), key.stamp);
+            }
+            catch (IOException ioe) {
+                logger.log(Level.SEVERE, "Error writing thumbnail " + key.srcFile.getAbsolutePath()
+                        + " @ " + entry.getKey() + " to cache.", ioe);
+            }
+            finally {
+                entry.getValue().flush();
+            }
+        }
+    }
+
+    /**
+     * Writes the given thumbnail to the store, and tells the evictor how much space it
+     * took up, and how much the thumbnail it replaced (if any) took up.
+     */
+    private static void write(File srcFile, int size, BufferedImage thumb, SourceStamp stamp) throws IOException {
+        ThumbStore store = getStore();
+        long previousBytes = store.sizeOf(srcFile, size);
+        evictor.recordWrite(srcFile, size, previousBytes, store.write(srcFile, size, thumb, stamp));
+    }
+
+    /**
+     * Invoked by our evictor, on its own thread, to evict all thumbnails for the given source image.
+     */
+    private static void evict(File srcFile) {
+        logger.log(Level.FINE, "Evicting cached thumbnails for {0}", srcFile.getAbsolutePath());
+        for (AppConfig.ThumbSize size : AppConfig.ThumbSize.values()) {
+            writer.discard(new ThumbKey(srcFile, size.getDimensions()));
+        }
+        writer.discard(new ThumbKey(srcFile, OTHER_SIZES));
+        getStore().remove(srcFile);
+    }
+
+    /**
+     * Returns the cache backend currently selected in preferences. If the selection has
+     * changed since we last looked, the previous backend is closed, and size tracking
+     * starts over with the new one.
+     */
+    private static synchronized ThumbStore getStore() {
+        ThumbStore selected;
+        switch (AppConfig.getInstance().getThumbCacheBackend()) {
+            case Packed:
+                selected = packedStore;
+                break;
+            case Shared:
+                selected = sharedStore;
+                break;
+            default:
+                selected = fileTreeStore;
+                break;
+        }
+        if (currentStore != null && currentStore != selected) {
+            currentStore.close();
+            evictor.audit();
+        }
+        currentStore = selected;
+        return selected;
+    }
+
+    /**
+     * Returns the thumbnail sizes that generateThumbnails() produces under the current
+     * thumbnail caching policy.
+     */
+    private static List<Integer> getPolicySizes() {
+        switch (AppConfig.getInstance().getThumbCachePolicy()) {
+            case CurrentSizeOnly:
+                return List.of(AppConfig.getInstance().getThumbnailSize());
+
+            case LargestPlusDerive:
+                return List.of(getLargestThumbSize());
+
+            default:
+                List<Integer> sizes = new ArrayList<>();
+                for (AppConfig.ThumbSize thumbSize : AppConfig.ThumbSize.values()) {
+                    sizes.add(thumbSize.getDimensions());
+                }
+                return sizes;
+        }
+    }
+
+    private static int getLargestThumbSize() {
+        int largest = 0;
+        for (AppConfig.ThumbSize size : AppConfig.ThumbSize.values()) {
+            largest = Math.max(largest, size.getDimensions());
+        }
+        return largest;
     }
 
     /**
@@ -228,11 +834,12 @@ public final class ThumbCacheManager {
      */
     public static void remove(File srcFile) {
         for (AppConfig.ThumbSize size : AppConfig.ThumbSize.values()) {
-            File thumbFile = generateThumbnailPath(srcFile, size.getDimensions());
-            if (thumbFile.exists()) {
-                FileUtils.deleteQuietly(thumbFile);
-            }
+            writer.discard(new ThumbKey(srcFile, size.getDimensions()));
         }
+        writer.discard(new ThumbKey(srcFile, OTHER_SIZES));
+        long[] before = evictor.measure(srcFile);
+        getStore().remove(srcFile);
+        evictor.recordChange(srcFile, before);
     }
 
     /**
@@ -246,48 +853,6 @@ public final class ThumbCacheManager {
         copy(srcFile, destFile, false);
     }
 
-    /**
-     * If the thumbnail cache size exceeds the configured warning threshold, emit a log warning
-     * about it. The user can then manually empty the cache if they wish,
-     * or change the threshold in preferences.
-     * <p>
-     * If the thumbnail cache is disabled in preferences, or if the
-     * warning threshold is set to 0, then this method does nothing.
-     * </p>
-     */
-    public static void emitWarningIfNecessary() {
-        if (!AppConfig.getInstance().isThumbCacheEnabled()) {
-            return; // Don't warn if caching is disabled.
-        }
-        final long threshold = AppConfig.getInstance().getThumbCacheSizeWarningThreshold();
-        if (threshold <= 0) {
-            return; // 0 means "don't warn me about this"
-        }
-
-        // Fire off a background thread for this, so we don't block the UI:
-        new Thread(() -> {
-            try {
-                CacheStats stats = gatherCacheStats();
-                if (stats.getTotalSize() > threshold) {
-                    logger.warning("Thumbnail cache size of "
-                                           + FileSystemUtil.getPrintableSize(stats.getTotalSize())
-                                           + " exceeds configured warning threshold of "
-                                           + FileSystemUtil.getPrintableSize(threshold)
-                                           + ". You can clear the cache in the cache stats dialog.");
-                }
-                else {
-                    logger.log(Level.INFO,
-                               "Thumbnail cache size of {0} is within configured warning threshold of {1}.",
-                               new Object[]{FileSystemUtil.getPrintableSize(stats.getTotalSize()),
-                                       FileSystemUtil.getPrintableSize(threshold)});
-                }
-            }
-            catch (Exception e) {
-                logger.log(Level.SEVERE, "Unable to check thumbnail cache size against warning threshold.", e);
-            }
-        }, "ThumbCacheWarningCheck").start();
-    }
-
     /**
      * Moves any associated cache entries for the given srcFile to the matching
      * location for destFile. If there were no cache entries for srcFile, do nothing.
@@ -308,32 +873,56 @@ public final class ThumbCacheManager {
      * @param removeOriginal True if we're moving, false if we're copying.
      */
     private static void copy(File srcFile, File destFile, boolean removeOriginal) {
-        String action = removeOriginal ? "move" : "copy";
         for (AppConfig.ThumbSize size : AppConfig.ThumbSize.values()) {
-            File srcThumb = generateThumbnailPath(srcFile, size.getDimensions());
-            if (srcThumb.exists()) {
-                File destThumb = generateThumbnailPath(destFile, size.getDimensions());
-                destThumb.getParentFile().mkdirs();
-                if (destThumb.exists()) {
-                    FileUtils.deleteQuietly(destThumb);
-                }
-                try {
-                    if (removeOriginal) {
-                        FileUtils.moveFile(srcThumb, destThumb);
-                    }
-                    else {
-                        FileUtils.copyFile(srcThumb, destThumb);
-                    }
-                }
-                catch (IOException ioe) {
-                    logger.log(Level.SEVERE, "Unable to " + action + " associated image thumbnail.", ioe);
-                    if (removeOriginal) {
-                        FileUtils.deleteQuietly(srcThumb);
-                    }
+            writer.flush(new ThumbKey(srcFile, size.getDimensions())); // make sure there's something on disk to copy
+        }
+        writer.flush(new ThumbKey(srcFile, OTHER_SIZES));
+        long[] srcBefore = evictor.measure(srcFile);
+        long[] destBefore = evictor.measure(destFile);
+        getStore().copy(srcFile, destFile, getStampForCopy(srcFile, destFile, removeOriginal), removeOriginal);
+        evictor.recordChange(destFile, destBefore);
+        if (removeOriginal) {
+            evictor.recordChange(srcFile, srcBefore);
+        }
+    }
+
+    /**
+     * Returns the stamp that the copied thumbnails for destFile should be recorded with.
+     * The image operation may have given destFile a new last modified time (see
+     * AppConfig.isPreserveDateTimeEnabled()), or the copy may simply have been given the
+     * current time, and either way the source's stamp would no longer match it. The copies
+     * are only re-stamped if the thumbnails were current for the image in the first place:
+     * checked against srcFile itself for a copy, or, for a move, where srcFile is already
+     * gone, against the length of destFile.
+     *
+     * @return The stamp for the copies, or null if they should keep the one they have.
+     */
+    private static SourceStamp getStampForCopy(File srcFile, File destFile, boolean removeOriginal) {
+        SourceStamp destStamp = SourceStamp.of(destFile);
+        if (destStamp == null) {
+            return null;
+        }
+        SourceStamp cached = null;
+        try {
+            for (AppConfig.ThumbSize size : AppConfig.ThumbSize.values()) {
+                cached = getStore().readStamp(srcFile, size.getDimensions());
+                if (cached != null) {
+                    break;
                 }
             }
         }
-
+        catch (IOException ioe) {
+            logger.log(Level.WARNING, "Unable to read thumbnail stamp for " + srcFile.getAbsolutePath(), ioe);
+            return null;
+        }
+        if (cached == null) {
+            return null;
+        }
+        SourceStamp srcStamp = removeOriginal ? null : SourceStamp.of(srcFile);
+        boolean isCurrent = srcStamp != null
+                ? cached.isValidFor(srcStamp)
+                : cached.isValidFor(destStamp) || cached.getLength() == destStamp.getLength();
+        return isCurrent ? destStamp : null;
     }
 
     /**
@@ -344,17 +933,10 @@ public final class ThumbCacheManager {
      * @param destDir The new location for srcDir.
      */
     public static void copyDirectory(File srcDir, File destDir) {
-        File thumbSrcDir = new File(CACHE_DIR.getAbsolutePath() + srcDir.getAbsolutePath());
-        if (thumbSrcDir.exists()) {
-            File thumbDestDir = new File(CACHE_DIR.getAbsolutePath() + destDir.getAbsolutePath());
-            thumbDestDir.getParentFile().mkdirs();
-            try {
-                FileUtils.copyDirectory(thumbSrcDir, thumbDestDir);
-            }
-            catch (IOException ioe) {
-                logger.log(Level.SEVERE, "Unable to copy associated thumbnail directory.", ioe);
-            }
-        }
+        writer.flushAll(DIRECTORY_FLUSH_TIMEOUT_MS);
+        Map<String, long[][]> destBefore = evictor.measureDirectory(destDir);
+        getStore().copyDirectory(srcDir, destDir, false);
+        evictor.recordDirectoryChange(destDir, destBefore);
     }
 
     /**
@@ -365,23 +947,21 @@ public final class ThumbCacheManager {
      * @param destDir The new location for srcDir.
      */
     public static void moveDirectory(File srcDir, File destDir) {
-        File thumbSrcDir = new File(CACHE_DIR.getAbsolutePath() + srcDir.getAbsolutePath());
-        if (thumbSrcDir.exists()) {
-            File thumbDestDir = new File(CACHE_DIR.getAbsolutePath() + destDir.getAbsolutePath());
-            thumbDestDir.getParentFile().mkdirs();
-            try {
-                FileUtils.moveDirectory(thumbSrcDir, thumbDestDir);
-            }
-            catch (IOException ioe) {
-                logger.log(Level.SEVERE, "Unable to relocate associated thumbnail directory.", ioe);
-            }
-        }
+        writer.flushAll(DIRECTORY_FLUSH_TIMEOUT_MS);
+        Map<String, long[][]> srcBefore = evictor.measureDirectory(srcDir);
+        Map<String, long[][]> destBefore = evictor.measureDirectory(destDir);
+        getStore().copyDirectory(srcDir, destDir, true);
+        evictor.recordDirectoryChange(srcDir, srcBefore);
+        evictor.recordDirectoryChange(destDir, destBefore);
     }
 
     /**
      * Removes all cache contents.
      */
     public static void clear() {
+        writer.discardAll();
+        packedStore.close(); // release any open pack files before deleting them
+        sharedStore.close();
         try {
             FileUtils.deleteDirectory(CACHE_DIR);
             CACHE_DIR.mkdirs();
@@ -389,38 +969,6 @@ public final class ThumbCacheManager {
         catch (IOException ioe) {
             logger.log(Level.SEVERE, "Unable to clear cache.", ioe);
         }
-    }
-
-    /**
-     * For a given file, generate A File reference which represents the full path
-     * of the equivalent thumbnail file in the cache directory. For example, given
-     * a source file of /some/path/image.bmp, and a size of 50, this method would return
-     * CACHE_DIR/some/path/image_50.jpg. Note that all thumbnails
-     * will have the ".jpg" extension regardless of source file extension.
-     *
-     * @param srcFile The source file on the file system somewhere.
-     * @param size    The desired thumbnail size.
-     * @return A File object representing the equivalent thumbnail for the given srcFile and size.
-     */
-    private static File generateThumbnailPath(File srcFile, int size) {
-        return new File(CACHE_DIR.getAbsolutePath() + srcFile.getParentFile().getAbsolutePath(),
-                        ThumbCacheManager.generateThumbnailFilename(srcFile, size));
-    }
-
-    /**
-     * For a given file, generate a filename suitable for thumbnail representation.
-     * For example, given a file with name "someImage.jpeg", and given a thumbnail
-     * size of 150, this image will return "someImage.jpeg_150.jpg".
-     * Yes, we keep the entire original filename including extension, and append the
-     * size and an unconditional ".jpg" extension on top of that. This is to avoid the case
-     * where you have "someImage.jpeg" and "someImage.png" in the same directory, in which
-     * case their thumbnails would conflict if we stripped the original extension.
-     *
-     * @param file The source image file.
-     * @param size The size string to embed in the filename.
-     * @return A filename suitable for thumbnail representation at the given size.
-     */
-    private static String generateThumbnailFilename(File file, int size) {
-        return file.getName() + "_" + size + ".jpg";
+        evictor.reset();
     }
 }
@@ -0,0 +1,288 @@
+package ca.corbett.imageviewer.ui;
+
+import ca.corbett.extras.io.FileSystemUtil;
+
+import java.io.File;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Finds and removes orphaned thumbnails: cached thumbnails whose source image no longer
+ * exists because it was deleted, moved or renamed outside of ImageViewer. Once the
+ * orphans are gone, any mirror directories under the cache dir that are left empty, and
+ * whose source directory no longer exists either, are removed as well.
+ * <p>
+ * A sweep runs on demand via sweep(), and on a schedule once start() has been invoked.
+ * Either way, it works through the cache one mirror directory at a time, and it's rate
+ * limited: we look at most CHECK_BATCH_SIZE thumbnails or files before pausing for
+ * THROTTLE_SLEEP_MS, and we don't do anything at all while the supplied busy check reports
+ * that interactive thumbnail loading is going on. A sweep of a large cache is therefore
+ * slow, but it never gets in the way of browsing.
+ * </p>
+ * <p>
+ * A source image on a drive that isn't currently mounted looks exactly like one that was
+ * deleted. So when a whole source directory is missing, we only consider its images orphaned
+ * if the directory's parent exists, has something in it, and isn't a place where removable
+ * drives are mounted. Anything else is left alone.
+ * </p>
+ *
+ * @author <a href="https://github.com/scorbo2">scorbo2</a>
+ * @since ImageViewer 3.3
+ */
+final class ThumbCacheSweeper {
+
+    private static final Logger logger = Logger.getLogger(ThumbCacheSweeper.class.getName());
+
+    /**
+     * The first scheduled sweep happens this long after startup, to stay out of the way
+     * of whatever the user opened the application to do.
+     */
+    static final long INITIAL_DELAY_MS = 15L * 60 * 1000;
+
+    /**
+     * Scheduled sweeps happen this often after the first.
+     */
+    static final long SWEEP_INTERVAL_MS = 24L * 60 * 60 * 1000;
+
+    private static final int CHECK_BATCH_SIZE = 100;
+    private static final long THROTTLE_SLEEP_MS = 50;
+    private static final long BUSY_SLEEP_MS = 500;
+
+    /**
+     * Where removable drives get mounted, on the platforms we know about.
+     */
+    private static final List<String> REMOVABLE_MOUNT_LOCATIONS = List.of("/media", "/run/media", "/mnt",
+                                                                          "/Volumes");
+
+    private final File cacheDir;
+    private final FileTreeThumbStore mirror;
+    private final Supplier<ThumbStore> storeSupplier;
+    private final Consumer<File> remover;
+    private final BooleanSupplier isBusy;
+    private final Object sweepLock = new Object();
+    private ScheduledExecutorService scheduler;
+    private int checksSincePause;
+
+    /**
+     * Creates a new sweeper.
+     *
+     * @param cacheDir      The top-level cache directory.
+     * @param mirror        Maps directories under the cache dir back to their source directories.
+     * @param storeSupplier Supplies the store to walk.
+     * @param remover       Invoked to remove all thumbnails for an orphaned source image.
+     * @param isBusy        Reports whether interactive thumbnail loading is going on, in which case we wait.
+     */
+    ThumbCacheSweeper(File cacheDir, FileTreeThumbStore mirror, Supplier<ThumbStore> storeSupplier,
+                      Consumer<File> remover, BooleanSupplier isBusy) {
+        this.cacheDir = cacheDir;
+        this.mirror = mirror;
+        this.storeSupplier = storeSupplier;
+        this.remover = remover;
+        this.isBusy = isBusy;
+    }
+
+    /**
+     * Schedules a sweep INITIAL_DELAY_MS from now, and every SWEEP_INTERVAL_MS after that.
+     * Does nothing if already started.
+     */
+    synchronized void start() {
+        if (scheduler != null) {
+            return;
+        }
+        scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "ThumbCacheSweeper");
+            thread.setDaemon(true);
+            thread.setPriority(Thread.MIN_PRIORITY);
+            return thread;
+        });
+        scheduler.scheduleWithFixedDelay(this::scheduledSweep, INITIAL_DELAY_MS, SWEEP_INTERVAL_MS,
+                                         TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Cancels scheduled sweeps. A sweep that is underway is interrupted.
+     */
+    synchronized void stop() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+            scheduler = null;
+        }
+    }
+
+    private void scheduledSweep() {
+        try {
+            sweep();
+        }
+        catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        }
+        catch (RuntimeException e) {
+            logger.log(Level.WARNING, "Scheduled thumbnail cache sweep failed.", e);
+        }
+    }
+
+    /**
+     * Sweeps the cache for orphaned thumbnails and removes them, on the calling thread.
+     * This may take a long time. Only one sweep runs at a time; if one is already underway,
+     * this waits for it and then sweeps again.
+     *
+     * @return What was removed.
+     * @throws InterruptedException If interrupted partway through. Whatever was removed so far stays removed.
+     */
+    ThumbCacheManager.SweepResult sweep() throws InterruptedException {
+        synchronized (sweepLock) {
+            return doSweep();
+        }
+    }
+
+    private ThumbCacheManager.SweepResult doSweep() throws InterruptedException {
+        long startTime = System.currentTimeMillis();
+        checksSincePause = 0;
+
+        long[] tally = new long[4]; // {orphans, thumbnails, bytes, directories} removed
+        sweepDirectory(cacheDir, tally);
+
+        ThumbCacheManager.SweepResult result = new ThumbCacheManager.SweepResult((int)tally[0], tally[1],
+                                                                                 tally[2], (int)tally[3]);
+        logger.log(Level.INFO, "Thumbnail cache sweep finished in {0}ms: {1}",
+                   new Object[]{System.currentTimeMillis() - startTime, result});
+        return result;
+    }
+
+    /**
+     * Recursively sweeps the mirror directories under the given one, bottom up, one at a time:
+     * orphaned thumbnails for the images in each are removed, and then the mirror directory
+     * itself if that leaves it empty and its source directory is gone. A directory for a source
+     * directory that still exists may be about to receive a thumbnail, so it's left alone even if empty.
+     *
+     * @param dir   The directory in the cache to sweep under.
+     * @param tally Accumulates {orphans, thumbnails, bytes, directories} removed.
+     */
+    private void sweepDirectory(File dir, long[] tally) throws InterruptedException {
+        throttle();
+        for (File subdir : FileSystemUtil.findSubdirectories(dir, false)) {
+            if (dir.equals(cacheDir) && subdir.getName().equals(ContentAddressedThumbStore.CONTENT_DIRNAME)) {
+                continue; // that's not a mirror of anything, and its owner cleans up after itself
+            }
+            sweepDirectory(subdir, tally);
+            File srcDir = mirror.getSourceDirectory(subdir);
+            if (srcDir == null) {
+                continue;
+            }
+            boolean srcDirExists = isDirectory(srcDir);
+            if (!srcDirExists && !isVolumePresent(srcDir)) {
+                continue;
+            }
+            removeOrphans(srcDir, srcDirExists, tally);
+            String[] contents = subdir.list();
+            if (!srcDirExists && contents != null && contents.length == 0 && subdir.delete()) {
+                tally[3]++;
+            }
+        }
+    }
+
+    /**
+     * Removes the thumbnails for images in the given source directory (but not below it)
+     * that no longer exist.
+     *
+     * @param srcDir       The source directory in question.
+     * @param srcDirExists Whether srcDir exists. If not, every image in it is an orphan.
+     * @param tally        Accumulates {orphans, thumbnails, bytes, directories} removed.
+     */
+    private void removeOrphans(File srcDir, boolean srcDirExists, long[] tally) throws InterruptedException {
+        Map<File, long[]> cached = new LinkedHashMap<>(); // source image -> {thumbnail count, bytes}
+        storeSupplier.get().forEachThumbnail(srcDir, false, (srcFile, size, bytes, lastModified) -> {
+            throttleQuietly();
+            long[] totals = cached.computeIfAbsent(srcFile, f -> new long[2]);
+            totals[0]++;
+            totals[1] += bytes;
+        });
+
+        for (Map.Entry<File, long[]> entry : cached.entrySet()) {
+            File srcFile = entry.getKey();
+            throttle();
+            if (srcDirExists && srcFile.exists()) {
+                continue;
+            }
+            remover.accept(srcFile);
+            tally[0]++;
+            tally[1] += entry.getValue()[0];
+            tally[2] += entry.getValue()[1];
+        }
+    }
+
+    /**
+     * Reports whether the given missing source directory is really gone, as opposed to being
+     * on a drive that isn't mounted right now. We only believe it's gone if its own parent
+     * exists and has something in it, and isn't somewhere that removable drives get mounted.
+     * That last part matters because udisks, for example, mounts a drive at
+     * /media/&lt;user&gt;/&lt;LABEL&gt; and removes the LABEL directory again on unmount,
+     * leaving behind a parent that looks perfectly ordinary.
+     */
+    private boolean isVolumePresent(File missingDir) {
+        File parent = missingDir.getParentFile();
+        if (parent == null || !isDirectory(parent) || isRemovableMountLocation(parent)) {
+            return false;
+        }
+        String[] contents = parent.list();
+        return contents != null && contents.length > 0;
+    }
+
+    /**
+     * Reports whether removable drives are typically mounted directly under the given directory.
+     */
+    static boolean isRemovableMountLocation(File dir) {
+        String path = dir.getAbsolutePath();
+        String parentPath = dir.getAbsoluteFile().getParent();
+        for (String location : REMOVABLE_MOUNT_LOCATIONS) {
+            if (path.equals(location) || location.equals(parentPath)) {
+                return true; // covers per-user locations like /media/<user> as well
+            }
+        }
+        return false;
+    }
+
+    private boolean isDirectory(File dir) {
+        throttleQuietly();
+        return dir.isDirectory();
+    }
+
+    /**
+     * As throttle(), for places that can't throw. If interrupted, the interrupt flag is set
+     * again, so that the next throttle() throws.
+     */
+    private void throttleQuietly() {
+        try {
+            throttle();
+        }
+        catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Invoked before each stat. Pauses briefly every CHECK_BATCH_SIZE checks, and for as
+     * long as interactive thumbnail loading is going on.
+     */
+    private void throttle() throws InterruptedException {
+        if (Thread.currentThread().isInterrupted()) {
+            throw new InterruptedException();
+        }
+        if (++checksSincePause >= CHECK_BATCH_SIZE) {
+            checksSincePause = 0;
+            Thread.sleep(THROTTLE_SLEEP_MS);
+        }
+        while (isBusy.getAsBoolean()) {
+            Thread.sleep(BUSY_SLEEP_MS);
+        }
+    }
+}
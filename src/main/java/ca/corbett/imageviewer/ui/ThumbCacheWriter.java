@@ -0,0 +1,260 @@
+package ca.corbett.imageviewer.ui;
+
+import java.awt.image.BufferedImage;
+import java.util.LinkedHashMap;
+import java.util.function.Predicate;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A write-behind queue for the thumbnail cache. When a thumbnail has to be generated
+ * for display, there's no reason to make the user wait while we encode and write
+ * it to the cache on disk. Instead, the freshly generated thumbnail is handed to this
+ * queue and returned to the UI immediately, and a single background thread persists
+ * it to the cache at its leisure.
+ * <p>
+ * Entries are keyed by whatever identifies a single cached thumbnail to the caller
+ * (ThumbCacheManager uses source file plus size), so each thumbnail size for a given
+ * image is a separate entry. A key may carry more than its identity: ThumbCacheManager's
+ * also carry the stamp of the source image the thumbnail was generated from. The key a
+ * thumbnail was offered with is kept with it, and that's the key it's written under.
+ * </p>
+ * <p>
+ * Pending thumbnails are held in memory until written. To keep that bounded, the queue
+ * will refuse new entries once MAX_PENDING_BYTES worth of thumbnails are waiting to be written.
+ * Refused entries simply aren't cached this time around; they'll be regenerated and offered
+ * again the next time they're needed. Offering a thumbnail for a file that is already
+ * waiting in the queue replaces the earlier entry instead of adding a second one.
+ * </p>
+ * <p>
+ * ThumbCacheManager consults this queue on lookup, so a thumbnail that has been
+ * offered here is visible to get() before it has actually been written.
+ * </p>
+ *
+ * @author <a href="https://github.com/scorbo2">scorbo2</a>
+ * @since ImageViewer 3.3
+ */
+final class ThumbCacheWriter<K> {
+
+    private static final Logger logger = Logger.getLogger(ThumbCacheWriter.class.getName());
+
+    /**
+     * The most memory we're willing to tie up in thumbnails waiting to be written.
+     */
+    static final long MAX_PENDING_BYTES = 32L * 1024 * 1024;
+
+    /**
+     * Performs the actual write for a queued entry. In practice this is ThumbCacheManager.
+     */
+    @FunctionalInterface
+    interface Sink<K> {
+        void write(K key, BufferedImage thumb);
+    }
+
+    private final Sink<K> sink;
+    private final LinkedHashMap<K, Queued<K>> pending;
+    private K inProgress;
+    private long pendingBytes;
+    private Thread writerThread;
+
+    ThumbCacheWriter(Sink<K> sink) {
+        this.sink = sink;
+        this.pending = new LinkedHashMap<>();
+    }
+
+    /**
+     * Queues the given thumbnail to be written to the cache.
+     * If an entry for this key is already queued, it is replaced.
+     *
+     * @param key   The thumbnail to be written.
+     * @param thumb The thumbnail image.
+     * @return true if the thumbnail was queued, or false if the queue is full.
+     */
+    synchronized boolean offer(K key, BufferedImage thumb) {
+        Queued<K> previous = pending.remove(key);
+        if (previous != null) {
+            pendingBytes -= sizeOf(previous.thumb);
+        }
+        if (pendingBytes + sizeOf(thumb) > MAX_PENDING_BYTES) {
+            logger.log(Level.FINE, "Thumbnail write-behind queue is full; not caching {0}", key);
+            return false;
+        }
+        pending.put(key, new Queued<>(key, thumb));
+        pendingBytes += sizeOf(thumb);
+        if (writerThread == null) {
+            writerThread = new Thread(this::drain, "ThumbCacheWriter");
+            writerThread.setDaemon(true);
+            writerThread.setPriority(Thread.MIN_PRIORITY);
+            writerThread.start();
+        }
+        notifyAll();
+        return true;
+    }
+
+    /**
+     * Returns the queued thumbnail for the given key, if there is one, and if the key it was
+     * offered with passes the given check. A queued thumbnail that fails the check is dropped
+     * from the queue, since writing it would be pointless.
+     *
+     * @param key       The thumbnail in question.
+     * @param isCurrent Checks the key the queued thumbnail was offered with.
+     * @return The thumbnail waiting to be written for that key, or null if there isn't one.
+     */
+    synchronized BufferedImage peek(K key, Predicate<? super K> isCurrent) {
+        Queued<K> queued = pending.get(key);
+        if (queued == null) {
+            return null;
+        }
+        if (!isCurrent.test(queued.key)) {
+            pending.remove(key);
+            pendingBytes -= sizeOf(queued.thumb);
+            return null;
+        }
+        return queued.thumb;
+    }
+
+    /**
+     * Drops any queued entry for the given key without writing it. If that entry
+     * is being written right now, this waits until the write is finished, so that
+     * the caller can safely delete or relocate what was written.
+     *
+     * @param key The thumbnail in question.
+     */
+    synchronized void discard(K key) {
+        Queued<K> previous = pending.remove(key);
+        if (previous != null) {
+            pendingBytes -= sizeOf(previous.thumb);
+        }
+        awaitWrite(key);
+    }
+
+    /**
+     * Writes any queued entry for the given key right away, on the calling thread.
+     * Use this before copying or moving a cache entry.
+     *
+     * @param key The thumbnail in question.
+     */
+    void flush(K key) {
+        Queued<K> queued;
+        synchronized (this) {
+            queued = pending.remove(key);
+            if (queued == null) {
+                awaitWrite(key);
+                return;
+            }
+            pendingBytes -= sizeOf(queued.thumb);
+        }
+        sink.write(queued.key, queued.thumb);
+    }
+
+    /**
+     * Drops everything in the queue without writing it.
+     */
+    synchronized void discardAll() {
+        pending.clear();
+        pendingBytes = 0;
+        awaitWrite(inProgress);
+    }
+
+    /**
+     * Blocks until everything in the queue has been written, or until the given timeout
+     * elapses. Intended to be invoked on application shutdown.
+     *
+     * @param timeoutMs The maximum time to wait, in milliseconds.
+     * @return true if the queue was fully flushed.
+     */
+    synchronized boolean flushAll(long timeoutMs) {
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        while (!pending.isEmpty() || inProgress != null) {
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) {
+                logger.log(Level.WARNING, "Timed out writing thumbnail cache; {0} thumbnails were not saved.",
+                           pending.size());
+                return false;
+            }
+            try {
+                wait(remaining);
+            }
+            catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the number of thumbnails currently waiting to be written.
+     */
+    synchronized int getPendingCount() {
+        return pending.size();
+    }
+
+    /**
+     * Waits for the writer thread to finish writing the given key, if it is writing it now.
+     * Caller must hold our lock.
+     */
+    private void awaitWrite(K key) {
+        while (key != null && key.equals(inProgress)) {
+            try {
+                wait();
+            }
+            catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    /**
+     * The body of our writer thread. Writes entries in the order they were queued, forever.
+     */
+    private void drain() {
+        while (true) {
+            K key;
+            BufferedImage thumb;
+            synchronized (this) {
+                inProgress = null;
+                notifyAll(); // wake up anyone waiting in flushAll() or awaitWrite()
+                while (pending.isEmpty()) {
+                    try {
+                        wait();
+                    }
+                    catch (InterruptedException ie) {
+                        return;
+                    }
+                }
+                Queued<K> next = pending.values().iterator().next();
+                key = next.key;
+                thumb = next.thumb;
+                pending.remove(key);
+                pendingBytes -= sizeOf(thumb);
+                inProgress = key;
+            }
+
+            try {
+                sink.write(key, thumb);
+            }
+            catch (RuntimeException e) {
+                logger.log(Level.SEVERE, "Error writing thumbnail " + key, e);
+            }
+        }
+    }
+
+    private static long sizeOf(BufferedImage image) {
+        return 4L * image.getWidth() * image.getHeight();
+    }
+
+    /**
+     * A thumbnail waiting to be written, along with the key it was offered with.
+     */
+    private static final class Queued<K> {
+        final K key;
+        final BufferedImage thumb;
+
+        Queued(K key, BufferedImage thumb) {
+            this.key = key;
+            this.thumb = thumb;
+        }
+    }
+}
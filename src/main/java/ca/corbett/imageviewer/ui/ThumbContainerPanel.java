@@ -1,77 +1,160 @@
 package ca.corbett.imageviewer.ui;
 
-import ca.corbett.extras.image.ImageUtil;
 import ca.corbett.extras.io.FileSystemUtil;
-import ca.corbett.extras.progress.MultiProgressDialog;
 import ca.corbett.imageviewer.AppConfig;
 import ca.corbett.imageviewer.extensions.ImageViewerExtensionManager;
 import ca.corbett.imageviewer.ui.dialogs.AlienDialog;
 import ca.corbett.imageviewer.ui.imagesets.ImageSet;
-import ca.corbett.imageviewer.ui.layout.WrapLayout;
 import ca.corbett.imageviewer.ui.threads.DirectoryBrowseThread;
-import ca.corbett.imageviewer.ui.threads.ThumbLoaderThread;
+import ca.corbett.imageviewer.ui.threads.DirectoryWatcher;
+import ca.corbett.imageviewer.ui.threads.ThumbLoader;
 
 import javax.swing.BorderFactory;
+import javax.swing.CellRendererPane;
 import javax.swing.JButton;
 import javax.swing.JLabel;
 import javax.swing.JPanel;
+import javax.swing.JViewport;
+import javax.swing.Scrollable;
+import javax.swing.SwingConstants;
+import javax.swing.SwingUtilities;
 import javax.swing.border.BevelBorder;
+import javax.swing.border.Border;
+import javax.swing.event.ChangeListener;
 import java.awt.Color;
-import java.awt.Component;
+import java.awt.Container;
 import java.awt.Dimension;
 import java.awt.FlowLayout;
 import java.awt.Font;
+import java.awt.FontMetrics;
+import java.awt.Graphics;
+import java.awt.Point;
+import java.awt.Rectangle;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 import java.awt.event.MouseAdapter;
 import java.awt.event.MouseEvent;
-import java.awt.image.BufferedImage;
 import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 import java.util.stream.Collectors;
 
 /**
- * A container to show a list of ThumbPanel instances.
+ * A container to show thumbnails for a list of images.
+ * <p>
+ * This container is virtualized: it lays out a grid of cells for every image in the list,
+ * but only the cells that are currently in the viewport are ever painted, and thumbnails
+ * are only requested as their cells scroll into view. A ThumbPanel is only created
+ * ("materialized") for cells that are visible and loaded, or for the selected cell, and is
+ * painted into its cell via a CellRendererPane, in the same way that JList paints its
+ * cells. Materialized panels are discarded again when they scroll well out of view.
+ * This means that the cost of browsing a directory depends on the size of the viewport,
+ * and not on the number of images in the directory. Scrolling to the end of a
+ * directory of 100,000 images is as cheap as scrolling to the top.
+ * </p>
+ * <p>
+ * Extensions still receive thumbPanelCreated() each time a ThumbPanel is materialized,
+ * thumbPanelDisposed() when it is discarded again, and thumbPanelSelectionChanged() as
+ * selection changes, so anything they do to decorate a ThumbPanel will be visible. Mouse events on a cell are forwarded to its ThumbPanel,
+ * so mouse listeners added by extensions continue to work.
+ * </p>
  *
  * @author scorbo2
  * @since 2017-11-12
  */
-public final class ThumbContainerPanel extends JPanel {
+public final class ThumbContainerPanel extends JPanel implements Scrollable {
+
+    private static final Logger logger = Logger.getLogger(ThumbContainerPanel.class.getName());
 
     private final MainWindow.BrowseMode browseMode;
     private final List<ThumbContainerPanelListener> listeners;
-    private List<File> imageFileList;
+    private final ThumbGridModel model;
+    private final ThumbLoader thumbLoader;
+    private final Map<Integer, ThumbPanel> materializedPanels;
+    private final CellRendererPane rendererPane;
+    private final ChangeListener viewportListener;
+    private final List<DirectoryWatcher.Changes> pendingChanges;
+    private JViewport viewport;
     private List<File> alienFileList;
     private File currentDir;
+    private DirectorySnapshot snapshot;
     private DirectoryBrowseThread browseThread;
-    private final List<ThumbPanel> loadedThumbPanels;
+    private DirectoryWatcher directoryWatcher;
+    private int loadGeneration;
+    private boolean isLoading;
+    private boolean isVisibleCellSyncPending;
+    private int lastViewY;
+    private boolean isScrollingDown;
     private int selectedPanelIndex;
-    private int loadOffset;
     private int thumbWidth;
     private int thumbHeight;
 
-    private JPanel loadMorePanel;
-    private JButton loadMoreBtn;
-    private JButton loadAllBtn;
-
     private JPanel alienPanel;
     private JLabel alienLabel;
     private JButton viewAliensBtn;
 
     private static final int PANEL_MARGIN = 20;
+    private static final int CELL_GAP = 5; // same as the hgap/vgap of the old WrapLayout
     private static final int INFO_PANEL_WIDTH = 120;
     private static final int INFO_PANEL_HEIGHT = 77;
 
+    /**
+     * Materialized ThumbPanels that are more than this many rows outside the viewport
+     * will be discarded.
+     */
+    private static final int MATERIALIZE_ROW_MARGIN = 2;
+
+    /**
+     * We hold thumbnails for this many viewports' worth of cells, so that scrolling
+     * back and forth a little bit doesn't require reloading anything.
+     */
+    private static final int THUMB_CAPACITY_VIEWPORTS = 6;
+
+    /**
+     * Thumbnails are prefetched for this many viewports' worth of cells beyond the
+     * viewport, in whichever direction the user is scrolling.
+     */
+    private static final int LOOKAHEAD_VIEWPORTS = 1;
+
+    /**
+     * Queued thumbnail requests for cells that are more than this many viewports'
+     * worth of cells away from the viewport are dropped. They'll be requested again
+     * if the user scrolls back.
+     */
+    private static final int DROP_VIEWPORTS = 3;
+
+    /**
+     * Load priorities are banded: everything in the viewport loads before anything in the
+     * look-ahead band, which loads before anything else. Within a band, closer cells load first.
+     */
+    private static final int PRIORITY_LOOKAHEAD = 1_000_000;
+    private static final int PRIORITY_OFFSCREEN = 2_000_000;
+
     /**
      * Constructor is private to force factory method access.
      */
     private ThumbContainerPanel(MainWindow.BrowseMode browseMode) {
         alienFileList = new ArrayList<>();
         listeners = new ArrayList<>();
-        loadedThumbPanels = new ArrayList<>();
+        model = new ThumbGridModel();
+        thumbLoader = new ThumbLoader(this::thumbnailsLoaded);
+        materializedPanels = new HashMap<>();
+        rendererPane = new CellRendererPane();
+        viewportListener = e -> viewportChanged();
+        pendingChanges = new ArrayList<>();
         browseThread = null;
+        loadGeneration = 0;
         selectedPanelIndex = -1;
+        isScrollingDown = true;
         thumbWidth = thumbHeight = AppConfig.getInstance().getThumbnailSize();
         this.browseMode = browseMode;
         initComponents();
@@ -99,9 +182,7 @@ public final class ThumbContainerPanel extends JPanel {
      * @return A copy of the list of image files in the current directory.
      */
     public List<File> getImageFiles() {
-        List<File> copy = new ArrayList<>();
-        copy.addAll(imageFileList);
-        return copy;
+        return model.getFiles();
     }
 
     /**
@@ -124,42 +205,24 @@ public final class ThumbContainerPanel extends JPanel {
         return currentDir;
     }
 
+    /**
+     * Returns the snapshot taken when the current directory was scanned, or null if
+     * that scan hasn't finished yet, or if we're not showing a directory (an image set,
+     * for example).
+     *
+     * @return The snapshot of the current directory, or null.
+     */
+    public DirectorySnapshot getSnapshot() {
+        return snapshot;
+    }
+
     /**
      * Internal method to initialize the layout and cosmetic properties of this container.
      */
     private void initComponents() {
-        setLayout(new WrapLayout());
-
-        // Create the "load more" panel:
-        loadMorePanel = new JPanel();
-        loadMorePanel.setLayout(new FlowLayout());
-        loadMorePanel.setBackground(Color.black);
-        loadMorePanel.setBorder(BorderFactory.createBevelBorder(BevelBorder.RAISED));
-        loadMorePanel.setPreferredSize(new Dimension(INFO_PANEL_WIDTH, INFO_PANEL_HEIGHT));
-        loadMoreBtn = new JButton("Load more");
-        loadMoreBtn.setFont(new Font("SansSerif", 0, 9));
-        loadMoreBtn.setPreferredSize(new Dimension(INFO_PANEL_WIDTH - PANEL_MARGIN, 26));
-        loadAllBtn = new JButton("Load all");
-        loadAllBtn.setFont(new Font("SansSerif", 0, 9));
-        loadAllBtn.setPreferredSize(new Dimension(INFO_PANEL_WIDTH - PANEL_MARGIN, 26));
-        loadMorePanel.add(loadMoreBtn);
-        loadMorePanel.add(loadAllBtn);
-
-        loadMoreBtn.addActionListener(new ActionListener() {
-            @Override
-            public void actionPerformed(ActionEvent e) {
-                loadMoreImages();
-            }
-
-        });
-
-        loadAllBtn.addActionListener(new ActionListener() {
-            @Override
-            public void actionPerformed(ActionEvent e) {
-                loadAllImages();
-            }
-
-        });
+        // We position our (very few) real child components ourselves, in doLayout():
+        setLayout(null);
+        add(rendererPane);
 
         // Create the "alien" panel:
         alienPanel = new JPanel();
@@ -178,15 +241,40 @@ public final class ThumbContainerPanel extends JPanel {
         viewAliensBtn.addActionListener(new ActionListener() {
             @Override
             public void actionPerformed(ActionEvent e) {
-                AlienDialog.getInstance().setDirectory(currentDir);
+                AlienDialog.getInstance().setAliens(currentDir, snapshot, alienFileList);
                 AlienDialog.getInstance().setVisible(true);
-                alienFileList = findAlienFiles(currentDir); // refreshes after dialog, user may have deleted some.
+                alienFileList = AlienDialog.getInstance().getAliens(); // user may have deleted some.
                 addAlienControl(); // will hide if no longer needed.
             }
 
         });
 
         alienPanel.add(viewAliensBtn);
+        alienPanel.setVisible(false);
+        add(alienPanel);
+
+        // Mouse handling for all cells is done here, and then forwarded to the cell's ThumbPanel:
+        MouseAdapter mouseHandler = new MouseAdapter() {
+            @Override
+            public void mouseClicked(MouseEvent e) {
+                int index = getIndexAt(e.getPoint());
+                if (index >= 0) {
+                    selectAtIndex(index);
+                }
+                forwardMouseEvent(e);
+            }
+
+            @Override
+            public void mousePressed(MouseEvent e) {
+                forwardMouseEvent(e);
+            }
+
+            @Override
+            public void mouseReleased(MouseEvent e) {
+                forwardMouseEvent(e);
+            }
+        };
+        addMouseListener(mouseHandler);
     }
 
     /**
@@ -195,16 +283,22 @@ public final class ThumbContainerPanel extends JPanel {
      * size. The new size will also be used going forward.
      */
     public void reloadThumbSizePreference() {
-        thumbWidth = thumbHeight = AppConfig.getInstance().getThumbnailSize();
-        if (loadMorePanel != null) {
-            loadMorePanel.setPreferredSize(new Dimension(thumbWidth + PANEL_MARGIN, INFO_PANEL_HEIGHT));
-            loadMoreBtn.setPreferredSize(new Dimension(thumbWidth, 28));
-            loadAllBtn.setPreferredSize(new Dimension(thumbWidth, 28));
-        }
+        int newSize = AppConfig.getInstance().getThumbnailSize();
         if (alienPanel != null) {
-            alienPanel.setPreferredSize(new Dimension(thumbWidth + PANEL_MARGIN, INFO_PANEL_HEIGHT));
-            viewAliensBtn.setPreferredSize(new Dimension(thumbWidth, 28));
+            alienPanel.setPreferredSize(new Dimension(newSize + PANEL_MARGIN, INFO_PANEL_HEIGHT));
+            viewAliensBtn.setPreferredSize(new Dimension(newSize, 28));
         }
+        if (newSize == thumbWidth) {
+            return;
+        }
+        thumbWidth = thumbHeight = newSize;
+
+        // Everything we've loaded so far is now the wrong size:
+        cancelLoading();
+        disposeMaterializedPanels();
+        model.clearThumbs();
+        revalidate();
+        repaint();
     }
 
     /**
@@ -226,50 +320,114 @@ public final class ThumbContainerPanel extends JPanel {
     }
 
     /**
-     * Removes any currently displayed thumbnail panels and loads from the given list instead.
-     * Will use the currently set page size to determine how many images to load at a time.
+     * Removes any currently displayed thumbnails and shows the given list instead.
+     * Thumbnails will be loaded as they scroll into view. The first image in the
+     * list, if there is one, will be selected.
      *
-     * @param fileList The new list of images to load, or null to clear this container.
+     * @param fileList The new list of images to show, or null to clear this container.
      */
     private void setImageList(List<File> fileList) {
-        // Remove all current ThumbPanels and release any resources they were using:
-        removeAll();
-        revalidate();
-        repaint();
-        for (ThumbPanel pn : loadedThumbPanels) {
-            pn.dispose();
-        }
-        loadedThumbPanels.clear();
+        // Anything still loading from the previous list is no longer wanted:
+        cancelLoading();
+        lastViewY = 0;
+        isScrollingDown = true;
+
+        // Release any resources held by our current ThumbPanels:
+        disposeMaterializedPanels();
         selectedPanelIndex = -1;
         fireSelectionClearedEvent();
 
-        imageFileList = fileList == null ? new ArrayList<>() : new ArrayList<>(fileList);
+        model.setFiles(fileList);
 
         // Note that we don't clear alienFileList here, because that list
         // likely hasn't changed. (we haven't changed directories).
+        addAlienControl(); // show or hide as needed
+
+        revalidate();
+        if (viewport != null) {
+            viewport.setViewPosition(new Point(0, 0));
+        }
+        repaint();
+
+        if (!model.isEmpty()) {
+            selectAtIndex(0);
+        }
+    }
+
+    /**
+     * Invoked (on the EDT) with the images found so far while a directory is still being scanned.
+     * The first batch is shown as a new list. After that, each batch is sorted in with what's
+     * already shown, keeping any thumbnails that have loaded and the current selection.
+     *
+     * @param images Every image found so far, sorted.
+     */
+    private void imagesFound(List<File> images) {
+        if (model.isEmpty()) {
+            setImageList(images);
+            return;
+        }
 
-        // Reset our load offset and begin loading this list:
-        loadOffset = 0;
-        loadMoreImages();
+        File selectedFile = selectedPanelIndex >= 0 ? model.getFile(selectedPanelIndex) : null;
+        model.updateFiles(images);
+
+        // Cells may have shifted, so our materialized panels have to follow their files:
+        Map<Integer, ThumbPanel> panels = new HashMap<>(materializedPanels);
+        materializedPanels.clear();
+        for (ThumbPanel pn : panels.values()) {
+            materializedPanels.put(model.indexOf(pn.getFile()), pn);
+        }
+        if (selectedFile != null) {
+            selectedPanelIndex = model.indexOf(selectedFile);
+        }
+
+        revalidate();
+        repaint();
+        viewportChanged(); // queued requests may now be nearer or further away
     }
 
     /**
      * Points this ThumbContainerPanel to the given directory, and loads all thumbnails
      * found there. This will remove and release any previously displayed images.
+     * <p>
+     * Images are shown, and their thumbnails start loading, as soon as the first
+     * of them are found; the rest are sorted in as the scan continues. Alien files
+     * are only counted once the scan is complete.
+     * </p>
+     * <p>
+     * If this directory was scanned recently and hasn't changed since, the results of
+     * that scan are reused from the DirectoryListingCache, and there is no scan at all.
+     * </p>
+     * <p>
+     * The directory is then watched for changes (if enabled in AppConfig), and files that
+     * are added, removed, or modified are updated in place, without a reload.
+     * </p>
      *
      * @param dir The new directory from which to load thumbs.
      */
     public void setDirectory(File dir) {
         currentDir = dir;
+        snapshot = null;
+        pendingChanges.clear();
+
+        // Start watching before we look at the directory, so that nothing slips in between:
+        watchDirectory(dir);
         if (dir == null) {
+            cancelBrowsing();
+            cancelLoading();
             return;
         }
-        clear(); // nuke any stale data.
 
         // If we're already browsing, stop that thread before starting a new one:
-        if (browseThread != null) {
-            browseThread.stop();
+        cancelBrowsing();
+
+        DirectoryListingCache.Listing listing = DirectoryListingCache.getInstance().get(dir);
+        if (listing != null) {
+            snapshot = listing.getSnapshot();
+            alienFileList = new ArrayList<>(listing.getAliens()); // update this first as it's needed by setImageList()
+            setImageList(listing.getImages());
+            return;
         }
+        clear(); // nuke any stale data.
 
         // Browse this directory in a worker thread, so we don't block the UI for large directories.
         browseThread = new DirectoryBrowseThread(dir, (thread, images, aliens) -> {
@@ -280,17 +438,39 @@ public final class ThumbContainerPanel extends JPanel {
             }
 
             // This callback is invoked on the EDT, so we're good to update the UI:
-            alienFileList = aliens; // update this first as it's needed by setImageList() (indirectly, via loadMore)
-            setImageList(images);
+            alienFileList = aliens; // update this first as it's needed by setImageList()
+            snapshot = thread.getSnapshot();
+            if (snapshot != null) {
+                DirectoryListingCache.getInstance().put(snapshot, images, aliens);
+            }
+            imagesFound(images); // whatever was found since the last partial results
+            addAlienControl();
             browseThread = null;
+
+            // Now we can apply whatever changed while we were scanning:
+            List<DirectoryWatcher.Changes> changesDuringScan = new ArrayList<>(pendingChanges);
+            pendingChanges.clear();
+            for (DirectoryWatcher.Changes changes : changesDuringScan) {
+                directoryChanged(changes);
+            }
+        }, (thread, images) -> {
+            if (thread == browseThread) {
+                imagesFound(images);
+            }
         });
-        MultiProgressDialog dialog = new MultiProgressDialog(MainWindow.getInstance(), "Scanning...");
-        dialog.setInitialShowDelayMS(500); // don't show the dialog for very fast searches
-        dialog.setFormatString("%m"); // Just show the progress message, not the step count. (step count is unknown)
-        dialog.runWorker(browseThread, true);
+
+        // There's no progress dialog, since the user can already browse whatever we've found so far.
+        // Changing directories again will cancel the scan:
+        Thread thread = new Thread(browseThread::run, "DirectoryBrowseThread");
+        thread.setDaemon(true);
+        thread.start();
     }
 
     public void setImageSet(ImageSet imageSet) {
+        cancelBrowsing();
+        snapshot = null;
+        pendingChanges.clear();
+        watchDirectory(null);
         if (imageSet == null) {
             clear();
             return;
@@ -304,355 +484,881 @@ public final class ThumbContainerPanel extends JPanel {
     }
 
     /**
-     * Overridden so we can add mouse listeners as needed to any added ThumbPanel.
+     * Brings the given files in the current directory up to date, as though we'd been told
+     * about them by our DirectoryWatcher. This is for operations of our own that move or delete
+     * many files at once, so that the result shows up right away, and without a reload.
+     * Files not in the current directory are ignored.
      *
-     * @param component the component to be added
-     * @return The component argument
+     * @param files The files that may have been added, removed, or modified.
      */
-    @Override
-    public Component add(Component component) {
-        if (component instanceof ThumbPanel) {
-            ThumbPanel pn = (ThumbPanel)component;
-            loadedThumbPanels.add(pn);
-
-            // add mouse listener to handle selection
-            pn.addMouseListener(new MouseAdapter() {
-                @Override
-                public void mouseClicked(MouseEvent e) {
-                    setSelectedThumb(pn);
-                }
+    public void refreshFiles(Collection<File> files) {
+        if (currentDir == null) {
+            return;
+        }
+        List<File> inCurrentDir = new ArrayList<>();
+        for (File file : files) {
+            if (currentDir.equals(file.getParentFile())) {
+                inCurrentDir.add(file);
+            }
+        }
+        directoryChanged(DirectoryWatcher.Changes.examine(currentDir, inCurrentDir));
+    }
 
-            });
+    /**
+     * Shows or hides the control for viewing "alien" files, depending on whether
+     * any exist in the current directory. If shown, the control indicates the number
+     * of aliens and gives a button to view and optionally delete them.
+     */
+    public void addAlienControl() {
+        alienLabel.setText(alienFileList.size() + " alien file");
+        if (alienFileList.size() > 1) {
+            alienLabel.setText(alienLabel.getText() + "s");
         }
 
-        return super.add(component);
+        alienPanel.setVisible(!alienFileList.isEmpty());
+        revalidate();
+        repaint();
     }
 
     /**
-     * Convenience method for adding a new ThumbPanel. Instead of creating the ThumbPanel
-     * in client code and passing it to add(), you can just hand the File to this method
-     * and have the ThumbPanel create it automatically.
-     *
-     * @param file       The file from which the thumbnail was generated.
-     * @param thumbImage the Thumbnail which has been generated for the given file.
+     * Empties this container of all thumbnails and clears any current selection.
      */
-    public void addThumb(File file, BufferedImage thumbImage) {
-        int panelWidth = thumbWidth + PANEL_MARGIN;
-        int panelHeight = thumbHeight + PANEL_MARGIN;
-        String name = file.getName();
+    public void clear() {
+        alienFileList.clear();
+        setImageList(null);
+    }
 
-        ThumbPanel pn = new ThumbPanel(file, thumbImage, name, panelWidth, panelHeight);
-        ImageViewerExtensionManager.getInstance().thumbPanelCreated(pn);
-        add(pn);
+    /**
+     * Selects the next image in the list. Selection does not change if the currently
+     * selected image was the last one in the list.
+     */
+    public void selectNext() {
+        if (selectedPanelIndex < model.size() - 1) {
+            selectAtIndex(selectedPanelIndex + 1);
+        }
     }
 
     /**
-     * Adds a "load more images" control if the number of images to load is greater than
-     * our current page size. Intended to be invoked from ThumbLoaderThread, but can be
-     * invoked by client code also. It is safe to invoke this regardless of the current
-     * load offset and page size - the control will be shown or hidden automatically as needed.
+     * Selects the previous image in the list. Selection does not change if the currently selected
+     * image was the first one in the list.
      */
-    public void addLoadMoreControl() {
-        int pageSize = AppConfig.getInstance().getThumbnailPageSize();
-        int yetToLoad = imageFileList.size() - loadOffset;
-        loadMoreBtn.setText("Load " + pageSize + " more");
-        loadAllBtn.setText("Load all " + yetToLoad);
+    public void selectPrevious() {
+        if (selectedPanelIndex > 0) {
+            selectAtIndex(selectedPanelIndex - 1);
+        }
+    }
 
-        if (yetToLoad < pageSize) {
-            loadMoreBtn.setVisible(false);
+    /**
+     * Selects the thumbnail at the given index. If the index is less than zero, the first
+     * thumbnail will be selected. If the index is greater than the size of the list, the last
+     * thumbnail will be selected. If there are no thumbs in this panel, this does nothing.
+     * Multiple selection is not supported, so any previous selection is cleared.
+     *
+     * @param index The index of the thumbnail to select.
+     */
+    public void selectAtIndex(int index) {
+        if (model.isEmpty()) {
+            selectedPanelIndex = -1;
+            return;
         }
-        else {
-            loadMoreBtn.setVisible(true);
+
+        // Keep the selection in bounds:
+        if (index < 0) {
+            index = 0;
+        }
+        if (index >= model.size()) {
+            index = model.size() - 1;
         }
 
-        if (yetToLoad > 0) {
-            add(loadMorePanel);
+        // If the given thumbnail is already selected, there's no need to process this request:
+        if (index == selectedPanelIndex) {
+            return;
         }
-        else {
-            remove(loadMorePanel);
+
+        // Deselect the old one, if it's still around:
+        ThumbPanel oldPanel = materializedPanels.get(selectedPanelIndex);
+        if (oldPanel != null) {
+            oldPanel.setSelected(false);
+            repaintCell(selectedPanelIndex);
         }
-        revalidate();
-        repaint();
+
+        // Scroll to make the new one visible if needed:
+        selectedPanelIndex = index;
+        scrollRectToVisible(getCellBounds(index));
+
+        // The selected cell is always materialized, whether its thumbnail has loaded or not,
+        // because our listeners (and extensions) need a ThumbPanel to work with:
+        ThumbPanel thumbPanel = materialize(index);
+        thumbPanel.setSelected(true);
+        repaintCell(index);
+
+        // Notify listeners that thumb selection has changed:
+        fireThumbSelectedEvent(thumbPanel);
     }
 
     /**
-     * Adds a control for viewing "alien" files, if any exist in the current directory.
-     * If there are no aliens present, the control will be hidden. Otherwise, a control is
-     * shown indicating the number of aliens and giving a button to view and optionally
-     * delete them.
+     * Renames the currently selected thumbnail. Does nothing if there is no selection.
+     *
+     * @param newFile the new File object (not validated here, assuming caller has done that.)
      */
-    public void addAlienControl() {
-        alienLabel.setText(alienFileList.size() + " alien file");
-        if (alienFileList.size() > 1) {
-            alienLabel.setText(alienLabel.getText() + "s");
+    public void renameSelected(File newFile) {
+        if (model.isEmpty() || selectedPanelIndex < 0) {
+            return;
         }
 
-        if (!alienFileList.isEmpty()) {
-            add(alienPanel);
+        // Keep the snapshot current, so that our DirectoryWatcher doesn't mistake this for a new image:
+        if (snapshot != null) {
+            DirectorySnapshot.Entry entry = DirectorySnapshot.Entry.of(newFile);
+            snapshot = snapshot.withChanges(entry == null ? List.of() : List.of(entry),
+                                            List.of(model.getFile(selectedPanelIndex)));
         }
-        else {
-            remove(alienPanel);
-        }
-        revalidate();
-        repaint();
+
+        model.rename(selectedPanelIndex, newFile);
+        materialize(selectedPanelIndex).renameFile(newFile);
+        repaintCell(selectedPanelIndex);
     }
 
     /**
-     * Loads the next pageSize worth of images, if needed (does nothing if the current
-     * load offset is already past the end of the file list).
+     * Removes the currently selected thumbnail. This does nothing if there is no selection.
      */
-    public void loadMoreImages() {
-        int pageSize = AppConfig.getInstance().getThumbnailPageSize();
-        remove(loadMorePanel);
+    public void removeSelected() {
+        if (model.isEmpty() || selectedPanelIndex < 0) {
+            return;
+        }
+
+        // Every cell after this one is going to shift down by one, so our materialized
+        // panels no longer line up with their indexes. Just discard them all; the ones
+        // that are still visible will be recreated on the next paint.
+        disposeMaterializedPanels();
+        model.remove(selectedPanelIndex);
         revalidate();
         repaint();
 
-        ThumbLoaderThread thread = new ThumbLoaderThread(imageFileList, this, loadOffset);
+        // If the new selection is larger than the image count, decrement it:
+        int newIndex = selectedPanelIndex;
+        if (newIndex >= model.size()) {
+            newIndex--;
+        }
+
+        // Select the next guy in the list:
+        selectedPanelIndex = -1;
+        if (newIndex >= 0) {
+            selectAtIndex(newIndex);
+        }
+
+        // If the new selected index is less than zero, it means we just deleted the
+        // very last one, so clear all selection:
+        else {
+            fireSelectionClearedEvent();
+        }
+    }
 
-        // Special case for page size of 0, it means to load everything:
-        if (pageSize == 0) {
-            pageSize = imageFileList.size() - loadOffset;
-            thread.setCustomPageSize(pageSize);
+    /**
+     * Tells this thumb container panel to re-fire the selection event for whatever is
+     * currently selected (or a selection cleared event if nothing is selected).
+     */
+    public void reselectCurrent() {
+        if (selectedPanelIndex < 0 || selectedPanelIndex >= model.size()) {
+            fireSelectionClearedEvent();
+        }
+        else {
+            fireThumbSelectedEvent(materialize(selectedPanelIndex));
         }
+    }
 
-        // Notify listeners that we're starting to load:
-        fireLoadStartedEvent();
+    /**
+     * Returns a count of the thumbs in this panel. Note that this count may be theoretical:
+     * it's the count of all the thumbs that *should* be in this panel, not necessarily the count
+     * of how many have actually been loaded so far.
+     *
+     * @return The number of thumbnails this panel should contain.
+     */
+    public int getCount() {
+        return model.size();
+    }
 
-        new Thread(thread).start();
+    /**
+     * Returns the current selection index, or -1 if nothing is selected.
+     *
+     * @return The current selection index, or -1 if nothing is selected.
+     */
+    public int getSelectionIndex() {
+        return selectedPanelIndex;
     }
 
     /**
-     * Loads all remaining images that have not already been loaded.
+     * Results from the thumbnail loader are tagged with the load generation that was current
+     * when they were requested. Results from any other generation are stale (the user has since
+     * changed directory or image set, or reloaded) and should be dropped. Must be invoked
+     * on the EDT.
+     *
+     * @param generation The load generation in question.
+     * @return true if results from the given generation are still wanted.
      */
-    public void loadAllImages() {
-        remove(loadMorePanel);
-        revalidate();
-        repaint();
+    public boolean isCurrentGeneration(int generation) {
+        return generation == loadGeneration;
+    }
 
-        int remaining = imageFileList.size() - loadOffset;
+    /**
+     * Returns the index of the cell at the given point (in this component's coordinate space),
+     * or -1 if there is no thumbnail at that point.
+     *
+     * @param point Any point within this component.
+     * @return The index of the thumbnail at that point, or -1.
+     */
+    public int getIndexAt(Point point) {
+        int columns = getColumnCount();
+        int cellWidth = getCellWidth() + CELL_GAP;
+        int cellHeight = getCellHeight() + CELL_GAP;
+        int x = point.x - getGridOffsetX();
+        int y = point.y - CELL_GAP;
+        if (x < 0 || y < 0) {
+            return -1;
+        }
+        int column = x / cellWidth;
+        int row = y / cellHeight;
+        if (column >= columns || x % cellWidth >= getCellWidth() || y % cellHeight >= getCellHeight()) {
+            return -1; // in the gap between cells, or off the end of a row
+        }
+        int index = row * columns + column;
+        return index < model.size() ? index : -1;
+    }
 
-        ThumbLoaderThread thread = new ThumbLoaderThread(imageFileList, this, loadOffset);
-        thread.setCustomPageSize(remaining);
+    /**
+     * Returns the bounds of the cell at the given index, in this component's coordinate space.
+     * The index is not validated, so this can also be used for the cell after the last image.
+     *
+     * @param index The index of the cell in question.
+     * @return The bounds of that cell.
+     */
+    public Rectangle getCellBounds(int index) {
+        int columns = getColumnCount();
+        int row = index / columns;
+        int column = index % columns;
+        return new Rectangle(getGridOffsetX() + column * (getCellWidth() + CELL_GAP),
+                             CELL_GAP + row * (getCellHeight() + CELL_GAP),
+                             getCellWidth(),
+                             getCellHeight());
+    }
 
-        // Notify listeners that we're starting to load:
-        fireLoadStartedEvent();
+    @Override
+    public void addNotify() {
+        super.addNotify();
+        if (getParent() instanceof JViewport) {
+            viewport = (JViewport)getParent();
+            viewport.addChangeListener(viewportListener);
+        }
+    }
 
-        new Thread(thread).start();
+    @Override
+    public void removeNotify() {
+        if (viewport != null) {
+            viewport.removeChangeListener(viewportListener);
+            viewport = null;
+        }
+        super.removeNotify();
     }
 
     /**
-     * Empties this container of all thumbnails and clears any current selection.
+     * Our only real child components are the alien panel and our CellRendererPane.
+     * The alien panel goes in the cell immediately after the last image.
      */
-    public void clear() {
-        setImageList(null);
-        alienFileList.clear();
+    @Override
+    public void doLayout() {
+        if (alienPanel.isVisible()) {
+            Rectangle bounds = getCellBounds(model.size());
+            Dimension size = alienPanel.getPreferredSize();
+            alienPanel.setBounds(bounds.x + (bounds.width - size.width) / 2,
+                                 bounds.y + (bounds.height - size.height) / 2,
+                                 size.width, size.height);
+        }
+    }
+
+    @Override
+    public Dimension getPreferredSize() {
+        int width = viewport == null ? getCellWidth() + 2 * CELL_GAP : viewport.getExtentSize().width;
+        int cellCount = model.size() + (alienPanel.isVisible() ? 1 : 0);
+        int rows = (cellCount + getColumnCount(width) - 1) / getColumnCount(width);
+        return new Dimension(width, CELL_GAP + rows * (getCellHeight() + CELL_GAP));
+    }
+
+    @Override
+    public Dimension getPreferredScrollableViewportSize() {
+        return getPreferredSize();
+    }
+
+    @Override
+    public int getScrollableUnitIncrement(Rectangle visibleRect, int orientation, int direction) {
+        return orientation == SwingConstants.VERTICAL ? 20 : 1;
+    }
+
+    @Override
+    public int getScrollableBlockIncrement(Rectangle visibleRect, int orientation, int direction) {
+        return orientation == SwingConstants.VERTICAL ? visibleRect.height : visibleRect.width;
+    }
+
+    @Override
+    public boolean getScrollableTracksViewportWidth() {
+        return true; // we wrap to the viewport width, and never scroll horizontally.
+    }
+
+    @Override
+    public boolean getScrollableTracksViewportHeight() {
+        return viewport != null && getPreferredSize().height < viewport.getHeight();
     }
 
     /**
-     * Selects the given ThumbPanel. Unselects all other ThumbPanels (multiple selection
-     * not supported).
-     *
-     * @param pn The ThumbPanel to select.
+     * Paints only the cells that intersect the current clip. Cells whose thumbnail has loaded
+     * (or that are selected) are painted via their ThumbPanel. Cells that are still waiting
+     * for a thumbnail get a lightweight placeholder.
+     * <p>
+     * Painting doesn't change anything. Thumbnail requests and ThumbPanels for visible cells
+     * are normally taken care of by syncVisibleCells() before we get here. If we come across
+     * a cell that was missed, a sync is scheduled to run after painting, rather than done here.
+     * </p>
      */
-    private void setSelectedThumb(ThumbPanel pn) {
-        // If the given panel is already selected, there's no need to process this request:
-        if (pn.isSelected()) {
+    @Override
+    protected void paintComponent(Graphics g) {
+        g.setColor(getBackground());
+        Rectangle clip = g.getClipBounds();
+        if (clip == null) {
+            clip = new Rectangle(0, 0, getWidth(), getHeight());
+        }
+        g.fillRect(clip.x, clip.y, clip.width, clip.height);
+
+        if (model.isEmpty()) {
             return;
         }
 
-        // Otherwise, select it, and deselect all others:
-        selectedPanelIndex = -1;
-        for (int i = 0; i < loadedThumbPanels.size(); i++) {
-            ThumbPanel candidate = loadedThumbPanels.get(i);
-            if (candidate.getTitle().equals(pn.getTitle())) {
-                selectedPanelIndex = i;
-                candidate.setSelected(true);
-                fireThumbSelectedEvent(candidate);
-                ThumbContainerPanel containerPanel = (ThumbContainerPanel)candidate.getParent();
-                if (containerPanel != null) {
-                    containerPanel.scrollRectToVisible(candidate.getBounds());
-                }
+        int first = getFirstIndexIn(clip);
+        int last = getLastIndexIn(clip);
+        for (int i = first; i <= last; i++) {
+            Rectangle cell = getCellBounds(i);
+            if (!cell.intersects(clip)) {
+                continue;
+            }
+            File file = model.getFile(i);
+            boolean needsPanel = model.isLoaded(file) || i == selectedPanelIndex;
+            ThumbPanel pn = needsPanel ? materializedPanels.get(i) : null;
+            if (pn != null) {
+                rendererPane.paintComponent(g, pn, this, cell.x, cell.y, cell.width, cell.height, true);
             }
             else {
-                candidate.setSelected(false);
+                paintPlaceholder(g, file, cell);
+                if (needsPanel || !model.isRequested(file)) {
+                    scheduleVisibleCellSync();
+                }
             }
         }
+    }
 
-        if (selectedPanelIndex == -1) {
-            fireSelectionClearedEvent();
+    /**
+     * Paints a cheap placeholder for a cell whose thumbnail hasn't loaded yet.
+     */
+    private void paintPlaceholder(Graphics g, File file, Rectangle cell) {
+        AppConfig config = AppConfig.getInstance();
+        g.setColor(config.getUnselectedBackground());
+        g.fillRect(cell.x, cell.y, cell.width, cell.height);
+        Border border = BorderFactory.createBevelBorder(BevelBorder.RAISED);
+        border.paintBorder(this, g, cell.x, cell.y, cell.width, cell.height);
+
+        g.setFont(config.getThumbPanelFont());
+        g.setColor(config.getUnselectedForeground());
+        FontMetrics metrics = g.getFontMetrics();
+        String title = file.getName();
+        int textWidth = metrics.stringWidth(title);
+        int textX = cell.x + Math.max(4, (cell.width - textWidth) / 2);
+        int textY = cell.y + cell.height - metrics.getDescent() - 4;
+        Graphics clipped = g.create(cell.x + 2, cell.y + 2, cell.width - 4, cell.height - 4);
+        clipped.setFont(g.getFont());
+        clipped.setColor(g.getColor());
+        clipped.drawString(title, textX - cell.x - 2, textY - cell.y - 2);
+        clipped.dispose();
+    }
+
+    /**
+     * Arranges for syncVisibleCells() to run on the EDT once painting is finished.
+     * Any number of calls before then result in a single sync.
+     */
+    private void scheduleVisibleCellSync() {
+        if (!isVisibleCellSyncPending) {
+            isVisibleCellSyncPending = true;
+            SwingUtilities.invokeLater(this::syncVisibleCells);
         }
     }
 
     /**
-     * Selects the next image in the list. Selection does not change if the currently
-     * selected image was the last one in the list. If the currently selected image is the
-     * last image currently loaded, but there are more yet to load, this will trigger
-     * loading of the next page of thumbnails.
+     * Makes sure that every cell in the viewport either has a thumbnail request outstanding,
+     * or, if its thumbnail has loaded (or it's selected), has a materialized ThumbPanel to paint.
+     * Cells that have just been given a ThumbPanel are repainted.
      */
-    public void selectNext() {
-        if (selectedPanelIndex < imageFileList.size() - 1) {
-            selectedPanelIndex++;
-            if (selectedPanelIndex >= loadedThumbPanels.size()) {
-                loadMoreImages();
+    private void syncVisibleCells() {
+        isVisibleCellSyncPending = false;
+        if (model.isEmpty()) {
+            return;
+        }
+        Rectangle visible = getVisibleRect();
+        Rectangle dirtyRegion = null;
+        int last = getLastIndexIn(visible);
+        for (int i = getFirstIndexIn(visible); i <= last; i++) {
+            File file = model.getFile(i);
+            if (model.isLoaded(file) || i == selectedPanelIndex) {
+                if (!materializedPanels.containsKey(i)) {
+                    materialize(i);
+                    Rectangle cell = getCellBounds(i);
+                    dirtyRegion = dirtyRegion == null ? cell : dirtyRegion.union(cell);
+                }
             }
             else {
-                setSelectedThumb(loadedThumbPanels.get(selectedPanelIndex));
+                requestThumbnail(i);
             }
         }
+        if (dirtyRegion != null) {
+            repaint(dirtyRegion);
+        }
     }
 
     /**
-     * Selects the previous image in the list. Selection does not change if the currently selected
-     * image was the first one in the list.
+     * Queues up a thumbnail request for the cell at the given index, unless one is already
+     * outstanding. The request is prioritized according to where that cell is relative
+     * to the viewport.
      */
-    public void selectPrevious() {
-        if (selectedPanelIndex > 0) {
-            selectedPanelIndex--;
-            setSelectedThumb(loadedThumbPanels.get(selectedPanelIndex));
+    private void requestThumbnail(int index) {
+        int priority = getLoadPriority(index, getVisibleRect());
+        if (priority != ThumbLoader.DROP && model.markRequested(model.getFile(index))) {
+            thumbLoader.request(model.getFile(index), thumbWidth, loadGeneration, priority);
+            setLoading(true);
         }
     }
 
     /**
-     * Selects the ThumbPanel at the given index. If the index is less than zero, the first
-     * panel will be selected. If the index is greater than the size of the list, the last
-     * panel will be selected. If there are no thumbs in this panel, this does nothing.
-     *
-     * @param index The index of the panel to select.
+     * Works out the load priority for the cell at the given index, given the current visible
+     * area. Cells in the viewport come first, in display order. Next come cells in the look-ahead
+     * band in the direction the user is scrolling, and then everything else, nearest first.
+     * Cells that are too far away to be worth loading get ThumbLoader.DROP.
      */
-    public void selectAtIndex(int index) {
-        if (loadedThumbPanels.isEmpty()) {
-            selectedPanelIndex = -1;
+    private int getLoadPriority(int index, Rectangle visible) {
+        int first = getFirstIndexIn(visible);
+        int last = getLastIndexIn(visible);
+        int visibleCells = Math.max(1, last - first + 1);
+        if (index >= first && index <= last) {
+            return index - first;
+        }
+
+        int distance = index < first ? first - index : index - last;
+        boolean isAhead = (index > last) == isScrollingDown;
+        if (isAhead && distance <= visibleCells * LOOKAHEAD_VIEWPORTS) {
+            return PRIORITY_LOOKAHEAD + distance;
+        }
+        if (distance > visibleCells * DROP_VIEWPORTS) {
+            return ThumbLoader.DROP;
+        }
+        return PRIORITY_OFFSCREEN + distance;
+    }
+
+    /**
+     * Invoked by our ThumbLoader (on the EDT) with each batch of finished thumbnails.
+     * The whole batch is applied with a single repaint.
+     */
+    private void thumbnailsLoaded(List<ThumbLoader.Result> results) {
+        Rectangle dirtyRegion = null;
+        for (ThumbLoader.Result result : results) {
+            if (!isCurrentGeneration(result.getGeneration())) {
+                continue; // stale result from a directory we've already left
+            }
+            File file = result.getFile();
+            model.thumbLoaded(file, result.getThumb());
+            int index = model.indexOf(file);
+            if (index < 0) {
+                continue; // removed since it was requested
+            }
+
+            // If this cell's ThumbPanel was already materialized (it's selected), give it the image:
+            ThumbPanel pn = materializedPanels.get(index);
+            if (pn != null) {
+                pn.setThumbImage(result.getThumb());
+            }
+            Rectangle cell = getCellBounds(index);
+            dirtyRegion = dirtyRegion == null ? cell : dirtyRegion.union(cell);
+        }
+        if (dirtyRegion != null) {
+            syncVisibleCells(); // so that newly loaded cells have a ThumbPanel to paint
+            repaint(dirtyRegion);
+        }
+
+        if (thumbLoader.getPendingCount() == 0) {
+            setLoading(false);
+            logger.fine("Thumbnail delivery: " + thumbLoader.getDeliveryStats());
+            logger.fine("Thumbnail sources: " + ThumbLoader.getSourceHitCounts());
+        }
+    }
+
+    /**
+     * Invoked as our viewport is scrolled or resized. Re-ranks any queued thumbnail requests
+     * (dropping those that are now too far away to bother with), prefetches thumbnails in the
+     * direction of scrolling, discards any materialized ThumbPanels that are now well out of
+     * view, and adjusts our thumbnail capacity to suit the viewport.
+     */
+    private void viewportChanged() {
+        Rectangle visible = getVisibleRect();
+        if (visible.y != lastViewY) {
+            isScrollingDown = visible.y > lastViewY;
+            lastViewY = visible.y;
+        }
+        if (model.isEmpty()) {
             return;
         }
+        int visibleFirst = getFirstIndexIn(visible);
+        int visibleLast = getLastIndexIn(visible);
+        int visibleCells = visibleLast - visibleFirst + 1;
+
+        // Anything dropped must be marked as unrequested, so it can be requested again later:
+        List<File> dropped = thumbLoader.reprioritize(file -> {
+            int index = model.indexOf(file);
+            return index < 0 ? ThumbLoader.DROP : getLoadPriority(index, visible);
+        });
+        for (File file : dropped) {
+            model.unmarkRequested(file);
+        }
+        if (thumbLoader.getPendingCount() == 0) {
+            setLoading(false);
+        }
 
-        // Keep the selection in bounds:
-        if (index < 0) {
-            index = 0;
+        // Request the viewport itself, and prefetch the look-ahead band:
+        syncVisibleCells();
+        int lookAhead = visibleCells * LOOKAHEAD_VIEWPORTS;
+        int start = isScrollingDown ? visibleLast + 1 : Math.max(0, visibleFirst - lookAhead);
+        int end = isScrollingDown ? Math.min(model.size() - 1, visibleLast + lookAhead) : visibleFirst - 1;
+        for (int i = start; i <= end; i++) {
+            if (!model.isLoaded(model.getFile(i))) {
+                requestThumbnail(i);
+            }
         }
-        if (index >= loadedThumbPanels.size()) {
-            index = loadedThumbPanels.size() - 1;
+
+        // Discard materialized ThumbPanels that are well out of view:
+        int margin = MATERIALIZE_ROW_MARGIN * getColumnCount();
+        Iterator<Map.Entry<Integer, ThumbPanel>> iterator = materializedPanels.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<Integer, ThumbPanel> entry = iterator.next();
+            int index = entry.getKey();
+            if ((index < visibleFirst - margin || index > visibleLast + margin) && index != selectedPanelIndex) {
+                discard(entry.getValue());
+                iterator.remove();
+            }
         }
 
-        // Scroll to make this panel visible if needed:
-        selectedPanelIndex = index;
-        ThumbPanel thumbPanel = loadedThumbPanels.get(selectedPanelIndex);
-        setSelectedThumb(thumbPanel);
-        ThumbContainerPanel containerPanel = (ThumbContainerPanel)thumbPanel.getParent();
-        containerPanel.scrollRectToVisible(thumbPanel.getBounds());
+        model.setCapacity(visibleCells * THUMB_CAPACITY_VIEWPORTS);
+    }
 
-        // Notify listeners that thumb selection has changed:
-        fireThumbSelectedEvent(thumbPanel);
+    /**
+     * Returns the ThumbPanel for the given index, creating it if necessary.
+     * Extensions are notified as each new ThumbPanel is created, and again when it's
+     * discarded (see discard()). A cell that scrolls out of view and back again gets a
+     * new ThumbPanel, so extensions may see several for the same file over time, though
+     * never more than one at once.
+     */
+    private ThumbPanel materialize(int index) {
+        ThumbPanel pn = materializedPanels.get(index);
+        if (pn == null) {
+            File file = model.getFile(index);
+            pn = new ThumbPanel(file, model.getThumb(file), file.getName(), getCellWidth(), getCellHeight());
+            materializedPanels.put(index, pn);
+            ImageViewerExtensionManager.getInstance().thumbPanelCreated(pn);
+        }
+        return pn;
     }
 
     /**
-     * Renames the currently selected ThumbPanel. Does nothing if there is no selection.
-     *
-     * @param newFile the new File object (not validated here, assuming caller has done that.)
+     * Disposes of a materialized ThumbPanel that's no longer needed, after letting extensions know.
      */
-    public void renameSelected(File newFile) {
-        if (loadedThumbPanels.isEmpty() || selectedPanelIndex < 0) {
+    private void discard(ThumbPanel pn) {
+        ImageViewerExtensionManager.getInstance().thumbPanelDisposed(pn);
+        pn.dispose();
+    }
+
+    /**
+     * Disposes all materialized ThumbPanels.
+     */
+    private void disposeMaterializedPanels() {
+        for (ThumbPanel pn : materializedPanels.values()) {
+            discard(pn);
+        }
+        materializedPanels.clear();
+        rendererPane.removeAll();
+    }
+
+    /**
+     * Forwards the given mouse event to the ThumbPanel under the mouse, if there is one,
+     * so that any mouse listeners added to it by extensions are notified.
+     */
+    private void forwardMouseEvent(MouseEvent e) {
+        int index = getIndexAt(e.getPoint());
+        ThumbPanel pn = index >= 0 ? materializedPanels.get(index) : null;
+        if (pn == null) {
             return;
         }
+        Rectangle cell = getCellBounds(index);
+        pn.dispatchEvent(new MouseEvent(pn, e.getID(), e.getWhen(), e.getModifiersEx(),
+                                        e.getX() - cell.x, e.getY() - cell.y,
+                                        e.getClickCount(), e.isPopupTrigger(), e.getButton()));
+    }
+
+    private void repaintCell(int index) {
+        repaint(getCellBounds(index));
+    }
 
-        // Get the guy that was selected:
-        ThumbPanel toRename = loadedThumbPanels.get(selectedPanelIndex);
-        toRename.renameFile(newFile);
+    private int getCellWidth() {
+        return thumbWidth + PANEL_MARGIN;
+    }
+
+    private int getCellHeight() {
+        return thumbHeight + PANEL_MARGIN;
+    }
+
+    private int getColumnCount() {
+        return getColumnCount(getWidth());
+    }
+
+    private int getColumnCount(int width) {
+        return Math.max(1, (width - CELL_GAP) / (getCellWidth() + CELL_GAP));
     }
 
     /**
-     * Removes the currently selected ThumbPanel. This does nothing if there is no selection.
+     * Rows are centered horizontally, as they were with our old FlowLayout-based layout.
      */
-    public void removeSelected() {
-        if (loadedThumbPanels.isEmpty() || selectedPanelIndex < 0) {
+    private int getGridOffsetX() {
+        int gridWidth = CELL_GAP + getColumnCount() * (getCellWidth() + CELL_GAP);
+        return Math.max(0, (getWidth() - gridWidth) / 2) + CELL_GAP;
+    }
+
+    private int getFirstIndexIn(Rectangle rect) {
+        int row = Math.max(0, (rect.y - CELL_GAP) / (getCellHeight() + CELL_GAP));
+        return Math.min(model.size(), row * getColumnCount());
+    }
+
+    private int getLastIndexIn(Rectangle rect) {
+        int row = Math.max(0, (rect.y + rect.height - CELL_GAP) / (getCellHeight() + CELL_GAP));
+        return Math.min(model.size() - 1, (row + 1) * getColumnCount() - 1);
+    }
+
+    /**
+     * Stops any thumbnail loading currently in progress and advances the load generation,
+     * so that anything the loader may already have queued up for the EDT is ignored.
+     */
+    private void cancelLoading() {
+        loadGeneration++;
+        thumbLoader.cancelAll();
+        model.clearThumbs();
+        setLoading(false);
+    }
+
+    /**
+     * Points our DirectoryWatcher at the given directory, creating it if needed.
+     * Passing null, or having directory watching disabled, stops any watching.
+     */
+    private void watchDirectory(File dir) {
+        if (dir == null || !AppConfig.getInstance().isWatchDirectoryEnabled()) {
+            if (directoryWatcher != null) {
+                directoryWatcher.watch(null);
+            }
             return;
         }
+        if (directoryWatcher == null) {
+            directoryWatcher = new DirectoryWatcher(this::directoryChanged);
+        }
+        directoryWatcher.watch(dir);
+    }
 
-        // Remove the guy that was selected:
-        ThumbPanel toRemove = loadedThumbPanels.get(selectedPanelIndex);
-        toRemove.getThumbImage().flush(); // TODO is this relevant here... may still be loaded in main panel
-        loadOffset--; // assuming here that we're removing because the file was moved or deleted
-        loadedThumbPanels.remove(selectedPanelIndex);
-        imageFileList.remove(selectedPanelIndex);
-        remove(toRemove);
-        revalidate();
-        repaint();
+    /**
+     * Invoked (on the EDT) with each batch of changes to the current directory. If we're
+     * still scanning, the changes are held until the scan is complete. If our watcher lost
+     * track of what happened, we rescan. Otherwise, the changes are applied in place.
+     */
+    private void directoryChanged(DirectoryWatcher.Changes changes) {
+        if (currentDir == null || !currentDir.equals(changes.getDirectory()) || changes.isEmpty()) {
+            return; // from a directory we've since left
+        }
+        if (browseThread != null) {
+            pendingChanges.add(changes);
+            return;
+        }
 
-        // If the new selection is larger than the image count, decrement it:
-        if (selectedPanelIndex >= imageFileList.size()) {
-            selectedPanelIndex--;
+        // Whatever the listing cache has for this directory no longer matches what we're showing:
+        DirectoryListingCache.getInstance().invalidate(currentDir);
+
+        if (changes.isOverflow()) {
+            if (currentDir.isDirectory()) {
+                logger.fine("Too many changes to track, rescanning " + currentDir.getAbsolutePath());
+                setDirectory(currentDir);
+            }
+            return;
         }
+        applyChanges(changes);
+    }
 
-        // If the new selection is past the end of the loaded thumb list, load some more:
-        if (selectedPanelIndex >= loadedThumbPanels.size()) {
-            loadMoreImages();
+    /**
+     * Applies the given changes to what we're showing. New images are sorted in, removed ones
+     * are taken out, and modified ones have their thumbnails reloaded; every other thumbnail
+     * is left alone. Only the cells that were affected (or that shifted as a result) are repainted.
+     */
+    private void applyChanges(DirectoryWatcher.Changes changes) {
+        // The snapshot tells us whether an image has actually changed, or was merely touched:
+        List<File> addedImages = new ArrayList<>();
+        List<File> modifiedImages = new ArrayList<>();
+        for (DirectorySnapshot.Entry entry : changes.getImages()) {
+            File file = entry.getFile();
+            if (model.indexOf(file) < 0) {
+                addedImages.add(file);
+            }
+            else if (isModified(entry)) {
+                modifiedImages.add(file);
+            }
+        }
+        Set<File> removedImages = new HashSet<>();
+        for (File file : changes.getRemoved()) {
+            if (model.indexOf(file) >= 0) {
+                removedImages.add(file);
+            }
         }
 
-        // Otherwise, select the next guy in the list:
-        else if (selectedPanelIndex >= 0) {
-            setSelectedThumb(loadedThumbPanels.get(selectedPanelIndex));
+        if (snapshot != null) {
+            List<DirectorySnapshot.Entry> updated = new ArrayList<>(changes.getImages());
+            updated.addAll(changes.getAliens());
+            snapshot = snapshot.withChanges(updated, changes.getRemoved());
         }
 
-        // If the new selected index is less than zero, it means we just deleted the
-        // very last one, so clear all selection:
-        else {
-            fireSelectionClearedEvent();
+        if (!addedImages.isEmpty() || !removedImages.isEmpty()) {
+            updateImageList(addedImages, removedImages);
+        }
+        for (File file : modifiedImages) {
+            imageModified(file);
         }
+        updateAliens(changes);
+        viewportChanged(); // request thumbnails for anything new that's in view
     }
 
     /**
-     * Tells this thumb container panel to re-fire the selection event for whatever is
-     * currently selected (or a selection cleared event if nothing is selected).
+     * Reports whether the given entry differs from what our snapshot has for that file.
+     * Without a snapshot, we have to assume that it does.
      */
-    public void reselectCurrent() {
-        ThumbPanel thumbPanel = selectedPanelIndex >= 0 ? loadedThumbPanels.get(selectedPanelIndex) : null;
-        if (thumbPanel == null) {
-            fireSelectionClearedEvent();
+    private boolean isModified(DirectorySnapshot.Entry entry) {
+        DirectorySnapshot.Entry previous = snapshot == null ? null : snapshot.get(entry.getFile());
+        return previous == null
+                || previous.getSize() != entry.getSize()
+                || previous.getLastModified() != entry.getLastModified();
+    }
+
+    /**
+     * Sorts the given images in with the ones we have, and takes out the removed ones,
+     * keeping the thumbnails and materialized panels of everything else.
+     */
+    private void updateImageList(List<File> addedImages, Set<File> removedImages) {
+        int oldSelectedIndex = selectedPanelIndex;
+        File selectedFile = selectedPanelIndex >= 0 ? model.getFile(selectedPanelIndex) : null;
+
+        // Everything from the first cell that changed onwards will need repainting:
+        int firstChanged = model.size();
+        for (File file : removedImages) {
+            firstChanged = Math.min(firstChanged, model.indexOf(file));
         }
-        else {
-            fireThumbSelectedEvent(thumbPanel);
+
+        List<File> files = model.getFiles();
+        files.removeAll(removedImages);
+        files.addAll(addedImages);
+        FileSystemUtil.sortFiles(files);
+        model.removeAll(removedImages);
+        model.updateFiles(files);
+        for (File file : addedImages) {
+            firstChanged = Math.min(firstChanged, model.indexOf(file));
+        }
+
+        // Cells may have shifted, so our materialized panels have to follow their files:
+        Map<Integer, ThumbPanel> panels = new HashMap<>(materializedPanels);
+        materializedPanels.clear();
+        for (ThumbPanel pn : panels.values()) {
+            int index = model.indexOf(pn.getFile());
+            if (index < 0) {
+                discard(pn);
+            }
+            else {
+                materializedPanels.put(index, pn);
+            }
+        }
+
+        revalidate();
+        Rectangle firstCell = getCellBounds(firstChanged);
+        repaint(0, firstCell.y, getWidth(), Math.max(0, getHeight() - firstCell.y));
+
+        // If the selected image was removed, select whatever took its place, as removeSelected() does:
+        if (selectedFile != null) {
+            selectedPanelIndex = model.indexOf(selectedFile);
+            if (selectedPanelIndex < 0) {
+                int newIndex = Math.min(oldSelectedIndex, model.size() - 1);
+                if (newIndex >= 0) {
+                    selectAtIndex(newIndex);
+                }
+                else {
+                    fireSelectionClearedEvent();
+                }
+            }
         }
     }
 
     /**
-     * Returns a count of the thumbs in this panel. Note that this count may be theoretical:
-     * it's the count of all the thumbs that *should* be in this panel, not necessarily the count
-     * of how many have actually been loaded so far.
-     *
-     * @return The number of thumbnails this panel should contain.
+     * Discards the thumbnail of a modified image so that it is loaded again, and reloads
+     * the image itself if it's the one that's selected. A materialized panel keeps showing
+     * the old thumbnail until the new one arrives.
      */
-    public int getCount() {
-        return imageFileList.size();
+    private void imageModified(File file) {
+        model.invalidate(file);
+        int index = model.indexOf(file);
+        repaintCell(index);
+        if (index == selectedPanelIndex) {
+            reselectCurrent();
+        }
     }
 
     /**
-     * Returns the current selection index, or -1 if nothing is selected.
-     *
-     * @return The current selection index, or -1 if nothing is selected.
+     * Takes removed aliens out of our alien list and adds new ones, updating the alien
+     * control if anything changed.
      */
-    public int getSelectionIndex() {
-        return selectedPanelIndex;
+    private void updateAliens(DirectoryWatcher.Changes changes) {
+        Set<File> aliens = new HashSet<>(alienFileList);
+        boolean isChanged = aliens.removeAll(changes.getRemoved());
+        for (DirectorySnapshot.Entry entry : changes.getAliens()) {
+            isChanged = aliens.add(entry.getFile()) || isChanged;
+        }
+        if (isChanged) {
+            alienFileList = new ArrayList<>(aliens);
+            FileSystemUtil.sortFiles(alienFileList);
+            addAlienControl();
+        }
     }
 
     /**
-     * Invoked by the loader thread when loading has completed.
+     * Stops any directory scan currently in progress. The scan will not report results.
      */
-    public void notifyLoadFinished() {
-        // Notify listeners:
-        fireLoadCompletedEvent();
+    private void cancelBrowsing() {
+        if (browseThread != null) {
+            browseThread.stop();
+            browseThread = null;
+        }
     }
 
     /**
-     * Invoked by ThumbLoaderThread after completing a batch load.
-     *
-     * @param offset The new load offset value.
+     * Fires a load starting or load completed event as we go from idle to loading, or back again.
      */
-    public void setLoadOffset(int offset) {
-        // If we got at least one new thumbnail, select it:
-        if (loadedThumbPanels.size() > loadOffset) {
-            setSelectedThumb(loadedThumbPanels.get(loadOffset));
+    private void setLoading(boolean loading) {
+        if (loading == isLoading) {
+            return;
+        }
+        isLoading = loading;
+        if (loading) {
+            fireLoadStartedEvent();
+        }
+        else {
+            fireLoadCompletedEvent();
         }
-
-        this.loadOffset = offset;
     }
 
     /**
@@ -702,12 +1408,29 @@ public final class ThumbContainerPanel extends JPanel {
      * @return A list of all alien files in the given directory.
      */
     public static List<File> findAlienFiles(File dir) {
-        ImageViewerExtensionManager extManager = ImageViewerExtensionManager.getInstance();
-        return FileSystemUtil.findFiles(dir, false)
-                             .stream()
-                             .filter(f -> !ImageUtil.isImageFile(f))
-                             .filter(f -> !extManager.isCompanionFile(f))
-                             .filter(f -> !extManager.isKnownFile(f))
-                             .collect(Collectors.toCollection(ArrayList::new));
+        try {
+            return findAlienFiles(DirectorySnapshot.scan(dir, false));
+        }
+        catch (IOException ioe) {
+            logger.log(Level.WARNING, "Unable to scan " + dir.getAbsolutePath() + ": " + ioe.getMessage(), ioe);
+            return new ArrayList<>();
+        }
+    }
+
+    /**
+     * Returns a list of all "alien" files in the given snapshot, sorted by name.
+     * No further trips to the file system are made.
+     *
+     * @param snapshot The snapshot of the directory in question.
+     * @return A list of all alien files in the given snapshot.
+     */
+    public static List<File> findAlienFiles(DirectorySnapshot snapshot) {
+        List<File> files = snapshot.getEntries()
+                                   .stream()
+                                   .map(DirectorySnapshot.Entry::getFile)
+                                   .collect(Collectors.toList());
+        List<File> aliens = ImageViewerExtensionManager.getInstance().getFileClassifier().classify(files).getAliens();
+        FileSystemUtil.sortFiles(aliens);
+        return aliens;
     }
 }
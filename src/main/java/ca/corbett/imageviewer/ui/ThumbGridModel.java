@@ -0,0 +1,242 @@
+package ca.corbett.imageviewer.ui;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The data model behind a ThumbContainerPanel. The full list of image files is held here,
+ * indexed by position, but thumbnails are only held for a limited number of them at a time.
+ * The ThumbContainerPanel asks for thumbnails as their cells scroll into view, and the
+ * least recently displayed ones are discarded once we go over capacity. This way, the
+ * memory required to browse a directory depends on the size of the viewport, and not on
+ * the number of images in the directory.
+ * <p>
+ * A file that was loaded but that produced no thumbnail (corrupt image, for example) is
+ * remembered here with a null thumbnail, so that we don't keep retrying it.
+ * </p>
+ * <p>
+ * This class is not thread safe. It is meant to be accessed only from the EDT.
+ * </p>
+ *
+ * @author <a href="https://github.com/scorbo2">scorbo2</a>
+ * @since ImageViewer 3.3
+ */
+final class ThumbGridModel {
+
+    /**
+     * We'll never hold fewer than this many thumbnails, regardless of viewport size.
+     */
+    static final int MIN_CAPACITY = 200;
+
+    private final List<File> files;
+    private final Map<File, Integer> indexes;
+    private final Set<File> requested;
+    private final LinkedHashMap<File, BufferedImage> thumbs;
+    private int capacity;
+
+    ThumbGridModel() {
+        files = new ArrayList<>();
+        indexes = new HashMap<>();
+        requested = new HashSet<>();
+        capacity = MIN_CAPACITY;
+
+        // Access-order, so that the eldest entry is always the least recently displayed one:
+        thumbs = new LinkedHashMap<>(MIN_CAPACITY * 2, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<File, BufferedImage> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+
+    /**
+     * Replaces the contents of this model with the given list of files. All thumbnails
+     * and outstanding requests are discarded.
+     */
+    void setFiles(List<File> newFiles) {
+        files.clear();
+        if (newFiles != null) {
+            files.addAll(newFiles);
+        }
+        indexes.clear();
+        clearThumbs();
+    }
+
+    /**
+     * Replaces the file list with a larger one that contains every file already in this
+     * model, possibly in a different order. Unlike setFiles(), thumbnails and outstanding
+     * requests are kept. This is used while a directory is still being scanned, as each
+     * new batch of images is discovered and sorted in with the ones already shown.
+     */
+    void updateFiles(List<File> newFiles) {
+        files.clear();
+        files.addAll(newFiles);
+        indexes.clear(); // everything may have shifted; rebuilt on next lookup
+    }
+
+    /**
+     * Discards all thumbnails and outstanding requests, but leaves the file list alone.
+     * Useful if the thumbnail size has changed and everything must be reloaded.
+     */
+    void clearThumbs() {
+        thumbs.clear();
+        requested.clear();
+    }
+
+    /**
+     * Sets the maximum number of thumbnails to hold. The given value will be
+     * raised to MIN_CAPACITY if it is lower than that.
+     */
+    void setCapacity(int capacity) {
+        this.capacity = Math.max(MIN_CAPACITY, capacity);
+    }
+
+    int size() {
+        return files.size();
+    }
+
+    boolean isEmpty() {
+        return files.isEmpty();
+    }
+
+    File getFile(int index) {
+        return files.get(index);
+    }
+
+    /**
+     * Returns the index of the given file, or -1 if it is not in this model.
+     * This is invoked for every loaded thumbnail and on every scroll, so we keep
+     * a lookup table rather than searching the list (which may be very long).
+     */
+    int indexOf(File file) {
+        if (indexes.isEmpty() && !files.isEmpty()) {
+            for (int i = 0; i < files.size(); i++) {
+                indexes.put(files.get(i), i);
+            }
+        }
+        Integer index = indexes.get(file);
+        return index == null ? -1 : index;
+    }
+
+    /**
+     * Returns a copy of the file list.
+     */
+    List<File> getFiles() {
+        return new ArrayList<>(files);
+    }
+
+    /**
+     * Reports whether a load attempt has completed for the given file. Note that the
+     * thumbnail may still be null if that load attempt failed.
+     */
+    boolean isLoaded(File file) {
+        return thumbs.containsKey(file);
+    }
+
+    /**
+     * Returns the thumbnail for the given file, or null if it either hasn't been loaded
+     * or failed to load. Use isLoaded() to distinguish the two cases. This counts as
+     * an access for purposes of deciding which thumbnails to discard first.
+     */
+    BufferedImage getThumb(File file) {
+        return thumbs.get(file);
+    }
+
+    /**
+     * Marks the given file as having an outstanding thumbnail request.
+     *
+     * @return true if this is a new request, false if the file was already requested or loaded.
+     */
+    boolean markRequested(File file) {
+        if (thumbs.containsKey(file)) {
+            return false;
+        }
+        return requested.add(file);
+    }
+
+    boolean isRequested(File file) {
+        return requested.contains(file);
+    }
+
+    /**
+     * Clears the outstanding request flag for the given file, without storing a result.
+     * Useful if the request was dropped before completing, so that it can be re-requested later.
+     */
+    void unmarkRequested(File file) {
+        requested.remove(file);
+    }
+
+    /**
+     * Stores the result of a thumbnail load. A null thumb indicates the load failed.
+     * Results for files that are no longer in this model are ignored.
+     */
+    void thumbLoaded(File file, BufferedImage thumb) {
+        if (!requested.remove(file)) {
+            return; // not something we asked for (or it was discarded since)
+        }
+        thumbs.put(file, thumb);
+    }
+
+    /**
+     * Removes the file at the given index, along with its thumbnail.
+     *
+     * @return The File that was removed.
+     */
+    File remove(int index) {
+        File file = files.remove(index);
+        indexes.clear(); // everything after this index has shifted; rebuilt on next lookup
+        thumbs.remove(file);
+        requested.remove(file);
+        return file;
+    }
+
+    /**
+     * Removes the given files, along with their thumbnails, in a single pass.
+     * Files that aren't in this model are ignored.
+     */
+    void removeAll(Collection<File> toRemove) {
+        Set<File> removed = new HashSet<>(toRemove);
+        if (files.removeIf(removed::contains)) {
+            indexes.clear(); // rebuilt on next lookup
+        }
+        for (File file : removed) {
+            thumbs.remove(file);
+            requested.remove(file);
+        }
+    }
+
+    /**
+     * Discards the thumbnail for the given file, and any outstanding request for it, so
+     * that it will be requested again. Used when the file has been modified. A result still
+     * in flight for the old request is ignored when it arrives, unless the file has been
+     * requested again by then.
+     */
+    void invalidate(File file) {
+        thumbs.remove(file);
+        requested.remove(file);
+    }
+
+    /**
+     * Replaces the file at the given index, carrying over any thumbnail we had for it.
+     * Used on rename, where the image itself hasn't changed.
+     */
+    void rename(int index, File newFile) {
+        File oldFile = files.set(index, newFile);
+        if (!indexes.isEmpty()) {
+            indexes.remove(oldFile);
+            indexes.put(newFile, index);
+        }
+        if (thumbs.containsKey(oldFile)) {
+            thumbs.put(newFile, thumbs.remove(oldFile));
+        }
+        requested.remove(oldFile);
+    }
+}
@@ -0,0 +1,233 @@
+package ca.corbett.imageviewer.ui;
+
+import ca.corbett.extras.io.FileSystemUtil;
+import ca.corbett.imageviewer.AppConfig;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.io.File;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.function.LongSupplier;
+
+/**
+ * A process-wide, in-memory thumbnail cache that sits in front of ThumbCacheManager.
+ * Both thumb containers (file system and image set) share the one instance, so
+ * returning to a directory or image set that was recently viewed doesn't have to
+ * go back to disk for every thumbnail.
+ * <p>
+ * Entries are keyed by the absolute path of the source image, its SourceStamp (last
+ * modified time and length), and the thumbnail size. The caller supplies the stamp, so
+ * that a lookup here doesn't cost a stat of its own. If an image is modified, its old
+ * entry simply stops matching and eventually ages out. The cache is bounded by the
+ * total (approximate) size of its decoded thumbnails, as configured in preferences,
+ * and the least recently used entries are evicted first once that budget is exceeded.
+ * </p>
+ *
+ * @author <a href="https://github.com/scorbo2">scorbo2</a>
+ * @since ImageViewer 3.3
+ */
+public final class ThumbMemoryCache {
+
+    private static ThumbMemoryCache instance;
+
+    private final LongSupplier maxBytesSupplier;
+    private final LinkedHashMap<Key, BufferedImage> entries = new LinkedHashMap<>(256, 0.75f, true);
+    private long currentBytes;
+    private long hitCount;
+    private long missCount;
+    private long evictionCount;
+
+    ThumbMemoryCache(LongSupplier maxBytesSupplier) {
+        this.maxBytesSupplier = maxBytesSupplier;
+    }
+
+    public static synchronized ThumbMemoryCache getInstance() {
+        if (instance == null) {
+            instance = new ThumbMemoryCache(() -> AppConfig.getInstance().getThumbMemoryCacheBytes());
+        }
+        return instance;
+    }
+
+    /**
+     * Returns the cached thumbnail for the given file at the given size, or null if
+     * there isn't one (or if the file has been modified since it was cached).
+     *
+     * @param srcFile The source image file.
+     * @param stamp   The current stamp of srcFile.
+     * @param size    The thumbnail size.
+     * @return The cached thumbnail, or null.
+     */
+    public BufferedImage get(File srcFile, SourceStamp stamp, int size) {
+        Key key = new Key(srcFile, stamp, size);
+        synchronized (this) {
+            BufferedImage thumb = entries.get(key);
+            if (thumb == null) {
+                missCount++;
+            }
+            else {
+                hitCount++;
+            }
+            return thumb;
+        }
+    }
+
+    /**
+     * Adds the given thumbnail to the cache, evicting least recently used entries as
+     * needed to stay within budget. If the budget is zero, the cache is disabled and
+     * this does nothing.
+     *
+     * @param srcFile The source image file.
+     * @param stamp   The stamp of srcFile that the thumbnail was generated from.
+     * @param size    The thumbnail size.
+     * @param thumb   The thumbnail image.
+     */
+    public void put(File srcFile, SourceStamp stamp, int size, BufferedImage thumb) {
+        long maxBytes = maxBytesSupplier.getAsLong();
+        if (thumb == null || stamp == null || maxBytes <= 0) {
+            return;
+        }
+        Key key = new Key(srcFile, stamp, size);
+        synchronized (this) {
+            BufferedImage previous = entries.put(key, thumb);
+            if (previous != null) {
+                currentBytes -= estimateBytes(previous);
+            }
+            currentBytes += estimateBytes(thumb);
+            evict(maxBytes);
+        }
+    }
+
+    /**
+     * Discards all cached thumbnails for the given source image, at every size.
+     *
+     * @param srcFile The source image file.
+     */
+    public synchronized void remove(File srcFile) {
+        String path = srcFile.getAbsolutePath();
+        Iterator<Map.Entry<Key, BufferedImage>> iterator = entries.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<Key, BufferedImage> entry = iterator.next();
+            if (entry.getKey().path.equals(path)) {
+                currentBytes -= estimateBytes(entry.getValue());
+                iterator.remove();
+            }
+        }
+    }
+
+    /**
+     * Discards everything in the cache. Counters are not reset.
+     */
+    public synchronized void clear() {
+        entries.clear();
+        currentBytes = 0;
+    }
+
+    public synchronized Stats getStats() {
+        return new Stats(entries.size(), currentBytes, maxBytesSupplier.getAsLong(),
+                         hitCount, missCount, evictionCount);
+    }
+
+    /**
+     * Evicts least recently used entries until we're within the given budget.
+     */
+    private void evict(long maxBytes) {
+        Iterator<Map.Entry<Key, BufferedImage>> iterator = entries.entrySet().iterator();
+        while (currentBytes > maxBytes && iterator.hasNext()) {
+            currentBytes -= estimateBytes(iterator.next().getValue());
+            iterator.remove();
+            evictionCount++;
+        }
+    }
+
+    /**
+     * Returns roughly how much heap the given image's raster occupies.
+     */
+    static long estimateBytes(BufferedImage image) {
+        DataBuffer buffer = image.getRaster().getDataBuffer();
+        return (long)buffer.getSize() * buffer.getNumBanks() * DataBuffer.getDataTypeSize(buffer.getDataType()) / 8;
+    }
+
+    /**
+     * Identifies a cached thumbnail: source path, source stamp, and size.
+     */
+    private static final class Key {
+        final String path;
+        final SourceStamp stamp;
+        final int size;
+
+        Key(File srcFile, SourceStamp stamp, int size) {
+            this.path = srcFile.getAbsolutePath();
+            this.stamp = stamp;
+            this.size = size;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key)o;
+            return size == other.size && path.equals(other.path) && Objects.equals(stamp, other.stamp);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * (31 * path.hashCode() + Objects.hashCode(stamp)) + size;
+        }
+    }
+
+    /**
+     * A point-in-time snapshot of memory cache usage and counters.
+     */
+    public static class Stats {
+        private final int entryCount;
+        private final long currentBytes;
+        private final long maxBytes;
+        private final long hitCount;
+        private final long missCount;
+        private final long evictionCount;
+
+        Stats(int entryCount, long currentBytes, long maxBytes, long hitCount, long missCount, long evictionCount) {
+            this.entryCount = entryCount;
+            this.currentBytes = currentBytes;
+            this.maxBytes = maxBytes;
+            this.hitCount = hitCount;
+            this.missCount = missCount;
+            this.evictionCount = evictionCount;
+        }
+
+        public int getEntryCount() {
+            return entryCount;
+        }
+
+        public long getCurrentBytes() {
+            return currentBytes;
+        }
+
+        public long getMaxBytes() {
+            return maxBytes;
+        }
+
+        public long getHitCount() {
+            return hitCount;
+        }
+
+        public long getMissCount() {
+            return missCount;
+        }
+
+        public long getEvictionCount() {
+            return evictionCount;
+        }
+
+        @Override
+        public String toString() {
+            return entryCount + " thumbnails, " + FileSystemUtil.getPrintableSize(currentBytes)
+                    + " of " + FileSystemUtil.getPrintableSize(maxBytes) + "; "
+                    + hitCount + " hits, " + missCount + " misses, " + evictionCount + " evictions";
+        }
+    }
+}
@@ -40,7 +40,7 @@ public class ThumbPanel extends JPanel {
     private static BufferedImage invalidImage = null; // to represent images that can't be loaded
 
     private File srcFile;
-    private final BufferedImage thumbImage;
+    private BufferedImage thumbImage;
     private boolean isSelected;
     private JLabel imageLabel;
     private ImagePanel imagePanel;
@@ -221,6 +221,23 @@ public class ThumbPanel extends JPanel {
         return thumbImage == null ? invalidImage : thumbImage;
     }
 
+    /**
+     * Replaces the thumbnail being displayed in this panel. This is used when a panel
+     * was created before its thumbnail finished loading. A null image will show the
+     * "invalid image" placeholder.
+     *
+     * @param image The new thumbnail image.
+     */
+    public void setThumbImage(BufferedImage image) {
+        // If we've been disposed, just ignore this:
+        if (imagePanel == null) {
+            return;
+        }
+        thumbImage = image;
+        imagePanel.setImage(thumbImage == null ? invalidImage : thumbImage);
+        repaint();
+    }
+
     /**
      * Returns the source file from which this image was loaded.
      *
@@ -0,0 +1,185 @@
+package ca.corbett.imageviewer.ui;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * A storage backend for the thumbnail cache. ThumbCacheManager decides what to
+ * cache and when; a ThumbStore only knows how to put thumbnails on disk and get
+ * them back again. The backend in use can be chosen in preferences.
+ * <p>
+ * Every thumbnail is stored along with the SourceStamp of the source image it was
+ * generated from, so that ThumbCacheManager can tell when it has gone stale.
+ * </p>
+ * <p>
+ * Implementations must be safe to use from multiple threads at once.
+ * </p>
+ *
+ * @author <a href="https://github.com/scorbo2">scorbo2</a>
+ * @since ImageViewer 3.3
+ */
+interface ThumbStore {
+
+    /**
+     * Loads the cached thumbnail for the given source file at exactly the given size,
+     * along with the stamp it was stored with. No attempt is made here to decide whether
+     * it's stale; that's up to the caller.
+     *
+     * @param srcFile The source image file.
+     * @param size    The thumbnail size.
+     * @return The thumbnail and its stamp, or null if there isn't one.
+     * @throws IOException If the thumbnail exists but can't be read.
+     */
+    Entry read(File srcFile, int size) throws IOException;
+
+    /**
+     * Returns only the stamp that the cached thumbnail for the given source file and size
+     * was stored with, without decoding the thumbnail. This is much cheaper than read().
+     *
+     * @param srcFile The source image file.
+     * @param size    The thumbnail size.
+     * @return The stamp, or null if there's no such thumbnail.
+     * @throws IOException If the thumbnail exists but can't be read.
+     */
+    SourceStamp readStamp(File srcFile, int size) throws IOException;
+
+    /**
+     * Stores the given thumbnail for the given source file and size, replacing any existing one.
+     *
+     * @param srcFile The source image file.
+     * @param size    The thumbnail size.
+     * @param thumb   The thumbnail image.
+     * @param stamp   The stamp of the source image the thumbnail was generated from.
+     * @return The number of bytes the thumbnail occupies in the store.
+     * @throws IOException If the thumbnail can't be written.
+     */
+    long write(File srcFile, int size, BufferedImage thumb, SourceStamp stamp) throws IOException;
+
+    /**
+     * Returns how many bytes the cached thumbnail for the given source file and size occupies
+     * in the store, counted the same way as write() and forEachThumbnail() count it.
+     *
+     * @param srcFile The source image file.
+     * @param size    The thumbnail size.
+     * @return The size of the thumbnail in bytes, or 0 if there's no such thumbnail.
+     */
+    long sizeOf(File srcFile, int size);
+
+    /**
+     * Removes all cached thumbnails for the given source file, at every size.
+     *
+     * @param srcFile The source image file.
+     */
+    void remove(File srcFile);
+
+    /**
+     * Copies or moves all cached thumbnails for srcFile so that they belong to destFile instead.
+     * The copies keep the stamp they were written with, unless a new one is given; the
+     * image operation that created destFile may well have changed its last modified time.
+     *
+     * @param srcFile        The source image file.
+     * @param destFile       The new location of the source image file.
+     * @param destStamp      The stamp to record for the copies, or null to keep the existing one.
+     * @param removeOriginal True to move, false to copy.
+     */
+    void copy(File srcFile, File destFile, SourceStamp destStamp, boolean removeOriginal);
+
+    /**
+     * Copies or moves all cached thumbnails for everything in srcDir (recursively)
+     * so that they belong to destDir instead.
+     *
+     * @param srcDir         The source directory.
+     * @param destDir        The new location of the source directory.
+     * @param removeOriginal True to move, false to copy.
+     */
+    void copyDirectory(File srcDir, File destDir, boolean removeOriginal);
+
+    /**
+     * Releases any open files or other resources held by this store. The store can
+     * still be used afterward; resources will be reacquired as needed.
+     */
+    void close();
+
+    /**
+     * Walks the cache directory and reports every thumbnail this backend has stored there
+     * to the given Visitor. This may take a while.
+     *
+     * @param visitor Receives one callback per thumbnail.
+     */
+    void forEachThumbnail(Visitor visitor);
+
+    /**
+     * As forEachThumbnail(Visitor), but only reports thumbnails for images in the given
+     * source directory, and optionally its subdirectories.
+     *
+     * @param srcDir      The source directory in question.
+     * @param isRecursive Whether to include thumbnails for images in subdirectories of srcDir.
+     * @param visitor     Receives one callback per thumbnail.
+     */
+    void forEachThumbnail(File srcDir, boolean isRecursive, Visitor visitor);
+
+    /**
+     * Encodes the given thumbnail as a jpeg.
+     */
+    static byte[] encodeJpeg(BufferedImage thumb) throws IOException {
+        // The jpeg writer can't handle an alpha channel:
+        if (thumb.getColorModel().hasAlpha()) {
+            BufferedImage rgb = new BufferedImage(thumb.getWidth(), thumb.getHeight(), BufferedImage.TYPE_INT_RGB);
+            Graphics2D g = rgb.createGraphics();
+            g.drawImage(thumb, 0, 0, null);
+            g.dispose();
+            thumb = rgb;
+        }
+
+        ImageWriter writer = ImageIO.getImageWritersByFormatName("jpg").next();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (ImageOutputStream stream = ImageIO.createImageOutputStream(out)) {
+            ImageWriteParam param = writer.getDefaultWriteParam();
+            param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+            param.setCompressionQuality(0.9f);
+            writer.setOutput(stream);
+            writer.write(null, new IIOImage(thumb, null, null), param);
+        }
+        finally {
+            writer.dispose();
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * A thumbnail as read from the store, along with the stamp it was stored with.
+     */
+    final class Entry {
+        final BufferedImage thumb;
+        final SourceStamp stamp;
+
+        Entry(BufferedImage thumb, SourceStamp stamp) {
+            this.thumb = thumb;
+            this.stamp = stamp;
+        }
+    }
+
+    /**
+     * Receives thumbnails from forEachThumbnail().
+     */
+    @FunctionalInterface
+    interface Visitor {
+        /**
+         * Invoked once per cached thumbnail.
+         *
+         * @param srcFile      The source image the thumbnail belongs to.
+         * @param size         The thumbnail size.
+         * @param bytes        How many bytes the thumbnail occupies in the store.
+         * @param lastModified When the thumbnail (or the file containing it) was last written.
+         */
+        void visit(File srcFile, int size, long bytes, long lastModified);
+    }
+}
@@ -0,0 +1,127 @@
+package ca.corbett.imageviewer.ui;
+
+import ca.corbett.extras.image.ImageUtil;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Decodes source images for the purpose of generating thumbnails from them.
+ * <p>
+ * Decoding a full-resolution image only to immediately scale it down to a
+ * 200x200 thumbnail is very wasteful: a 48 megapixel photo decodes to almost
+ * 200MB of raster. Instead, we read the image dimensions from the header first,
+ * and then ask the ImageReader to subsample the source as it decodes, so that
+ * the decoded image is only just larger than the thumbnail we need. The result can
+ * then be handed to ImageUtil.generateThumbnail() as usual for a final high-quality scale.
+ * </p>
+ * <p>
+ * If no ImageReader can handle the file, or if the subsampled read fails for any
+ * reason, we fall back to a regular full-resolution ImageUtil.loadImage().
+ * </p>
+ *
+ * @author <a href="https://github.com/scorbo2">scorbo2</a>
+ * @since ImageViewer 3.3
+ */
+public final class ThumbnailDecoder {
+
+    private static final Logger logger = Logger.getLogger(ThumbnailDecoder.class.getName());
+
+    private ThumbnailDecoder() {
+    }
+
+    /**
+     * Loads the given image file at a reduced resolution that is still large enough
+     * to generate a thumbnail of the given size from it. The returned image will be at least
+     * targetSize pixels along its longer edge, unless the source image itself is smaller
+     * than that, in which case it is returned at full size.
+     *
+     * @param file       The source image file.
+     * @param targetSize The size of the thumbnail that will be generated from the result.
+     * @return The decoded image, or null if the file could not be decoded.
+     * @throws IOException If the file can't be read.
+     */
+    public static BufferedImage load(File file, int targetSize) throws IOException {
+        return load(file, file, targetSize);
+    }
+
+    /**
+     * Decodes an image from the given file contents, which have already been read into memory,
+     * as with load(File,int). This lets the caller do the disk I/O and the decoding on different
+     * threads. The file itself is only read again if we have to fall back to a full decode.
+     *
+     * @param data       The entire contents of the source image file.
+     * @param file       The source image file that data was read from.
+     * @param targetSize The size of the thumbnail that will be generated from the result.
+     * @return The decoded image, or null if the data could not be decoded.
+     * @throws IOException If the file can't be read.
+     */
+    public static BufferedImage load(byte[] data, File file, int targetSize) throws IOException {
+        return load(new ByteArrayInputStream(data), file, targetSize);
+    }
+
+    private static BufferedImage load(Object input, File file, int targetSize) throws IOException {
+        BufferedImage image = null;
+        try (ImageInputStream stream = ImageIO.createImageInputStream(input)) {
+            if (stream != null) {
+                image = readSubsampled(stream, targetSize);
+            }
+        }
+        catch (IOException | RuntimeException e) {
+            // Some readers choke on subsampling certain files. The full-resolution path may still work:
+            logger.log(Level.FINE, "Subsampled decode failed for {0}, falling back to full decode: {1}",
+                       new Object[]{file.getName(), e.getMessage()});
+        }
+        return image != null ? image : ImageUtil.loadImage(file);
+    }
+
+    /**
+     * Computes the subsampling factor to apply to an image of the given dimensions so that
+     * its longer edge is still at least targetSize pixels after subsampling. A factor of
+     * 1 means no subsampling.
+     *
+     * @param width      The width of the source image.
+     * @param height     The height of the source image.
+     * @param targetSize The desired thumbnail size.
+     * @return A subsampling factor of 1 or more.
+     */
+    public static int computeSubsampling(int width, int height, int targetSize) {
+        if (targetSize <= 0) {
+            return 1;
+        }
+        return Math.max(1, Math.max(width, height) / targetSize);
+    }
+
+    /**
+     * Reads the first image from the given stream with a subsampling factor chosen to suit
+     * the target size. Returns null if no registered ImageReader can handle the stream.
+     */
+    private static BufferedImage readSubsampled(ImageInputStream stream, int targetSize) throws IOException {
+        Iterator<ImageReader> readers = ImageIO.getImageReaders(stream);
+        if (!readers.hasNext()) {
+            return null;
+        }
+        ImageReader reader = readers.next();
+        try {
+            reader.setInput(stream, true, true);
+            int subsampling = computeSubsampling(reader.getWidth(0), reader.getHeight(0), targetSize);
+            ImageReadParam param = reader.getDefaultReadParam();
+            if (subsampling > 1) {
+                param.setSourceSubsampling(subsampling, subsampling, 0, 0);
+            }
+            return reader.read(0, param);
+        }
+        finally {
+            reader.dispose();
+        }
+    }
+}
@@ -6,6 +6,7 @@ import ca.corbett.extras.io.FileSystemUtil;
 import ca.corbett.extras.io.TextFileDetector;
 import ca.corbett.imageviewer.ImageOperation;
 import ca.corbett.imageviewer.extensions.ImageViewerExtensionManager;
+import ca.corbett.imageviewer.ui.DirectorySnapshot;
 import ca.corbett.imageviewer.ui.MainWindow;
 import ca.corbett.imageviewer.ui.ThumbContainerPanel;
 import org.apache.commons.io.FileUtils;
@@ -32,6 +33,7 @@ import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
@@ -53,6 +55,7 @@ public final class AlienDialog extends JDialog {
     private JList<String> alienList;
     private DefaultListModel<String> listModel;
     private File directory;
+    private DirectorySnapshot snapshot;
     private List<File> files;
     private long viewAsTextMaxFileSize = VIEW_AS_TEXT_MAX_FILE_SIZE;
 
@@ -115,6 +118,29 @@ public final class AlienDialog extends JDialog {
         rescanDir();
     }
 
+    /**
+     * Sets the directory and the list of alien files already found in it, so that we don't
+     * have to scan the directory again. File sizes are taken from the given snapshot, if
+     * it has them. The Rescan button will still scan the directory from scratch.
+     *
+     * @param dir      The directory in question.
+     * @param snapshot The snapshot in which the aliens were found. May be null.
+     * @param aliens   The alien files in that directory. Can be empty.
+     */
+    public void setAliens(File dir, DirectorySnapshot snapshot, List<File> aliens) {
+        this.directory = dir;
+        this.snapshot = snapshot;
+        setAlienList(aliens);
+    }
+
+    /**
+     * Returns a copy of the list of alien files currently displayed. This reflects
+     * any deletions or renames done in this dialog.
+     */
+    public List<File> getAliens() {
+        return files == null ? new ArrayList<>() : new ArrayList<>(files);
+    }
+
     /**
      * Sets the list of alien files to display. Can be empty.
      *
@@ -124,7 +150,7 @@ public final class AlienDialog extends JDialog {
         files = new ArrayList<>(list);
         listModel.clear();
         for (File file : files) {
-            String prettySize = FileUtils.byteCountToDisplaySize(file.length());
+            String prettySize = FileUtils.byteCountToDisplaySize(getFileSize(file));
             listModel.addElement(file.getName() + " (" + prettySize + ")");
         }
 
@@ -134,6 +160,15 @@ public final class AlienDialog extends JDialog {
         }
     }
 
+    /**
+     * Returns the size of the given file as recorded in our snapshot, or goes
+     * to the disk for it if it isn't there.
+     */
+    private long getFileSize(File file) {
+        DirectorySnapshot.Entry entry = snapshot == null ? null : snapshot.get(file);
+        return entry != null ? entry.getSize() : file.length();
+    }
+
     /**
      * Invoked internally to delete the selected file(s). Does nothing if there is no selection.
      */
@@ -190,7 +225,10 @@ public final class AlienDialog extends JDialog {
             try {
                 // Note: we don't update extensions here, because this is an alien file,
                 //       not an image file or a companion file. So, extensions don't care.
-                FileUtils.moveFile(file, new File(file.getParentFile(), newName));
+                long fileSize = getFileSize(file); // it won't be in our snapshot under its new name
+                File newFile = new File(file.getParentFile(), newName);
+                FileUtils.moveFile(file, newFile);
+                files.set(i, newFile);
 
                 // Also update the list with this new name:
                 // (we do this surgically instead of rescanDir() because we're in the middle of a batch operation,
@@ -198,7 +236,7 @@ public final class AlienDialog extends JDialog {
                 //  which is annoying for the user)
                 for (int listIndex = 0; listIndex < alienList.getModel().getSize(); listIndex++) {
                     if (alienList.getModel().getElementAt(listIndex).toString().startsWith(file.getName() + " ")) {
-                        String prettySize = FileUtils.byteCountToDisplaySize(file.length());
+                        String prettySize = FileUtils.byteCountToDisplaySize(fileSize);
                         listModel.set(listIndex, newName + " (" + prettySize + ")");
                         break;
                     }
@@ -260,13 +298,14 @@ public final class AlienDialog extends JDialog {
 
         // First make sure the file isn't unreasonably large:
         File file = files.get(selectedIndices[0]);
-        if (file.length() > viewAsTextMaxFileSize) {
+        long fileSize = getFileSize(file);
+        if (fileSize > viewAsTextMaxFileSize) {
             getMessageUtil().info("View as text",
                                   "The selected file is too large to view as text.\n"
                                           + "Maximum size is "
                                           + FileSystemUtil.getPrintableSize(viewAsTextMaxFileSize)
                                           + ", this file is "
-                                          + FileSystemUtil.getPrintableSize(file.length())
+                                          + FileSystemUtil.getPrintableSize(fileSize)
                                           + ".");
             return;
         }
@@ -305,7 +344,15 @@ public final class AlienDialog extends JDialog {
      * Rescans the current directory looking for alien files.
      */
     private void rescanDir() {
-        setAlienList(ThumbContainerPanel.findAlienFiles(directory));
+        try {
+            snapshot = DirectorySnapshot.scan(directory, false);
+            setAlienList(ThumbContainerPanel.findAlienFiles(snapshot));
+        }
+        catch (IOException ioe) {
+            logger.log(Level.WARNING, "Unable to scan " + directory.getAbsolutePath() + ": " + ioe.getMessage(), ioe);
+            snapshot = null;
+            setAlienList(new ArrayList<>());
+        }
     }
 
     /**
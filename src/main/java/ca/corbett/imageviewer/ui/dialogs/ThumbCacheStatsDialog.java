@@ -1,10 +1,12 @@
 package ca.corbett.imageviewer.ui.dialogs;
 
 import ca.corbett.extras.MessageUtil;
+import ca.corbett.extras.io.FileSystemUtil;
 import ca.corbett.forms.Alignment;
 import ca.corbett.forms.FormPanel;
 import ca.corbett.forms.fields.LabelField;
 import ca.corbett.imageviewer.ui.ThumbCacheManager;
+import ca.corbett.imageviewer.ui.ThumbMemoryCache;
 
 import javax.swing.BorderFactory;
 import javax.swing.JButton;
@@ -15,11 +17,14 @@ import java.awt.BorderLayout;
 import java.awt.Dimension;
 import java.awt.FlowLayout;
 import java.awt.Window;
+import java.text.DateFormat;
+import java.util.Date;
+import java.util.Map;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.logging.Logger;
 
 /**
- * Dialog to show thumbnail cache statistics, with options to clear the cache.
+ * Dialog to show thumbnail cache statistics, with options to clean up or clear the cache.
  *
  * @author <a href="https://github.com/scorbo2">scorbo2</a>
  */
@@ -30,7 +35,12 @@ public class ThumbCacheStatsDialog extends JDialog {
     private MessageUtil messageUtil;
     private final Window owner;
     private final LabelField statsLabel;
+    private final LabelField bySizeLabel;
+    private final LabelField byRootLabel;
+    private final LabelField auditLabel;
+    private final LabelField memoryStatsLabel;
     private JButton rescanButton;
+    private JButton sweepButton;
     private JButton clearButton;
     private final AtomicBoolean isWorkInProgress = new AtomicBoolean(false);
 
@@ -42,21 +52,63 @@ public class ThumbCacheStatsDialog extends JDialog {
         formPanel.setBorderMargin(16);
         statsLabel = new LabelField("Cache stats: ", "Calculating...");
         formPanel.add(statsLabel);
+        bySizeLabel = new LabelField("By size: ", "");
+        formPanel.add(bySizeLabel);
+        byRootLabel = new LabelField("By location: ", "");
+        formPanel.add(byRootLabel);
+        auditLabel = new LabelField("Last audit: ", "");
+        formPanel.add(auditLabel);
+        memoryStatsLabel = new LabelField("Memory cache: ", "");
+        formPanel.add(memoryStatsLabel);
 
         setLayout(new BorderLayout());
         add(formPanel, BorderLayout.CENTER);
         add(buildButtonPanel(), BorderLayout.SOUTH);
 
-        setSize(500, 160);
+        setSize(500, 320);
         setResizable(false);
         setLocationRelativeTo(owner);
         setDefaultCloseOperation(JDialog.DISPOSE_ON_CLOSE);
 
-        rescan();
+        showStats(ThumbCacheManager.gatherCacheStats());
     }
 
     /**
-     * Invoked to rescan the thumbnail cache and update statistics.
+     * Shows the given stats, along with current memory cache stats.
+     */
+    private void showStats(ThumbCacheManager.CacheStats stats) {
+        statsLabel.setText(stats.toString());
+        bySizeLabel.setText(formatBreakdown(stats.getBySize()));
+        byRootLabel.setText(formatBreakdown(stats.getByRoot()));
+        auditLabel.setText(stats.getLastAuditTime() == 0
+                                   ? "Never"
+                                   : DateFormat.getDateTimeInstance().format(new Date(stats.getLastAuditTime())));
+        memoryStatsLabel.setText(ThumbMemoryCache.getInstance().getStats().toString());
+    }
+
+    /**
+     * Formats a {count, bytes} breakdown as one line per entry.
+     */
+    private static String formatBreakdown(Map<?, long[]> breakdown) {
+        if (breakdown.isEmpty()) {
+            return "(none)";
+        }
+        StringBuilder sb = new StringBuilder("<html>");
+        for (Map.Entry<?, long[]> entry : breakdown.entrySet()) {
+            sb.append(entry.getKey())
+              .append(": ")
+              .append(entry.getValue()[0])
+              .append(" (")
+              .append(FileSystemUtil.getPrintableSize(entry.getValue()[1]))
+              .append(")<br>");
+        }
+        return sb.append("</html>").toString();
+    }
+
+    /**
+     * Invoked to audit the thumbnail cache and update statistics. Normally the statistics
+     * are kept current as the cache changes, but this will reconcile them with what's
+     * actually on disk.
      */
     private void rescan() {
         if (isWorkInProgress.get()) {
@@ -65,26 +117,68 @@ public class ThumbCacheStatsDialog extends JDialog {
         }
 
         statsLabel.setText("Calculating...");
-        rescanButton.setEnabled(false);
-        clearButton.setEnabled(false);
+        setButtonsEnabled(false);
         isWorkInProgress.set(true);
         new Thread(() -> {
-            String results = "Scan failed.";
+            ThumbCacheManager.CacheStats results = null;
             try {
-                results = ThumbCacheManager.gatherCacheStats().toString();
+                results = ThumbCacheManager.auditCache();
             }
             finally {
-                final String resultsStr = results;
+                final ThumbCacheManager.CacheStats stats = results;
                 SwingUtilities.invokeLater(() -> {
-                    statsLabel.setText(resultsStr);
-                    rescanButton.setEnabled(true);
-                    clearButton.setEnabled(true);
+                    if (stats == null) {
+                        statsLabel.setText("Scan failed.");
+                    }
+                    else {
+                        showStats(stats);
+                    }
+                    setButtonsEnabled(true);
                     isWorkInProgress.set(false);
                 });
             }
         }).start();
     }
 
+    /**
+     * Invoked to remove thumbnails for images that no longer exist. This normally happens
+     * once a day in the background, but can take a while on a large cache, since it's
+     * throttled to stay out of the way of browsing.
+     */
+    private void sweep() {
+        if (isWorkInProgress.get()) {
+            log.info("Ignoring clean up request; operation already in progress.");
+            return;
+        }
+
+        statsLabel.setText("Looking for orphaned thumbnails...");
+        setButtonsEnabled(false);
+        isWorkInProgress.set(true);
+        new Thread(() -> {
+            ThumbCacheManager.SweepResult results = null;
+            try {
+                results = ThumbCacheManager.sweepOrphans();
+            }
+            catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+            }
+            finally {
+                final ThumbCacheManager.SweepResult result = results;
+                SwingUtilities.invokeLater(() -> {
+                    showStats(ThumbCacheManager.gatherCacheStats());
+                    setButtonsEnabled(true);
+                    isWorkInProgress.set(false);
+                    if (result == null) {
+                        getMessageUtil().error("Clean up failed", "The thumbnail cache could not be cleaned up.");
+                    }
+                    else {
+                        getMessageUtil().info("Clean up complete", result.toString());
+                    }
+                });
+            }
+        }).start();
+    }
+
     /**
      * Will prompt for confirmation, and then clear the thumbnail cache if confirmed.
      */
@@ -101,17 +195,16 @@ public class ThumbCacheStatsDialog extends JDialog {
             return;
         }
 
-        rescanButton.setEnabled(false);
-        clearButton.setEnabled(false);
+        setButtonsEnabled(false);
         isWorkInProgress.set(true);
         new Thread(() -> {
             try {
+                ThumbMemoryCache.getInstance().clear();
                 ThumbCacheManager.clear();
             }
             finally {
                 SwingUtilities.invokeLater(() -> {
-                    rescanButton.setEnabled(true);
-                    clearButton.setEnabled(true);
+                    setButtonsEnabled(true);
                     isWorkInProgress.set(false);
                     rescan();
                 });
@@ -128,6 +221,12 @@ public class ThumbCacheStatsDialog extends JDialog {
         rescanButton.addActionListener(e -> rescan());
         buttonPanel.add(rescanButton);
 
+        sweepButton = new JButton("Clean up");
+        sweepButton.setPreferredSize(new Dimension(100, 25));
+        sweepButton.setToolTipText("Remove thumbnails for images that no longer exist");
+        sweepButton.addActionListener(e -> sweep());
+        buttonPanel.add(sweepButton);
+
         clearButton = new JButton("Clear");
         clearButton.setPreferredSize(new Dimension(100, 25));
         clearButton.addActionListener(e -> clearCache());
@@ -141,6 +240,11 @@ public class ThumbCacheStatsDialog extends JDialog {
         return buttonPanel;
     }
 
+    private void setButtonsEnabled(boolean enabled) {
+        rescanButton.setEnabled(enabled);
+        sweepButton.setEnabled(enabled);
+        clearButton.setEnabled(enabled);
+    }
 
     private MessageUtil getMessageUtil() {
         if (messageUtil == null) {
@@ -1,14 +1,20 @@
 package ca.corbett.imageviewer.ui.threads;
 
-import ca.corbett.extras.image.ImageUtil;
 import ca.corbett.extras.io.FileSystemUtil;
 import ca.corbett.extras.progress.SimpleProgressWorker;
+import ca.corbett.imageviewer.extensions.FileClassifier;
 import ca.corbett.imageviewer.extensions.ImageViewerExtensionManager;
+import ca.corbett.imageviewer.ui.DirectorySnapshot;
 
 import javax.swing.SwingUtilities;
 import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 /**
  * A worker thread that will scan the given directory non-recursively.
@@ -30,6 +36,27 @@ import java.util.List;
  * of whatever results we have.
  * </p>
  * <p>
+ * A very large directory on a slow disk can take many seconds to scan. If a
+ * PartialResultsCallback is supplied, it is handed the images found so far,
+ * sorted, as the scan progresses: as soon as FIRST_PUBLISH_COUNT images have been
+ * found, and then at most once every PUBLISH_INTERVAL_MS. This lets the caller
+ * start showing (and loading thumbnails for) the first images long before the
+ * scan finishes. Each update contains every image in the previous one, plus
+ * whatever has been found since, sorted in among them. If the EDT falls behind,
+ * intermediate updates are skipped, and only the latest one is delivered.
+ * </p>
+ * <p>
+ * Deciding whether a non-image file is an alien may mean asking extensions
+ * about it, so that's left until the scan itself is finished, and is done here in
+ * the background, in one batch, before the Callback is notified (see FileClassifier).
+ * </p>
+ * <p>
+ * The scan also records the size, date, and type of every file found, in a
+ * DirectorySnapshot that's available from getSnapshot() once the scan completes.
+ * Those attributes come back with the directory listing itself, so there's no
+ * need for anything else to go back to the disk for them later.
+ * </p>
+ * <p>
  * The search can be canceled by the user via the progress dialog.
  * The search can also be canceled by the caller via the stop() method.
  * If the search is stopped early for any reason, the Callback will NOT be notified
@@ -45,16 +72,46 @@ import java.util.List;
  */
 public class DirectoryBrowseThread extends SimpleProgressWorker {
 
+    private static final Logger logger = Logger.getLogger(DirectoryBrowseThread.class.getName());
+
     @FunctionalInterface
     public interface Callback {
         void onBrowseComplete(DirectoryBrowseThread source, List<File> images, List<File> aliens);
     }
 
-    private final ImageViewerExtensionManager extManager;
+    @FunctionalInterface
+    public interface PartialResultsCallback {
+        /**
+         * Invoked on the EDT as the scan progresses.
+         *
+         * @param source The thread doing the scan.
+         * @param images All images found so far, sorted. This list is unmodifiable.
+         */
+        void onImagesFound(DirectoryBrowseThread source, List<File> images);
+    }
+
+    /**
+     * The first partial results are published as soon as we've found this many images
+     * (roughly a screenful), or PUBLISH_INTERVAL_MS after starting, whichever comes first.
+     */
+    private static final int FIRST_PUBLISH_COUNT = 100;
+
+    /**
+     * Partial results are published no more often than this.
+     */
+    private static final long PUBLISH_INTERVAL_MS = 250;
+
+    private final FileClassifier classifier;
     private final File directory;
     private final List<File> images;
+    private final List<File> nonImages;
     private final List<File> aliens;
     private final Callback callback;
+    private final PartialResultsCallback partialResultsCallback;
+    private final AtomicReference<List<File>> pendingPartialResults;
+    private volatile DirectorySnapshot snapshot;
+    private long lastPublishTime;
+    private int publishedCount;
     private volatile boolean isCanceled;
 
     /**
@@ -66,17 +123,32 @@ public class DirectoryBrowseThread extends SimpleProgressWorker {
      * @param callback  the callback to be notified of search results upon completion
      */
     public DirectoryBrowseThread(File directory, Callback callback) {
+        this(directory, callback, null);
+    }
+
+    /**
+     * Creates a DirectoryBrowseThread for the given directory, which will report
+     * partial results to the given PartialResultsCallback as the scan progresses.
+     *
+     * @param directory              the directory to scan for image files
+     * @param callback               the callback to be notified of search results upon completion
+     * @param partialResultsCallback the callback to be notified of images found so far (may be null)
+     */
+    public DirectoryBrowseThread(File directory, Callback callback, PartialResultsCallback partialResultsCallback) {
         if (directory == null || !directory.exists() || !directory.isDirectory()) {
             throw new IllegalArgumentException("Directory must be a valid existing directory");
         }
         if (callback == null) {
             throw new IllegalArgumentException("callback must not be null");
         }
-        this.extManager = ImageViewerExtensionManager.getInstance();
+        this.classifier = ImageViewerExtensionManager.getInstance().getFileClassifier();
         this.directory = directory;
         this.callback = callback;
+        this.partialResultsCallback = partialResultsCallback;
         this.images = new ArrayList<>();
+        this.nonImages = new ArrayList<>();
         this.aliens = new ArrayList<>();
+        this.pendingPartialResults = new AtomicReference<>();
         this.isCanceled = false;
     }
 
@@ -84,9 +156,24 @@ public class DirectoryBrowseThread extends SimpleProgressWorker {
     public void run() {
         // Fire progress begins with a dummy step count, just to get the dialog up.
         fireProgressBegins(1);
+        lastPublishTime = System.currentTimeMillis();
 
         try {
-            FileSystemUtil.findFiles(directory, false, this::fileFound);
+            DirectorySnapshot scanned = DirectorySnapshot.scan(directory, false, entry -> fileFound(entry.getFile()));
+            if (!isCanceled) {
+                snapshot = scanned;
+            }
+
+            // Now that the scan is done, sort out which of the non-image files are aliens:
+            if (!isCanceled) {
+                aliens.addAll(classifier.classify(nonImages).getAliens());
+                logger.fine("File classification: " + classifier.getStatistics());
+            }
+        }
+
+        catch (IOException ioe) {
+            // We'll report whatever we found (likely nothing), same as for an empty directory:
+            logger.log(Level.WARNING, "Unable to scan " + directory.getAbsolutePath() + ": " + ioe.getMessage(), ioe);
         }
 
         finally {
@@ -117,9 +204,37 @@ public class DirectoryBrowseThread extends SimpleProgressWorker {
         isCanceled = true;
     }
 
+    /**
+     * Returns the snapshot of the scanned directory, or null if the scan hasn't
+     * completed (or failed, or was canceled).
+     */
+    public DirectorySnapshot getSnapshot() {
+        return snapshot;
+    }
+
+    /**
+     * Sorts what we've found so far and hands it to the EDT for delivery to the
+     * PartialResultsCallback. If the previous update hasn't been delivered yet,
+     * this one simply replaces it.
+     */
+    private void publishPartialResults() {
+        // The images we've already published are sorted, so this is just a merge with the new ones:
+        FileSystemUtil.sortFiles(images);
+        publishedCount = images.size();
+        lastPublishTime = System.currentTimeMillis();
+        if (pendingPartialResults.getAndSet(Collections.unmodifiableList(new ArrayList<>(images))) == null) {
+            SwingUtilities.invokeLater(() -> {
+                List<File> found = pendingPartialResults.getAndSet(null);
+                if (found != null && !isCanceled) {
+                    partialResultsCallback.onImagesFound(this, found);
+                }
+            });
+        }
+    }
+
     /**
      * Invoked as the search progresses, once for each file found.
-     * Here we'll filter the raw list into images and aliens.
+     * Here we'll separate images from everything else.
      * If the user cancels via the progress dialog, or if the caller
      * cancels via our stop() method, the search will stop immediately.
      * No results will be reported.
@@ -128,8 +243,8 @@ public class DirectoryBrowseThread extends SimpleProgressWorker {
      * @return true to continue with the search, false to abort it.
      */
     private boolean fileFound(File file) {
-        // I want to show a proper progress dialog, but FileSystemUtil
-        // doesn't have a mechanism to discover the size of the file
+        // I want to show a proper progress dialog, but we don't have
+        // a mechanism to discover the size of the file
         // list in advance. So, we end up just showing an indeterminate
         // progress dialog. Better than nothing, I guess.
         // We'll just report that we're on step 0 for every file found.
@@ -140,19 +255,28 @@ public class DirectoryBrowseThread extends SimpleProgressWorker {
         }
 
         // Otherwise, continue processing:
-        if (ImageUtil.isImageFile(file)) {
+        if (classifier.isImageFile(file)) {
             images.add(file);
+            if (partialResultsCallback != null && isTimeToPublish()) {
+                publishPartialResults();
+            }
         }
 
-        // If it's not an image file, and also not a "known" or "companion" file, then it's an alien:
-        else if (!extManager.isKnownFile(file) && !extManager.isCompanionFile(file)) {
-            aliens.add(file);
+        // Anything else may be an alien, but we'll check with our extensions once the scan is done.
+        // "known" and "companion" files are purposefully ignored, as they are typically handled by extensions.
+        else {
+            nonImages.add(file);
         }
 
-        // "known" and "companion" files are purposefully ignored here.
-        // they are typically handled by application extensions.
-
         // Return true to continue with the search:
         return true;
     }
+
+    private boolean isTimeToPublish() {
+        if (images.size() == publishedCount) {
+            return false;
+        }
+        return (publishedCount == 0 && images.size() >= FIRST_PUBLISH_COUNT)
+                || System.currentTimeMillis() - lastPublishTime >= PUBLISH_INTERVAL_MS;
+    }
 }
@@ -0,0 +1,328 @@
+package ca.corbett.imageviewer.ui.threads;
+
+import ca.corbett.imageviewer.extensions.FileClassifier;
+import ca.corbett.imageviewer.extensions.ImageViewerExtensionManager;
+import ca.corbett.imageviewer.ui.DirectorySnapshot;
+
+import javax.swing.SwingUtilities;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+
+/**
+ * Watches a single directory for files being created, deleted, or modified, and reports
+ * what changed to the supplied Callback, so that the display can be updated in place
+ * instead of reloading the whole directory.
+ * <p>
+ * Events are not reported one at a time. Something like a large copy into the directory
+ * can produce many thousands of events in a few seconds, and a single file being written
+ * produces a stream of them. So, we collect the names of the files involved until the
+ * directory has been quiet for QUIET_PERIOD_MS, or until the oldest of them has been
+ * waiting for MAX_BATCH_DELAY_MS, whichever comes first. Only then do we look at each of
+ * those files, once, to see whether it still exists, and whether it's an image or an alien.
+ * The result is delivered as a single Changes object. Because each file is examined after
+ * the fact, it doesn't matter how many events it generated, or in what order they came.
+ * </p>
+ * <p>
+ * If the operating system drops events (it will report an overflow if we fall too far
+ * behind), or if the directory itself goes away, we can't know what changed, so the
+ * Changes will be flagged as an overflow, and the caller should rescan.
+ * </p>
+ * <p>
+ *     <b>NOTE!</b> The Callback will be invoked on the EDT.
+ * </p>
+ *
+ * @author <a href="https://github.com/scorbo2">scorbo2</a>
+ * @since ImageViewer 3.3
+ */
+public final class DirectoryWatcher {
+
+    private static final Logger logger = Logger.getLogger(DirectoryWatcher.class.getName());
+
+    /**
+     * A batch is delivered once the directory has been quiet for this long...
+     */
+    static final long QUIET_PERIOD_MS = 500;
+
+    /**
+     * ...or once its first change is this old, so that a long copy still shows progress.
+     */
+    static final long MAX_BATCH_DELAY_MS = 3000;
+
+    @FunctionalInterface
+    public interface Callback {
+        void directoryChanged(Changes changes);
+    }
+
+    /**
+     * A batch of changes to a directory. Each file involved appears at most once, according
+     * to its state when the batch was put together: images and aliens that exist (whether
+     * they're new or were modified), and files that no longer exist. Subdirectories and
+     * files that are neither images nor aliens (companion files, for example) are left out.
+     */
+    public static final class Changes {
+        private final File directory;
+        private final boolean isOverflow;
+        private final List<DirectorySnapshot.Entry> images;
+        private final List<DirectorySnapshot.Entry> aliens;
+        private final List<File> removed;
+
+        private Changes(File directory, boolean isOverflow, List<DirectorySnapshot.Entry> images,
+                        List<DirectorySnapshot.Entry> aliens, List<File> removed) {
+            this.directory = directory;
+            this.isOverflow = isOverflow;
+            this.images = Collections.unmodifiableList(images);
+            this.aliens = Collections.unmodifiableList(aliens);
+            this.removed = Collections.unmodifiableList(removed);
+        }
+
+        /**
+         * Examines each of the given files as it is right now, and reports it accordingly.
+         * This goes to the disk for each file, but only once.
+         *
+         * @param directory The directory containing the given files.
+         * @param files     The files that may have changed.
+         * @return The Changes found.
+         */
+        public static Changes examine(File directory, Collection<File> files) {
+            List<DirectorySnapshot.Entry> entries = new ArrayList<>();
+            List<File> existing = new ArrayList<>();
+            List<File> removed = new ArrayList<>();
+            for (File file : files) {
+                DirectorySnapshot.Entry entry = DirectorySnapshot.Entry.of(file);
+                if (entry == null) {
+                    removed.add(file);
+                }
+                else if (!entry.isDirectory()) { // the DirTree takes care of those
+                    entries.add(entry);
+                    existing.add(file);
+                }
+            }
+
+            FileClassifier.Result result = ImageViewerExtensionManager.getInstance().getFileClassifier()
+                                                                      .classify(existing);
+            List<DirectorySnapshot.Entry> images = new ArrayList<>();
+            List<DirectorySnapshot.Entry> aliens = new ArrayList<>();
+            for (DirectorySnapshot.Entry entry : entries) {
+                FileClassifier.Type type = result.getType(entry.getFile());
+                if (type == FileClassifier.Type.IMAGE) {
+                    images.add(entry);
+                }
+                else if (type == FileClassifier.Type.ALIEN) {
+                    aliens.add(entry);
+                }
+            }
+            return new Changes(directory, false, images, aliens, removed);
+        }
+
+        private static Changes overflow(File directory) {
+            return new Changes(directory, true, new ArrayList<>(), new ArrayList<>(), new ArrayList<>());
+        }
+
+        public File getDirectory() {
+            return directory;
+        }
+
+        /**
+         * If true, we lost track of what happened in this directory, and the rest of this
+         * object is empty. The only thing to do is rescan it.
+         */
+        public boolean isOverflow() {
+            return isOverflow;
+        }
+
+        /**
+         * Returns the image files in this batch that exist, whether new or modified.
+         */
+        public List<DirectorySnapshot.Entry> getImages() {
+            return images;
+        }
+
+        /**
+         * Returns the alien files in this batch that exist, whether new or modified.
+         */
+        public List<DirectorySnapshot.Entry> getAliens() {
+            return aliens;
+        }
+
+        /**
+         * Returns the files in this batch that no longer exist. These may be of any type.
+         */
+        public List<File> getRemoved() {
+            return removed;
+        }
+
+        public boolean isEmpty() {
+            return !isOverflow && images.isEmpty() && aliens.isEmpty() && removed.isEmpty();
+        }
+    }
+
+    private final Callback callback;
+    private final Object lock = new Object();
+    private WatchService watchService;
+    private WatchKey watchKey;
+    private File directory;
+
+    /**
+     * Creates a DirectoryWatcher that will report to the given Callback. Nothing is
+     * watched until watch() is invoked.
+     */
+    public DirectoryWatcher(Callback callback) {
+        if (callback == null) {
+            throw new IllegalArgumentException("callback must not be null");
+        }
+        this.callback = callback;
+    }
+
+    /**
+     * Starts watching the given directory, in place of whatever we were watching before.
+     * Any changes not yet reported for the previous directory are discarded.
+     *
+     * @param dir The directory to watch, or null to stop watching.
+     * @return true if the given directory is now being watched. Not every file system supports this.
+     */
+    public boolean watch(File dir) {
+        synchronized (lock) {
+            if (watchKey != null) {
+                watchKey.cancel();
+                watchKey = null;
+            }
+            directory = null;
+            if (dir == null) {
+                return false;
+            }
+
+            try {
+                if (watchService == null) {
+                    watchService = FileSystems.getDefault().newWatchService();
+                    WatchService service = watchService;
+                    Thread thread = new Thread(() -> run(service), "DirectoryWatcher");
+                    thread.setDaemon(true);
+                    thread.start();
+                }
+                watchKey = dir.toPath().register(watchService, ENTRY_CREATE, ENTRY_DELETE, ENTRY_MODIFY);
+                directory = dir;
+                return true;
+            }
+            catch (IOException | UnsupportedOperationException | SecurityException e) {
+                logger.log(Level.INFO, "Unable to watch " + dir.getAbsolutePath() + " for changes: " + e.getMessage());
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Stops watching, and shuts down our thread. A subsequent watch() will start it again.
+     */
+    public void stop() {
+        synchronized (lock) {
+            watchKey = null;
+            directory = null;
+            if (watchService != null) {
+                try {
+                    watchService.close();
+                }
+                catch (IOException ioe) {
+                    logger.log(Level.FINE, "Problem closing watch service: " + ioe.getMessage(), ioe);
+                }
+                watchService = null;
+            }
+        }
+    }
+
+    private void run(WatchService service) {
+        Set<File> pending = new LinkedHashSet<>();
+        WatchKey pendingKey = null;
+        File pendingDir = null;
+        boolean isOverflow = false;
+        long batchStart = 0;
+
+        try {
+            while (true) {
+                boolean isBatchOpen = isOverflow || !pending.isEmpty();
+                WatchKey key = isBatchOpen ? service.poll(QUIET_PERIOD_MS, TimeUnit.MILLISECONDS) : service.take();
+                if (key != null) {
+                    List<WatchEvent<?>> events = key.pollEvents();
+                    boolean isValid = key.reset();
+
+                    // If we've moved on to a different directory, whatever we had pending is of no interest:
+                    synchronized (lock) {
+                        if (pendingKey != watchKey) {
+                            pending.clear();
+                            isOverflow = false;
+                            batchStart = 0;
+                            pendingKey = watchKey;
+                            pendingDir = directory;
+                        }
+                    }
+                    if (key != pendingKey) {
+                        continue; // left over from a directory we've stopped watching
+                    }
+
+                    Path dir = (Path)key.watchable();
+                    for (WatchEvent<?> event : events) {
+                        if (event.kind() == OVERFLOW) {
+                            isOverflow = true;
+                        }
+                        else {
+                            pending.add(dir.resolve((Path)event.context()).toFile());
+                        }
+                    }
+                    if (!isValid) {
+                        isOverflow = true; // the directory was deleted or unmounted
+                    }
+                    if (batchStart == 0 && (isOverflow || !pending.isEmpty())) {
+                        batchStart = System.currentTimeMillis();
+                    }
+                    if (System.currentTimeMillis() - batchStart < MAX_BATCH_DELAY_MS) {
+                        continue; // keep collecting
+                    }
+                }
+
+                if (pendingDir != null && (isOverflow || !pending.isEmpty())) {
+                    deliver(pendingDir, pending, isOverflow);
+                }
+                pending = new LinkedHashSet<>();
+                isOverflow = false;
+                batchStart = 0;
+            }
+        }
+        catch (InterruptedException | ClosedWatchServiceException e) {
+            // We've been stopped.
+        }
+    }
+
+    /**
+     * Works out what the given batch of events amounts to, and hands it to the EDT
+     * for delivery to our Callback.
+     */
+    private void deliver(File dir, Set<File> files, boolean isOverflow) {
+        Changes changes = isOverflow ? Changes.overflow(dir) : Changes.examine(dir, files);
+        if (changes.isEmpty()) {
+            return;
+        }
+        logger.log(Level.FINE, "Changes in {0}: {1} images, {2} aliens, {3} removed{4}",
+                   new Object[]{dir.getAbsolutePath(), changes.getImages().size(), changes.getAliens().size(),
+                           changes.getRemoved().size(), isOverflow ? " (overflow)" : ""});
+        SwingUtilities.invokeLater(() -> callback.directoryChanged(changes));
+    }
+}
@@ -0,0 +1,187 @@
+package ca.corbett.imageviewer.ui.threads;
+
+import org.apache.commons.io.FileUtils;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.HashSet;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Records how far a thumbnail pregeneration run has gotten, so that if it is canceled
+ * (or the application exits or crashes) partway through, the next run over the same
+ * directory can pick up where it left off instead of starting over.
+ * <p>
+ * The checkpoint is the set of directories for which every image has made it all the
+ * way through the pipeline. Images are finished out of order, so each directory is
+ * tracked until all of its images are done. Only those exact directories are skipped
+ * on the next run; a directory that has been added since, wherever it falls in the
+ * tree, is processed as normal.
+ * </p>
+ * <p>
+ * The checkpoint is written to disk at most once every SAVE_INTERVAL_MS, and is deleted
+ * once a run completes. Only one checkpoint is kept; starting a run over a different
+ * directory replaces it.
+ * </p>
+ *
+ * @author <a href="https://github.com/scorbo2">scorbo2</a>
+ * @since ImageViewer 3.3
+ */
+final class PregenerationCheckpoint {
+
+    private static final Logger logger = Logger.getLogger(PregenerationCheckpoint.class.getName());
+
+    private static final long SAVE_INTERVAL_MS = 1000;
+    private static final String PROP_ROOT = "root";
+    private static final String PROP_COMPLETED_PREFIX = "completedDir.";
+
+    private final File file;
+    private final String rootPath;
+    private final Set<String> completedPaths = new HashSet<>();
+    private long lastSaveTime;
+
+    /**
+     * Creates a checkpoint for a run over the given root directory.
+     *
+     * @param file    Where to persist the checkpoint.
+     * @param rootDir The root directory of the pregeneration run.
+     */
+    PregenerationCheckpoint(File file, File rootDir) {
+        this.file = file;
+        this.rootPath = rootDir.getAbsolutePath();
+    }
+
+    /**
+     * Loads a previously saved checkpoint for the same root directory, if there is one.
+     *
+     * @return How many directories the previous run completed; 0 to start from the beginning.
+     */
+    synchronized int load() {
+        completedPaths.clear();
+        if (!file.exists()) {
+            return 0;
+        }
+        Properties props = new Properties();
+        try (InputStream in = new FileInputStream(file)) {
+            props.load(in);
+        }
+        catch (IOException ioe) {
+            logger.log(Level.WARNING, "Unable to read pregeneration checkpoint; starting from the beginning.", ioe);
+            return 0;
+        }
+        if (rootPath.equals(props.getProperty(PROP_ROOT))) {
+            for (String name : props.stringPropertyNames()) {
+                if (name.startsWith(PROP_COMPLETED_PREFIX)) {
+                    completedPaths.add(props.getProperty(name));
+                }
+            }
+        }
+        return completedPaths.size();
+    }
+
+    /**
+     * Reports whether the given directory was completed by a previous run, according to the
+     * checkpoint we loaded.
+     */
+    synchronized boolean isCompleted(File dir) {
+        return completedPaths.contains(dir.getAbsolutePath());
+    }
+
+    /**
+     * Begins tracking a directory whose images are about to be submitted.
+     *
+     * @param dir The directory.
+     * @return A Directory on which to count images in and out.
+     */
+    Directory begin(File dir) {
+        return new Directory(dir.getAbsolutePath());
+    }
+
+    /**
+     * Deletes the checkpoint. Invoke this once a run completes.
+     */
+    synchronized void clear() {
+        completedPaths.clear();
+        FileUtils.deleteQuietly(file);
+    }
+
+    /**
+     * Saves the checkpoint now, regardless of how recently it was saved.
+     */
+    synchronized void save() {
+        if (completedPaths.isEmpty()) {
+            return;
+        }
+        Properties props = new Properties();
+        props.setProperty(PROP_ROOT, rootPath);
+        int index = 0;
+        for (String path : completedPaths) {
+            props.setProperty(PROP_COMPLETED_PREFIX + index++, path);
+        }
+        file.getParentFile().mkdirs();
+        try (OutputStream out = new FileOutputStream(file)) {
+            props.store(out, "Thumbnail pregeneration checkpoint");
+        }
+        catch (IOException ioe) {
+            logger.log(Level.WARNING, "Unable to save pregeneration checkpoint.", ioe);
+        }
+        lastSaveTime = System.currentTimeMillis();
+    }
+
+    /**
+     * Records that every image in the given directory is done.
+     */
+    private synchronized void completed(Directory directory) {
+        completedPaths.add(directory.path);
+        if (System.currentTimeMillis() - lastSaveTime >= SAVE_INTERVAL_MS) {
+            save();
+        }
+    }
+
+    /**
+     * Counts the images of one directory in and out of the pipeline.
+     */
+    final class Directory {
+        private final String path;
+        private final AtomicInteger outstanding = new AtomicInteger();
+        private volatile boolean isAllSubmitted;
+
+        private Directory(String path) {
+            this.path = path;
+        }
+
+        /**
+         * Invoke before submitting each image.
+         */
+        void imageSubmitted() {
+            outstanding.incrementAndGet();
+        }
+
+        /**
+         * Invoke once each image is done with. May be invoked from any thread.
+         */
+        void imageDone() {
+            if (outstanding.decrementAndGet() == 0 && isAllSubmitted) {
+                completed(this);
+            }
+        }
+
+        /**
+         * Invoke once every image in the directory has been submitted.
+         */
+        void allSubmitted() {
+            isAllSubmitted = true;
+            if (outstanding.get() == 0) {
+                completed(this);
+            }
+        }
+    }
+}
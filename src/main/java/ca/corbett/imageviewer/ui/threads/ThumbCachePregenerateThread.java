@@ -1,19 +1,33 @@
 package ca.corbett.imageviewer.ui.threads;
 
-import ca.corbett.extras.image.ImageUtil;
 import ca.corbett.extras.io.FileSystemUtil;
 import ca.corbett.extras.progress.MultiProgressWorker;
 import ca.corbett.imageviewer.AppConfig;
+import ca.corbett.imageviewer.extensions.ImageViewerExtensionManager;
 import ca.corbett.imageviewer.ui.ThumbCacheManager;
 
 import java.io.File;
+import java.util.Comparator;
 import java.util.List;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
  * A worker thread to go through a directory recursively, automatically generating
  * thumbnails for all images found, and adding them to the ThumbnailCache.
  * <P>
+ *     This thread only walks the directory tree. Each image found is handed to a
+ *     ThumbPregenerationPipeline, which reads, decodes, scales and writes thumbnails
+ *     on its own threads, so that disk and CPU work overlap. Progress is reported as
+ *     images are accepted by the pipeline, which only accepts more as it makes room.
+ * </P>
+ * <P>
+ *     Images whose cached thumbnails are already current are skipped, and progress is
+ *     checkpointed as each directory is completed (see PregenerationCheckpoint). So a
+ *     run that is canceled partway through resumes where it left off the next time, and
+ *     re-running over a tree that hasn't changed finishes quickly.
+ * </P>
+ * <P>
  *     This thread will immediately exit if thumbnail caching is disabled in preferences.
  *     But, the action to launch this thread is hidden if caching is disabled,
  *     so it should not normally be possible to launch it in that case.
@@ -26,6 +40,8 @@ public class ThumbCachePregenerateThread extends MultiProgressWorker {
 
     private static final Logger log = Logger.getLogger(ThumbCachePregenerateThread.class.getName());
 
+    private static final File CHECKPOINT_FILE = new File(ThumbCacheManager.CACHE_DIR, "pregenerate-checkpoint.properties");
+
     private final File rootDir;
 
     public ThumbCachePregenerateThread(File dir) {
@@ -43,35 +59,78 @@ public class ThumbCachePregenerateThread extends MultiProgressWorker {
 
         List<File> alldirs = FileSystemUtil.findSubdirectories(rootDir, true);
         alldirs.add(0, rootDir); // above list does not include the root itself
+        alldirs.sort(Comparator.comparing(File::getAbsolutePath));
+
+        PregenerationCheckpoint checkpoint = new PregenerationCheckpoint(CHECKPOINT_FILE, rootDir);
+        int completedCount = checkpoint.load();
+        if (completedCount > 0) {
+            log.log(Level.INFO, "Resuming thumbnail pregeneration; {0} directories were already completed.",
+                    completedCount);
+        }
 
         boolean wasCanceled = false;
+        long startTime = System.currentTimeMillis();
+        ThumbPregenerationPipeline pipeline = new ThumbPregenerationPipeline();
         fireProgressBegins(alldirs.size());
         try {
             int majorProgress = 0;
 
             for (File dir : alldirs) {
+                if (checkpoint.isCompleted(dir)) {
+                    majorProgress++;
+                    continue;
+                }
                 List<File> images = FileSystemUtil.findFiles(dir, false)
                                                   .stream()
-                                                  .filter(ImageUtil::isImageFile)
+                                                  .filter(ImageViewerExtensionManager.getInstance().getFileClassifier()::isImageFile)
                                                   .toList();
                 if (!fireMajorProgressUpdate(majorProgress, images.size(), dir.getAbsolutePath())) {
                     wasCanceled = true;
                     break;
                 }
                 int minorProgress = 0;
+                PregenerationCheckpoint.Directory directory = checkpoint.begin(dir);
                 for (File image : images) {
                     if (!fireMinorProgressUpdate(majorProgress, minorProgress, image.getName())) {
                         wasCanceled = true;
                         break;
                     }
-                    ThumbCacheManager.add(image);
+                    directory.imageSubmitted();
+                    pipeline.submit(image, directory::imageDone);
                     minorProgress++;
                 }
+                if (wasCanceled) {
+                    break;
+                }
+                directory.allSubmitted();
                 majorProgress++;
             }
 
         }
+        catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            wasCanceled = true;
+        }
         finally {
+            if (wasCanceled) {
+                pipeline.cancel();
+            }
+            try {
+                pipeline.awaitCompletion();
+            }
+            catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+            }
+            if (wasCanceled) {
+                checkpoint.save();
+            }
+            else {
+                checkpoint.clear();
+            }
+            log.log(Level.INFO, "Pregenerated thumbnails for {0} images in {1}ms ({2} already current, {3} failed).",
+                    new Object[]{pipeline.getCompletedCount(), System.currentTimeMillis() - startTime,
+                            pipeline.getSkippedCount(), pipeline.getFailedCount()});
+
             // Ensure progress dialog is closed no matter what happens above
             if (wasCanceled) {
                 fireProgressCanceled();
@@ -0,0 +1,271 @@
+package ca.corbett.imageviewer.ui.threads;
+
+import ca.corbett.extras.io.FileSystemUtil;
+import ca.corbett.imageviewer.AppConfig;
+import ca.corbett.imageviewer.extensions.ImageViewerExtensionManager;
+import ca.corbett.imageviewer.ui.SourceStamp;
+import ca.corbett.imageviewer.ui.ThumbCacheManager;
+
+import java.awt.AWTEvent;
+import java.awt.Toolkit;
+import java.awt.event.AWTEventListener;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Caches thumbnails in the background, while the application is otherwise idle, for the
+ * images the user is likely to look at next: the rest of the current directory, then the
+ * directories beside it in the tree, then the directories immediately inside it. The idea
+ * is that by the time the user clicks on the next directory, it's already in the cache.
+ * <p>
+ * This is strictly a spare-time activity. We run a single thread at the lowest priority,
+ * and before each image we wait until there has been no mouse or keyboard input for
+ * IDLE_DELAY_MS and no ThumbLoader has anything queued. Navigating to a different
+ * directory abandons whatever we were doing and starts over from the new one. We process
+ * only one image at a time, so the most we can ever be in the way is one image's worth of work.
+ * </p>
+ * <p>
+ * We also stop once the cache is near its configured maximum size (see
+ * ThumbCacheManager.isNearSizeLimit()), so that warming never causes thumbnails the user
+ * has actually looked at to be evicted.
+ * </p>
+ *
+ * @author <a href="https://github.com/scorbo2">scorbo2</a>
+ * @since ImageViewer 3.3
+ */
+public final class ThumbCacheWarmer {
+
+    private static final Logger logger = Logger.getLogger(ThumbCacheWarmer.class.getName());
+
+    /**
+     * How long the user must leave us alone before we start (or resume) warming.
+     */
+    private static final long IDLE_DELAY_MS = 3000;
+
+    /**
+     * How often we check again while waiting for the user or ThumbLoader to go idle.
+     */
+    private static final long POLL_INTERVAL_MS = 250;
+
+    private static final long INPUT_EVENT_MASK = AWTEvent.MOUSE_EVENT_MASK
+            | AWTEvent.MOUSE_WHEEL_EVENT_MASK
+            | AWTEvent.KEY_EVENT_MASK;
+
+    private static ThumbCacheWarmer instance;
+
+    private final Object lock = new Object();
+    private final AWTEventListener inputListener = event -> userActivity();
+    private boolean isRunning;
+    private File currentDir;
+    private File lockDir;
+    private int generation;
+    private volatile long lastActivityTime;
+
+    private ThumbCacheWarmer() {
+    }
+
+    public static synchronized ThumbCacheWarmer getInstance() {
+        if (instance == null) {
+            instance = new ThumbCacheWarmer();
+        }
+        return instance;
+    }
+
+    /**
+     * Starts the background thread, which waits for a directory to be supplied via
+     * setDirectory(). Does nothing if already started.
+     */
+    public void start() {
+        synchronized (lock) {
+            if (isRunning) {
+                return;
+            }
+            isRunning = true;
+            lastActivityTime = System.currentTimeMillis();
+            Thread thread = new Thread(this::run, "ThumbCacheWarmer");
+            thread.setDaemon(true);
+            thread.setPriority(Thread.MIN_PRIORITY);
+            thread.start();
+        }
+        Toolkit.getDefaultToolkit().addAWTEventListener(inputListener, INPUT_EVENT_MASK);
+    }
+
+    /**
+     * Stops the background thread. Any image currently being cached is allowed to finish.
+     */
+    public void stop() {
+        Toolkit.getDefaultToolkit().removeAWTEventListener(inputListener);
+        synchronized (lock) {
+            isRunning = false;
+            generation++;
+            lock.notifyAll();
+        }
+    }
+
+    /**
+     * Informs us that the user has navigated to the given directory. Whatever we were
+     * warming is abandoned, and once the user goes idle we start over from here.
+     *
+     * @param dir     The newly selected directory, or null to warm nothing.
+     * @param lockDir The directory the tree is locked to, if any; we won't go outside it.
+     */
+    public void setDirectory(File dir, File lockDir) {
+        synchronized (lock) {
+            this.currentDir = dir;
+            this.lockDir = lockDir;
+            generation++;
+            lastActivityTime = System.currentTimeMillis();
+            lock.notifyAll();
+        }
+    }
+
+    /**
+     * Notes that the user did something, which pushes back our next bit of work by IDLE_DELAY_MS.
+     */
+    private void userActivity() {
+        lastActivityTime = System.currentTimeMillis();
+    }
+
+    private void run() {
+        while (true) {
+            File dir;
+            File boundary;
+            int myGeneration;
+            synchronized (lock) {
+                while (isRunning && currentDir == null) {
+                    try {
+                        lock.wait();
+                    }
+                    catch (InterruptedException ie) {
+                        return;
+                    }
+                }
+                if (!isRunning) {
+                    return;
+                }
+                dir = currentDir;
+                boundary = lockDir;
+                myGeneration = generation;
+            }
+
+            warm(dir, boundary, myGeneration);
+
+            // Whether we finished or gave up, there's nothing more to do until the user moves on:
+            synchronized (lock) {
+                while (isRunning && generation == myGeneration) {
+                    try {
+                        lock.wait();
+                    }
+                    catch (InterruptedException ie) {
+                        return;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Works through the neighbourhood of the given directory, one image at a time, for as
+     * long as the given generation is current.
+     */
+    private void warm(File dir, File boundary, int myGeneration) {
+        int cachedCount = 0;
+        for (File targetDir : getTargetDirectories(dir, boundary)) {
+            for (File image : findImages(targetDir)) {
+                if (!awaitIdle(myGeneration)) {
+                    return;
+                }
+                if (!AppConfig.getInstance().isThumbCacheEnabled()
+                        || !AppConfig.getInstance().isThumbCacheWarmingEnabled()) {
+                    return;
+                }
+                if (ThumbCacheManager.isNearSizeLimit()) {
+                    logger.log(Level.FINE, "Thumbnail cache is near its size limit; not warming any further.");
+                    return;
+                }
+                SourceStamp stamp = SourceStamp.of(image);
+                if (stamp == null || ThumbCacheManager.isCached(image, stamp)) {
+                    continue;
+                }
+                if (ThumbCacheManager.add(image)) {
+                    cachedCount++;
+                }
+            }
+        }
+        logger.log(Level.FINE, "Finished warming thumbnail cache around {0}; cached {1} images.",
+                   new Object[]{dir.getAbsolutePath(), cachedCount});
+    }
+
+    /**
+     * Blocks until the user has been idle for IDLE_DELAY_MS and no foreground thumbnail
+     * work is queued.
+     *
+     * @return False if we should give up instead, because we're stopping or the directory changed.
+     */
+    private boolean awaitIdle(int myGeneration) {
+        synchronized (lock) {
+            while (isRunning && generation == myGeneration) {
+                long idleTime = System.currentTimeMillis() - lastActivityTime;
+                if (idleTime >= IDLE_DELAY_MS && !ThumbLoader.isBusy()) {
+                    return true;
+                }
+                try {
+                    lock.wait(Math.max(POLL_INTERVAL_MS, IDLE_DELAY_MS - idleTime));
+                }
+                catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Returns the directories to warm, in the order we should warm them: the given directory
+     * itself, then its siblings, then its immediate children. Siblings are skipped if the
+     * given directory is the lock directory, since the tree doesn't show anything above it.
+     */
+    private static List<File> getTargetDirectories(File dir, File boundary) {
+        List<File> targets = new ArrayList<>();
+        targets.add(dir);
+        File parent = dir.getParentFile();
+        if (parent != null && !dir.equals(boundary)) {
+            for (File sibling : findSubdirectories(parent)) {
+                if (!sibling.equals(dir)) {
+                    targets.add(sibling);
+                }
+            }
+        }
+        targets.addAll(findSubdirectories(dir));
+        return targets;
+    }
+
+    /**
+     * Returns the immediate subdirectories of the given directory that the DirTree would show.
+     */
+    private static List<File> findSubdirectories(File dir) {
+        boolean showHidden = AppConfig.getInstance().getShowHiddenDirectories();
+        List<File> subdirs = new ArrayList<>(FileSystemUtil.findSubdirectories(dir, false)
+                                                           .stream()
+                                                           .filter(f -> showHidden || !f.isHidden())
+                                                           .toList());
+        FileSystemUtil.sortFiles(subdirs);
+        return subdirs;
+    }
+
+    /**
+     * Returns the images in the given directory, in the order ThumbContainerPanel shows them.
+     */
+    private static List<File> findImages(File dir) {
+        List<File> images = new ArrayList<>(FileSystemUtil.findFiles(dir, false)
+                                                          .stream()
+                                                          .filter(ImageViewerExtensionManager.getInstance().getFileClassifier()::isImageFile)
+                                                          .toList());
+        FileSystemUtil.sortFiles(images);
+        return images;
+    }
+}
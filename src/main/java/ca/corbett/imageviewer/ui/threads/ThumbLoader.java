@@ -0,0 +1,587 @@
+package ca.corbett.imageviewer.ui.threads;
+
+import ca.corbett.extras.image.ImageUtil;
+import ca.corbett.imageviewer.extensions.ImageViewerExtensionManager;
+import ca.corbett.imageviewer.AppConfig;
+import ca.corbett.imageviewer.ui.EmbeddedThumbnailReader;
+import ca.corbett.imageviewer.ui.FreedesktopThumbnails;
+import ca.corbett.imageviewer.ui.SourceStamp;
+import ca.corbett.imageviewer.ui.ThumbCacheManager;
+import ca.corbett.imageviewer.ui.ThumbMemoryCache;
+import ca.corbett.imageviewer.ui.ThumbnailDecoder;
+
+import javax.swing.SwingUtilities;
+import javax.swing.Timer;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Loads thumbnails on demand for a ThumbContainerPanel. Rather than walking a page of
+ * files from start to finish, the container asks us for individual thumbnails as their
+ * cells scroll into view, and we hand each result back via the supplied Callback.
+ * <p>
+ * The actual cache lookup, decoding and scaling of each image is farmed out to a
+ * bounded pool of worker threads sized to the number of available processors.
+ * The pool is shared by all ThumbLoader instances, so that two thumb containers
+ * loading at the same time can't oversubscribe the CPU between them.
+ * </p>
+ * <p>
+ * Requests are not serviced in the order they were made. Each request carries a
+ * priority (lower values are loaded sooner), and whenever a worker becomes free it
+ * takes the highest priority request that is still queued. As the user scrolls,
+ * the caller can use reprioritize() to re-rank everything still in the queue, and
+ * to drop requests that are no longer worth loading at all.
+ * </p>
+ * <p>
+ * Every request is tagged with a generation number supplied by the caller, and
+ * that same number is handed back with the result. The caller can use this to
+ * discard results for a directory or image set it has already moved away from.
+ * Invoking cancelAll() will also discard any requests that haven't started yet,
+ * and ensure that those in progress are never reported.
+ * </p>
+ * <p>
+ * Finished thumbnails are not posted to the EDT one at a time. They are collected
+ * as they complete, and handed to the Callback in batches, at most once per
+ * frame (FLUSH_INTERVAL_MS), so that the caller can apply a whole batch with a single
+ * repaint. Delivery counters (batch sizes and EDT time spent per batch) are
+ * available via getDeliveryStats().
+ * </p>
+ * <p>
+ *     <b>NOTE!</b> The Callback will be invoked on the EDT. It is safe
+ *     to perform UI updates from the Callback.
+ * </p>
+ *
+ * @author scorbo2
+ * @since 2017-11-11 (originally ThumbLoaderThread)
+ */
+public final class ThumbLoader {
+
+    private static final Logger logger = Logger.getLogger(ThumbLoader.class.getName());
+
+    /**
+     * Decoding and scaling is CPU-bound, so we size our worker pool to the machine.
+     */
+    private static final int POOL_SIZE = Math.max(1, Runtime.getRuntime().availableProcessors());
+
+    private static final ExecutorService WORKER_POOL = Executors.newFixedThreadPool(POOL_SIZE, new ThreadFactory() {
+        private final AtomicInteger threadNumber = new AtomicInteger(1);
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "ThumbLoaderWorker-" + threadNumber.getAndIncrement());
+            thread.setDaemon(true); // don't hold up application exit
+            thread.setPriority(Thread.NORM_PRIORITY - 1); // keep the EDT responsive
+            return thread;
+        }
+    });
+
+    /**
+     * How many tasks have been submitted to the worker pool and not yet finished, across all instances.
+     */
+    private static final AtomicInteger outstandingTasks = new AtomicInteger();
+
+    /**
+     * How many thumbnails have come from each Source, across all instances.
+     */
+    private static final Map<Source, AtomicLong> sourceHits = new EnumMap<>(Source.class);
+
+    static {
+        for (Source source : Source.values()) {
+            sourceHits.put(source, new AtomicLong());
+        }
+    }
+
+    /**
+     * Returned by a Prioritizer to indicate that a queued request should be dropped.
+     */
+    public static final int DROP = -1;
+
+    /**
+     * Finished thumbnails are delivered to the EDT no more often than this. 16ms is one frame at 60Hz.
+     */
+    private static final int FLUSH_INTERVAL_MS = 16;
+
+    /**
+     * No more than this many thumbnails are delivered in a single batch, so that a large
+     * backlog can't hog the EDT. Anything left over goes in the next batch.
+     */
+    private static final int MAX_BATCH_SIZE = 100;
+
+    @FunctionalInterface
+    public interface Callback {
+        /**
+         * Invoked on the EDT with a batch of finished thumbnails.
+         *
+         * @param results One or more finished thumbnails, in the order they completed.
+         */
+        void thumbnailsLoaded(List<Result> results);
+    }
+
+    /**
+     * Represents a single finished thumbnail request.
+     */
+    public static final class Result {
+        private final File file;
+        private final BufferedImage thumb;
+        private final int generation;
+
+        private Result(File file, BufferedImage thumb, int generation) {
+            this.file = file;
+            this.thumb = thumb;
+            this.generation = generation;
+        }
+
+        /**
+         * The image file that was requested.
+         */
+        public File getFile() {
+            return file;
+        }
+
+        /**
+         * The thumbnail, or null if one could not be produced for this file.
+         */
+        public BufferedImage getThumb() {
+            return thumb;
+        }
+
+        /**
+         * The generation number that was supplied with the request.
+         */
+        public int getGeneration() {
+            return generation;
+        }
+    }
+
+    /**
+     * A snapshot of batch delivery counters, for diagnostic purposes.
+     */
+    public static final class DeliveryStats {
+        private final long batchCount;
+        private final long thumbCount;
+        private final int largestBatch;
+        private final long totalNanos;
+        private final long longestNanos;
+
+        private DeliveryStats(long batchCount, long thumbCount, int largestBatch, long totalNanos, long longestNanos) {
+            this.batchCount = batchCount;
+            this.thumbCount = thumbCount;
+            this.largestBatch = largestBatch;
+            this.totalNanos = totalNanos;
+            this.longestNanos = longestNanos;
+        }
+
+        public long getBatchCount() {
+            return batchCount;
+        }
+
+        public long getThumbCount() {
+            return thumbCount;
+        }
+
+        public int getLargestBatchSize() {
+            return largestBatch;
+        }
+
+        public double getAverageBatchSize() {
+            return batchCount == 0 ? 0 : (double)thumbCount / batchCount;
+        }
+
+        public double getAverageBatchMillis() {
+            return batchCount == 0 ? 0 : totalNanos / 1_000_000.0 / batchCount;
+        }
+
+        public double getLongestBatchMillis() {
+            return longestNanos / 1_000_000.0;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d thumbnails in %d batches (avg %.1f, max %d per batch);"
+                                         + " EDT time per batch avg %.2fms, max %.2fms",
+                                 thumbCount, batchCount, getAverageBatchSize(), largestBatch,
+                                 getAverageBatchMillis(), getLongestBatchMillis());
+        }
+    }
+
+    @FunctionalInterface
+    public interface Prioritizer {
+        /**
+         * Returns a new priority for the given queued file. Lower values are loaded sooner.
+         * Return DROP to remove the request from the queue altogether.
+         *
+         * @param file The image file in question.
+         * @return The new priority for this file, or DROP.
+         */
+        int getPriority(File file);
+    }
+
+    private static final class Request {
+        final File file;
+        final int thumbSize;
+        final int generation;
+        int priority;
+
+        Request(File file, int thumbSize, int generation, int priority) {
+            this.file = file;
+            this.thumbSize = thumbSize;
+            this.generation = generation;
+            this.priority = priority;
+        }
+    }
+
+    private final Callback callback;
+    private final Map<File, Request> queued;
+    private final Set<Request> inProgress;
+    private final List<Result> completed;
+    private final Timer flushTimer;
+    private boolean isFlushScheduled;
+
+    // Delivery counters, only ever touched on the EDT:
+    private long batchCount;
+    private long thumbCount;
+    private int largestBatch;
+    private long totalNanos;
+    private long longestNanos;
+
+    /**
+     * Creates a new ThumbLoader that will report results to the given Callback.
+     *
+     * @param callback The callback to be notified (on the EDT) as each thumbnail is ready.
+     */
+    public ThumbLoader(Callback callback) {
+        if (callback == null) {
+            throw new IllegalArgumentException("callback must not be null");
+        }
+        this.callback = callback;
+        this.queued = new HashMap<>();
+        this.inProgress = new HashSet<>();
+        this.completed = new ArrayList<>();
+        this.flushTimer = new Timer(FLUSH_INTERVAL_MS, e -> flush());
+        this.flushTimer.setRepeats(false);
+    }
+
+    /**
+     * Queues up a request for a thumbnail for the given file. If a request for this file
+     * is already queued, its priority is updated instead.
+     *
+     * @param file       The image file in question.
+     * @param thumbSize  The desired thumbnail size.
+     * @param generation An opaque value that will be handed back to the Callback with the result.
+     * @param priority   Lower values are loaded sooner. Must not be negative.
+     */
+    public synchronized void request(File file, int thumbSize, int generation, int priority) {
+        Request existing = queued.get(file);
+        if (existing != null) {
+            existing.priority = priority;
+            return;
+        }
+        queued.put(file, new Request(file, thumbSize, generation, priority));
+
+        // Each submitted task services whichever request is most important at the time it runs,
+        // which is not necessarily the one that caused it to be submitted:
+        outstandingTasks.incrementAndGet();
+        WORKER_POOL.submit(() -> {
+            try {
+                loadNext();
+            }
+            finally {
+                outstandingTasks.decrementAndGet();
+            }
+        });
+    }
+
+    /**
+     * Re-ranks every request that is still queued, using the given Prioritizer. Requests
+     * for which the Prioritizer returns DROP are removed from the queue and will not be
+     * reported to the Callback. Requests that are already in progress are not affected.
+     *
+     * @param prioritizer Supplies the new priority for each queued file.
+     * @return The list of files that were dropped (may be empty).
+     */
+    public synchronized List<File> reprioritize(Prioritizer prioritizer) {
+        List<File> dropped = new ArrayList<>();
+        Iterator<Request> iterator = queued.values().iterator();
+        while (iterator.hasNext()) {
+            Request request = iterator.next();
+            int priority = prioritizer.getPriority(request.file);
+            if (priority == DROP) {
+                dropped.add(request.file);
+                iterator.remove();
+            }
+            else {
+                request.priority = priority;
+            }
+        }
+        return dropped;
+    }
+
+    /**
+     * Returns the number of thumbnail requests that are queued or in progress.
+     */
+    public synchronized int getPendingCount() {
+        return queued.size() + inProgress.size();
+    }
+
+    /**
+     * Discards all queued requests. Any requests that are already in progress will be
+     * allowed to finish, but nothing further will be reported to the Callback for any
+     * request made before this call. This can safely be invoked from any thread,
+     * including the EDT.
+     */
+    public synchronized void cancelAll() {
+        queued.clear();
+        inProgress.clear();
+        completed.clear();
+    }
+
+    /**
+     * Returns a snapshot of our batch delivery counters. Must be invoked on the EDT.
+     */
+    public DeliveryStats getDeliveryStats() {
+        return new DeliveryStats(batchCount, thumbCount, largestBatch, totalNanos, longestNanos);
+    }
+
+    /**
+     * Removes and returns the highest priority queued request, or null if the queue is empty.
+     * The queue is only ever a few viewports deep, so a linear scan is plenty fast here,
+     * and it means that reprioritize() doesn't have to rebuild anything.
+     */
+    private synchronized Request takeNext() {
+        Request best = null;
+        for (Request request : queued.values()) {
+            if (best == null || request.priority < best.priority) {
+                best = request;
+            }
+        }
+        if (best != null) {
+            queued.remove(best.file);
+            inProgress.add(best);
+        }
+        return best;
+    }
+
+    /**
+     * Invoked on a worker thread to service the most important queued request.
+     */
+    private void loadNext() {
+        Request request = takeNext();
+        if (request == null) {
+            return; // dropped or canceled before we got to it
+        }
+        BufferedImage thumb = null;
+        try {
+            thumb = loadThumbnail(request.file, request.thumbSize);
+        }
+        catch (RuntimeException e) {
+            logger.log(Level.SEVERE, "ThumbLoader: unexpected error on file: " + request.file.getName(), e);
+        }
+        finally {
+            // Whatever happened, the request has to be resolved, or it would be pending forever.
+            // A null thumbnail tells the Callback that this one failed:
+            boolean needsFlush = false;
+            synchronized (this) {
+                // If we're no longer in the in-progress list, we were canceled while working:
+                if (inProgress.remove(request)) {
+                    completed.add(new Result(request.file, thumb, request.generation));
+                    needsFlush = !isFlushScheduled;
+                    isFlushScheduled = true;
+                }
+            }
+            if (needsFlush) {
+                SwingUtilities.invokeLater(flushTimer::restart);
+            }
+        }
+    }
+
+    /**
+     * Invoked on the EDT by our flush timer, to hand everything that has finished
+     * since the last flush to our Callback in one batch.
+     */
+    private void flush() {
+        List<Result> batch;
+        synchronized (this) {
+            int batchSize = Math.min(MAX_BATCH_SIZE, completed.size());
+            batch = new ArrayList<>(completed.subList(0, batchSize));
+            completed.subList(0, batchSize).clear();
+
+            // If there's a backlog, schedule the next batch right away:
+            isFlushScheduled = !completed.isEmpty();
+            if (isFlushScheduled) {
+                flushTimer.restart();
+            }
+        }
+        if (batch.isEmpty()) {
+            return; // canceled since this flush was scheduled
+        }
+
+        long startTime = System.nanoTime();
+        callback.thumbnailsLoaded(batch);
+        long elapsed = System.nanoTime() - startTime;
+        batchCount++;
+        thumbCount += batch.size();
+        largestBatch = Math.max(largestBatch, batch.size());
+        totalNanos += elapsed;
+        longestNanos = Math.max(longestNanos, elapsed);
+    }
+
+    /**
+     * Identifies where a thumbnail came from, for our per-source hit counters.
+     */
+    public enum Source {
+        /** Found in the in-memory thumbnail cache. */
+        MEMORY,
+
+        /** Found in the thumbnail cache (possibly derived from a larger cached size). */
+        CACHE,
+
+        /** Supplied by an extension. */
+        EXTENSION,
+
+        /** Found in the freedesktop.org shared thumbnail cache that Linux file managers use. */
+        DESKTOP,
+
+        /** Extracted from the preview image embedded in the file's EXIF header. */
+        EMBEDDED,
+
+        /** Generated by decoding the source image. */
+        GENERATED,
+
+        /** No thumbnail could be produced. */
+        FAILED
+    }
+
+    /**
+     * Reports whether any ThumbLoader instance has thumbnail requests queued or in progress.
+     * Background work that competes for the same disk and CPU (see ThumbCacheWarmer) should
+     * wait until this returns false.
+     */
+    public static boolean isBusy() {
+        return outstandingTasks.get() > 0;
+    }
+
+    /**
+     * Returns a snapshot of how many thumbnails have been loaded from each Source since startup,
+     * across all ThumbLoader instances.
+     */
+    public static Map<Source, Long> getSourceHitCounts() {
+        Map<Source, Long> counts = new EnumMap<>(Source.class);
+        for (Map.Entry<Source, AtomicLong> entry : sourceHits.entrySet()) {
+            counts.put(entry.getKey(), entry.getValue().get());
+        }
+        return counts;
+    }
+
+    /**
+     * Finds or generates a thumbnail for the given file. This is invoked on one of our
+     * worker threads, so it must not touch the UI. Returns null if no thumbnail could
+     * be produced for any reason.
+     * <p>
+     * We try the cheapest options first: the in-memory cache, then the thumbnail cache, then extensions,
+     * then the freedesktop.org shared thumbnail cache, then any preview embedded in the file header,
+     * and only then do we decode the image itself.
+     * Whatever we come up with is remembered in the in-memory cache for next time.
+     * </p>
+     *
+     * @param file      The image file in question.
+     * @param thumbSize The desired thumbnail size.
+     * @return A thumbnail image, or null.
+     */
+    static BufferedImage loadThumbnail(File file, int thumbSize) {
+        // This is the one and only stat of the source file; both caches validate against it:
+        SourceStamp stamp = SourceStamp.of(file);
+        if (stamp == null) {
+            logger.log(Level.WARNING, "ThumbLoader: unable to read file: {0}", file.getName());
+            sourceHits.get(Source.FAILED).incrementAndGet();
+            return null;
+        }
+        BufferedImage thumbImage = ThumbMemoryCache.getInstance().get(file, stamp, thumbSize);
+        if (thumbImage != null) {
+            sourceHits.get(Source.MEMORY).incrementAndGet();
+            return thumbImage;
+        }
+        Source source = Source.FAILED;
+        try {
+            // If we have a cached thumbnail for this image, use it:
+            thumbImage = ThumbCacheManager.get(file, thumbSize, stamp);
+            source = Source.CACHE;
+
+            // Otherwise, give extensions a chance to return a thumbnail for this image:
+            if (thumbImage == null) {
+                thumbImage = ImageViewerExtensionManager.getInstance().getThumbnail(file, thumbSize);
+                source = Source.EXTENSION;
+            }
+
+            // A file manager may well have been here before us:
+            if (thumbImage == null && AppConfig.getInstance().isDesktopThumbnailReadEnabled()) {
+                BufferedImage shared = FreedesktopThumbnails.getInstance().read(file, stamp, thumbSize);
+                if (shared != null) {
+                    thumbImage = ImageUtil.generateThumbnail(shared, thumbSize, thumbSize);
+                    shared.flush();
+                    source = Source.DESKTOP;
+                }
+            }
+
+            // Many camera images have a perfectly good preview embedded in the header:
+            if (thumbImage == null) {
+                BufferedImage preview = EmbeddedThumbnailReader.read(file, thumbSize);
+                if (preview != null) {
+                    thumbImage = ImageUtil.generateThumbnail(preview, thumbSize, thumbSize);
+                    preview.flush();
+                    source = Source.EMBEDDED;
+                }
+            }
+
+            // If still nothing, generate one now. We return it right away, and let
+            // ThumbCacheManager write it to the cache in the background:
+            if (thumbImage == null) {
+                // We don't need the full resolution image, just enough for the largest thumbnail we'll make:
+                BufferedImage srcImage = ThumbnailDecoder.load(file, ThumbCacheManager.getSourceDecodeSize(thumbSize));
+                if (srcImage != null) {
+                    thumbImage = ImageUtil.generateThumbnail(srcImage, thumbSize, thumbSize);
+                    ThumbCacheManager.addDeferred(file, stamp, srcImage, thumbImage, thumbSize); // no-op if caching is disabled
+                    if (AppConfig.getInstance().isDesktopThumbnailWriteEnabled()) {
+                        FreedesktopThumbnails.getInstance().writeDeferred(file, stamp, srcImage);
+                    }
+                    srcImage.flush();
+                    source = Source.GENERATED;
+                }
+                else {
+                    logger.log(Level.WARNING, "ThumbLoader: encountered null image from file: {0}",
+                               file.getName());
+                }
+            }
+        }
+        catch (ArrayIndexOutOfBoundsException oobe) {
+            logger.log(Level.WARNING, "ThumbLoader: skipped malformed file: {0}", file.getName());
+        }
+        catch (IOException ioe) {
+            logger.log(Level.SEVERE, "ThumbLoader: IOException on file: " + file.getName(), ioe);
+        }
+        catch (RuntimeException e) {
+            // Decoders and extensions can throw just about anything. Nobody checks the worker
+            // pool's Futures, so this is our only chance to report it:
+            logger.log(Level.SEVERE, "ThumbLoader: unexpected error on file: " + file.getName(), e);
+            thumbImage = null;
+        }
+        sourceHits.get(thumbImage == null ? Source.FAILED : source).incrementAndGet();
+        ThumbMemoryCache.getInstance().put(file, stamp, thumbSize, thumbImage); // no-op if null
+        return thumbImage;
+    }
+}
@@ -0,0 +1,272 @@
+package ca.corbett.imageviewer.ui.threads;
+
+import ca.corbett.imageviewer.AppConfig;
+import ca.corbett.imageviewer.ui.SourceStamp;
+import ca.corbett.imageviewer.ui.ThumbCacheManager;
+import ca.corbett.imageviewer.ui.ThumbnailDecoder;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Generates and caches thumbnails for a large number of images, by splitting the work
+ * into stages that each run on their own threads: reading the source file from disk,
+ * decoding it, scaling it to the various thumbnail sizes, and finally encoding and
+ * writing the thumbnails to the cache. This way the disk and the CPU are kept busy at
+ * the same time, instead of taking turns as they would if each image were processed
+ * start to finish on one thread.
+ * <p>
+ * Each stage accepts only a limited number of images at a time. When a stage is full,
+ * the stage before it waits, and so on back to submit(). That keeps the amount of
+ * image data in memory capped no matter how large a directory tree is being processed.
+ * </p>
+ * <p>
+ * Images whose cached thumbnails are already current (see ThumbCacheManager.isCached())
+ * are skipped as soon as they've been stat'ed, so re-running over a tree that hasn't
+ * changed costs little more than the directory walk.
+ * </p>
+ * <p>
+ * Usage: submit() each image, then awaitCompletion(). cancel() may be invoked at any
+ * point; anything not yet written is then discarded.
+ * </p>
+ *
+ * @author <a href="https://github.com/scorbo2">scorbo2</a>
+ * @since ImageViewer 3.3
+ */
+final class ThumbPregenerationPipeline {
+
+    private static final Logger logger = Logger.getLogger(ThumbPregenerationPipeline.class.getName());
+
+    private static final int IO_THREADS = 2;
+
+    private final Stage readStage;
+    private final Stage decodeStage;
+    private final Stage scaleStage;
+    private final Stage persistStage;
+    private final AtomicInteger completedCount = new AtomicInteger();
+    private final AtomicInteger failedCount = new AtomicInteger();
+    private final AtomicInteger skippedCount = new AtomicInteger();
+    private volatile boolean isCanceled;
+
+    ThumbPregenerationPipeline() {
+        int cpuThreads = Math.max(1, Runtime.getRuntime().availableProcessors() - 1);
+        readStage = new Stage("read", IO_THREADS);
+        decodeStage = new Stage("decode", cpuThreads);
+        scaleStage = new Stage("scale", Math.max(1, cpuThreads / 2));
+        persistStage = new Stage("persist", IO_THREADS);
+    }
+
+    /**
+     * Queues the given image for processing. If the pipeline is full, this blocks
+     * until there is room.
+     *
+     * @param image    The source image file.
+     * @param whenDone Invoked, on one of our threads, once the image is done with: either
+     *                 cached, skipped, or failed. Not invoked if we're canceled first.
+     * @throws InterruptedException If interrupted while waiting for room.
+     */
+    void submit(File image, Runnable whenDone) throws InterruptedException {
+        readStage.submit(new Job(image, whenDone), this::read);
+    }
+
+    /**
+     * Discards everything that is still in the pipeline. Work already underway on any
+     * given image is allowed to finish, but nothing more is done with it.
+     */
+    void cancel() {
+        isCanceled = true;
+    }
+
+    /**
+     * Waits for every submitted image to make its way through the pipeline (or be discarded,
+     * if we were canceled), and then shuts the pipeline down. Nothing more can be submitted.
+     *
+     * @throws InterruptedException If interrupted while waiting.
+     */
+    void awaitCompletion() throws InterruptedException {
+        // Once a stage has finished, nothing more can arrive at the next one:
+        readStage.shutdownAndWait();
+        decodeStage.shutdownAndWait();
+        scaleStage.shutdownAndWait();
+        persistStage.shutdownAndWait();
+    }
+
+    int getCompletedCount() {
+        return completedCount.get();
+    }
+
+    int getFailedCount() {
+        return failedCount.get();
+    }
+
+    int getSkippedCount() {
+        return skippedCount.get();
+    }
+
+    private void read(Job job) {
+        job.stamp = SourceStamp.of(job.file); // before reading, so a concurrent edit leaves the thumbnail stale
+        if (job.stamp == null) {
+            failed(job, null);
+            return;
+        }
+        if (ThumbCacheManager.isCached(job.file, job.stamp)) {
+            skippedCount.incrementAndGet();
+            job.whenDone.run();
+            return;
+        }
+        try {
+            job.data = Files.readAllBytes(job.file.toPath());
+        }
+        catch (IOException | OutOfMemoryError e) {
+            failed(job, e);
+            return;
+        }
+        forward(decodeStage, job, this::decode);
+    }
+
+    private void decode(Job job) {
+        BufferedImage srcImage;
+        try {
+            int decodeSize = ThumbCacheManager.getSourceDecodeSize(AppConfig.getInstance().getThumbnailSize());
+            srcImage = ThumbnailDecoder.load(job.data, job.file, decodeSize);
+        }
+        catch (IOException | RuntimeException e) {
+            failed(job, e);
+            return;
+        }
+        finally {
+            job.data = null;
+        }
+        if (srcImage == null) {
+            failed(job, null); // not a valid image
+            return;
+        }
+        job.srcImage = srcImage;
+        forward(scaleStage, job, this::scale);
+    }
+
+    private void scale(Job job) {
+        try {
+            job.thumbs = ThumbCacheManager.generateThumbnails(job.srcImage);
+        }
+        catch (RuntimeException e) {
+            failed(job, e);
+            return;
+        }
+        finally {
+            job.srcImage.flush();
+            job.srcImage = null;
+        }
+        forward(persistStage, job, this::persist);
+    }
+
+    private void persist(Job job) {
+        if (ThumbCacheManager.addThumbnails(job.file, job.stamp, job.thumbs)) { // errors are logged there
+            completedCount.incrementAndGet();
+        }
+        else {
+            failedCount.incrementAndGet();
+        }
+        job.thumbs = null;
+        job.whenDone.run();
+    }
+
+    /**
+     * Hands the given job to the next stage, waiting for room if needed.
+     */
+    private void forward(Stage next, Job job, Consumer<Job> work) {
+        try {
+            next.submit(job, work);
+        }
+        catch (InterruptedException ie) {
+            // Not done with, just abandoned, so whenDone isn't invoked:
+            Thread.currentThread().interrupt();
+            failedCount.incrementAndGet();
+        }
+    }
+
+    private void failed(Job job, Throwable cause) {
+        failedCount.incrementAndGet();
+        if (cause != null) {
+            logger.log(Level.WARNING, "Unable to generate thumbnails for " + job.file.getAbsolutePath(), cause);
+        }
+        else {
+            logger.log(Level.FINE, "Unable to generate thumbnails for {0}", job.file.getAbsolutePath());
+        }
+        job.whenDone.run();
+    }
+
+    /**
+     * One image on its way through the pipeline. Each stage fills in its result and
+     * releases whatever the previous stage produced, so only one form of the image is
+     * held in memory at a time.
+     */
+    private static final class Job {
+        final File file;
+        final Runnable whenDone;
+        SourceStamp stamp;
+        byte[] data;
+        BufferedImage srcImage;
+        Map<Integer, BufferedImage> thumbs;
+
+        Job(File file, Runnable whenDone) {
+            this.file = file;
+            this.whenDone = whenDone;
+        }
+    }
+
+    /**
+     * A pool of worker threads for one stage of the pipeline. At most threadCount jobs are
+     * in progress, with at most as many again waiting for a thread; submit() blocks beyond that.
+     */
+    private final class Stage {
+        private final ExecutorService executor;
+        private final Semaphore slots;
+
+        Stage(String name, int threadCount) {
+            AtomicInteger threadNumber = new AtomicInteger();
+            this.executor = Executors.newFixedThreadPool(threadCount, r -> {
+                Thread thread = new Thread(r, "ThumbPregeneration-" + name + "-" + threadNumber.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+            this.slots = new Semaphore(threadCount * 2);
+        }
+
+        void submit(Job job, Consumer<Job> work) throws InterruptedException {
+            slots.acquire();
+            try {
+                executor.execute(() -> {
+                    try {
+                        if (!isCanceled) {
+                            work.accept(job);
+                        }
+                    }
+                    finally {
+                        slots.release();
+                    }
+                });
+            }
+            catch (RuntimeException e) {
+                slots.release();
+                throw e;
+            }
+        }
+
+        void shutdownAndWait() throws InterruptedException {
+            executor.shutdown();
+            executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        }
+    }
+}
@@ -0,0 +1,218 @@
+package ca.corbett.imageviewer.extensions;
+
+import ca.corbett.extensions.AppExtensionInfo;
+import ca.corbett.extras.properties.AbstractProperty;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class FileClassifierTest {
+
+    @Test
+    public void classify_withNoExtensions_shouldSortImagesKnownFilesAndAliens() {
+        //GIVEN a classifier with no extensions enabled:
+        FileClassifier classifier = new FileClassifier(List::of);
+        File image = new File("/photos/a.jpg");
+        File otherImage = new File("/photos/B.JPG");
+        File darwin = new File("/photos/.00darwin-metadata");
+        File alien = new File("/photos/notes.txt");
+
+        //WHEN we classify a batch of files:
+        FileClassifier.Result result = classifier.classify(List.of(image, darwin, alien, otherImage));
+
+        //THEN only the application's own known file should be recognized, other than images:
+        assertEquals(List.of(image, otherImage), result.getImages());
+        assertEquals(List.of(darwin), result.getKnown());
+        assertEquals(List.of(alien), result.getAliens());
+        assertTrue(result.getCompanions().isEmpty());
+        assertNull(result.getType(new File("/photos/c.jpg")));
+
+        //AND the second image should have been decided by its extension alone:
+        assertTrue(classifier.getStatistics().startsWith("image types: 1 of 4 from cache"));
+    }
+
+    @Test
+    public void classify_withDeclaredPatterns_shouldMatchNamesExtensionsAndGlobsIgnoringCase() {
+        //GIVEN an extension that declares an exact name, a "*.ext" pattern and a general glob,
+        //      in whatever case it likes:
+        PatternExtension extension = new PatternExtension(List.of("Info.TXT", "*.JSON", "*.meta.*"),
+                                                          List.of("album.cfg"));
+        FileClassifier classifier = new FileClassifier(() -> List.of(extension));
+        File json = new File("/photos/a.json");
+        File upperJson = new File("/photos/B.Json");
+        File info = new File("/photos/INFO.txt");
+        File meta = new File("/photos/c.Meta.XML");
+        File album = new File("/photos/ALBUM.CFG");
+        File alien = new File("/photos/notes.txt");
+        File notQuiteJson = new File("/photos/a.json.bak");
+
+        //WHEN we classify them:
+        FileClassifier.Result result = classifier.classify(
+                List.of(json, upperJson, info, meta, album, alien, notQuiteJson));
+
+        //THEN each kind of pattern should match regardless of case, and nothing else should:
+        assertEquals(List.of(json, upperJson, info, meta), result.getCompanions());
+        assertEquals(List.of(album), result.getKnown());
+        assertEquals(List.of(alien, notQuiteJson), result.getAliens());
+
+        //AND the extension should never have been asked about individual files:
+        assertEquals(0, extension.fileByFileCalls);
+        assertTrue(classifier.getStatistics().contains("other files: 5 of 7 by pattern"));
+    }
+
+    @Test
+    public void classify_withCompanionAndKnownClaims_shouldPreferCompanion() {
+        //GIVEN one extension whose patterns make every text file known, and one that
+        //      decides file by file that some of those text files are companions:
+        PatternExtension patterns = new PatternExtension(List.of("*.json"), List.of("*.txt", "*.json"));
+        DecidingExtension decider = new DecidingExtension(".desc.txt", null);
+        FileClassifier classifier = new FileClassifier(() -> List.of(patterns, decider));
+        File description = new File("/photos/a.desc.txt");
+        File readme = new File("/photos/readme.txt");
+        File json = new File("/photos/a.json");
+
+        //WHEN we classify them:
+        FileClassifier.Result result = classifier.classify(List.of(description, readme, json));
+
+        //THEN a companion claim should win over a known one, whether it comes from a pattern or a decision:
+        assertEquals(List.of(description, json), result.getCompanions());
+        assertEquals(List.of(readme), result.getKnown());
+        assertTrue(result.getAliens().isEmpty());
+    }
+
+    @Test
+    public void classify_withSeveralDirectories_shouldAskEachDeciderOncePerDirectory() {
+        //GIVEN two extensions that decide file by file, each claiming different files:
+        DecidingExtension first = new DecidingExtension(".a", ".known");
+        DecidingExtension second = new DecidingExtension(".b", ".k");
+        FileClassifier classifier = new FileClassifier(() -> List.of(first, second));
+        File dir1 = new File("/photos/one");
+        File dir2 = new File("/photos/two");
+        File a1 = new File(dir1, "x.a");
+        File b1 = new File(dir1, "x.b");
+        File k1 = new File(dir1, "x.k");
+        File image1 = new File(dir1, "x.jpg");
+        File a2 = new File(dir2, "y.a");
+        File alien2 = new File(dir2, "y.txt");
+
+        //WHEN we classify files from both directories in one batch:
+        FileClassifier.Result result = classifier.classify(List.of(a1, b1, a2, k1, image1, alien2));
+
+        //THEN claims from both extensions should be honoured:
+        assertEquals(List.of(a1, b1, a2), result.getCompanions());
+        assertEquals(List.of(k1), result.getKnown());
+        assertEquals(List.of(alien2), result.getAliens());
+        assertEquals(List.of(image1), result.getImages());
+
+        //AND each extension should have been asked once per directory, about only what was still undecided:
+        assertEquals(List.of(dir1 + "=" + List.of(a1, b1, k1), dir2 + "=" + List.of(a2, alien2)),
+                     first.companionBatches);
+        assertEquals(List.of(dir1 + "=" + List.of(b1, k1), dir2 + "=" + List.of(alien2)),
+                     second.companionBatches);
+        assertEquals(List.of(dir1 + "=" + List.of(k1), dir2 + "=" + List.of(alien2)), first.knownBatches);
+        assertEquals(List.of(dir1 + "=" + List.of(k1), dir2 + "=" + List.of(alien2)), second.knownBatches);
+        assertEquals(0, first.fileByFileCalls + second.fileByFileCalls);
+    }
+
+    /**
+     * Stands in for a real extension; classification is all that's needed here.
+     */
+    private static abstract class StubExtension extends ImageViewerExtension {
+        int fileByFileCalls;
+
+        @Override
+        public AppExtensionInfo getInfo() {
+            return null;
+        }
+
+        @Override
+        public void loadJarResources() {
+        }
+
+        @Override
+        protected List<AbstractProperty> createConfigProperties() {
+            return List.of();
+        }
+
+        @Override
+        public boolean isCompanionFile(File candidateFile) {
+            fileByFileCalls++;
+            return false;
+        }
+
+        @Override
+        public boolean isKnownFile(File candidateFile) {
+            fileByFileCalls++;
+            return false;
+        }
+    }
+
+    /**
+     * Declares its companion and known files as patterns.
+     */
+    private static final class PatternExtension extends StubExtension {
+        private final List<String> companionPatterns;
+        private final List<String> knownPatterns;
+
+        PatternExtension(List<String> companionPatterns, List<String> knownPatterns) {
+            this.companionPatterns = companionPatterns;
+            this.knownPatterns = knownPatterns;
+        }
+
+        @Override
+        public List<String> getCompanionFilePatterns() {
+            return companionPatterns;
+        }
+
+        @Override
+        public List<String> getKnownFilePatterns() {
+            return knownPatterns;
+        }
+    }
+
+    /**
+     * Decides file by file, a directory at a time, by the end of each file's name, and
+     * records each batch it was asked about as "directory=[candidates]".
+     */
+    private static final class DecidingExtension extends StubExtension {
+        private final String companionSuffix;
+        private final String knownSuffix;
+        final List<String> companionBatches = new ArrayList<>();
+        final List<String> knownBatches = new ArrayList<>();
+
+        DecidingExtension(String companionSuffix, String knownSuffix) {
+            this.companionSuffix = companionSuffix;
+            this.knownSuffix = knownSuffix;
+        }
+
+        @Override
+        public Set<File> findCompanionFiles(File directory, List<File> candidates) {
+            companionBatches.add(directory + "=" + candidates);
+            return findBySuffix(candidates, companionSuffix);
+        }
+
+        @Override
+        public Set<File> findKnownFiles(File directory, List<File> candidates) {
+            knownBatches.add(directory + "=" + candidates);
+            return findBySuffix(candidates, knownSuffix);
+        }
+
+        private static Set<File> findBySuffix(List<File> candidates, String suffix) {
+            Set<File> found = new HashSet<>();
+            for (File candidate : candidates) {
+                if (suffix != null && candidate.getName().endsWith(suffix)) {
+                    found.add(candidate);
+                }
+            }
+            return found;
+        }
+    }
+}
@@ -0,0 +1,152 @@
+package ca.corbett.imageviewer.ui;
+
+import ca.corbett.imageviewer.AppConfig;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ContentAddressedThumbStoreTest {
+
+    private static final int SIZE = AppConfig.ThumbSize.Normal.getDimensions();
+
+    @TempDir
+    File tempDir;
+
+    private File cacheDir;
+    private File imageDir;
+    private ContentAddressedThumbStore store;
+
+    @BeforeEach
+    public void setup() {
+        cacheDir = new File(tempDir, "cache");
+        imageDir = new File(tempDir, "images");
+        imageDir.mkdirs();
+        store = new ContentAddressedThumbStore(cacheDir, new FileTreeThumbStore(cacheDir));
+    }
+
+    @Test
+    public void write_withIdenticalImages_shouldShareOneThumbnail() throws Exception {
+        //GIVEN two files with identical contents:
+        File first = newImage("first.jpg", "same");
+        File second = newImage("second.jpg", "same");
+
+        //WHEN thumbnails are written for both:
+        store.write(first, SIZE, newThumb(), SourceStamp.of(first));
+        store.write(second, SIZE, newThumb(), SourceStamp.of(second));
+
+        //THEN both should be readable, but only one thumbnail should be on disk:
+        assertNotNull(store.read(first, SIZE));
+        assertNotNull(store.read(second, SIZE));
+        assertEquals(1, countSharedThumbnails());
+    }
+
+    @Test
+    public void remove_withSharedThumbnail_shouldKeepItUntilLastReferenceIsGone() throws Exception {
+        //GIVEN a thumbnail that has been copied to a second image:
+        File original = newImage("original.jpg", "contents");
+        File copy = new File(imageDir, "copy.jpg");
+        store.write(original, SIZE, newThumb(), SourceStamp.of(original));
+        store.copy(original, copy, null, false);
+
+        //WHEN the original is removed:
+        store.remove(original);
+
+        //THEN the copy should still have its thumbnail, until it too is removed:
+        assertNull(store.read(original, SIZE));
+        assertNotNull(store.read(copy, SIZE));
+        assertEquals(1, countSharedThumbnails());
+        store.remove(copy);
+        assertEquals(0, countSharedThumbnails());
+    }
+
+    @Test
+    public void copy_withMoveAndNewDateOnDestination_shouldStillBeCurrent() throws Exception {
+        //GIVEN an image that has been moved, with its creation time as its new last modified time:
+        File original = newImage("original.jpg", "contents");
+        store.write(original, SIZE, newThumb(), SourceStamp.of(original));
+        File moved = new File(imageDir, "moved.jpg");
+        Files.move(original.toPath(), moved.toPath());
+        Files.setLastModifiedTime(moved.toPath(), FileTime.fromMillis(moved.lastModified() - 60_000));
+
+        //WHEN its thumbnails are moved along with it:
+        store.copy(original, moved, SourceStamp.of(moved), true);
+
+        //THEN the thumbnail should be current for the moved image:
+        assertTrue(store.readStamp(moved, SIZE).isValidFor(SourceStamp.of(moved)));
+        assertNotNull(store.read(moved, SIZE));
+        assertNull(store.read(original, SIZE));
+    }
+
+    @Test
+    public void copyDirectory_withMove_shouldRelocateIndexEntries() throws Exception {
+        //GIVEN a thumbnail for an image in a subdirectory:
+        File subDir = new File(imageDir, "sub");
+        subDir.mkdirs();
+        File image = new File(subDir, "image.jpg");
+        Files.write(image.toPath(), "contents".getBytes());
+        store.write(image, SIZE, newThumb(), SourceStamp.of(image));
+
+        //WHEN the parent directory is moved:
+        File movedDir = new File(tempDir, "moved");
+        store.copyDirectory(imageDir, movedDir, true);
+
+        //THEN the thumbnail should now belong to the moved image only:
+        List<File> visited = new ArrayList<>();
+        store.forEachThumbnail((srcFile, size, bytes, lastModified) -> visited.add(srcFile));
+        assertEquals(List.of(new File(movedDir, "sub/image.jpg").getAbsoluteFile()), visited);
+        assertNull(store.read(image, SIZE));
+    }
+
+    @Test
+    public void write_withSameSizeImagesDifferingOnlyInTheMiddle_shouldNotShareThumbnails() throws Exception {
+        //GIVEN two large images of the same length, identical except for one byte in the middle,
+        //      the way two uncompressed bitmaps of the same dimensions might be:
+        byte[] contents = new byte[1024 * 1024];
+        File first = new File(imageDir, "first.bmp");
+        Files.write(first.toPath(), contents);
+        contents[contents.length / 2] = 1;
+        File second = new File(imageDir, "second.bmp");
+        Files.write(second.toPath(), contents);
+
+        //WHEN thumbnails are written for both:
+        store.write(first, SIZE, newThumb(), SourceStamp.of(first));
+        store.write(second, SIZE, newThumb(), SourceStamp.of(second));
+
+        //THEN they should have been told apart, and each should have its own thumbnail:
+        assertNotEquals(ContentAddressedThumbStore.hash(first), ContentAddressedThumbStore.hash(second));
+        assertEquals(2, countSharedThumbnails());
+    }
+
+    private File newImage(String name, String contents) throws Exception {
+        File file = new File(imageDir, name);
+        Files.write(file.toPath(), contents.getBytes());
+        return file;
+    }
+
+    private int countSharedThumbnails() {
+        File[] dirs = new File(cacheDir, ContentAddressedThumbStore.CONTENT_DIRNAME).listFiles();
+        int count = 0;
+        for (File dir : dirs == null ? new File[0] : dirs) {
+            File[] thumbs = dir.listFiles((d, name) -> name.endsWith(".thumb"));
+            count += thumbs == null ? 0 : thumbs.length;
+        }
+        return count;
+    }
+
+    private static BufferedImage newThumb() {
+        return new BufferedImage(10, 10, BufferedImage.TYPE_INT_RGB);
+    }
+}
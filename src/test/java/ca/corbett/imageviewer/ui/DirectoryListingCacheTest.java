@@ -0,0 +1,81 @@
+package ca.corbett.imageviewer.ui;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+class DirectoryListingCacheTest {
+
+    private static final long AN_HOUR_AGO = System.currentTimeMillis() - 3_600_000;
+
+    @TempDir
+    File tempDir;
+
+    @Test
+    public void get_withDirectoryModifiedSinceScan_shouldDiscardListing() throws Exception {
+        //GIVEN a cached listing for a directory that hasn't been modified in a while:
+        File dir = newDirectory("inbox", 2);
+        DirectoryListingCache cache = new DirectoryListingCache(4, 100);
+        cache.put(DirectorySnapshot.scan(dir, false), List.of(new File(dir, "0.jpg")), List.of());
+        assertNotNull(cache.get(dir));
+
+        //WHEN a file is added to it:
+        Files.write(new File(dir, "new.jpg").toPath(), new byte[1]);
+
+        //THEN the listing should no longer be handed out:
+        assertNull(cache.get(dir));
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void put_withTooManyFiles_shouldEvictLeastRecentlyUsed() throws Exception {
+        //GIVEN a cache holding two listings of three files each:
+        File first = newDirectory("first", 3);
+        File second = newDirectory("second", 3);
+        File third = newDirectory("third", 3);
+        DirectoryListingCache cache = new DirectoryListingCache(4, 7);
+        cache.put(DirectorySnapshot.scan(first, false), List.of(), List.of());
+        cache.put(DirectorySnapshot.scan(second, false), List.of(), List.of());
+        cache.get(first); // now second is the least recently used
+
+        //WHEN a third listing takes us over the file limit:
+        cache.put(DirectorySnapshot.scan(third, false), List.of(), List.of());
+
+        //THEN the least recently used one should have been evicted:
+        assertNotNull(cache.get(first));
+        assertNull(cache.get(second));
+        assertNotNull(cache.get(third));
+    }
+
+    @Test
+    public void put_withRecentlyModifiedDirectory_shouldNotCache() throws Exception {
+        //GIVEN a directory modified just now:
+        File dir = new File(tempDir, "busy");
+        dir.mkdirs();
+        Files.write(new File(dir, "a.jpg").toPath(), new byte[1]);
+
+        //WHEN we try to cache it:
+        DirectoryListingCache cache = new DirectoryListingCache(4, 100);
+        cache.put(DirectorySnapshot.scan(dir, false), List.of(), List.of());
+
+        //THEN it should not be cached, since a change this close to the scan might go unnoticed:
+        assertNull(cache.get(dir));
+    }
+
+    private File newDirectory(String name, int fileCount) throws Exception {
+        File dir = new File(tempDir, name);
+        dir.mkdirs();
+        for (int i = 0; i < fileCount; i++) {
+            Files.write(new File(dir, i + ".jpg").toPath(), new byte[i]);
+        }
+        dir.setLastModified(AN_HOUR_AGO);
+        return dir;
+    }
+}
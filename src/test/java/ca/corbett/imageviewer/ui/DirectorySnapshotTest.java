@@ -0,0 +1,60 @@
+package ca.corbett.imageviewer.ui;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.nio.file.Files;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class DirectorySnapshotTest {
+
+    @TempDir
+    File tempDir;
+
+    @Test
+    public void scan_withNestedDirectory_shouldRecordFilesAndAttributes() throws Exception {
+        //GIVEN a directory with a file in it, and another in a subdirectory:
+        File topFile = new File(tempDir, "a.jpg");
+        Files.write(topFile.toPath(), "12345".getBytes());
+        topFile.setLastModified(1_600_000_000_000L);
+        File nestedFile = new File(tempDir, "sub/b.jpg");
+        nestedFile.getParentFile().mkdirs();
+        Files.write(nestedFile.toPath(), "123".getBytes());
+
+        //WHEN we scan it both ways:
+        DirectorySnapshot flat = DirectorySnapshot.scan(tempDir, false);
+        DirectorySnapshot recursive = DirectorySnapshot.scan(tempDir, true);
+
+        //THEN directories should be left out, and attributes should match the files:
+        assertEquals(1, flat.size());
+        assertNull(flat.get(nestedFile));
+        DirectorySnapshot.Entry entry = flat.get(topFile);
+        assertNotNull(entry);
+        assertEquals(5, entry.getSize());
+        assertEquals(1_600_000_000_000L, entry.getLastModified());
+        assertTrue(entry.isRegularFile());
+        assertEquals(2, recursive.size());
+        assertEquals(3, recursive.get(nestedFile).getSize());
+    }
+
+    @Test
+    public void scan_withListenerAborting_shouldStopEarly() throws Exception {
+        //GIVEN a directory with several files:
+        for (int i = 0; i < 5; i++) {
+            Files.write(new File(tempDir, i + ".jpg").toPath(), new byte[i]);
+        }
+
+        //WHEN we scan it with a listener that stops after the second file:
+        int[] count = {0};
+        DirectorySnapshot snapshot = DirectorySnapshot.scan(tempDir, false, entry -> ++count[0] < 2);
+
+        //THEN the snapshot should hold just those two:
+        assertEquals(2, count[0]);
+        assertEquals(2, snapshot.size());
+    }
+}
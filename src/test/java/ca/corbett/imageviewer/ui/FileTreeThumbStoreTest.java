@@ -0,0 +1,56 @@
+package ca.corbett.imageviewer.ui;
+
+import ca.corbett.imageviewer.AppConfig;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.attribute.FileTime;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class FileTreeThumbStoreTest {
+
+    private static final int SIZE = AppConfig.ThumbSize.Normal.getDimensions();
+
+    @TempDir
+    File tempDir;
+
+    private File imageDir;
+    private FileTreeThumbStore store;
+
+    @BeforeEach
+    public void setup() {
+        imageDir = new File(tempDir, "images");
+        imageDir.mkdirs();
+        store = new FileTreeThumbStore(new File(tempDir, "cache"));
+    }
+
+    @Test
+    public void copy_withNewDateOnDestination_shouldRewriteTrailer() throws Exception {
+        //GIVEN an image that has been copied, with its creation time as the copy's last modified time:
+        File image = new File(imageDir, "image.jpg");
+        Files.write(image.toPath(), "contents".getBytes());
+        store.write(image, SIZE, newThumb(), SourceStamp.of(image));
+        File copy = new File(imageDir, "copy.jpg");
+        Files.copy(image.toPath(), copy.toPath());
+        Files.setLastModifiedTime(copy.toPath(), FileTime.fromMillis(image.lastModified() - 60_000));
+
+        //WHEN its thumbnails are copied along with it:
+        store.copy(image, copy, SourceStamp.of(copy), false);
+
+        //THEN the copy's thumbnail should be current for the copy, with its trailer replaced rather than added to:
+        assertTrue(store.readStamp(copy, SIZE).isValidFor(SourceStamp.of(copy)));
+        assertNotNull(store.read(copy, SIZE));
+        assertEquals(store.sizeOf(image, SIZE), store.sizeOf(copy, SIZE));
+    }
+
+    private static BufferedImage newThumb() {
+        return new BufferedImage(10, 10, BufferedImage.TYPE_INT_RGB);
+    }
+}
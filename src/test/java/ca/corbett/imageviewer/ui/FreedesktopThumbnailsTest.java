@@ -0,0 +1,53 @@
+package ca.corbett.imageviewer.ui;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.nio.file.Files;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+class FreedesktopThumbnailsTest {
+
+    @TempDir
+    File tempDir;
+
+    @Test
+    public void getThumbnailName_withExampleFromStandard_shouldMatch() {
+        //GIVEN the example URI from the Thumbnail Managing Standard:
+        String uri = "file:///home/jens/photos/me.png";
+
+        //WHEN we get its thumbnail name:
+        String name = FreedesktopThumbnails.getThumbnailName(uri);
+
+        //THEN it should be the one given in the standard:
+        assertEquals("c6ee772d9e49320e97ec29a7eb5b1697.png", name);
+    }
+
+    @Test
+    public void read_withWrittenThumbnail_shouldOnlyReturnItWhileCurrent() throws Exception {
+        //GIVEN a shared thumbnail written for an image:
+        File thumbnailDir = new File(tempDir, "thumbnails");
+        thumbnailDir.mkdirs();
+        File image = new File(tempDir, "my image.jpg");
+        Files.write(image.toPath(), "contents".getBytes());
+        SourceStamp stamp = SourceStamp.of(image);
+        FreedesktopThumbnails thumbnails = new FreedesktopThumbnails(thumbnailDir);
+        thumbnails.write(image, stamp, new BufferedImage(128, 96, BufferedImage.TYPE_INT_RGB),
+                         new File(thumbnailDir, "normal"));
+
+        //WHEN we read it back for the same and for a modified version of the image:
+        BufferedImage current = thumbnails.read(image, stamp, 100);
+        BufferedImage stale = thumbnails.read(image, new SourceStamp(stamp.getLastModified() + 5000,
+                                                                     stamp.getLength()), 100);
+
+        //THEN only the same version should get it:
+        assertNotNull(current);
+        assertEquals(128, current.getWidth());
+        assertNull(stale);
+    }
+}
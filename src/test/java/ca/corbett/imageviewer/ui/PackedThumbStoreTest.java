@@ -0,0 +1,147 @@
+package ca.corbett.imageviewer.ui;
+
+import ca.corbett.imageviewer.AppConfig;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class PackedThumbStoreTest {
+
+    private static final int SIZE = AppConfig.ThumbSize.Normal.getDimensions();
+
+    @TempDir
+    File tempDir;
+
+    private File imageDir;
+    private PackedThumbStore store;
+
+    @BeforeEach
+    public void setup() {
+        File cacheDir = new File(tempDir, "cache");
+        imageDir = new File(tempDir, "images");
+        store = new PackedThumbStore(cacheDir, new FileTreeThumbStore(cacheDir));
+    }
+
+    @Test
+    public void write_withMorePacksThanCanBeOpen_shouldNotLoseAnyThumbnails() throws Exception {
+        //GIVEN images spread over many more directories than we keep packs open for:
+        List<File> images = new ArrayList<>();
+        for (int i = 0; i < PackedThumbStore.MAX_OPEN_PACKS * 3; i++) {
+            File dir = new File(imageDir, "dir" + i);
+            dir.mkdirs();
+            for (int j = 0; j < 3; j++) {
+                File image = new File(dir, j + ".jpg");
+                Files.write(image.toPath(), new byte[i + j]);
+                images.add(image);
+            }
+        }
+
+        //WHEN several threads write and read them all at once, each in its own order:
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        List<Future<?>> results = new ArrayList<>();
+        for (int thread = 0; thread < 8; thread++) {
+            List<File> order = new ArrayList<>(images);
+            Collections.shuffle(order);
+            order.addAll(new ArrayList<>(order)); // twice through, to keep packs churning
+            results.add(executor.submit(() -> {
+                for (File image : order) {
+                    store.write(image, SIZE, newThumb(), SourceStamp.of(image));
+                    assertNotNull(store.read(image, SIZE));
+                    assertNotNull(store.readStamp(image, SIZE));
+                }
+                return null;
+            }));
+        }
+        executor.shutdown();
+
+        //THEN none of them should have failed, and every thumbnail should be there:
+        for (Future<?> result : results) {
+            result.get(); // rethrows whatever the thread threw
+        }
+        for (File image : images) {
+            assertNotNull(store.read(image, SIZE));
+        }
+        assertTrue(store.getOpenPackCount() <= PackedThumbStore.MAX_OPEN_PACKS);
+    }
+
+    @Test
+    public void read_whileAppending_shouldReadBothMappedAndNewlyAppendedRecords() throws Exception {
+        //GIVEN a pack that keeps growing, well past what was mapped when it was first read:
+        imageDir.mkdirs();
+        List<File> images = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            File image = new File(imageDir, i + ".jpg");
+            Files.write(image.toPath(), new byte[i + 1]);
+            images.add(image);
+            store.write(image, SIZE, newThumb(), SourceStamp.of(image));
+
+            //WHEN we read back everything written so far, after every write:
+            for (File written : images) {
+
+                //THEN each one should come back with its own stamp:
+                assertEquals(written.length(), store.readStamp(written, SIZE).getLength());
+            }
+        }
+        for (File image : images) {
+            assertNotNull(store.read(image, SIZE));
+        }
+    }
+
+    @Test
+    public void remove_afterPackWasClosed_shouldReopenPack() throws Exception {
+        //GIVEN a thumbnail whose pack has since been closed:
+        File image = new File(imageDir, "image.jpg");
+        image.getParentFile().mkdirs();
+        Files.write(image.toPath(), "contents".getBytes());
+        store.write(image, SIZE, newThumb(), SourceStamp.of(image));
+        store.close();
+
+        //WHEN it's removed:
+        store.remove(image);
+
+        //THEN it should be gone:
+        assertNull(store.read(image, SIZE));
+        assertEquals(1, store.getOpenPackCount());
+    }
+
+    @Test
+    public void copy_withNewDateOnDestination_shouldStillBeCurrent() throws Exception {
+        //GIVEN an image that has been copied, with its creation time as the copy's last modified time:
+        File image = new File(imageDir, "image.jpg");
+        image.getParentFile().mkdirs();
+        Files.write(image.toPath(), "contents".getBytes());
+        store.write(image, SIZE, newThumb(), SourceStamp.of(image));
+        File copy = new File(new File(tempDir, "elsewhere"), "image.jpg");
+        copy.getParentFile().mkdirs();
+        Files.copy(image.toPath(), copy.toPath());
+        Files.setLastModifiedTime(copy.toPath(), FileTime.fromMillis(image.lastModified() - 60_000));
+
+        //WHEN its thumbnails are copied along with it:
+        store.copy(image, copy, SourceStamp.of(copy), false);
+
+        //THEN the copy's thumbnail should be current for the copy, and the original's for the original:
+        assertTrue(store.readStamp(copy, SIZE).isValidFor(SourceStamp.of(copy)));
+        assertNotNull(store.read(copy, SIZE));
+        assertTrue(store.readStamp(image, SIZE).isValidFor(SourceStamp.of(image)));
+    }
+
+    private static BufferedImage newThumb() {
+        return new BufferedImage(10, 10, BufferedImage.TYPE_INT_RGB);
+    }
+}
@@ -0,0 +1,59 @@
+package ca.corbett.imageviewer.ui;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.nio.file.Files;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class SourceStampTest {
+
+    @TempDir
+    File tempDir;
+
+    @Test
+    public void of_withExistingFile_shouldReportLengthAndTime() throws Exception {
+        //GIVEN a file with known contents and modification time:
+        File file = new File(tempDir, "image.jpg");
+        Files.write(file.toPath(), new byte[123]);
+        file.setLastModified(1700000000000L);
+
+        //WHEN we stamp it:
+        SourceStamp stamp = SourceStamp.of(file);
+
+        //THEN the stamp should match:
+        assertEquals(123, stamp.getLength());
+        assertEquals(1700000000000L, stamp.getLastModified());
+    }
+
+    @Test
+    public void of_withMissingFile_shouldReturnNull() {
+        assertNull(SourceStamp.of(new File(tempDir, "missing.jpg")));
+    }
+
+    @Test
+    public void isValidFor_withChangedLengthOrTime_shouldBeStale() {
+        //GIVEN a stamp recorded with a thumbnail:
+        SourceStamp recorded = new SourceStamp(1000, 500);
+
+        //WHEN/THEN only an identical stamp should be considered current:
+        assertTrue(recorded.isValidFor(new SourceStamp(1000, 500)));
+        assertFalse(recorded.isValidFor(new SourceStamp(1000, 501)));
+        assertFalse(recorded.isValidFor(new SourceStamp(2000, 500)));
+    }
+
+    @Test
+    public void isValidFor_withLegacyStamp_shouldCompareAgainstWriteTime() {
+        //GIVEN a thumbnail that was cached without a stamp, at time 1000:
+        SourceStamp recorded = SourceStamp.asOf(1000);
+
+        //WHEN/THEN it should be current only if the source hasn't changed since then:
+        assertTrue(recorded.isValidFor(new SourceStamp(900, 500)));
+        assertFalse(recorded.isValidFor(new SourceStamp(1100, 500)));
+    }
+}
@@ -0,0 +1,64 @@
+package ca.corbett.imageviewer.ui;
+
+import ca.corbett.imageviewer.AppConfig;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ThumbCacheCountersTest {
+
+    private static final int SMALL = AppConfig.ThumbSize.Small.getDimensions();
+    private static final int LARGE = AppConfig.ThumbSize.Large.getDimensions();
+
+    @TempDir
+    File tempDir;
+
+    @Test
+    public void adjust_shouldBreakDownBySizeAndRoot() {
+        //GIVEN some counters:
+        ThumbCacheCounters counters = new ThumbCacheCounters(new File(tempDir, "stats.properties"));
+
+        //WHEN thumbnails are added under two roots, and one is removed:
+        counters.adjust(new File("/home/a.jpg"), SMALL, 1, 100);
+        counters.adjust(new File("/home/a.jpg"), LARGE, 1, 300);
+        counters.adjust(new File("/media/b.jpg"), SMALL, 1, 150);
+        counters.adjust(new File("/media/b.jpg"), SMALL, -1, -150);
+
+        //THEN the totals and breakdowns should reflect that:
+        ThumbCacheManager.CacheStats stats = counters.getStats();
+        assertEquals(2, stats.getThumbnailCount());
+        assertEquals(400, stats.getTotalSize());
+        assertEquals(100, stats.getBySize().get(SMALL)[1]);
+        assertEquals(1, stats.getByRoot().size());
+        assertEquals(2, stats.getByRoot().get(ThumbCacheCounters.getRoot(new File("/home/a.jpg")))[0]);
+    }
+
+    @Test
+    public void load_afterSave_shouldRestoreCountersAndCleanFlag() {
+        //GIVEN counters that were saved on a clean shutdown:
+        File file = new File(tempDir, "stats.properties");
+        ThumbCacheCounters counters = new ThumbCacheCounters(file);
+        counters.adjust(new File("/home/a.jpg"), SMALL, 1, 100);
+        counters.auditCompleted();
+        counters.save();
+
+        //WHEN they are loaded, and then loaded again without another save:
+        ThumbCacheCounters reloaded = new ThumbCacheCounters(file);
+        boolean isLoaded = reloaded.load();
+        boolean wasClean = reloaded.wasCleanShutdown();
+        ThumbCacheCounters crashed = new ThumbCacheCounters(file);
+        crashed.load();
+
+        //THEN the first load should be trusted, but not the second:
+        assertTrue(isLoaded);
+        assertTrue(wasClean);
+        assertEquals(100, reloaded.getTotalBytes());
+        assertEquals(counters.getLastAuditTime(), reloaded.getLastAuditTime());
+        assertFalse(crashed.wasCleanShutdown());
+    }
+}
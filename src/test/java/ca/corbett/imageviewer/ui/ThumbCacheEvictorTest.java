@@ -0,0 +1,261 @@
+package ca.corbett.imageviewer.ui;
+
+import ca.corbett.imageviewer.AppConfig;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ThumbCacheEvictorTest {
+
+    private static final int SIZE = AppConfig.ThumbSize.Normal.getDimensions();
+
+    @TempDir
+    File tempDir;
+
+    private List<File> evicted;
+    private FileTreeThumbStore mirror;
+    private FakeStore store;
+    private ThumbCacheEvictor evictor;
+
+    @BeforeEach
+    public void setup() {
+        evicted = new CopyOnWriteArrayList<>();
+        mirror = new FileTreeThumbStore(new File(tempDir, "cache"));
+        store = new FakeStore(mirror);
+        evictor = newEvictor();
+        evictor.reset(); // an empty cache needs no audit
+    }
+
+    @Test
+    public void recordWrite_underLimit_shouldNotEvict() throws Exception {
+        //GIVEN writes that stay under the limit:
+        write(new File("/dir/a.jpg"), 400);
+        write(new File("/dir/b.jpg"), 400);
+
+        //WHEN we let the background thread catch up:
+        evictor.awaitIdle();
+
+        //THEN nothing should have been evicted:
+        assertTrue(evicted.isEmpty());
+        assertEquals(800, evictor.getTotalBytes());
+    }
+
+    @Test
+    public void recordWrite_overLimit_shouldEvictFromLeastRecentlyUsedDirectory() throws Exception {
+        //GIVEN images in two directories that were last used a while ago, of which the older one is accessed now:
+        File a = new File("/older/a.jpg");
+        File b = new File("/old/b.jpg");
+        write(a, 400);
+        write(b, 400);
+        long now = System.currentTimeMillis();
+        mirror.getMirrorDirectory(a.getParentFile()).setLastModified(now - 2 * 60 * 60 * 1000);
+        mirror.getMirrorDirectory(b.getParentFile()).setLastModified(now - 60 * 60 * 1000);
+        evictor = newEvictor(); // forgets that we just touched those directories
+        evictor.audit();
+        evictor.awaitIdle();
+        evictor.recordAccess(a);
+
+        //WHEN a write to a third directory takes us over the limit:
+        write(new File("/new/c.jpg"), 400);
+        evictor.awaitIdle();
+
+        //THEN the image in the least recently used directory should have been evicted:
+        assertEquals(List.of(b.getAbsoluteFile()), evicted);
+        assertEquals(800, evictor.getTotalBytes());
+        assertEquals(1, evictor.getEvictionCount());
+    }
+
+    @Test
+    public void recordWrite_sameSizeTwice_shouldReplaceNotAdd() {
+        //GIVEN a thumbnail that has already been written:
+        File a = new File("/dir/a.jpg");
+        write(a, 400);
+
+        //WHEN it is written again:
+        write(a, 300);
+
+        //THEN only the newer one should count:
+        assertEquals(300, evictor.getTotalBytes());
+    }
+
+    @Test
+    public void audit_shouldCountWhatsInTheStore() throws Exception {
+        //GIVEN thumbnails in the store that the evictor was never told about:
+        store.put(new File("/dir/a.jpg"), 100);
+        store.put(new File("/dir/sub/b.jpg"), 200);
+        store.put(new File("/other/c.jpg"), 300);
+
+        //WHEN we audit:
+        evictor.audit();
+        evictor.awaitIdle();
+
+        //THEN all of them should be counted:
+        assertTrue(evictor.isAudited());
+        assertEquals(600, evictor.getTotalBytes());
+        assertEquals(3, evictor.getStats().getThumbnailCount());
+    }
+
+    @Test
+    public void recordDirectoryChange_withMove_shouldKeepTotal() {
+        //GIVEN thumbnails for two images in a directory:
+        write(new File("/dir/a.jpg"), 100);
+        write(new File("/dir/b.jpg"), 200);
+        write(new File("/other/c.jpg"), 300);
+
+        //WHEN the directory is moved, and then the moved copy of one image is removed:
+        File srcDir = new File("/dir");
+        File destDir = new File("/moved");
+        Map<String, long[][]> srcBefore = evictor.measureDirectory(srcDir);
+        Map<String, long[][]> destBefore = evictor.measureDirectory(destDir);
+        store.copyDirectory(srcDir, destDir, true);
+        evictor.recordDirectoryChange(srcDir, srcBefore);
+        evictor.recordDirectoryChange(destDir, destBefore);
+        remove(new File("/moved/a.jpg"));
+
+        //THEN the total should reflect only what's left:
+        assertEquals(500, evictor.getTotalBytes());
+        assertEquals(1L, evictor.getStats().getByRoot().get(ThumbCacheCounters.getRoot(new File(destDir, "b.jpg")))[0]);
+    }
+
+    @Test
+    public void start_withTrustedCounters_shouldCountEarlierThumbnailsCorrectly() throws Exception {
+        //GIVEN thumbnails written in an earlier session, which shut down cleanly:
+        File removed = new File("/dir/a.jpg");
+        File overwritten = new File("/dir/b.jpg");
+        File copied = new File("/dir/c.jpg");
+        write(removed, 100);
+        write(overwritten, 200);
+        write(copied, 300);
+        evictor.stop();
+
+        //WHEN we start over, trusting the saved counters, and then change those thumbnails:
+        evictor = newEvictor();
+        evictor.start();
+        assertFalse(evictor.isAudited()); // so we know nothing about the earlier thumbnails
+        remove(removed);
+        write(overwritten, 250);
+        File copy = new File("/dir/d.jpg");
+        long[] before = evictor.measure(copy);
+        store.copy(copied, copy, null, false);
+        evictor.recordChange(copy, before);
+
+        //THEN the counters should match what's in the store:
+        assertEquals(850, evictor.getTotalBytes());
+        assertEquals(3, evictor.getStats().getThumbnailCount());
+    }
+
+    private ThumbCacheEvictor newEvictor() {
+        return new ThumbCacheEvictor(() -> 1000, new File(tempDir, "cache"), mirror, () -> store, file -> {
+            evicted.add(file);
+            store.remove(file);
+        }, new ThumbCacheCounters(new File(tempDir, "stats.properties")));
+    }
+
+    /**
+     * Writes a thumbnail of the given size to our store, and tells the evictor, the way ThumbCacheManager does.
+     */
+    private void write(File srcFile, long bytes) {
+        long previousBytes = store.sizeOf(srcFile, SIZE);
+        store.put(srcFile, bytes);
+        evictor.recordWrite(srcFile, SIZE, previousBytes, bytes);
+    }
+
+    private void remove(File srcFile) {
+        long[] before = evictor.measure(srcFile);
+        store.remove(srcFile);
+        evictor.recordChange(srcFile, before);
+    }
+
+    /**
+     * A ThumbStore that only remembers how big each thumbnail is supposed to be. It does
+     * create the mirror directories, though, since that's where the evictor keeps track of use.
+     */
+    private static final class FakeStore implements ThumbStore {
+        private final FileTreeThumbStore mirror;
+        private final Map<File, Long> sizes = new ConcurrentHashMap<>();
+
+        FakeStore(FileTreeThumbStore mirror) {
+            this.mirror = mirror;
+        }
+
+        void put(File srcFile, long bytes) {
+            sizes.put(srcFile.getAbsoluteFile(), bytes);
+            mirror.getMirrorDirectory(srcFile.getAbsoluteFile().getParentFile()).mkdirs();
+        }
+
+        @Override
+        public Entry read(File srcFile, int size) {
+            return null;
+        }
+
+        @Override
+        public SourceStamp readStamp(File srcFile, int size) {
+            return null;
+        }
+
+        @Override
+        public long write(File srcFile, int size, BufferedImage thumb, SourceStamp stamp) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public long sizeOf(File srcFile, int size) {
+            return size == SIZE ? sizes.getOrDefault(srcFile.getAbsoluteFile(), 0L) : 0;
+        }
+
+        @Override
+        public void remove(File srcFile) {
+            sizes.remove(srcFile.getAbsoluteFile());
+        }
+
+        @Override
+        public void copy(File srcFile, File destFile, SourceStamp destStamp, boolean removeOriginal) {
+            Long bytes = removeOriginal ? sizes.remove(srcFile.getAbsoluteFile()) : sizes.get(srcFile.getAbsoluteFile());
+            if (bytes != null) {
+                put(destFile, bytes);
+            }
+        }
+
+        @Override
+        public void copyDirectory(File srcDir, File destDir, boolean removeOriginal) {
+            String prefix = srcDir.getAbsolutePath() + File.separator;
+            for (File srcFile : new ArrayList<>(sizes.keySet())) {
+                if (srcFile.getPath().startsWith(prefix)) {
+                    copy(srcFile, new File(destDir, srcFile.getPath().substring(prefix.length())), null, removeOriginal);
+                }
+            }
+        }
+
+        @Override
+        public void close() {
+        }
+
+        @Override
+        public void forEachThumbnail(Visitor visitor) {
+            sizes.forEach((srcFile, bytes) -> visitor.visit(srcFile, SIZE, bytes, 0));
+        }
+
+        @Override
+        public void forEachThumbnail(File srcDir, boolean isRecursive, Visitor visitor) {
+            String prefix = srcDir.getAbsolutePath() + File.separator;
+            sizes.forEach((srcFile, bytes) -> {
+                if (isRecursive ? srcFile.getPath().startsWith(prefix)
+                                : srcFile.getParentFile().equals(srcDir.getAbsoluteFile())) {
+                    visitor.visit(srcFile, SIZE, bytes, 0);
+                }
+            });
+        }
+    }
+}
@@ -0,0 +1,115 @@
+package ca.corbett.imageviewer.ui;
+
+import ca.corbett.imageviewer.AppConfig;
+import org.apache.commons.io.FileUtils;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.nio.file.Files;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ThumbCacheSweeperTest {
+
+    private static final int SIZE = AppConfig.ThumbSize.Normal.getDimensions();
+
+    @TempDir
+    File tempDir;
+
+    private File imageDir;
+    private FileTreeThumbStore store;
+    private ThumbCacheSweeper sweeper;
+
+    @BeforeEach
+    public void setup() {
+        File cacheDir = new File(tempDir, "cache");
+        imageDir = new File(tempDir, "images");
+        imageDir.mkdirs();
+        store = new FileTreeThumbStore(cacheDir);
+        sweeper = new ThumbCacheSweeper(cacheDir, store, () -> store, store::remove, () -> false);
+    }
+
+    @Test
+    public void sweep_withDeletedImages_shouldRemoveOrphansAndEmptyDirectories() throws Exception {
+        //GIVEN cached thumbnails for three images, two of which are then deleted:
+        File keptImage = newImage("kept/a.jpg");
+        File deletedImage = newImage("kept/b.jpg");
+        File deletedDirImage = newImage("deleted/c.jpg");
+        store.write(keptImage, SIZE, newThumb(), SourceStamp.of(keptImage));
+        store.write(deletedImage, SIZE, newThumb(), SourceStamp.of(deletedImage));
+        store.write(deletedDirImage, SIZE, newThumb(), SourceStamp.of(deletedDirImage));
+        Files.delete(deletedImage.toPath());
+        FileUtils.deleteDirectory(deletedDirImage.getParentFile());
+
+        //WHEN we sweep:
+        ThumbCacheManager.SweepResult result = sweeper.sweep();
+
+        //THEN only the orphans and the deleted directory's mirror should be gone:
+        assertEquals(2, result.getOrphanCount());
+        assertEquals(2, result.getThumbnailCount());
+        assertTrue(result.getReclaimedBytes() > 0);
+        assertEquals(1, result.getRemovedDirectoryCount());
+        assertNotNull(store.read(keptImage, SIZE));
+        assertFalse(store.getMirrorDirectory(deletedDirImage.getParentFile()).exists());
+    }
+
+    @Test
+    public void sweep_withImagesOnMissingVolume_shouldKeepThumbnails() throws Exception {
+        //GIVEN a cached thumbnail for an image under an empty mount point:
+        File mountPoint = new File(tempDir, "mnt");
+        mountPoint.mkdirs();
+        File image = new File(mountPoint, "photos/a.jpg");
+        store.write(image, SIZE, newThumb(), new SourceStamp(1000, 100));
+
+        //WHEN we sweep:
+        ThumbCacheManager.SweepResult result = sweeper.sweep();
+
+        //THEN the thumbnail should be left alone, since the drive may just not be mounted:
+        assertEquals(0, result.getOrphanCount());
+        assertNotNull(store.read(image, SIZE));
+    }
+
+    @Test
+    public void sweep_withImagesOnUnmountedLabelDirectory_shouldKeepThumbnails() throws Exception {
+        //GIVEN a cached thumbnail for an image on a drive that was mounted at <user>/<LABEL>,
+        //      where the LABEL directory went away on unmount, but another drive is still mounted:
+        File userDir = new File(tempDir, "media/user");
+        new File(userDir, "OTHER").mkdirs();
+        File image = new File(userDir, "LABEL/photos/a.jpg");
+        store.write(image, SIZE, newThumb(), new SourceStamp(1000, 100));
+
+        //WHEN we sweep:
+        ThumbCacheManager.SweepResult result = sweeper.sweep();
+
+        //THEN the thumbnail should be left alone, since the source directory's own parent is missing:
+        assertEquals(0, result.getOrphanCount());
+        assertEquals(0, result.getRemovedDirectoryCount());
+        assertNotNull(store.read(image, SIZE));
+    }
+
+    @Test
+    public void isRemovableMountLocation_withMountLocations_shouldRecognizeThem() {
+        assertTrue(ThumbCacheSweeper.isRemovableMountLocation(new File("/media")));
+        assertTrue(ThumbCacheSweeper.isRemovableMountLocation(new File("/media/user")));
+        assertTrue(ThumbCacheSweeper.isRemovableMountLocation(new File("/run/media/user")));
+        assertFalse(ThumbCacheSweeper.isRemovableMountLocation(new File("/home/user")));
+        assertFalse(ThumbCacheSweeper.isRemovableMountLocation(new File("/media/user/LABEL")));
+    }
+
+    private File newImage(String path) throws Exception {
+        File file = new File(imageDir, path);
+        file.getParentFile().mkdirs();
+        Files.write(file.toPath(), path.getBytes());
+        return file;
+    }
+
+    private static BufferedImage newThumb() {
+        return new BufferedImage(10, 10, BufferedImage.TYPE_INT_RGB);
+    }
+}
@@ -0,0 +1,117 @@
+package ca.corbett.imageviewer.ui;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.awt.image.BufferedImage;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+class ThumbCacheWriterTest {
+
+    private CountDownLatch blocker;
+    private List<Key> written;
+    private ThumbCacheWriter<Key> writer;
+
+    @BeforeEach
+    public void setup() {
+        blocker = new CountDownLatch(1);
+        written = new CopyOnWriteArrayList<>();
+        writer = new ThumbCacheWriter<>((key, thumb) -> {
+            if (key.name.equals("blocker")) {
+                try {
+                    blocker.await();
+                }
+                catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                }
+                return;
+            }
+            written.add(key);
+        });
+
+        // Keep the writer thread busy, so that whatever we offer next stays in the queue:
+        writer.offer(new Key("blocker", 0), newThumb());
+        while (writer.getPendingCount() > 0) {
+            Thread.yield();
+        }
+    }
+
+    @AfterEach
+    public void teardown() {
+        blocker.countDown();
+    }
+
+    @Test
+    public void peek_withOutdatedEntry_shouldDropIt() {
+        //GIVEN a thumbnail queued for an older version of its image:
+        writer.offer(new Key("image", 1), newThumb());
+
+        //WHEN we look for it, expecting the newer version:
+        BufferedImage thumb = writer.peek(new Key("image", 0), queued -> queued.version == 2);
+
+        //THEN it shouldn't be returned, and it shouldn't be written either:
+        assertNull(thumb);
+        assertEquals(0, writer.getPendingCount());
+    }
+
+    @Test
+    public void peek_withCurrentEntry_shouldReturnIt() {
+        //GIVEN a thumbnail queued for the current version of its image:
+        BufferedImage queued = newThumb();
+        writer.offer(new Key("image", 2), queued);
+
+        //WHEN we look for it:
+        BufferedImage thumb = writer.peek(new Key("image", 0), key -> key.version == 2);
+
+        //THEN it should be returned, and still be waiting to be written:
+        assertSame(queued, thumb);
+        assertEquals(1, writer.getPendingCount());
+    }
+
+    @Test
+    public void flush_withBareKey_shouldWriteUnderTheKeyItWasOfferedWith() {
+        //GIVEN a queued thumbnail:
+        writer.offer(new Key("image", 2), newThumb());
+
+        //WHEN it's flushed by a key that carries nothing but its identity:
+        writer.flush(new Key("image", 0));
+
+        //THEN it should have been written with everything it was offered with:
+        assertEquals(1, written.size());
+        assertEquals(2, written.get(0).version);
+    }
+
+    private static BufferedImage newThumb() {
+        return new BufferedImage(10, 10, BufferedImage.TYPE_INT_RGB);
+    }
+
+    /**
+     * Identified by name only; the version rides along, the way a SourceStamp does in ThumbCacheManager.
+     */
+    private static final class Key {
+        final String name;
+        final int version;
+
+        Key(String name, int version) {
+            this.name = name;
+            this.version = version;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Key && name.equals(((Key)o).name);
+        }
+
+        @Override
+        public int hashCode() {
+            return name.hashCode();
+        }
+    }
+}
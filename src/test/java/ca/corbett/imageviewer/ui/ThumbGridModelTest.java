@@ -0,0 +1,171 @@
+package ca.corbett.imageviewer.ui;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ThumbGridModelTest {
+
+    private ThumbGridModel model;
+    private List<File> files;
+
+    @BeforeEach
+    public void setup() {
+        model = new ThumbGridModel();
+        files = new ArrayList<>();
+        for (int i = 0; i < ThumbGridModel.MIN_CAPACITY * 2; i++) {
+            files.add(new File("image" + i + ".jpg"));
+        }
+        model.setFiles(files);
+    }
+
+    @Test
+    public void thumbLoaded_withoutRequest_shouldIgnore() {
+        //GIVEN a file that was never requested:
+        File file = files.get(0);
+
+        //WHEN a thumbnail shows up for it anyway:
+        model.thumbLoaded(file, new BufferedImage(1, 1, BufferedImage.TYPE_INT_RGB));
+
+        //THEN it should not be stored:
+        assertFalse(model.isLoaded(file));
+    }
+
+    @Test
+    public void thumbLoaded_withNullThumb_shouldRememberFailure() {
+        //GIVEN a requested file:
+        File file = files.get(0);
+        assertTrue(model.markRequested(file));
+
+        //WHEN the load fails:
+        model.thumbLoaded(file, null);
+
+        //THEN it should count as loaded, and not be requested again:
+        assertTrue(model.isLoaded(file));
+        assertNull(model.getThumb(file));
+        assertFalse(model.markRequested(file));
+    }
+
+    @Test
+    public void thumbLoaded_overCapacity_shouldDiscardLeastRecentlyUsed() {
+        //GIVEN a model filled to capacity:
+        for (int i = 0; i < ThumbGridModel.MIN_CAPACITY; i++) {
+            model.markRequested(files.get(i));
+            model.thumbLoaded(files.get(i), new BufferedImage(1, 1, BufferedImage.TYPE_INT_RGB));
+        }
+
+        //WHEN we touch the first one and then load one more:
+        model.getThumb(files.get(0));
+        File extra = files.get(ThumbGridModel.MIN_CAPACITY);
+        model.markRequested(extra);
+        model.thumbLoaded(extra, new BufferedImage(1, 1, BufferedImage.TYPE_INT_RGB));
+
+        //THEN the least recently used one (not the first one) should be discarded:
+        assertTrue(model.isLoaded(files.get(0)));
+        assertFalse(model.isLoaded(files.get(1)));
+        assertTrue(model.isLoaded(extra));
+    }
+
+    @Test
+    public void indexOf_afterRemoveAndRename_shouldReflectChanges() {
+        //GIVEN a lookup that has already been done:
+        assertEquals(5, model.indexOf(files.get(5)));
+
+        //WHEN we remove one entry and rename another:
+        model.remove(0);
+        File renamed = new File("renamed.jpg");
+        model.rename(0, renamed);
+
+        //THEN lookups should be up to date:
+        assertEquals(-1, model.indexOf(files.get(0)));
+        assertEquals(-1, model.indexOf(files.get(1)));
+        assertEquals(0, model.indexOf(renamed));
+        assertEquals(4, model.indexOf(files.get(5)));
+    }
+
+    @Test
+    public void rename_withLoadedThumb_shouldCarryThumbOver() {
+        //GIVEN a loaded thumbnail:
+        File file = files.get(3);
+        BufferedImage thumb = new BufferedImage(1, 1, BufferedImage.TYPE_INT_RGB);
+        model.markRequested(file);
+        model.thumbLoaded(file, thumb);
+
+        //WHEN we rename that file:
+        File renamed = new File("renamed.jpg");
+        model.rename(3, renamed);
+
+        //THEN the thumbnail should follow it:
+        assertSame(thumb, model.getThumb(renamed));
+        assertFalse(model.isLoaded(file));
+    }
+
+    @Test
+    public void updateFiles_withNewFilesSortedIn_shouldKeepThumbsAndRequests() {
+        //GIVEN a loaded thumbnail and an outstanding request:
+        File loaded = files.get(1);
+        File requested = files.get(2);
+        BufferedImage thumb = new BufferedImage(1, 1, BufferedImage.TYPE_INT_RGB);
+        model.markRequested(loaded);
+        model.thumbLoaded(loaded, thumb);
+        model.markRequested(requested);
+        assertEquals(1, model.indexOf(loaded));
+
+        //WHEN more files are discovered, one of which sorts to the front:
+        List<File> grown = new ArrayList<>(files);
+        File newFirst = new File("aaa.jpg");
+        grown.add(0, newFirst);
+        model.updateFiles(grown);
+
+        //THEN everything should have shifted, but nothing should have been discarded:
+        assertEquals(0, model.indexOf(newFirst));
+        assertEquals(2, model.indexOf(loaded));
+        assertSame(thumb, model.getThumb(loaded));
+        assertTrue(model.isRequested(requested));
+    }
+
+    @Test
+    public void removeAll_withLoadedAndUnknownFiles_shouldRemoveOnlyThoseInModel() {
+        //GIVEN a loaded thumbnail for a file that is then removed from disk:
+        File removed = files.get(2);
+        File next = files.get(3);
+        int size = model.size();
+        model.markRequested(removed);
+        model.thumbLoaded(removed, new BufferedImage(1, 1, BufferedImage.TYPE_INT_RGB));
+
+        //WHEN we remove it, along with a file we never had:
+        model.removeAll(List.of(removed, new File("never-here.jpg")));
+
+        //THEN only that file should be gone, and later files should have shifted down:
+        assertEquals(size - 1, model.size());
+        assertEquals(-1, model.indexOf(removed));
+        assertFalse(model.isLoaded(removed));
+        assertEquals(2, model.indexOf(next));
+    }
+
+    @Test
+    public void invalidate_withLoadedThumb_shouldAllowNewRequest() {
+        //GIVEN a loaded thumbnail:
+        File file = files.get(0);
+        model.markRequested(file);
+        model.thumbLoaded(file, new BufferedImage(1, 1, BufferedImage.TYPE_INT_RGB));
+
+        //WHEN the file is modified and its thumbnail invalidated:
+        model.invalidate(file);
+
+        //THEN a stale result should be ignored, and a new request should be allowed:
+        model.thumbLoaded(file, new BufferedImage(1, 1, BufferedImage.TYPE_INT_RGB));
+        assertFalse(model.isLoaded(file));
+        assertTrue(model.markRequested(file));
+    }
+}
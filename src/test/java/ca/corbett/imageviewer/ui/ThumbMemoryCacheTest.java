@@ -0,0 +1,106 @@
+package ca.corbett.imageviewer.ui;
+
+import org.junit.jupiter.api.Test;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+class ThumbMemoryCacheTest {
+
+    // A 10x10 TYPE_INT_RGB image occupies 400 bytes of raster:
+    private static final long THUMB_BYTES = 400;
+
+    private static final SourceStamp STAMP = new SourceStamp(1000, 5000);
+
+    @Test
+    public void get_afterPut_shouldHit() {
+        //GIVEN a cache with a thumbnail in it:
+        ThumbMemoryCache cache = new ThumbMemoryCache(() -> THUMB_BYTES * 10);
+        File file = new File("image.jpg");
+        BufferedImage thumb = newThumb();
+        cache.put(file, STAMP, 80, thumb);
+
+        //WHEN we look it up at the same size and at a different size:
+        BufferedImage hit = cache.get(file, STAMP, 80);
+        BufferedImage miss = cache.get(file, STAMP, 100);
+
+        //THEN only the matching size should be found:
+        assertSame(thumb, hit);
+        assertNull(miss);
+        assertEquals(1, cache.getStats().getHitCount());
+        assertEquals(1, cache.getStats().getMissCount());
+    }
+
+    @Test
+    public void put_overBudget_shouldEvictLeastRecentlyUsed() {
+        //GIVEN a cache with room for exactly two thumbnails:
+        ThumbMemoryCache cache = new ThumbMemoryCache(() -> THUMB_BYTES * 2);
+        File first = new File("first.jpg");
+        File second = new File("second.jpg");
+        cache.put(first, STAMP, 80, newThumb());
+        cache.put(second, STAMP, 80, newThumb());
+
+        //WHEN we touch the first one and then add a third:
+        cache.get(first, STAMP, 80);
+        cache.put(new File("third.jpg"), STAMP, 80, newThumb());
+
+        //THEN the second one should have been evicted:
+        assertNotNull(cache.get(first, STAMP, 80));
+        assertNull(cache.get(second, STAMP, 80));
+        assertEquals(1, cache.getStats().getEvictionCount());
+        assertEquals(THUMB_BYTES * 2, cache.getStats().getCurrentBytes());
+    }
+
+    @Test
+    public void get_withDifferentStamp_shouldMiss() {
+        //GIVEN a cache with a thumbnail in it:
+        ThumbMemoryCache cache = new ThumbMemoryCache(() -> THUMB_BYTES * 10);
+        File file = new File("image.jpg");
+        cache.put(file, STAMP, 80, newThumb());
+
+        //WHEN the source image has been modified since:
+        BufferedImage thumb = cache.get(file, new SourceStamp(2000, 5000), 80);
+
+        //THEN the old thumbnail should not be returned:
+        assertNull(thumb);
+    }
+
+    @Test
+    public void remove_shouldDiscardAllSizes() {
+        //GIVEN thumbnails at two sizes for one image, and one for another image:
+        ThumbMemoryCache cache = new ThumbMemoryCache(() -> THUMB_BYTES * 10);
+        File file = new File("image.jpg");
+        cache.put(file, STAMP, 80, newThumb());
+        cache.put(file, STAMP, 100, newThumb());
+        cache.put(new File("other.jpg"), STAMP, 80, newThumb());
+
+        //WHEN we remove the first image:
+        cache.remove(file);
+
+        //THEN only the other image's thumbnail should remain:
+        assertEquals(1, cache.getStats().getEntryCount());
+        assertEquals(THUMB_BYTES, cache.getStats().getCurrentBytes());
+    }
+
+    @Test
+    public void put_withZeroBudget_shouldDoNothing() {
+        //GIVEN a disabled cache:
+        ThumbMemoryCache cache = new ThumbMemoryCache(() -> 0);
+
+        //WHEN we add a thumbnail:
+        cache.put(new File("image.jpg"), STAMP, 80, newThumb());
+
+        //THEN nothing should be stored, and nothing counted as evicted:
+        assertEquals(0, cache.getStats().getEntryCount());
+        assertEquals(0, cache.getStats().getEvictionCount());
+    }
+
+    private static BufferedImage newThumb() {
+        return new BufferedImage(10, 10, BufferedImage.TYPE_INT_RGB);
+    }
+}
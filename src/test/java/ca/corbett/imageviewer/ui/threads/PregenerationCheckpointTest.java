@@ -0,0 +1,84 @@
+package ca.corbett.imageviewer.ui.threads;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class PregenerationCheckpointTest {
+
+    @TempDir
+    File tempDir;
+
+    @Test
+    public void save_withDirectoriesFinishedOutOfOrder_shouldRecordExactlyTheFinishedOnes() {
+        //GIVEN three directories, of which the first and third are finished:
+        File checkpointFile = new File(tempDir, "checkpoint.properties");
+        File root = new File(tempDir, "root");
+        PregenerationCheckpoint checkpoint = new PregenerationCheckpoint(checkpointFile, root);
+        PregenerationCheckpoint.Directory a = checkpoint.begin(new File(root, "a"));
+        PregenerationCheckpoint.Directory b = checkpoint.begin(new File(root, "b"));
+        PregenerationCheckpoint.Directory c = checkpoint.begin(new File(root, "c"));
+        a.imageSubmitted();
+        b.imageSubmitted();
+        c.imageSubmitted();
+        a.allSubmitted();
+        b.allSubmitted();
+        c.allSubmitted();
+        c.imageDone();
+        a.imageDone();
+
+        //WHEN we save and reload:
+        checkpoint.save();
+        PregenerationCheckpoint reloaded = new PregenerationCheckpoint(checkpointFile, root);
+        int completedCount = reloaded.load();
+
+        //THEN the first and third directories should count as completed, but not the second:
+        assertEquals(2, completedCount);
+        assertTrue(reloaded.isCompleted(new File(root, "a")));
+        assertFalse(reloaded.isCompleted(new File(root, "b")));
+        assertTrue(reloaded.isCompleted(new File(root, "c")));
+    }
+
+    @Test
+    public void isCompleted_withDirectoryAddedBeforeCheckpoint_shouldNotSkipIt() {
+        //GIVEN a checkpoint saved after finishing the directories "b" and "c":
+        File checkpointFile = new File(tempDir, "checkpoint.properties");
+        File root = new File(tempDir, "root");
+        PregenerationCheckpoint checkpoint = new PregenerationCheckpoint(checkpointFile, root);
+        checkpoint.begin(new File(root, "b")).allSubmitted();
+        checkpoint.begin(new File(root, "c")).allSubmitted();
+        checkpoint.save();
+
+        //WHEN we resume after a directory "a" has been added, sorting before both of them:
+        PregenerationCheckpoint reloaded = new PregenerationCheckpoint(checkpointFile, root);
+        reloaded.load();
+
+        //THEN the new directory should still be processed:
+        assertFalse(reloaded.isCompleted(new File(root, "a")));
+        assertTrue(reloaded.isCompleted(new File(root, "b")));
+        assertTrue(reloaded.isCompleted(new File(root, "c")));
+    }
+
+    @Test
+    public void load_withDifferentRoot_shouldStartOver() {
+        //GIVEN a checkpoint saved for one root directory:
+        File checkpointFile = new File(tempDir, "checkpoint.properties");
+        File root = new File(tempDir, "root");
+        PregenerationCheckpoint checkpoint = new PregenerationCheckpoint(checkpointFile, root);
+        checkpoint.begin(root).allSubmitted();
+        checkpoint.save();
+
+        //WHEN we load it for a different root directory:
+        PregenerationCheckpoint other = new PregenerationCheckpoint(checkpointFile, new File(tempDir, "other"));
+        int completedCount = other.load();
+
+        //THEN there should be nothing to resume:
+        assertEquals(0, completedCount);
+        assertFalse(other.isCompleted(root));
+    }
+}